@@ -181,6 +181,8 @@ public abstract class Exp extends AbstractSyntaxNode implements LinkToSource {
         }
 
         public Exp getOp()  {return op; }
+
+        public void setOp(Exp op) { this.op = op; }
         
     }
     
@@ -323,6 +325,9 @@ public abstract class Exp extends AbstractSyntaxNode implements LinkToSource {
 
        public Exp getOp1() { return op1; }
        public Exp getOp2() { return ap2; }
+
+       public void setOp1(Exp op1) { this.op1 = op1; }
+       public void setOp2(Exp op2) { this.ap2 = op2; }
        
     }
     
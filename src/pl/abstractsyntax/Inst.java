@@ -55,6 +55,8 @@ public abstract class Inst
         
         public Exp getExp() { return exp; }
         public Mem getMem() { return mem; }
+
+        public void setExp(Exp exp) { this.exp = exp; }
         
     }
 
@@ -92,6 +94,8 @@ public abstract class Inst
         private String identProc;
         private ArrayList<Exp> args;
         private DeclarationProc decProc;
+        // set by the TailCallVisitor
+        private boolean tailCall = false;
 
         public InstructionCall(String identProc, ArrayList<Exp> args) {
             this.identProc = identProc;
@@ -119,6 +123,16 @@ public abstract class Inst
             this.decProc = decProc;
         }
         
+        /**
+         * @return true if the call reuses the activation register of the
+         *         calling procedure, which is the one called
+         */
+        public boolean isTailCall() { return tailCall; }
+        
+        public void setTailCall(boolean tailCall) {
+            this.tailCall = tailCall;
+        }
+        
     }
     
     /* insttructions - IO */
@@ -141,6 +155,8 @@ public abstract class Inst
         public void accept(Visitor v) { v.visit(this); }
         
         public Exp getExp() { return exp; }
+
+        public void setExp(Exp exp) { this.exp = exp; }
         
     }
     
@@ -240,6 +256,10 @@ public abstract class Inst
         
         public Exp getCondition() { return condition; }
         public Inst getBody() { return body; }
+
+        public void setCondition(Exp condition) {
+            this.condition = condition;
+        }
         
     }
     
@@ -271,6 +291,10 @@ public abstract class Inst
         
         public Exp getCondition() { return condition; }
         public Inst getBody() { return body; }
+
+        public void setCondition(Exp condition) {
+            this.condition = condition;
+        }
         
     }
 
@@ -302,6 +326,10 @@ public abstract class Inst
         
         public Exp getCondition() { return condition; }
         public Inst getBody() { return body; }
+
+        public void setCondition(Exp condition) {
+            this.condition = condition;
+        }
         
     }
 
@@ -342,6 +370,10 @@ public abstract class Inst
         public Exp getCondition() { return condition; }
         public Inst getBodyIf() { return body1; }
         public Inst getBodyElse() { return body2; }
+
+        public void setCondition(Exp condition) {
+            this.condition = condition;
+        }
         
     }
 
@@ -424,6 +456,7 @@ public abstract class Inst
         public Inst getDefaultInst() { return defaultInst; }
         public ArrayList<Case> getCases() { return cases; }
         
+        public void setExp(Exp exp) { this.exp = exp; }
         public void setCases(ArrayList<Case> cases) { this.cases = cases; }
         
     }
@@ -90,6 +90,9 @@ public abstract class Mem extends Exp implements LinkToSource {
         public Exp getExp() {
             return exp;
         }
+        public void setExp(Exp exp) {
+            this.exp = exp;
+        }
         @Override
         public void accept(Visitor v) {
             v.visit(this);
@@ -0,0 +1,52 @@
+package pl.demo;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import pl.util.BatchCompiler;
+
+/**
+ * Compiles all programs of a directory in parallel, see BatchCompiler. The
+ * errors and warnings are printed per file, followed by the number of
+ * files, the failures and the throughput in files per second.
+ *
+ * Usage: BatchCompileMain [directory] [threads] [rounds]
+ *
+ * With more than one round the directory is compiled again and again and a
+ * line is printed for each round, the first ones warming up the JIT.
+ */
+public class BatchCompileMain {
+
+    private static final String DEFAULT_PATH = "src/pl/demo/";
+
+    public static void main(String[] args) throws Exception {
+
+        Path directory = Paths.get(args.length > 0 ? args[0] : DEFAULT_PATH);
+        int threads = args.length > 1
+                ? Integer.parseInt(args[1])
+                : Runtime.getRuntime().availableProcessors();
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+
+        BatchCompiler compiler = new BatchCompiler(threads);
+        try {
+            BatchCompiler.Report report = compiler.compile(directory);
+            for(BatchCompiler.Result result : report.getResults()) {
+                if(result.getDiagnostics().isEmpty()) {
+                    continue;
+                }
+                System.out.println(result.getFile() + ":");
+                for(String diagnostic : result.getDiagnostics()) {
+                    System.out.println("    " + diagnostic);
+                }
+            }
+            System.out.println(report);
+            for(int round = 1; round < rounds; round++) {
+                System.out.println(compiler.compile(directory));
+            }
+        }
+        finally {
+            compiler.shutdown();
+        }
+
+    }
+
+}
@@ -0,0 +1,131 @@
+package pl.demo;
+
+import java.io.FileReader;
+import java.io.OutputStream;
+import pl.abstractsyntax.Program;
+import pl.frontend.MyParser;
+import pl.virtualmachine.BufferedOutput;
+import pl.virtualmachine.PeepholeOptimizer;
+import pl.virtualmachine.VirtualMachine;
+
+/**
+ * Compares the machine code generated for the demo programs without any
+ * optimization, with superinstructions, with superinstructions plus the
+ * peephole optimizer, with these plus constant folding on the tree of
+ * abstract syntax and with all of these plus inlining and tail calls. For
+ * each program the number of generated instructions is printed and, for
+ * programs which do not read any input, the number of instructions
+ * executed by the virtual machine. The passes are chosen explicitly, the
+ * settings of the Compiler do not matter.
+ *
+ * Usage: InstructionCountMain [demo directory]
+ */
+public class InstructionCountMain {
+
+    private static final String DEFAULT_DEMO_PATH = "src/pl/demo/";
+
+    // demo files and whether they can be run without user input
+    private static final String[] FILES = {
+        "insertionsort.txt",
+        "listSorting.txt",
+        "userInput.txt"
+    };
+    private static final boolean[] RUNNABLE = { true, false, false };
+
+    // procedures inlined in the last column, see Compiler.compile
+    private static final int INLINE_SIZE = 30;
+
+    public static void main(String[] args) throws Exception {
+
+        String demoPath = args.length > 0 ? args[0] : DEFAULT_DEMO_PATH;
+        if(!demoPath.endsWith("/")) {
+            demoPath += "/";
+        }
+
+        System.out.println(String.format(
+                "%-28s %10s %10s %10s %10s %10s %8s",
+                "demo file", "plain", "fused", "peephole", "folded",
+                "inlined", "saved"
+        ));
+        for(int i = 0; i < FILES.length; i++) {
+            String file = demoPath + FILES[i];
+            VirtualMachine plain = compile(file, false, false, false);
+            VirtualMachine fused = compile(file, true, false, false);
+            VirtualMachine optimized = compile(file, true, false, false);
+            VirtualMachine folded = compile(file, true, true, false);
+            VirtualMachine inlined = compile(file, true, true, true);
+            if( plain == null || fused == null || optimized == null ||
+                folded == null || inlined == null
+            ) {
+                System.out.println(FILES[i] + ": compiling failed");
+                continue;
+            }
+            optimized.optimize(new PeepholeOptimizer());
+            folded.optimize(new PeepholeOptimizer());
+            inlined.optimize(new PeepholeOptimizer());
+            printRow(
+                    FILES[i] + " (code)",
+                    plain.getCode().size(),
+                    fused.getCode().size(),
+                    optimized.getCode().size(),
+                    folded.getCode().size(),
+                    inlined.getCode().size()
+            );
+            if(RUNNABLE[i]) {
+                printRow(
+                        FILES[i] + " (run)",
+                        run(plain),
+                        run(fused),
+                        run(optimized),
+                        run(folded),
+                        run(inlined)
+                );
+            }
+        }
+
+    }
+
+    // parses and compiles a file, null if there are errors
+    private static VirtualMachine compile(
+            String file,
+            boolean superinstructions,
+            boolean constantFolding,
+            boolean inlining
+    ) throws Exception {
+        MyParser parser = new MyParser(new FileReader(file));
+        Program prog = parser.parse();
+        return pl.util.Compiler.compile(
+                prog,
+                superinstructions,
+                constantFolding,
+                inlining ? INLINE_SIZE : 0,
+                inlining
+        );
+    }
+
+    // runs the instruction objects without printing the program's output
+    private static long run(VirtualMachine machine) {
+        machine.setOutput(new BufferedOutput(new OutputStream() {
+            @Override
+            public void write(int b) {}
+        }));
+        machine.execute();
+        return machine.getExecutedInstructions();
+    }
+
+    private static void printRow(
+            String name,
+            long plain,
+            long fused,
+            long optimized,
+            long folded,
+            long inlined
+    ) {
+        System.out.println(String.format(
+                "%-28s %10d %10d %10d %10d %10d %7.1f%%",
+                name, plain, fused, optimized, folded, inlined,
+                100.0 * (plain - inlined) / plain
+        ));
+    }
+
+}
@@ -0,0 +1,165 @@
+package pl.demo;
+
+import java.io.FileReader;
+import java.io.OutputStream;
+import pl.abstractsyntax.Program;
+import pl.frontend.MyParser;
+import pl.virtualmachine.BufferedOutput;
+import pl.virtualmachine.Output;
+import pl.virtualmachine.PeepholeOptimizer;
+import pl.virtualmachine.PeepholeRule;
+import pl.virtualmachine.RegisterMachine;
+import pl.virtualmachine.VirtualMachine;
+
+/**
+ * Compares the register machine to the stack machine on the demo programs.
+ * For each program the number of generated instructions is printed and, for
+ * programs which do not read any input, the number of executed instructions
+ * and the mean wall time of a run.
+ *
+ * The stack machine's code uses superinstructions and is rewritten by the
+ * peephole optimizer, which drops the debugging instructions. The register
+ * machine links its instructions to the source code without executing
+ * anything for it. The times of the stack machine are the ones of its
+ * bytecode interpreter, the counts are the ones of its instruction objects.
+ *
+ * Usage: RegisterMachineMain [demo directory] [runs]
+ */
+public class RegisterMachineMain {
+
+    private static final String DEFAULT_DEMO_PATH = "src/pl/demo/";
+
+    // timed runs of each program, after as many runs for warming up the JIT
+    private static final int DEFAULT_RUNS = 200;
+
+    // demo files and whether they can be run without user input
+    private static final String[] FILES = {
+        "insertionsort.txt",
+        "listSorting.txt",
+        "userInput.txt"
+    };
+    private static final boolean[] RUNNABLE = { true, false, false };
+
+    public static void main(String[] args) throws Exception {
+
+        String demoPath = args.length > 0 ? args[0] : DEFAULT_DEMO_PATH;
+        if(!demoPath.endsWith("/")) {
+            demoPath += "/";
+        }
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_RUNS;
+
+        System.out.println(String.format(
+                "%-32s %10s %10s %8s",
+                "demo file", "stack", "register", "saved"
+        ));
+        for(int i = 0; i < FILES.length; i++) {
+            String file = demoPath + FILES[i];
+            VirtualMachine stack = compileStack(file);
+            RegisterMachine registers = compileRegisters(file);
+            if(stack == null || registers == null) {
+                System.out.println(FILES[i] + ": compiling failed");
+                continue;
+            }
+            printRow(
+                    FILES[i] + " (code)",
+                    stack.getCode().size(),
+                    registers.getCode().size()
+            );
+            if(!RUNNABLE[i]) {
+                continue;
+            }
+            printRow(
+                    FILES[i] + " (run)",
+                    run(stack),
+                    run(registers)
+            );
+            timeStack(file, runs);
+            timeRegisters(file, runs);
+            printRow(
+                    FILES[i] + " (time, ns)",
+                    timeStack(file, runs),
+                    timeRegisters(file, runs)
+            );
+        }
+
+    }
+
+    // parses and compiles a file for the stack machine, null if there are
+    // errors
+    private static VirtualMachine compileStack(String file) throws Exception {
+        MyParser parser = new MyParser(new FileReader(file));
+        Program prog = parser.parse();
+        VirtualMachine machine = pl.util.Compiler.compile(prog, true, true);
+        if(machine != null) {
+            machine.optimize(new PeepholeOptimizer(PeepholeRule.release()));
+        }
+        return machine;
+    }
+
+    // parses and compiles a file for the register machine, null if there
+    // are errors
+    private static RegisterMachine compileRegisters(String file)
+            throws Exception {
+        MyParser parser = new MyParser(new FileReader(file));
+        Program prog = parser.parse();
+        return pl.util.Compiler.compileRegisters(prog, true);
+    }
+
+    // mean time of a run of the stack machine's bytecode
+    private static long timeStack(String file, int runs) throws Exception {
+        long time = 0;
+        for(int k = 0; k < runs; k++) {
+            VirtualMachine machine = compileStack(file);
+            machine.lower();
+            machine.setOutput(discard());
+            long start = System.nanoTime();
+            machine.execute();
+            time += System.nanoTime() - start;
+        }
+        return time / runs;
+    }
+
+    // mean time of a run of the register machine
+    private static long timeRegisters(String file, int runs) throws Exception {
+        long time = 0;
+        for(int k = 0; k < runs; k++) {
+            RegisterMachine machine = compileRegisters(file);
+            machine.setOutput(discard());
+            long start = System.nanoTime();
+            machine.execute();
+            time += System.nanoTime() - start;
+        }
+        return time / runs;
+    }
+
+    // runs the instruction objects without printing the program's output
+    private static long run(VirtualMachine machine) {
+        machine.setOutput(discard());
+        machine.execute();
+        return machine.getExecutedInstructions();
+    }
+
+    // runs the register code without printing the program's output
+    private static long run(RegisterMachine machine) {
+        machine.setOutput(discard());
+        machine.execute();
+        return machine.getExecutedInstructions();
+    }
+
+    // an output which is thrown away
+    private static Output discard() {
+        return new BufferedOutput(new OutputStream() {
+            @Override
+            public void write(int b) {}
+        });
+    }
+
+    private static void printRow(String name, long stack, long registers) {
+        System.out.println(String.format(
+                "%-32s %10d %10d %7.1f%%",
+                name, stack, registers,
+                100.0 * (stack - registers) / stack
+        ));
+    }
+
+}
@@ -1,5 +1,6 @@
 package pl.errors;
 
+import java.util.List;
 import pl.abstractsyntax.LinkToSource;
 
 /**
@@ -14,6 +15,10 @@ import pl.abstractsyntax.LinkToSource;
  *     <li>type check/inference errors</li>
  *     <li>VM runtime errors</li>
  * </ol>
+ *
+ * The messages are printed to the standard output, unless the thread
+ * which reports them collects them, see collect. This keeps the messages
+ * of compilations running in parallel apart.
  */
 public class Errors {
 
@@ -79,42 +84,48 @@ public class Errors {
     public final static String ERROR_TYPE_DEREF
         = "dereferenced type must be a pointer (no null pointer)";
 
-    public static String ERROR_TYPE_ARRAY_INDEX
+    public static final String ERROR_TYPE_ARRAY_INDEX
         = "array index must be an integer";
 
-    public static String ERROR_TYPE_ARRAY
+    public static final String ERROR_TYPE_ARRAY
         = "can only use the index operator with an array";
     
-    public static String ERROR_TYPE_SELECT
+    public static final String ERROR_TYPE_SELECT
         = "can only use the select operator with a record";
     
-    public static String ERROR_TYPE_NUMBER_ARGUMENTS
+    public static final String ERROR_TYPE_NUMBER_ARGUMENTS
         = "incorrect number of arguments provided";
     
-    public static String ERROR_TYPE_BY_REFERENCE
+    public static final String ERROR_TYPE_BY_REFERENCE
         = "can not pass a value by reference";
     
-    public static String ERROR_TYPE_ARG_TYPE
+    public static final String ERROR_TYPE_ARG_TYPE
         = "invalid argument type";
     
-    public static String ERROR_TYPE_READ
+    public static final String ERROR_TYPE_READ
         = "can only read univariate values from console";
     
     
     /* virtual machine runtime errors */
     
-    public static String ERROR_RUNTIME_INVALID_ADDRESS
+    public static final String ERROR_RUNTIME_INVALID_ADDRESS
        = "cannot read from or write to invalid address";
     
-    public static String ERROR_RUNTIME_OUT_OF_BOUNDS
+    public static final String ERROR_RUNTIME_OUT_OF_BOUNDS
        = "array or string index out of bounds";
     
-    public static String ERROR_RUNTIME_UNINITIALIZED_MEMORY
+    public static final String ERROR_RUNTIME_UNINITIALIZED_MEMORY
         = "reading from uninitialized memory";
     
-    public static String ERROR_RUNTIME_TYPE_RUNTIME
+    public static final String ERROR_RUNTIME_TYPE_RUNTIME
         = "type error";
     
+    public static final String ERROR_RUNTIME_INSTRUCTION_LIMIT
+        = "instruction limit exceeded";
+    
+    public static final String ERROR_RUNTIME_TIME_LIMIT
+        = "time limit exceeded";
+    
     /* WARNINGS */
 
     public final static String WARNING_RUNTIME_MEM_NOT_INITILIAZED
@@ -122,18 +133,56 @@ public class Errors {
     
 
 
+    // the list collecting the messages of each thread, if it has one
+    private static final ThreadLocal<List<String>> COLLECTED
+        = new ThreadLocal<>();
+
+
+    /* methods for collecting */
+
+    /**
+     * Adds the messages reported by the current thread to a list instead
+     * of printing them, until stopCollecting is called.
+     */
+    public static void collect(List<String> messages) {
+        COLLECTED.set(messages);
+    }
+
+    public static void stopCollecting() {
+        COLLECTED.remove();
+    }
+
+
     /* methods for printing */
 
     public static void printError(String msg) {
-        System.out.println("ERROR: " + msg);
+        print("ERROR: " + msg);
     }
 
     public static void printWarning(String msg) {
-        System.out.println("WARNING: " + msg);
+        print("WARNING: " + msg);
     }
 
     public static void printError(LinkToSource node, String msg) {
-        System.out.println("ERROR: " + node.getLinkToSource() + ": " + msg);
+        print("ERROR: " + node.getLinkToSource() + ": " + msg);
+    }
+
+    /**
+     * Prints a message about the whole compilation as it is, e.g. that it
+     * was aborted.
+     */
+    public static void printMessage(String msg) {
+        print(msg);
+    }
+
+    private static void print(String line) {
+        List<String> messages = COLLECTED.get();
+        if(messages != null) {
+            messages.add(line.trim());
+        }
+        else {
+            System.out.println(line);
+        }
     }
     
     
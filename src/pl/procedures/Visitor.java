@@ -134,6 +134,9 @@ public abstract class Visitor {
             c.getLiteral().accept(this);
             c.getInst().accept(this);
         }
+        if(inst.getDefaultInst() != null) {
+            inst.getDefaultInst().accept(this);
+        }
     }
     
     /* expressions */
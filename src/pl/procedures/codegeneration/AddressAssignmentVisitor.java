@@ -69,6 +69,7 @@ public class AddressAssignmentVisitor extends Visitor {
             p.accept(this);
         }
         int paramSize = addr;
+        size = 0;
         dec.getBody().accept(this);
         dec.setLevel(level);
         dec.setSize(size + paramSize);
@@ -82,6 +83,9 @@ public class AddressAssignmentVisitor extends Visitor {
     
     @Override
     public void visit(InstructionBlock block) {
+        // cells needed by the blocks visited before in the same instruction,
+        // e.g. the other branch of an IF ELSE
+        int sizeBefore = size;
         int addrBeforeBlock = addr; 
         for(Declaration dec : block.getDecs()) {
             dec.accept(this);
@@ -94,7 +98,7 @@ public class AddressAssignmentVisitor extends Visitor {
                blockSize = size;
             }
         }    
-        size = blockSize + (addr - addrBeforeBlock);
+        size = Math.max(sizeBefore, blockSize + (addr - addrBeforeBlock));
         addr = addrBeforeBlock; 
     }
     
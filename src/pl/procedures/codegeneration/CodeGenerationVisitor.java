@@ -3,8 +3,11 @@ package pl.procedures.codegeneration;
 import java.util.Stack;
 import pl.abstractsyntax.Declaration;
 import pl.abstractsyntax.Declaration.*;
+import pl.virtualmachine.FrameLayout;
 import pl.virtualmachine.VirtualMachine;
+import pl.abstractsyntax.Exp;
 import pl.abstractsyntax.Exp.*;
+import pl.abstractsyntax.Mem;
 import pl.abstractsyntax.Mem.*;
 import pl.abstractsyntax.Program;
 import pl.abstractsyntax.Inst;
@@ -18,22 +21,42 @@ import pl.virtualmachine.VirtualMachine.MachineInstruction;
  * Visitor class which generates code for the virtual machine (machine code)
  * Only call on a program which is already type checked!
  * 
+ * Unless disabled, the most frequent instruction sequences (variable access,
+ * field selection, array indexing, argument passing) are emitted as the
+ * machine's superinstructions. The LabelingVisitor has to be constructed
+ * with the same setting.
  */
 public class CodeGenerationVisitor extends Visitor {
     
     private VirtualMachine machine; 
     private Stack<DeclarationProc> pendingProcs;
     private boolean debug;
+    private boolean superinstructions;
 
     /**
      * Contructs a visitor for code generation.
      * @param machine The virtual machine to add the code to.
      * @param debug If debugging instructions are generated or not.
+     * @param superinstructions If superinstructions are generated or not.
      */
-    public CodeGenerationVisitor(VirtualMachine machine, boolean debug) {
+    public CodeGenerationVisitor(
+            VirtualMachine machine,
+            boolean debug,
+            boolean superinstructions
+    ) {
         this.machine = machine; 
         pendingProcs = new Stack<>();
         this.debug = debug;
+        this.superinstructions = superinstructions;
+    }
+    
+    /**
+     * Contructs a visitor for code generation using superinstructions.
+     * @param machine The virtual machine to add the code to.
+     * @param debug If debugging instructions are generated or not.
+     */
+    public CodeGenerationVisitor(VirtualMachine machine, boolean debug) {
+        this(machine, debug, true);
     }
     
     /**
@@ -47,6 +70,50 @@ public class CodeGenerationVisitor extends Visitor {
     // just to save some typing ...
     private void add(MachineInstruction i) { machine.addInstruction(i); }
     
+    /**
+     * @return true if exp is a variable whose address is known at compile
+     *         time relative to its display, i.e. it can be accessed by a
+     *         single load or store superinstruction
+     */
+    static boolean isDirectVariable(Exp exp) {
+        return exp instanceof Variable &&
+               !((Variable)exp).getDec().isParamByRef();
+    }
+    
+    /**
+     * Generates the code pushing the value of an expression, which is loaded
+     * from memory if the expression is a mem.
+     * @param link debug message which is active while loading
+     */
+    private void generateValue(Exp exp, String link) {
+        if(superinstructions && isDirectVariable(exp)) {
+            if(debug) add(machine.debug(link));
+            DeclarationVariable dec = ((Variable)exp).getDec();
+            if(dec.getLevel() == 0) {
+                add(machine.load(dec.getDir()));
+            }
+            else {
+                add(machine.loadLocal(dec.getLevel(), dec.getDir()));
+            }
+        }
+        else {
+            exp.accept(this);
+            if(debug) add(machine.debug(link));
+            if(exp.isMem()) {
+                add(machine.popLoadPush());
+            }
+        }
+    }
+    
+    // stores the topmost element in a variable, see isDirectVariable()
+    private MachineInstruction storeVariable(Mem mem) {
+        DeclarationVariable dec = ((Variable)mem).getDec();
+        if(dec.getLevel() == 0) {
+            return machine.store(dec.getDir());
+        }
+        return machine.storeLocal(dec.getLevel(), dec.getDir());
+    }
+    
     /* program */
     
     @Override
@@ -69,8 +136,13 @@ public class CodeGenerationVisitor extends Visitor {
     public void visit(DeclarationProc dec) {
         dec.getBody().accept(this);
         if(debug) add(machine.debug(dec.getLinkToSource()));
-        add(machine.deactivate(dec.getLevel(), dec.getSize()));
-        add(machine.popJump());
+        if(superinstructions) {
+            add(machine.ret(dec.getLevel(), dec.getSize()));
+        }
+        else {
+            add(machine.deactivate(dec.getLevel(), dec.getSize()));
+            add(machine.popJump());
+        }
     }
     
     /* instructions */
@@ -79,6 +151,17 @@ public class CodeGenerationVisitor extends Visitor {
     
     @Override
     public void visit(InstructionAssignment assig) {
+        if( superinstructions &&
+            isDirectVariable(assig.getMem()) &&
+            !assig.getExp().isMem()
+        ) {
+            // computing the address has no side effects, so the value can
+            // be computed first
+            assig.getExp().accept(this);
+            if(debug) add(machine.debug(assig.getLinkToSource()));
+            add(storeVariable(assig.getMem()));
+            return;
+        }
         assig.getMem().accept(this);
         assig.getExp().accept(this);
         if(debug) add(machine.debug(assig.getLinkToSource()));
@@ -106,6 +189,10 @@ public class CodeGenerationVisitor extends Visitor {
     public void visit(InstructionCall call) {
         if(debug) add(machine.debug(call.getLinkToSource()));
         DeclarationProc decProc = call.getDecProc();
+        if(superinstructions || call.isTailCall()) {
+            generateFusedCall(call);
+            return;
+        }
         add(machine.activate(
                 decProc.getLevel(),
                 decProc.getSize(),
@@ -113,9 +200,14 @@ public class CodeGenerationVisitor extends Visitor {
             )
         );
         for(int i = 0; i < decProc.getParams().size(); i++) {
-            add(machine.duplicate()); 
-            add(machine.pushInt(decProc.getParams().get(i).getDir()));
-            add(machine.addInt());
+            if(superinstructions) {
+                add(machine.duplicateAddImm(decProc.getParams().get(i).getDir()));
+            }
+            else {
+                add(machine.duplicate()); 
+                add(machine.pushInt(decProc.getParams().get(i).getDir()));
+                add(machine.addInt());
+            }
             call.getArgs().get(i).accept(this);
             if(debug) add(machine.debug(call.getLinkToSource()));
             if( decProc.getParams().get(i).isParamByRef() ||
@@ -131,10 +223,52 @@ public class CodeGenerationVisitor extends Visitor {
         add(machine.jump(decProc.getBody().getFirstInstruction()));      
    }
     
+    /**
+     * Generates a call which pushes the arguments and lets the fused call
+     * instruction create the activation register. The arguments have no side
+     * effects, so they can be evaluated before the register exists. A tail
+     * call moves them into the current register instead.
+     */
+    private void generateFusedCall(InstructionCall call) {
+        DeclarationProc decProc = call.getDecProc();
+        int n = decProc.getParams().size();
+        int[] dirs = new int[n];
+        int[] copySizes = new int[n];
+        for(int i = 0; i < n; i++) {
+            DeclarationParam param = decProc.getParams().get(i);
+            Exp arg = call.getArgs().get(i);
+            arg.accept(this);
+            dirs[i] = param.getDir();
+            copySizes[i] = param.isParamByRef() || !arg.isMem()
+                    ? 0
+                    : param.getType().getSize();
+        }
+        if(debug && n > 0) add(machine.debug(call.getLinkToSource()));
+        FrameLayout frame = new FrameLayout(
+                decProc.getLevel(),
+                decProc.getSize(),
+                dirs,
+                copySizes
+        );
+        int target = decProc.getBody().getFirstInstruction();
+        if(call.isTailCall()) {
+            add(machine.tailCall(target, frame));
+        }
+        else {
+            add(machine.call(target, frame));
+        }
+    }
+    
     /* instructions - IO */
     
     @Override
     public void visit(InstructionRead inst) {
+        if(superinstructions && isDirectVariable(inst.getMem())) {
+            if(debug) add(machine.debug(inst.getLinkToSource()));
+            add(machine.read(inst.getMem().getType()));
+            add(storeVariable(inst.getMem()));
+            return;
+        }
         // pushes address of mem
         inst.getMem().accept(this);
         if(debug) add(machine.debug(inst.getLinkToSource()));
@@ -146,11 +280,7 @@ public class CodeGenerationVisitor extends Visitor {
     
     @Override
     public void visit(InstructionWrite inst) {
-        inst.getExp().accept(this);
-        if(debug) add(machine.debug(inst.getLinkToSource()));
-        if(inst.getExp().isMem()) {
-            add(machine.popLoadPush());
-        }
+        generateValue(inst.getExp(), inst.getLinkToSource());
         add(machine.write());
     }
     
@@ -158,6 +288,15 @@ public class CodeGenerationVisitor extends Visitor {
     
     @Override
     public void visit(InstructionNew inst) {
+        if(superinstructions && isDirectVariable(inst.getMem())) {
+            if(debug) add(machine.debug(inst.getLinkToSource()));
+            add(machine.alloc(
+                    inst.getMem().getType().toPointer().getBaseType().getSize()
+                )
+            );
+            add(storeVariable(inst.getMem()));
+            return;
+        }
         inst.getMem().accept(this);
         if(debug) add(machine.debug(inst.getLinkToSource()));
         add(machine.alloc(
@@ -169,9 +308,7 @@ public class CodeGenerationVisitor extends Visitor {
     
     @Override
     public void visit(InstructionFree inst) {
-        inst.getMem().accept(this);
-        if(debug) add(machine.debug(inst.getLinkToSource()));
-        add(machine.popLoadPush());
+        generateValue(inst.getMem(), inst.getLinkToSource());
         add(machine.dealloc(
                 inst.getMem().getType().toPointer().getBaseType().getSize()
             )
@@ -182,11 +319,7 @@ public class CodeGenerationVisitor extends Visitor {
     
     @Override
     public void visit(InstructionWhile inst) {
-        inst.getCondition().accept(this);
-        if(debug) add(machine.debug(inst.getLinkToSource()));
-        if(inst.getCondition().isMem()) {
-            add(machine.popLoadPush());
-        }
+        generateValue(inst.getCondition(), inst.getLinkToSource());
         add(machine.jumpIfFalse(inst.getNextInstruction()));
         inst.getBody().accept(this);
         if(debug) add(machine.debug(inst.getLinkToSource()));
@@ -196,32 +329,20 @@ public class CodeGenerationVisitor extends Visitor {
     @Override
     public void visit(InstructionDoWhile inst) {
         inst.getBody().accept(this);
-        inst.getCondition().accept(this);
-        if(debug) add(machine.debug(inst.getLinkToSource()));
-        if(inst.getCondition().isMem()) {
-            add(machine.popLoadPush());
-        }
+        generateValue(inst.getCondition(), inst.getLinkToSource());
         add(machine.jumpIfTrue(inst.getFirstInstruction()));
     }
     
     @Override
     public void visit(InstructionIfThen inst) {
-        inst.getCondition().accept(this);
-        if(debug) add(machine.debug(inst.getLinkToSource()));
-        if(inst.getCondition().isMem()) {
-            add(machine.popLoadPush());
-        }
+        generateValue(inst.getCondition(), inst.getLinkToSource());
         add(machine.jumpIfFalse(inst.getNextInstruction()));
         inst.getBody().accept(this);
     }
     
     @Override
     public void visit(InstructionIfThenElse inst) {
-        inst.getCondition().accept(this);
-        if(debug) add(machine.debug(inst.getLinkToSource()));
-        if(inst.getCondition().isMem()) {
-            add(machine.popLoadPush());
-        }
+        generateValue(inst.getCondition(), inst.getLinkToSource());
         add(machine.jumpIfFalse(inst.getBodyElse().getFirstInstruction()));
         inst.getBodyIf().accept(this);
         if(debug) add(machine.debug(inst.getLinkToSource()));
@@ -231,10 +352,11 @@ public class CodeGenerationVisitor extends Visitor {
     
     @Override
     public void visit(InstructionSwitch inst) {
-        inst.getExp().accept(this);
-        if(debug) add(machine.debug(inst.getLinkToSource()));
-        if(inst.getExp().isMem()) {
-            add(machine.popLoadPush());
+        generateValue(inst.getExp(), inst.getLinkToSource());
+        SwitchTable table = SwitchTable.of(inst);
+        if(table != null) {
+            generateSwitchTable(inst, table);
+            return;
         }
         for(InstructionSwitch.Case c : inst.getCases()) {
             c.getLiteral().accept(this);
@@ -251,6 +373,41 @@ public class CodeGenerationVisitor extends Visitor {
         }
     }
     
+    // a table or lookup switch for an int or char selector, followed by the
+    // code of the cases, each ending with a jump to the end
+    private void generateSwitchTable(InstructionSwitch inst, SwitchTable table) {
+        int defaultPos = inst.getDefaultInst() != null ?
+                inst.getDefaultInst().getFirstInstruction() :
+                inst.getNextInstruction();
+        if(debug) add(machine.debug(inst.getLinkToSource()));
+        if(table.isDense()) {
+            add(machine.tableSwitch(defaultPos, table.getLow(), table.size()));
+            for(int k = 0; k < table.size(); k++) {
+                InstructionSwitch.Case c = table.getCase(table.getLow() + k);
+                add(machine.switchCase(
+                        c != null ? c.getInst().getFirstInstruction() : defaultPos,
+                        table.getLow() + k
+                ));
+            }
+        }
+        else {
+            add(machine.lookupSwitch(defaultPos, table.size()));
+            for(int key : table.getKeys()) {
+                add(machine.switchCase(
+                        table.getCase(key).getInst().getFirstInstruction(),
+                        key
+                ));
+            }
+        }
+        for(InstructionSwitch.Case c : inst.getCases()) {
+            c.getInst().accept(this);
+            add(machine.jump(inst.getNextInstruction()));
+        }
+        if(inst.getDefaultInst() != null) {
+            inst.getDefaultInst().accept(this);
+        }
+    }
+    
     /* expressions */
     
     /* expressions - constants */
@@ -301,9 +458,14 @@ public class CodeGenerationVisitor extends Visitor {
             add(machine.pushInt(dec.getDir()));
         }
         else {
-            add(machine.pushDisplay(dec.getLevel()));
-            add(machine.pushInt(dec.getDir()));
-            add(machine.addInt());
+            if(superinstructions) {
+                add(machine.localAddress(dec.getLevel(), dec.getDir()));
+            }
+            else {
+                add(machine.pushDisplay(dec.getLevel()));
+                add(machine.pushInt(dec.getDir()));
+                add(machine.addInt());
+            }
             if(dec.isParamByRef()) {
                 add(machine.popLoadPush());
             }
@@ -312,9 +474,8 @@ public class CodeGenerationVisitor extends Visitor {
     
     @Override
     public void visit(Dereference dref) {
-        dref.getMem().accept(this);
-        if(debug) add(machine.debug(dref.getLinkToSource()));
-        add(machine.popLoadPush());
+        // the address is the value of the pointer
+        generateValue(dref.getMem(), dref.getLinkToSource());
     }
     
     @Override
@@ -322,8 +483,13 @@ public class CodeGenerationVisitor extends Visitor {
         sel.getMem().accept(this);
         if(debug) add(machine.debug(sel.getLinkToSource()));
         int offset = sel.getMem().getType().toRecord().getFieldByIndet(sel.getField()).getOffset();
-        add(machine.pushInt(offset));
-        add(machine.addInt());
+        if(superinstructions) {
+            add(machine.addImm(offset));
+        }
+        else {
+            add(machine.pushInt(offset));
+            add(machine.addInt());
+        }
     }
     
     @Override
@@ -332,10 +498,10 @@ public class CodeGenerationVisitor extends Visitor {
         int dim = index.getMem().getType().toArray().getDim();
         int baseTypeSize = index.getMem().getType().toArray().getBaseType().getSize();
         index.getMem().accept(this);
-        index.getExp().accept(this);
-        if(debug) add(machine.debug(index.getLinkToSource()));
-        if(index.getExp().isMem()) {
-            add(machine.popLoadPush());
+        generateValue(index.getExp(), index.getLinkToSource());
+        if(superinstructions) {
+            add(machine.index(dim, baseTypeSize));
+            return;
         }
         // add range checking instruction after generating code that pushes the
         // index we want to access
@@ -348,11 +514,7 @@ public class CodeGenerationVisitor extends Visitor {
     /* expressions - unary */
     
     private void generateUnaryExpression(UnaryExp exp, MachineInstruction inst) {
-        exp.getOp().accept(this);
-        if(debug) add(machine.debug(exp.getLinkToSource()));
-        if(exp.getOp().isMem()) {
-            add(machine.popLoadPush());
-        }
+        generateValue(exp.getOp(), exp.getLinkToSource());
         add(inst);
     }
     
@@ -400,16 +562,8 @@ public class CodeGenerationVisitor extends Visitor {
     /* expressions - binary */
     
     private void generateBinaryExpression(BinaryExp exp, MachineInstruction inst) {
-        exp.getOp1().accept(this);
-        if(debug) add(machine.debug(exp.getLinkToSource()));
-        if(exp.getOp1().isMem()) {
-            add(machine.popLoadPush());
-        }
-        exp.getOp2().accept(this);
-        if(debug) add(machine.debug(exp.getLinkToSource()));
-        if(exp.getOp2().isMem()) {
-            add(machine.popLoadPush());
-        }
+        generateValue(exp.getOp1(), exp.getLinkToSource());
+        generateValue(exp.getOp2(), exp.getLinkToSource());
         add(inst);
     }
     
@@ -16,21 +16,54 @@ import pl.type.Type;
  * Visitor labeling instructions with their corresponding lines of machine code.
  * 
  * MUST BE CALLED AFTER ADRESS ASSIGNMENT (because of variable levels)
+ * 
+ * The settings for debugging instructions and superinstructions have to be
+ * the same as the ones of the CodeGenerationVisitor.
  */
 public class LabelingVisitor extends Visitor {
     
     private int label;
     private Stack<Declaration.DeclarationProc> pendingProcs;
     private boolean debug;
+    private boolean superinstructions;
 
     public LabelingVisitor() {
         this(false);
     }
     
     public LabelingVisitor(boolean debug) {
+        this(debug, true);
+    }
+    
+    public LabelingVisitor(boolean debug, boolean superinstructions) {
         label = 0;
         pendingProcs = new Stack<>();
         this.debug = debug;
+        this.superinstructions = superinstructions;
+    }
+    
+    // counts the code pushing the value of exp, see
+    // CodeGenerationVisitor.generateValue()
+    private void labelValue(Exp exp) {
+        if( superinstructions &&
+            CodeGenerationVisitor.isDirectVariable(exp)
+        ) {
+            if(debug) label++; //debug
+            label++; // load or loadLocal
+        }
+        else {
+            exp.accept(this);
+            if(debug) label++; //debug
+            if(exp.isMem()) {
+                label++; // popLoadPush
+            }
+        }
+    }
+    
+    // true if the value is stored by a single superinstruction, see
+    // CodeGenerationVisitor.storeVariable()
+    private boolean isStoredDirectly(Exp mem) {
+        return superinstructions && CodeGenerationVisitor.isDirectVariable(mem);
     }
     
     /* program */
@@ -55,7 +88,7 @@ public class LabelingVisitor extends Visitor {
     public void visit(DeclarationProc dec) {
         dec.getBody().accept(this);
         if(debug) label++; //debug
-        label += 2;
+        label += superinstructions ? 1 : 2; // ret or deactivate, popJump
     }
     
     /* instructions */
@@ -65,10 +98,12 @@ public class LabelingVisitor extends Visitor {
     @Override
     public void visit(InstructionAssignment assig) {
         assig.setFirstInstruction(label);
-        assig.getMem().accept(this);
+        if(!isStoredDirectly(assig.getMem()) || assig.getExp().isMem()) {
+            assig.getMem().accept(this);
+        }
         assig.getExp().accept(this);
         if(debug) label++; //debug
-        label++; // pop2Store or copy
+        label++; // pop2Store, store or copy
         assig.setNextInstruction(label);
     }
     
@@ -90,9 +125,23 @@ public class LabelingVisitor extends Visitor {
     public void visit(InstructionCall call) {
         call.setFirstInstruction(label);
         if(debug) label++; //debug
+        if(superinstructions || call.isTailCall()) {
+            for(Exp arg : call.getArgs()) {
+                arg.accept(this);
+            }
+            if(debug && !call.getArgs().isEmpty()) label++; //debug
+            label++; // call or tailCall
+            call.setNextInstruction(label);
+            return;
+        }
         label++; // activate
         for(Exp arg : call.getArgs()) {
-            label += 3; // duplicate, pushInt, add
+            if(superinstructions) {
+                label++; // duplicateAddImm
+            }
+            else {
+                label += 3; // duplicate, pushInt, add
+            }
             arg.accept(this);
             if(debug) label++; //debug
             label++; // pop2store or copy
@@ -106,20 +155,18 @@ public class LabelingVisitor extends Visitor {
     @Override
     public void visit(InstructionRead inst) {
         inst.setFirstInstruction(label);
-        inst.getMem().accept(this);
+        if(!isStoredDirectly(inst.getMem())) {
+            inst.getMem().accept(this);
+        }
         if(debug) label++; //debug
-        label += 2; // read, pop2Store
+        label += 2; // read, pop2Store or store
         inst.setNextInstruction(label);
     }
     
     @Override
     public void visit(InstructionWrite inst) {
         inst.setFirstInstruction(label);
-        inst.getExp().accept(this);
-        if(debug) label++; //debug
-        if(inst.getExp().isMem()) {
-            label++; // popLoadPush
-        }
+        labelValue(inst.getExp());
         label++; // write
         inst.setNextInstruction(label);
     }
@@ -129,18 +176,19 @@ public class LabelingVisitor extends Visitor {
     @Override
     public void visit(InstructionNew inst) {
         inst.setFirstInstruction(label);
-        inst.getMem().accept(this);
+        if(!isStoredDirectly(inst.getMem())) {
+            inst.getMem().accept(this);
+        }
         if(debug) label++; //debug
-        label += 2; // alloc, pop2store
+        label += 2; // alloc, pop2store or store
         inst.setNextInstruction(label);
     }
     
     @Override
     public void visit(InstructionFree inst) {
         inst.setFirstInstruction(label);
-        inst.getMem().accept(this);
-        if(debug) label++; //debug
-        label += 2; // popLoadStore, dealloc
+        labelValue(inst.getMem());
+        label++; // dealloc
         inst.setNextInstruction(label);
     }
     
@@ -149,11 +197,7 @@ public class LabelingVisitor extends Visitor {
     @Override
     public void visit(InstructionWhile inst) {
         inst.setFirstInstruction(label);
-        inst.getCondition().accept(this);
-        if(debug) label++; //debug
-        if(inst.getCondition().isMem()) {
-            label++; // popLoadPush
-        }
+        labelValue(inst.getCondition());
         label++; // jump if false
         inst.getBody().accept(this);
         if(debug) label++; //debug
@@ -165,11 +209,7 @@ public class LabelingVisitor extends Visitor {
     public void visit(InstructionDoWhile inst) {
         inst.setFirstInstruction(label);
         inst.getBody().accept(this);
-        inst.getCondition().accept(this);
-        if(debug) label++; //debug
-        if(inst.getCondition().isMem()) {
-            label++; // popLoadPush
-        }
+        labelValue(inst.getCondition());
         label++; // jumpIfTrue
         inst.setNextInstruction(label);
     }
@@ -177,11 +217,7 @@ public class LabelingVisitor extends Visitor {
     @Override
     public void visit(InstructionIfThen inst) {
         inst.setFirstInstruction(label);
-        inst.getCondition().accept(this);
-        if(debug) label++; //debug
-        if(inst.getCondition().isMem()) {
-            label++; // popLoadPush
-        }
+        labelValue(inst.getCondition());
         label++; // jump if false
         inst.getBody().accept(this);
         inst.setNextInstruction(label);
@@ -190,11 +226,7 @@ public class LabelingVisitor extends Visitor {
     @Override
     public void visit(InstructionIfThenElse inst) {
         inst.setFirstInstruction(label);
-        inst.getCondition().accept(this);
-        if(debug) label++; //debug
-        if(inst.getCondition().isMem()) {
-            label++; // popLoadPush
-        }
+        labelValue(inst.getCondition());
         label++; // jump if false
         inst.getBodyIf().accept(this);
         if(debug) label++; //debug
@@ -206,18 +238,26 @@ public class LabelingVisitor extends Visitor {
     @Override
     public void visit(InstructionSwitch inst) {
         inst.setFirstInstruction(label);
-        inst.getExp().accept(this);
-        if(debug) label++; //debug
-        if(inst.getExp().isMem()) {
-            label++; // popLoadPush
-        }
-        for(InstructionSwitch.Case c : inst.getCases()) {
-            c.getLiteral().accept(this);
+        labelValue(inst.getExp());
+        SwitchTable table = SwitchTable.of(inst);
+        if(table != null) {
             if(debug) label++; //debug
-            label++; // equal pop 1
-            label++; // jump if false
-            c.getInst().accept(this);
-            label++; // jump to end
+            label++; // table or lookup switch
+            label += table.size(); // table entries
+            for(InstructionSwitch.Case c : inst.getCases()) {
+                c.getInst().accept(this);
+                label++; // jump to end
+            }
+        }
+        else {
+            for(InstructionSwitch.Case c : inst.getCases()) {
+                c.getLiteral().accept(this);
+                if(debug) label++; //debug
+                label++; // equal pop 1
+                label++; // jump if false
+                c.getInst().accept(this);
+                label++; // jump to end
+            }
         }
         if(inst.getDefaultInst() != null) {
             inst.getDefaultInst().accept(this);
@@ -248,7 +288,12 @@ public class LabelingVisitor extends Visitor {
             label++; // pushInt
         }
         else {
-            label += 3; // pushDisplay, pushInt, addInt
+            if(superinstructions) {
+                label++; // localAddress
+            }
+            else {
+                label += 3; // pushDisplay, pushInt, addInt
+            }
             if(dec.isParamByRef()) {
                 label++; // popLoadPush
             }
@@ -259,9 +304,7 @@ public class LabelingVisitor extends Visitor {
     @Override
     public void visit(Dereference exp) {
         exp.setFirstInstruction(label);
-        exp.getMem().accept(this);
-        if(debug) label++; //debug
-        label++; // popLoadPush
+        labelValue(exp.getMem());
         exp.setNextInstruction(label);
     }
     
@@ -270,7 +313,12 @@ public class LabelingVisitor extends Visitor {
         exp.setFirstInstruction(label);
         exp.getMem().accept(this);
         if(debug) label++; //debug
-        label += 2; // pushInt, addInt
+        if(superinstructions) {
+            label++; // addImm
+        }
+        else {
+            label += 2; // pushInt, addInt
+        }
         exp.setNextInstruction(label);
     }
     
@@ -278,12 +326,13 @@ public class LabelingVisitor extends Visitor {
     public void visit(Index exp) {
         exp.setFirstInstruction(label);
         exp.getMem().accept(this);
-        exp.getExp().accept(this);
-        if(debug) label++; //debug
-        if(exp.getExp().isMem()) {
-            label++; // popLoadPush
+        labelValue(exp.getExp());
+        if(superinstructions) {
+            label++; // index
+        }
+        else {
+            label += 4; // pushInt, multInt, addInt, inRange
         }
-        label += 4; // pushInt, multInt, addInt, inRange
         exp.setNextInstruction(label);
     }
     
@@ -292,11 +341,7 @@ public class LabelingVisitor extends Visitor {
     @Override
     public void visit(UnaryExp exp) {
         exp.setFirstInstruction(label);
-        exp.getOp().accept(this);
-        if(debug) label++; //debug
-        if(exp.getOp().isMem()) {
-            label++; // popLoadPush
-        }
+        labelValue(exp.getOp());
         label++; // e.g. not
         exp.setNextInstruction(label);
     }
@@ -306,16 +351,8 @@ public class LabelingVisitor extends Visitor {
     @Override
     public void visit(BinaryExp exp) {
         exp.setFirstInstruction(label);
-        exp.getOp1().accept(this);
-        if(debug) label++; //debug
-        if(exp.getOp1().isMem()) {
-            label++; // popLoadPush
-        }
-        exp.getOp2().accept(this);
-        if(debug) label++; //debug
-        if(exp.getOp2().isMem()) {
-            label++; // popLoadPush
-        }
+        labelValue(exp.getOp1());
+        labelValue(exp.getOp2());
         label++; // e.g. sum
         exp.setNextInstruction(label);
     }
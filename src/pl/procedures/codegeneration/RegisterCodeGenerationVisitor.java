@@ -0,0 +1,729 @@
+package pl.procedures.codegeneration;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Stack;
+import pl.abstractsyntax.Declaration;
+import pl.abstractsyntax.Declaration.*;
+import pl.abstractsyntax.Exp;
+import pl.abstractsyntax.Exp.*;
+import pl.abstractsyntax.Inst;
+import pl.abstractsyntax.Inst.*;
+import pl.abstractsyntax.Mem;
+import pl.abstractsyntax.Mem.*;
+import pl.abstractsyntax.Program;
+import pl.procedures.Visitor;
+import pl.type.Type;
+import pl.type.Type.*;
+import pl.virtualmachine.FrameLayout;
+import pl.virtualmachine.RegisterCode;
+
+/**
+ * Visitor class which generates code for the register machine, see
+ * RegisterCode. Only call on a program which is already type checked and
+ * whose addresses are assigned! No labeling is needed, jump targets are
+ * patched as soon as they are known.
+ *
+ * Every expression yields an operand: a constant, a memory operand for a
+ * mem, or a register holding the value computed by the expression. The
+ * registers are allocated like a stack and are all free again after each
+ * instruction of the program. The result of the outermost operation of an
+ * assignment is stored in the assigned mem directly, the arguments of a call
+ * are computed in the registers the call instruction takes them from.
+ * Loops test their condition at the end, so an iteration does not need an
+ * extra jump.
+ */
+public class RegisterCodeGenerationVisitor extends Visitor {
+
+    // no destination was requested for the expression being visited
+    private static final int NO_DESTINATION = -1;
+
+    private RegisterCode code;
+    private Stack<DeclarationProc> pendingProcs;
+    private boolean debug;
+
+    // first instruction of each procedure and the calls to patch with it
+    private Map<DeclarationProc, Integer> entries;
+    private List<Integer> calls;
+    private List<DeclarationProc> callees;
+
+    // number of registers in use
+    private int registers;
+
+    // where the expression being visited should store its value, and the
+    // operand of its value
+    private int destination;
+    private int operand;
+
+    /**
+     * Contructs a visitor for code generation.
+     * @param code The register code to add the instructions to.
+     * @param debug If the instructions are linked to the source code for
+     *        runtime errors or not.
+     */
+    public RegisterCodeGenerationVisitor(RegisterCode code, boolean debug) {
+        this.code = code;
+        pendingProcs = new Stack<>();
+        this.debug = debug;
+        entries = new HashMap<>();
+        calls = new ArrayList<>();
+        callees = new ArrayList<>();
+        registers = 0;
+        destination = NO_DESTINATION;
+    }
+
+    /**
+     * Contructs a visitor for code generation.
+     * @param code The register code to add the instructions to.
+     */
+    public RegisterCodeGenerationVisitor(RegisterCode code) {
+        this(code, false);
+    }
+
+    // just to save some typing ...
+    private int emit(int opcode, int a, int b, int c, String link) {
+        return code.emit(opcode, a, b, c, debug ? link : null);
+    }
+
+    // the next instruction's number
+    private int next() { return code.size(); }
+
+    // a free register
+    private int allocate() {
+        registers++;
+        code.useRegisters(registers);
+        return RegisterCode.register(registers - 1);
+    }
+
+    /**
+     * @return the operand of the value of an expression
+     */
+    private int value(Exp exp) {
+        destination = NO_DESTINATION;
+        exp.accept(this);
+        return operand;
+    }
+
+    /**
+     * Computes the value of an expression into the given register or cell.
+     */
+    private void valueInto(Exp exp, int dest, String link) {
+        destination = dest;
+        exp.accept(this);
+        if(operand != dest) {
+            emit(RegisterCode.MOVE, dest, operand, 0, link);
+        }
+    }
+
+    /**
+     * @return the memory operand of a mem
+     */
+    private int place(Mem mem) {
+        return value(mem);
+    }
+
+    /**
+     * @return the requested destination of the expression being visited, or
+     *         a free register
+     */
+    private int result() {
+        int dest = destination;
+        destination = NO_DESTINATION;
+        return dest != NO_DESTINATION ? dest : allocate();
+    }
+
+    /* program */
+
+    @Override
+    public void visit(Program prog) {
+        for(Declaration dec : prog.getDeclarations()) {
+            if(dec.isDecProc()) {
+                pendingProcs.push(dec.toDecProc());
+            }
+        }
+        prog.getInstruction().accept(this);
+        emit(RegisterCode.STOP, 0, 0, 0, null);
+        while(!pendingProcs.isEmpty()) {
+            pendingProcs.pop().accept(this);
+        }
+        for(int k = 0; k < calls.size(); k++) {
+            code.patch(calls.get(k), 1, entries.get(callees.get(k)));
+        }
+    }
+
+    /* declaration */
+
+    @Override
+    public void visit(DeclarationProc dec) {
+        entries.put(dec, next());
+        dec.getBody().accept(this);
+        emit(
+                RegisterCode.RETURN,
+                dec.getLevel(),
+                dec.getSize(),
+                0,
+                dec.getLinkToSource()
+        );
+    }
+
+    /* instructions */
+
+    /* instructions - general */
+
+    @Override
+    public void visit(InstructionAssignment assig) {
+        int mark = registers;
+        int dest = place(assig.getMem());
+        if(assig.getExp().isMem()) {
+            int source = place((Mem)assig.getExp());
+            emit(
+                    RegisterCode.COPY,
+                    dest,
+                    source,
+                    ((DefinedType)assig.getExp().getType()).getSize(),
+                    assig.getLinkToSource()
+            );
+        }
+        else {
+            valueInto(assig.getExp(), dest, assig.getLinkToSource());
+        }
+        registers = mark;
+    }
+
+    @Override
+    public void visit(InstructionBlock block) {
+        for(Declaration dec : block.getDecs()) {
+            if(dec.isDecProc()) {
+                pendingProcs.push(dec.toDecProc());
+            }
+        }
+        for(Inst inst : block.getInsts()) {
+            inst.accept(this);
+        }
+    }
+
+    /**
+     * Computes the arguments into consecutive registers, from which the call
+     * instruction moves them into the new activation register. A by
+     * reference argument or one which is copied is passed as its address.
+     */
+    @Override
+    public void visit(InstructionCall call) {
+        DeclarationProc decProc = call.getDecProc();
+        int n = decProc.getParams().size();
+        int mark = registers;
+        int first = registers;
+        for(int k = 0; k < n; k++) {
+            allocate();
+        }
+        int[] dirs = new int[n];
+        int[] copySizes = new int[n];
+        for(int k = 0; k < n; k++) {
+            DeclarationParam param = decProc.getParams().get(k);
+            Exp arg = call.getArgs().get(k);
+            int dest = RegisterCode.register(first + k);
+            if(param.isParamByRef() || arg.isMem()) {
+                int argMark = registers;
+                emit(
+                        RegisterCode.ADDRESS,
+                        dest,
+                        place((Mem)arg),
+                        0,
+                        call.getLinkToSource()
+                );
+                registers = argMark;
+            }
+            else {
+                int argMark = registers;
+                valueInto(arg, dest, call.getLinkToSource());
+                registers = argMark;
+            }
+            dirs[k] = param.getDir();
+            copySizes[k] = param.isParamByRef() || !arg.isMem()
+                    ? 0
+                    : param.getType().getSize();
+        }
+        FrameLayout frame = new FrameLayout(
+                decProc.getLevel(),
+                decProc.getSize(),
+                dirs,
+                copySizes
+        );
+        calls.add(emit(
+                call.isTailCall() ? RegisterCode.TAIL_CALL : RegisterCode.CALL,
+                0,
+                code.constant(frame),
+                first,
+                call.getLinkToSource()
+        ));
+        callees.add(decProc);
+        registers = mark;
+    }
+
+    /* instructions - IO */
+
+    @Override
+    public void visit(InstructionRead inst) {
+        int mark = registers;
+        emit(
+                RegisterCode.READ,
+                place(inst.getMem()),
+                code.constant(inst.getMem().getType()),
+                0,
+                inst.getLinkToSource()
+        );
+        registers = mark;
+    }
+
+    @Override
+    public void visit(InstructionWrite inst) {
+        int mark = registers;
+        emit(
+                RegisterCode.WRITE,
+                value(inst.getExp()),
+                0,
+                0,
+                inst.getLinkToSource()
+        );
+        registers = mark;
+    }
+
+    /* instructions - memory */
+
+    @Override
+    public void visit(InstructionNew inst) {
+        int mark = registers;
+        emit(
+                RegisterCode.ALLOC,
+                place(inst.getMem()),
+                inst.getMem().getType().toPointer().getBaseType().getSize(),
+                0,
+                inst.getLinkToSource()
+        );
+        registers = mark;
+    }
+
+    @Override
+    public void visit(InstructionFree inst) {
+        int mark = registers;
+        emit(
+                RegisterCode.DEALLOC,
+                value(inst.getMem()),
+                inst.getMem().getType().toPointer().getBaseType().getSize(),
+                0,
+                inst.getLinkToSource()
+        );
+        registers = mark;
+    }
+
+    /* instructions - control structures */
+
+    // a conditional jump on the value of the condition, the target is
+    // patched later
+    private int generateBranch(Exp condition, boolean jumpIf, String link) {
+        int mark = registers;
+        int pc = emit(
+                jumpIf ? RegisterCode.JUMP_IF_TRUE : RegisterCode.JUMP_IF_FALSE,
+                value(condition),
+                0,
+                0,
+                link
+        );
+        registers = mark;
+        return pc;
+    }
+
+    // sets the target of a jump to the next instruction
+    private void patchHere(int jump, int field) {
+        code.patch(jump, field, next());
+    }
+
+    @Override
+    public void visit(InstructionWhile inst) {
+        int test = emit(RegisterCode.JUMP, 0, 0, 0, inst.getLinkToSource());
+        int body = next();
+        inst.getBody().accept(this);
+        patchHere(test, 1);
+        int branch = generateBranch(
+                inst.getCondition(), true, inst.getLinkToSource());
+        code.patch(branch, 2, body);
+    }
+
+    @Override
+    public void visit(InstructionDoWhile inst) {
+        int body = next();
+        inst.getBody().accept(this);
+        int branch = generateBranch(
+                inst.getCondition(), true, inst.getLinkToSource());
+        code.patch(branch, 2, body);
+    }
+
+    @Override
+    public void visit(InstructionIfThen inst) {
+        int branch = generateBranch(
+                inst.getCondition(), false, inst.getLinkToSource());
+        inst.getBody().accept(this);
+        patchHere(branch, 2);
+    }
+
+    @Override
+    public void visit(InstructionIfThenElse inst) {
+        int branch = generateBranch(
+                inst.getCondition(), false, inst.getLinkToSource());
+        inst.getBodyIf().accept(this);
+        int jump = emit(RegisterCode.JUMP, 0, 0, 0, inst.getLinkToSource());
+        patchHere(branch, 2);
+        inst.getBodyElse().accept(this);
+        patchHere(jump, 1);
+    }
+
+    @Override
+    public void visit(InstructionSwitch inst) {
+        int mark = registers;
+        int selector = value(inst.getExp());
+        SwitchTable table = SwitchTable.of(inst);
+        List<Integer> jumps = new ArrayList<>();
+        if(table != null) {
+            generateSwitchTable(inst, table, selector, jumps);
+        }
+        else {
+            for(InstructionSwitch.Case c : inst.getCases()) {
+                int caseMark = registers;
+                int equal = allocate();
+                emit(
+                        RegisterCode.EQUAL,
+                        equal,
+                        selector,
+                        value(c.getLiteral()),
+                        inst.getLinkToSource()
+                );
+                int branch = emit(
+                        RegisterCode.JUMP_IF_FALSE,
+                        equal,
+                        0,
+                        0,
+                        inst.getLinkToSource()
+                );
+                registers = caseMark;
+                c.getInst().accept(this);
+                jumps.add(emit(RegisterCode.JUMP, 0, 0, 0, inst.getLinkToSource()));
+                patchHere(branch, 2);
+            }
+            if(inst.getDefaultInst() != null) {
+                inst.getDefaultInst().accept(this);
+            }
+        }
+        for(int jump : jumps) {
+            patchHere(jump, 1);
+        }
+        registers = mark;
+    }
+
+    // a table or lookup switch for an int or char selector, followed by the
+    // code of the cases, each ending with a jump to the end
+    private void generateSwitchTable(
+            InstructionSwitch inst,
+            SwitchTable table,
+            int selector,
+            List<Integer> jumps
+    ) {
+        int pc = emit(
+                table.isDense()
+                    ? RegisterCode.TABLE_SWITCH
+                    : RegisterCode.LOOKUP_SWITCH,
+                selector,
+                0,
+                table.size(),
+                inst.getLinkToSource()
+        );
+        int[] keys = new int[table.size()];
+        for(int k = 0; k < table.size(); k++) {
+            keys[k] = table.isDense() ? table.getLow() + k : table.getKeys()[k];
+            emit(RegisterCode.SWITCH_CASE, 0, keys[k], 0, null);
+        }
+        Map<InstructionSwitch.Case, Integer> starts = new HashMap<>();
+        for(InstructionSwitch.Case c : inst.getCases()) {
+            starts.put(c, next());
+            c.getInst().accept(this);
+            jumps.add(emit(RegisterCode.JUMP, 0, 0, 0, inst.getLinkToSource()));
+        }
+        int defaultPos = next();
+        if(inst.getDefaultInst() != null) {
+            inst.getDefaultInst().accept(this);
+        }
+        else {
+            // no default, leave the switch
+            jumps.add(defaultPos);
+            emit(RegisterCode.JUMP, 0, 0, 0, inst.getLinkToSource());
+        }
+        code.patch(pc, 2, defaultPos);
+        for(int k = 0; k < keys.length; k++) {
+            InstructionSwitch.Case c = table.getCase(keys[k]);
+            code.patch(pc + 1 + k, 1, c != null ? starts.get(c) : defaultPos);
+        }
+    }
+
+    /* expressions */
+
+    /* expressions - constants */
+
+    @Override
+    public void visit(ConstantInt exp) { operand = code.intValue(exp.getValue()); }
+
+    @Override
+    public void visit(ConstantBool exp) { operand = code.boolValue(exp.getValue()); }
+
+    @Override
+    public void visit(ConstantReal exp) { operand = code.realValue(exp.getValue()); }
+
+    @Override
+    public void visit(ConstantChar exp) { operand = code.charValue(exp.getValue()); }
+
+    @Override
+    public void visit(ConstantString exp) {
+        operand = code.stringValue(exp.getValue());
+    }
+
+    @Override
+    public void visit(ConstantNull exp) { operand = code.nullValue(); }
+
+    /* expressions - mems */
+
+    @Override
+    public void visit(Variable var) {
+        DeclarationVariable dec = var.getDec();
+        if(dec.getLevel() == 0) {
+            operand = RegisterCode.cell(dec.getDir());
+            return;
+        }
+        operand = RegisterCode.local(dec.getLevel(), dec.getDir());
+        if(dec.isParamByRef()) {
+            // the cell holds the address of the variable
+            int r = allocate();
+            emit(RegisterCode.MOVE, r, operand, 0, var.getLinkToSource());
+            operand = RegisterCode.indirect(RegisterCode.value(r), 0);
+        }
+    }
+
+    @Override
+    public void visit(Dereference dref) {
+        // the address is the value of the pointer
+        int pointer = value(dref.getMem());
+        if(RegisterCode.kind(pointer) != RegisterCode.REGISTER) {
+            int r = allocate();
+            emit(RegisterCode.MOVE, r, pointer, 0, dref.getLinkToSource());
+            pointer = r;
+        }
+        operand = RegisterCode.indirect(RegisterCode.value(pointer), 0);
+    }
+
+    @Override
+    public void visit(Select sel) {
+        int record = place(sel.getMem());
+        int offset = sel.getMem().getType().toRecord().getFieldByIndet(sel.getField()).getOffset();
+        operand = RegisterCode.displace(record, offset);
+    }
+
+    @Override
+    public void visit(Index index) {
+        // get dimension and base type size
+        int dim = index.getMem().getType().toArray().getDim();
+        int baseTypeSize = index.getMem().getType().toArray().getBaseType().getSize();
+        int array = place(index.getMem());
+        if(index.getExp() instanceof ConstantInt) {
+            int k = ((ConstantInt)index.getExp()).getValue();
+            if(k >= 0 && k < dim) {
+                // the range check can be done now
+                operand = RegisterCode.displace(array, k * baseTypeSize);
+                return;
+            }
+        }
+        int r = allocate();
+        int mark = registers;
+        emit(
+                RegisterCode.INDEX,
+                r,
+                array,
+                value(index.getExp()),
+                index.getLinkToSource()
+        );
+        emit(RegisterCode.SHAPE, dim, baseTypeSize, 0, null);
+        registers = mark;
+        operand = RegisterCode.indirect(RegisterCode.value(r), 0);
+    }
+
+    /* expressions - unary */
+
+    private void generateUnaryExpression(UnaryExp exp, int opcode) {
+        int dest = destination;
+        int mark = registers;
+        int op = value(exp.getOp());
+        registers = mark;
+        destination = dest;
+        operand = result();
+        emit(opcode, operand, op, 0, exp.getLinkToSource());
+    }
+
+    /* expressions - unary - arithmetic */
+
+    @Override
+    public void visit(SignChange exp) {
+        generateUnaryExpression(exp, RegisterCode.SIGN_CHANGE);
+    }
+
+    /* expressions - unary - logical */
+
+    @Override
+    public void visit(Not exp) {
+        generateUnaryExpression(exp, RegisterCode.NOT);
+    }
+
+    /* expressions - unary - explicit type conversion */
+
+    @Override
+    public void visit(ConversionInt exp) {
+        generateUnaryExpression(exp, RegisterCode.CONVERT_INT);
+    }
+
+    @Override
+    public void visit(ConversionBool exp) {
+        generateUnaryExpression(exp, RegisterCode.CONVERT_BOOL);
+    }
+
+    @Override
+    public void visit(ConversionChar exp) {
+        generateUnaryExpression(exp, RegisterCode.CONVERT_CHAR);
+    }
+
+    @Override
+    public void visit(ConversionReal exp) {
+        generateUnaryExpression(exp, RegisterCode.CONVERT_REAL);
+    }
+
+    @Override
+    public void visit(ConversionString exp) {
+        generateUnaryExpression(exp, RegisterCode.CONVERT_STRING);
+    }
+
+    /* expressions - binary */
+
+    // the registers of the operands are free again when the result is
+    // stored, the instruction reads its sources first
+    private void generateBinaryExpression(BinaryExp exp, int opcode) {
+        int dest = destination;
+        int mark = registers;
+        int op1 = value(exp.getOp1());
+        int op2 = value(exp.getOp2());
+        registers = mark;
+        destination = dest;
+        operand = result();
+        emit(opcode, operand, op1, op2, exp.getLinkToSource());
+    }
+
+    /* expressions - binary - miscellaneous */
+
+    @Override
+    public void visit(ChainElement exp) {
+        generateBinaryExpression(exp, RegisterCode.CHAIN_ELEMENT);
+    }
+
+    /* expressions - binary - arithmetic */
+
+    private void generateBinaryArithmeticExpression(
+            BinaryArithmeticExp exp,
+            int opcodeInt,
+            int opcodeReal
+    ) {
+        if( exp.getOp1().getType() == Type.INT &&
+            exp.getOp2().getType() == Type.INT
+        ) {
+            generateBinaryExpression(exp, opcodeInt);
+        }
+        else {
+            generateBinaryExpression(exp, opcodeReal);
+        }
+    }
+
+    @Override
+    public void visit(Sum exp) {
+        if( exp.getOp1().getType() == Type.STRING &&
+            exp.getOp2().getType() == Type.STRING
+        ) {
+            generateBinaryExpression(exp, RegisterCode.CONCAT_STRING);
+        }
+        else {
+            generateBinaryArithmeticExpression(
+                    exp, RegisterCode.ADD_INT, RegisterCode.ADD_REAL);
+        }
+    }
+
+    @Override
+    public void visit(Difference exp) {
+        generateBinaryArithmeticExpression(
+                exp, RegisterCode.SUBT_INT, RegisterCode.SUBT_REAL);
+    }
+
+    @Override
+    public void visit(Product exp) {
+        generateBinaryArithmeticExpression(
+                exp, RegisterCode.MULT_INT, RegisterCode.MULT_REAL);
+    }
+
+    @Override
+    public void visit(Quotient exp) {
+        generateBinaryArithmeticExpression(
+                exp, RegisterCode.DIV_INT, RegisterCode.DIV_REAL);
+    }
+
+    @Override
+    public void visit(Rest exp) {
+        generateBinaryExpression(exp, RegisterCode.REST);
+    }
+
+    /* expressions - binary - relational */
+
+    @Override
+    public void visit(Equal exp) {
+        generateBinaryExpression(exp, RegisterCode.EQUAL);
+    }
+
+    @Override
+    public void visit(Unequal exp) {
+        generateBinaryExpression(exp, RegisterCode.UNEQUAL);
+    }
+
+    @Override
+    public void visit(Less exp) {
+        generateBinaryExpression(exp, RegisterCode.LESS);
+    }
+
+    @Override
+    public void visit(LessEqual exp) {
+        generateBinaryExpression(exp, RegisterCode.LESS_EQUAL);
+    }
+
+    @Override
+    public void visit(Greater exp) {
+        generateBinaryExpression(exp, RegisterCode.GREATER);
+    }
+
+    @Override
+    public void visit(GreaterEqual exp) {
+        generateBinaryExpression(exp, RegisterCode.GREATER_EQUAL);
+    }
+
+    /* expressions - binary - logical */
+
+    @Override
+    public void visit(And exp) {
+        generateBinaryExpression(exp, RegisterCode.AND);
+    }
+
+    @Override
+    public void visit(Or exp) {
+        generateBinaryExpression(exp, RegisterCode.OR);
+    }
+
+}
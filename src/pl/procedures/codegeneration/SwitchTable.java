@@ -0,0 +1,101 @@
+package pl.procedures.codegeneration;
+
+import java.util.Arrays;
+import java.util.TreeMap;
+import pl.abstractsyntax.Exp.ConstantChar;
+import pl.abstractsyntax.Exp.ConstantInt;
+import pl.abstractsyntax.Inst.InstructionSwitch;
+import pl.type.Type;
+
+/**
+ * The jump table of a SWITCH instruction, shared by the LabelingVisitor and
+ * the CodeGenerationVisitor so that both agree on its layout.
+ *
+ * A table is only built if the selector is an int or a char and all case
+ * literals have the same type. Then the switch is compiled to a tableSwitch
+ * if its keys are dense, otherwise to a lookupSwitch. If several cases have
+ * the same key, the first one is taken, like the chain of comparisons would
+ * do.
+ */
+class SwitchTable {
+
+    // the distinct keys in ascending order and the first case of each
+    private int[] keys;
+    private InstructionSwitch.Case[] cases;
+    private boolean dense;
+
+    private SwitchTable(TreeMap<Integer, InstructionSwitch.Case> caseByKey) {
+        keys = new int[caseByKey.size()];
+        cases = new InstructionSwitch.Case[caseByKey.size()];
+        int k = 0;
+        for(Integer key : caseByKey.keySet()) {
+            keys[k] = key;
+            cases[k] = caseByKey.get(key);
+            k++;
+        }
+        // the cost model of javac: space plus three times the time
+        if(keys.length > 0) {
+            long tableCost = 4 + range() + 3 * 3;
+            long lookupCost = 3 + 2 * (long)keys.length + 3 * keys.length;
+            dense = tableCost <= lookupCost;
+        }
+    }
+
+    /**
+     * @return the table of a switch, null if it must be compiled to a chain
+     *         of comparisons
+     */
+    static SwitchTable of(InstructionSwitch inst) {
+        Type type = inst.getExp().getType();
+        if(type != Type.INT && type != Type.CHAR) {
+            return null;
+        }
+        TreeMap<Integer, InstructionSwitch.Case> caseByKey = new TreeMap<>();
+        for(InstructionSwitch.Case c : inst.getCases()) {
+            int key;
+            if(type == Type.INT && c.getLiteral() instanceof ConstantInt) {
+                key = ((ConstantInt)c.getLiteral()).getValue();
+            }
+            else if(type == Type.CHAR && c.getLiteral() instanceof ConstantChar) {
+                key = ((ConstantChar)c.getLiteral()).getValue();
+            }
+            else {
+                return null;
+            }
+            if(!caseByKey.containsKey(key)) {
+                caseByKey.put(key, c);
+            }
+        }
+        return new SwitchTable(caseByKey);
+    }
+
+    /**
+     * @return true for a tableSwitch, false for a lookupSwitch
+     */
+    boolean isDense() { return dense; }
+
+    int getLow() { return keys[0]; }
+
+    /**
+     * @return the number of table entries following the switch instruction
+     */
+    int size() { return dense ? (int)range() : keys.length; }
+
+    /**
+     * @return the distinct keys in ascending order
+     */
+    int[] getKeys() { return keys; }
+
+    /**
+     * @return the case taken for a key, null if there is none
+     */
+    InstructionSwitch.Case getCase(int key) {
+        int k = Arrays.binarySearch(keys, key);
+        return k < 0 ? null : cases[k];
+    }
+
+    private long range() {
+        return (long)keys[keys.length - 1] - keys[0] + 1;
+    }
+
+}
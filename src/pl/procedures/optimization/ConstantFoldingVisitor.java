@@ -0,0 +1,800 @@
+package pl.procedures.optimization;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import pl.abstractsyntax.Program;
+import pl.abstractsyntax.Declaration;
+import pl.abstractsyntax.Declaration.*;
+import pl.abstractsyntax.Exp;
+import pl.abstractsyntax.Exp.*;
+import pl.abstractsyntax.Inst;
+import pl.abstractsyntax.Inst.*;
+import pl.abstractsyntax.Mem;
+import pl.abstractsyntax.Mem.*;
+import pl.procedures.Visitor;
+import pl.type.Type;
+
+/**
+ * This visitor simplifies the typed tree of abstract syntax. It has to be
+ * applied after the TypeCheckVisitor and before addresses are assigned.
+ *
+ * It does three things:
+ *    - subexpressions whose operands are constants are replaced by their
+ *      value, e.g. 2 * 3 + x becomes 6 + x,
+ *    - reading a variable which was assigned a constant and has not been
+ *      changed since is replaced by the constant and
+ *    - IF, WHILE, DO WHILE and SWITCH instructions whose condition turns out
+ *      to be constant are replaced by the code which is actually executed.
+ *
+ * Expressions are evaluated exactly the way the virtual machine would do it.
+ * An expression which would fail or produce UNKNOWN at runtime (division by
+ * zero, a string index out of range) is left alone, so that the error still
+ * happens where the program expects it.
+ *
+ * Constants are only propagated within a procedure body (or the main program)
+ * and only for variables of type int, bool, real, char and string which are
+ * not parameters by reference. Calling a procedure or assigning a parameter
+ * by reference may change any variable, so all known constants are forgotten
+ * there.
+ */
+public class ConstantFoldingVisitor extends Visitor {
+
+    // the constant values of variables at the current point of the program
+    private Map<DeclarationVariable, Constant> constants = new HashMap<>();
+    // the replacement of the expression visited last
+    private Exp result;
+    // the replacement of the control structure visited last, null if it is
+    // removed
+    private Inst replacement;
+    private boolean replaced = false;
+    // true while visiting an expression denoting a memory cell instead of
+    // its value
+    private boolean mem = false;
+
+    private int foldedExpressions = 0;
+    private int propagatedConstants = 0;
+    private int eliminatedBranches = 0;
+
+    /**
+     * @return the number of expressions which were replaced by their value
+     */
+    public int getFoldedExpressions() { return foldedExpressions; }
+
+    /**
+     * @return the number of variable reads which were replaced by a constant
+     */
+    public int getPropagatedConstants() { return propagatedConstants; }
+
+    /**
+     * @return the number of control structures which were replaced by one of
+     *         their branches or removed
+     */
+    public int getEliminatedBranches() { return eliminatedBranches; }
+
+    /* program */
+
+    @Override
+    public void visit(Program prog) {
+        for(Declaration d : prog.getDeclarations()) d.accept(this);
+        fold(prog.getInstruction());
+    }
+
+    /* declarations */
+
+    @Override
+    public void visit(DeclarationVariable dec) {}
+
+    @Override
+    public void visit(DeclarationType dec) {}
+
+    @Override
+    public void visit(DeclarationProc dec) {
+        // nothing is known about the variables when a procedure is called
+        Map<DeclarationVariable, Constant> outer = constants;
+        constants = new HashMap<>();
+        fold(dec.getBody());
+        constants = outer;
+    }
+
+    /* instructions */
+
+    /* instructions - general */
+
+    @Override
+    public void visit(InstructionAssignment asg) {
+        asg.setExp(fold(asg.getExp()));
+        foldMem(asg.getMem());
+        if(asg.getMem() instanceof Variable) {
+            Variable var = (Variable)asg.getMem();
+            if(var.getDec().isParamByRef()) {
+                constants.clear();
+            }
+            else if(isPropagatable(var, asg.getExp())) {
+                constants.put(var.getDec(), (Constant)asg.getExp());
+            }
+            else {
+                constants.remove(var.getDec());
+            }
+        }
+    }
+
+    @Override
+    public void visit(InstructionBlock block) {
+        for(Declaration dec : block.getDecs()) {
+            dec.accept(this);
+        }
+        ArrayList<Inst> insts = block.getInsts();
+        for(int i = 0; i < insts.size(); i++) {
+            Inst inst = fold(insts.get(i));
+            if(inst == null) {
+                insts.remove(i);
+                i--;
+            }
+            else {
+                insts.set(i, inst);
+            }
+        }
+    }
+
+    @Override
+    public void visit(InstructionCall call) {
+        ArrayList<Exp> args = call.getArgs();
+        ArrayList<DeclarationParam> params = call.getDecProc().getParams();
+        for(int i = 0; i < args.size(); i++) {
+            if(params.get(i).isParamByRef()) {
+                foldMem((Mem)args.get(i));
+            }
+            else {
+                args.set(i, fold(args.get(i)));
+            }
+        }
+        constants.clear();
+    }
+
+    /* instructions - memory */
+
+    @Override
+    public void visit(InstructionNew inst) { foldMem(inst.getMem()); }
+
+    @Override
+    public void visit(InstructionFree inst) { foldMem(inst.getMem()); }
+
+    /* instructions - IO*/
+
+    @Override
+    public void visit(InstructionWrite inst) {
+        inst.setExp(fold(inst.getExp()));
+    }
+
+    @Override
+    public void visit(InstructionRead inst) {
+        foldMem(inst.getMem());
+        if(inst.getMem() instanceof Variable) {
+            DeclarationVariable dec = ((Variable)inst.getMem()).getDec();
+            if(dec.isParamByRef()) {
+                constants.clear();
+            }
+            else {
+                constants.remove(dec);
+            }
+        }
+    }
+
+    /* instructions - control structures */
+
+    @Override
+    public void visit(InstructionWhile inst) {
+        // the condition is evaluated again after each run of the body
+        Map<DeclarationVariable, Constant> before = copy(constants);
+        forget(inst.getBody());
+        inst.setCondition(fold(inst.getCondition()));
+        if(isFalse(inst.getCondition())) {
+            constants = before;
+            eliminate(null);
+            return;
+        }
+        foldBranch(inst.getBody());
+    }
+
+    @Override
+    public void visit(InstructionDoWhile inst) {
+        forget(inst.getBody());
+        foldBranch(inst.getBody());
+        inst.setCondition(fold(inst.getCondition()));
+        if(isFalse(inst.getCondition())) {
+            // the body is run exactly once
+            eliminate(inst.getBody());
+        }
+    }
+
+    @Override
+    public void visit(InstructionIfThen inst) {
+        inst.setCondition(fold(inst.getCondition()));
+        if(isTrue(inst.getCondition())) {
+            eliminate(fold(inst.getBody()));
+        }
+        else if(isFalse(inst.getCondition())) {
+            eliminate(null);
+        }
+        else {
+            foldBranch(inst.getBody());
+            forget(inst.getBody());
+        }
+    }
+
+    @Override
+    public void visit(InstructionIfThenElse inst) {
+        inst.setCondition(fold(inst.getCondition()));
+        if(isTrue(inst.getCondition())) {
+            eliminate(fold(inst.getBodyIf()));
+        }
+        else if(isFalse(inst.getCondition())) {
+            eliminate(fold(inst.getBodyElse()));
+        }
+        else {
+            foldBranch(inst.getBodyIf());
+            foldBranch(inst.getBodyElse());
+            forget(inst.getBodyIf());
+            forget(inst.getBodyElse());
+        }
+    }
+
+    @Override
+    public void visit(InstructionSwitch inst) {
+        inst.setExp(fold(inst.getExp()));
+        if(inst.getExp().isConstant()) {
+            Object value = value((Constant)inst.getExp());
+            // like the machine, take the first case which is equal
+            for(InstructionSwitch.Case c : inst.getCases()) {
+                Integer cmp = compare(value, value(c.getLiteral()));
+                if(cmp == null) {
+                    break;
+                }
+                if(cmp == 0) {
+                    eliminate(fold(c.getInst()));
+                    return;
+                }
+            }
+            if(allComparable(value, inst.getCases())) {
+                eliminate(
+                    inst.getDefaultInst() == null ?
+                    null :
+                    fold(inst.getDefaultInst())
+                );
+                return;
+            }
+        }
+        for(InstructionSwitch.Case c : inst.getCases()) {
+            foldBranch(c.getInst());
+        }
+        if(inst.getDefaultInst() != null) {
+            foldBranch(inst.getDefaultInst());
+        }
+        for(InstructionSwitch.Case c : inst.getCases()) {
+            forget(c.getInst());
+        }
+        if(inst.getDefaultInst() != null) {
+            forget(inst.getDefaultInst());
+        }
+    }
+
+    /* expressions */
+
+    /* expressions - mems */
+
+    @Override
+    public void visit(Variable var) {
+        Constant c = constants.get(var.getDec());
+        if(!mem && c != null) {
+            result = constant(value(c), var.getLinkToSource());
+            propagatedConstants++;
+        }
+    }
+
+    @Override
+    public void visit(Dereference d) {
+        foldMem(d.getMem());
+        result = d;
+    }
+
+    @Override
+    public void visit(Select s) {
+        foldMem(s.getMem());
+        result = s;
+    }
+
+    @Override
+    public void visit(Index i) {
+        i.setExp(fold(i.getExp()));
+        foldMem(i.getMem());
+        result = i;
+    }
+
+    /* expressions - unary - arithmetic */
+
+    @Override
+    public void visit(SignChange exp) {
+        Object v = foldOp(exp);
+        if(v instanceof Integer) {
+            replace(exp, -(Integer)v);
+        }
+        else if(v instanceof Double) {
+            replace(exp, -(Double)v);
+        }
+    }
+
+    /* expressions - unary - logical */
+
+    @Override
+    public void visit(Not exp) {
+        Object v = foldOp(exp);
+        if(v instanceof Boolean) {
+            replace(exp, !(Boolean)v);
+        }
+    }
+
+    /* expressions - unary - explicit type conversion */
+
+    @Override
+    public void visit(ConversionInt exp) {
+        Object v = foldOp(exp);
+        if(v instanceof Integer) {
+            replace(exp, v);
+        }
+        else if(v instanceof Boolean) {
+            replace(exp, (Boolean)v ? 1 : 0);
+        }
+        else if(v instanceof Double) {
+            replace(exp, (int)(double)(Double)v);
+        }
+        else if(v instanceof Character) {
+            replace(exp, (int)(Character)v);
+        }
+    }
+
+    @Override
+    public void visit(ConversionBool exp) {
+        Object v = foldOp(exp);
+        if(v instanceof Integer) {
+            replace(exp, (Integer)v != 0);
+        }
+        else if(v instanceof Boolean) {
+            replace(exp, v);
+        }
+    }
+
+    @Override
+    public void visit(ConversionReal exp) {
+        Object v = foldOp(exp);
+        if(v instanceof Integer) {
+            replace(exp, (double)(Integer)v);
+        }
+        else if(v instanceof Boolean) {
+            replace(exp, (Boolean)v ? 1.0 : 0.0);
+        }
+        else if(v instanceof Double) {
+            replace(exp, v);
+        }
+        else if(v instanceof Character) {
+            replace(exp, (double)(Character)v);
+        }
+    }
+
+    @Override
+    public void visit(ConversionChar exp) {
+        Object v = foldOp(exp);
+        if(v instanceof Integer) {
+            replace(exp, (char)(int)(Integer)v);
+        }
+        else if(v instanceof Character) {
+            replace(exp, v);
+        }
+    }
+
+    @Override
+    public void visit(ConversionString exp) {
+        Object v = foldOp(exp);
+        if(v instanceof Integer) {
+            replace(exp, Integer.toString((Integer)v));
+        }
+        else if(v instanceof Character) {
+            replace(exp, "" + v);
+        }
+        else if(v instanceof String) {
+            replace(exp, v);
+        }
+    }
+
+    /* expressions - binary - miscellaneous */
+
+    @Override
+    public void visit(ChainElement exp) {
+        foldOps(exp);
+        Object v1 = value(exp.getOp1());
+        Object v2 = value(exp.getOp2());
+        if(v1 instanceof String && v2 instanceof Integer) {
+            String s = (String)v1;
+            int i = (Integer)v2;
+            // out of range gives UNKNOWN at runtime
+            if(i >= 0 && i < s.length()) {
+                replace(exp, s.charAt(i));
+            }
+        }
+    }
+
+    /* expressions - binary - arithmetic */
+
+    @Override
+    public void visit(Sum exp) {
+        foldOps(exp);
+        Object v1 = value(exp.getOp1());
+        Object v2 = value(exp.getOp2());
+        if(v1 instanceof Integer && v2 instanceof Integer) {
+            replace(exp, (Integer)v1 + (Integer)v2);
+        }
+        else if(v1 instanceof String && v2 instanceof String) {
+            replace(exp, (String)v1 + (String)v2);
+        }
+        else if(isNumber(v1) && isNumber(v2)) {
+            replace(exp, real(v1) + real(v2));
+        }
+    }
+
+    @Override
+    public void visit(Difference exp) {
+        foldOps(exp);
+        Object v1 = value(exp.getOp1());
+        Object v2 = value(exp.getOp2());
+        if(v1 instanceof Integer && v2 instanceof Integer) {
+            replace(exp, (Integer)v1 - (Integer)v2);
+        }
+        else if(isNumber(v1) && isNumber(v2)) {
+            replace(exp, real(v1) - real(v2));
+        }
+    }
+
+    @Override
+    public void visit(Product exp) {
+        foldOps(exp);
+        Object v1 = value(exp.getOp1());
+        Object v2 = value(exp.getOp2());
+        if(v1 instanceof Integer && v2 instanceof Integer) {
+            replace(exp, (Integer)v1 * (Integer)v2);
+        }
+        else if(isNumber(v1) && isNumber(v2)) {
+            replace(exp, real(v1) * real(v2));
+        }
+    }
+
+    @Override
+    public void visit(Quotient exp) {
+        foldOps(exp);
+        Object v1 = value(exp.getOp1());
+        Object v2 = value(exp.getOp2());
+        if(v1 instanceof Integer && v2 instanceof Integer) {
+            // division by zero is left to fail at runtime
+            if((Integer)v2 != 0) {
+                replace(exp, (Integer)v1 / (Integer)v2);
+            }
+        }
+        else if(isNumber(v1) && isNumber(v2)) {
+            replace(exp, real(v1) / real(v2));
+        }
+    }
+
+    @Override
+    public void visit(Rest exp) {
+        foldOps(exp);
+        Object v1 = value(exp.getOp1());
+        Object v2 = value(exp.getOp2());
+        if(v1 instanceof Integer && v2 instanceof Integer && (Integer)v2 != 0) {
+            replace(exp, (Integer)v1 % (Integer)v2);
+        }
+    }
+
+    /* expressions - binary - relational */
+
+    @Override
+    public void visit(Equal exp) {
+        Integer cmp = foldComparison(exp);
+        if(cmp != null) replace(exp, cmp == 0);
+    }
+
+    @Override
+    public void visit(Unequal exp) {
+        Integer cmp = foldComparison(exp);
+        if(cmp != null) replace(exp, cmp != 0);
+    }
+
+    @Override
+    public void visit(Less exp) {
+        Integer cmp = foldComparison(exp);
+        if(cmp != null) replace(exp, cmp < 0);
+    }
+
+    @Override
+    public void visit(LessEqual exp) {
+        Integer cmp = foldComparison(exp);
+        if(cmp != null) replace(exp, cmp <= 0);
+    }
+
+    @Override
+    public void visit(Greater exp) {
+        Integer cmp = foldComparison(exp);
+        if(cmp != null) replace(exp, cmp > 0);
+    }
+
+    @Override
+    public void visit(GreaterEqual exp) {
+        Integer cmp = foldComparison(exp);
+        if(cmp != null) replace(exp, cmp >= 0);
+    }
+
+    /* expressions - binary - logical */
+
+    @Override
+    public void visit(And exp) {
+        foldOps(exp);
+        Object v1 = value(exp.getOp1());
+        Object v2 = value(exp.getOp2());
+        if(v1 instanceof Boolean && v2 instanceof Boolean) {
+            replace(exp, (Boolean)v1 && (Boolean)v2);
+        }
+    }
+
+    @Override
+    public void visit(Or exp) {
+        foldOps(exp);
+        Object v1 = value(exp.getOp1());
+        Object v2 = value(exp.getOp2());
+        if(v1 instanceof Boolean && v2 instanceof Boolean) {
+            replace(exp, (Boolean)v1 || (Boolean)v2);
+        }
+    }
+
+    /* folding */
+
+    // folds an expression whose value is used and returns its replacement
+    private Exp fold(Exp exp) {
+        boolean outer = mem;
+        mem = false;
+        result = exp;
+        exp.accept(this);
+        mem = outer;
+        return result;
+    }
+
+    // folds the subexpressions of an expression denoting a memory cell, the
+    // cell itself is kept
+    private void foldMem(Mem m) {
+        boolean outer = mem;
+        mem = true;
+        result = m;
+        m.accept(this);
+        mem = outer;
+    }
+
+    // folds an instruction and returns its replacement, null if it is removed
+    private Inst fold(Inst inst) {
+        replaced = false;
+        inst.accept(this);
+        if(replaced) {
+            replaced = false;
+            return replacement;
+        }
+        return inst;
+    }
+
+    // folds a branch which may or may not be run, the known constants are
+    // not changed
+    private void foldBranch(Inst inst) {
+        Map<DeclarationVariable, Constant> outer = constants;
+        constants = copy(constants);
+        fold(inst);
+        constants = outer;
+    }
+
+    // replaces the control structure being visited, after its parts were
+    // folded
+    private void eliminate(Inst inst) {
+        replacement = inst;
+        replaced = true;
+        eliminatedBranches++;
+    }
+
+    // folds the operand of an unary expression and returns its value, null
+    // if it is not constant
+    private Object foldOp(UnaryExp exp) {
+        exp.setOp(fold(exp.getOp()));
+        result = exp;
+        return value(exp.getOp());
+    }
+
+    private void foldOps(BinaryExp exp) {
+        exp.setOp1(fold(exp.getOp1()));
+        exp.setOp2(fold(exp.getOp2()));
+        result = exp;
+    }
+
+    // returns the result of comparing the operands, null if they are not
+    // both constant
+    private Integer foldComparison(BinaryRelationalExp exp) {
+        foldOps(exp);
+        return compare(value(exp.getOp1()), value(exp.getOp2()));
+    }
+
+    // replaces exp by a constant with the given value, if it has exp's type
+    private void replace(Exp exp, Object value) {
+        Constant c = constant(value, exp.getLinkToSource());
+        if(c.getType() == exp.getType()) {
+            result = c;
+            foldedExpressions++;
+        }
+    }
+
+    /* constant propagation */
+
+    // true if the value of a variable is known after assigning exp to it
+    private boolean isPropagatable(Variable var, Exp exp) {
+        Type type = var.getType();
+        return  exp.isConstant() &&
+                exp.getType() == type && (
+                    type == Type.INT ||
+                    type == Type.BOOL ||
+                    type == Type.REAL ||
+                    type == Type.CHAR ||
+                    type == Type.STRING
+                );
+    }
+
+    // forgets the constants of all variables which may be changed by inst
+    private void forget(Inst inst) {
+        AssignedVariables assigned = new AssignedVariables();
+        inst.accept(assigned);
+        if(assigned.all) {
+            constants.clear();
+        }
+        else {
+            constants.keySet().removeAll(assigned.decs);
+        }
+    }
+
+    private static Map<DeclarationVariable, Constant> copy(
+            Map<DeclarationVariable, Constant> constants
+    ) {
+        return new HashMap<>(constants);
+    }
+
+    /**
+     * Collects the variables which may be changed by an instruction.
+     */
+    private static class AssignedVariables extends Visitor {
+
+        private Set<DeclarationVariable> decs = new HashSet<>();
+        // true if any variable may be changed
+        private boolean all = false;
+
+        @Override
+        public void visit(DeclarationProc dec) {
+            // the body is only run when the procedure is called
+        }
+
+        @Override
+        public void visit(InstructionAssignment asg) { assigned(asg.getMem()); }
+
+        @Override
+        public void visit(InstructionRead inst) { assigned(inst.getMem()); }
+
+        @Override
+        public void visit(InstructionCall call) { all = true; }
+
+        private void assigned(Mem m) {
+            if(m instanceof Variable) {
+                DeclarationVariable dec = ((Variable)m).getDec();
+                if(dec.isParamByRef()) {
+                    all = true;
+                }
+                decs.add(dec);
+            }
+        }
+
+    }
+
+    /* values */
+
+    // the value of a constant expression as it is held by the machine, null
+    // if exp is no constant or the null pointer
+    private static Object value(Exp exp) {
+        if(exp instanceof ConstantInt) {
+            return ((ConstantInt)exp).getValue();
+        }
+        if(exp instanceof ConstantBool) {
+            return ((ConstantBool)exp).getValue();
+        }
+        if(exp instanceof ConstantReal) {
+            return ((ConstantReal)exp).getValue();
+        }
+        if(exp instanceof ConstantChar) {
+            return ((ConstantChar)exp).getValue();
+        }
+        if(exp instanceof ConstantString) {
+            return ((ConstantString)exp).getValue();
+        }
+        return null;
+    }
+
+    private static Constant constant(Object value, String link) {
+        Constant c;
+        if(value instanceof Integer) {
+            c = new ConstantInt((Integer)value, link);
+            c.setType(Type.INT);
+        }
+        else if(value instanceof Boolean) {
+            c = new ConstantBool((Boolean)value, link);
+            c.setType(Type.BOOL);
+        }
+        else if(value instanceof Double) {
+            c = new ConstantReal((Double)value, link);
+            c.setType(Type.REAL);
+        }
+        else if(value instanceof Character) {
+            c = new ConstantChar((Character)value, link);
+            c.setType(Type.CHAR);
+        }
+        else {
+            c = new ConstantString((String)value, link);
+            c.setType(Type.STRING);
+        }
+        return c;
+    }
+
+    private static boolean isNumber(Object v) {
+        return v instanceof Integer || v instanceof Double;
+    }
+
+    private static double real(Object v) {
+        return v instanceof Integer ? (Integer)v : (Double)v;
+    }
+
+    // compares two values the way the machine does, null if the machine
+    // would fail or a value is unknown
+    private static Integer compare(Object v1, Object v2) {
+        if(isNumber(v1) && isNumber(v2)) {
+            return Double.compare(real(v1), real(v2));
+        }
+        if(v1 instanceof Boolean && v2 instanceof Boolean) {
+            return Boolean.compare((Boolean)v1, (Boolean)v2);
+        }
+        if(v1 instanceof Character && v2 instanceof Character) {
+            return Character.compare((Character)v1, (Character)v2);
+        }
+        if(v1 instanceof String && v2 instanceof String) {
+            return ((String)v1).compareTo((String)v2);
+        }
+        return null;
+    }
+
+    private static boolean allComparable(
+            Object value,
+            ArrayList<InstructionSwitch.Case> cases
+    ) {
+        for(InstructionSwitch.Case c : cases) {
+            if(compare(value, value(c.getLiteral())) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isTrue(Exp exp) {
+        return Boolean.TRUE.equals(value(exp));
+    }
+
+    private static boolean isFalse(Exp exp) {
+        return Boolean.FALSE.equals(value(exp));
+    }
+
+}
@@ -0,0 +1,753 @@
+package pl.procedures.optimization;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import pl.abstractsyntax.Declaration;
+import pl.abstractsyntax.Declaration.*;
+import pl.abstractsyntax.Exp;
+import pl.abstractsyntax.Exp.*;
+import pl.abstractsyntax.Inst;
+import pl.abstractsyntax.Inst.*;
+import pl.abstractsyntax.Mem;
+import pl.abstractsyntax.Mem.*;
+import pl.abstractsyntax.Program;
+import pl.procedures.Visitor;
+import pl.type.Type;
+
+/**
+ * This visitor replaces calls of small procedures by a copy of their body.
+ * It has to be applied after the TypeCheckVisitor and before the constant
+ * folding, which then propagates constant arguments into the copies.
+ *
+ * A procedure is inlined if it is not recursive, not even through other
+ * procedures, declares no procedures or types and its body has at most
+ * maxSize instructions and expressions. The call is replaced by a block:
+ *    - each parameter by value becomes a variable of the block which is
+ *      assigned the argument,
+ *    - each parameter by reference is replaced by the argument itself,
+ *    - the local variables of the procedure become variables of the copy.
+ *
+ * Replacing a parameter by reference evaluates the argument at each use
+ * instead of once at the call. So a call is only inlined if the cell of
+ * each argument by reference cannot change while the body runs, that is if
+ * it is a variable, or a field or an element at a constant index of one,
+ * and has the type of the parameter.
+ *
+ * Calls inside the copies are not inlined again.
+ */
+public class InliningVisitor extends Visitor {
+
+    private final int maxSize;
+    // the procedures which may call themselves
+    private Set<DeclarationProc> recursive;
+
+    private int inlinedCalls = 0;
+    // number of inlined calls per procedure, in the order they were found
+    private Map<DeclarationProc, Integer> inlined = new LinkedHashMap<>();
+
+    /**
+     * @param maxSize the maximal number of instructions and expressions in
+     *        the body of a procedure which is inlined
+     */
+    public InliningVisitor(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return the number of calls which were replaced by the procedure body
+     */
+    public int getInlinedCalls() { return inlinedCalls; }
+
+    /**
+     * Prints the procedures which were inlined and how often.
+     */
+    public void printReport() {
+        System.out.println("Inlining:");
+        for(Map.Entry<DeclarationProc, Integer> e : inlined.entrySet()) {
+            System.out.println(String.format(
+                    " %-20s inlined %6d, size %4d",
+                    e.getKey().getIdent(), e.getValue(),
+                    size(e.getKey().getBody())
+            ));
+        }
+        System.out.println(" total inlined: " + inlinedCalls);
+    }
+
+    /* program */
+
+    @Override
+    public void visit(Program prog) {
+        CallGraph graph = new CallGraph();
+        prog.accept(graph);
+        recursive = graph.recursive();
+        super.visit(prog);
+    }
+
+    /* declarations */
+
+    @Override
+    public void visit(DeclarationVariable dec) {}
+
+    @Override
+    public void visit(DeclarationType dec) {}
+
+    /* instructions */
+
+    @Override
+    public void visit(InstructionBlock block) {
+        for(Declaration dec : block.getDecs()) {
+            dec.accept(this);
+        }
+        ArrayList<Inst> insts = block.getInsts();
+        for(int i = 0; i < insts.size(); i++) {
+            Inst inst = insts.get(i);
+            if( inst instanceof InstructionCall &&
+                isInlinable((InstructionCall)inst)
+            ) {
+                insts.set(i, inline((InstructionCall)inst));
+            }
+            else {
+                inst.accept(this);
+            }
+        }
+    }
+
+    /* inlining */
+
+    private boolean isInlinable(InstructionCall call) {
+        DeclarationProc proc = call.getDecProc();
+        if( recursive.contains(proc) ||
+            !declaresOnlyVariables(proc.getBody()) ||
+            size(proc.getBody()) > maxSize
+        ) {
+            return false;
+        }
+        ArrayList<DeclarationParam> params = proc.getParams();
+        for(int i = 0; i < params.size(); i++) {
+            DeclarationParam param = params.get(i);
+            Exp arg = call.getArgs().get(i);
+            if( param.isParamByRef() && (
+                    !isFixedCell(arg) ||
+                    resolve(arg.getType()) != resolve(param.getType())
+                )
+            ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // builds the block which replaces the call
+    private Inst inline(InstructionCall call) {
+        DeclarationProc proc = call.getDecProc();
+        String link = call.getLinkToSource();
+        Copier copier = new Copier(proc.getIdent());
+        ArrayList<Declaration> decs = new ArrayList<>();
+        ArrayList<Inst> insts = new ArrayList<>();
+        ArrayList<DeclarationParam> params = proc.getParams();
+        for(int i = 0; i < params.size(); i++) {
+            DeclarationParam param = params.get(i);
+            Exp arg = call.getArgs().get(i);
+            if(param.isParamByRef()) {
+                copier.aliases.put(param, (Mem)arg);
+            }
+            else {
+                DeclarationVariable var = copier.declare(param);
+                decs.add(var);
+                Variable v = new Variable(var.getIdent(), link);
+                v.setDec(var);
+                v.setType(param.getType());
+                Inst asg = new InstructionAssignment(v, arg, link);
+                asg.setType(Type.OK);
+                insts.add(asg);
+            }
+        }
+        insts.add(copier.copy(proc.getBody()));
+        Inst block = new InstructionBlock(decs, insts);
+        block.setType(Type.OK);
+
+        inlinedCalls++;
+        Integer n = inlined.get(proc);
+        inlined.put(proc, n == null ? 1 : n + 1);
+        return block;
+    }
+
+    // true if the cell denoted by exp is the same during the whole call
+    private static boolean isFixedCell(Exp exp) {
+        if(exp instanceof Variable) {
+            return true;
+        }
+        if(exp instanceof Select) {
+            return isFixedCell(((Select)exp).getMem());
+        }
+        if(exp instanceof Index) {
+            Index i = (Index)exp;
+            if(!(i.getExp() instanceof ConstantInt)) {
+                return false;
+            }
+            int value = ((ConstantInt)i.getExp()).getValue();
+            return  value >= 0 &&
+                    value < resolve(i.getMem().getType()).toArray().getDim() &&
+                    isFixedCell(i.getMem());
+        }
+        return false;
+    }
+
+    private static Type resolve(Type type) {
+        return type.isReference() ? type.toRef().referencedType() : type;
+    }
+
+    // true if the only declarations in inst are variables
+    private static boolean declaresOnlyVariables(Inst inst) {
+        OnlyVariables v = new OnlyVariables();
+        inst.accept(v);
+        return v.only;
+    }
+
+    private static int size(Inst inst) {
+        Size size = new Size();
+        inst.accept(size);
+        return size.size;
+    }
+
+    /**
+     * Finds the procedures which may call themselves.
+     */
+    private static class CallGraph extends Visitor {
+
+        // the procedures called directly by each procedure
+        private Map<DeclarationProc, Set<DeclarationProc>> calls
+                = new HashMap<>();
+        private DeclarationProc proc = null;
+
+        @Override
+        public void visit(DeclarationProc dec) {
+            DeclarationProc outer = proc;
+            proc = dec;
+            calls.put(dec, new HashSet<DeclarationProc>());
+            dec.getBody().accept(this);
+            proc = outer;
+        }
+
+        @Override
+        public void visit(InstructionCall call) {
+            if(proc != null) {
+                calls.get(proc).add(call.getDecProc());
+            }
+        }
+
+        private Set<DeclarationProc> recursive() {
+            Set<DeclarationProc> result = new HashSet<>();
+            for(DeclarationProc dec : calls.keySet()) {
+                if(reaches(dec, dec, new HashSet<DeclarationProc>())) {
+                    result.add(dec);
+                }
+            }
+            return result;
+        }
+
+        // true if a call of from may lead to a call of to
+        private boolean reaches(
+                DeclarationProc from,
+                DeclarationProc to,
+                Set<DeclarationProc> visited
+        ) {
+            for(DeclarationProc callee : calls.get(from)) {
+                if( callee == to ||
+                    visited.add(callee) && reaches(callee, to, visited)
+                ) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+    }
+
+    /**
+     * Checks that no procedures or types are declared.
+     */
+    private static class OnlyVariables extends Visitor {
+
+        private boolean only = true;
+
+        @Override
+        public void visit(DeclarationType dec) { only = false; }
+
+        @Override
+        public void visit(DeclarationProc dec) { only = false; }
+
+    }
+
+    /**
+     * Counts the instructions and expressions, blocks are not counted.
+     */
+    private static class Size extends Visitor {
+
+        private int size = 0;
+
+        @Override
+        public void visit(InstructionAssignment asg) {
+            size++;
+            super.visit(asg);
+        }
+
+        @Override
+        public void visit(InstructionCall call) {
+            size++;
+            super.visit(call);
+        }
+
+        @Override
+        public void visit(InstructionNew inst) {
+            size++;
+            super.visit(inst);
+        }
+
+        @Override
+        public void visit(InstructionFree inst) {
+            size++;
+            super.visit(inst);
+        }
+
+        @Override
+        public void visit(InstructionWrite inst) {
+            size++;
+            super.visit(inst);
+        }
+
+        @Override
+        public void visit(InstructionRead inst) {
+            size++;
+            super.visit(inst);
+        }
+
+        @Override
+        public void visit(InstructionWhile inst) {
+            size++;
+            super.visit(inst);
+        }
+
+        @Override
+        public void visit(InstructionDoWhile inst) {
+            size++;
+            super.visit(inst);
+        }
+
+        @Override
+        public void visit(InstructionIfThen inst) {
+            size++;
+            super.visit(inst);
+        }
+
+        @Override
+        public void visit(InstructionIfThenElse inst) {
+            size++;
+            super.visit(inst);
+        }
+
+        @Override
+        public void visit(InstructionSwitch inst) {
+            size++;
+            super.visit(inst);
+        }
+
+        @Override
+        public void visit(Constant exp) { size++; }
+
+        @Override
+        public void visit(Variable var) { size++; }
+
+        @Override
+        public void visit(Dereference d) {
+            size++;
+            super.visit(d);
+        }
+
+        @Override
+        public void visit(Select s) {
+            size++;
+            super.visit(s);
+        }
+
+        @Override
+        public void visit(Index i) {
+            size++;
+            super.visit(i);
+        }
+
+        @Override
+        public void visit(UnaryExp exp) {
+            size++;
+            super.visit(exp);
+        }
+
+        @Override
+        public void visit(BinaryExp exp) {
+            size++;
+            super.visit(exp);
+        }
+
+    }
+
+    /**
+     * Copies the body of a procedure. Its parameters and local variables are
+     * replaced by new variables or by the arguments of the call.
+     */
+    private static class Copier extends Visitor {
+
+        // prefix for the names of the new variables
+        private final String prefix;
+        // the new variables for the parameters and local variables
+        private Map<DeclarationVariable, DeclarationVariable> variables
+                = new HashMap<>();
+        // the arguments for the parameters by reference
+        private Map<DeclarationVariable, Mem> aliases = new HashMap<>();
+        // the copy of the node visited last
+        private Inst inst;
+        private Exp exp;
+
+        private Copier(String prefix) {
+            this.prefix = prefix;
+        }
+
+        // returns a new variable which replaces dec in the copy
+        private DeclarationVariable declare(DeclarationVariable dec) {
+            DeclarationVariable var = new DeclarationVariable(
+                    prefix + "." + dec.getIdent(),
+                    dec.getType(),
+                    dec.getLinkToSource()
+            );
+            variables.put(dec, var);
+            return var;
+        }
+
+        private Inst copy(Inst inst) {
+            inst.accept(this);
+            this.inst.setType(inst.getType());
+            return this.inst;
+        }
+
+        private Exp copy(Exp exp) {
+            exp.accept(this);
+            this.exp.setType(exp.getType());
+            return this.exp;
+        }
+
+        private Mem copy(Mem mem) {
+            return (Mem)copy((Exp)mem);
+        }
+
+        private ArrayList<Exp> copy(ArrayList<Exp> exps) {
+            ArrayList<Exp> copies = new ArrayList<>();
+            for(Exp e : exps) {
+                copies.add(copy(e));
+            }
+            return copies;
+        }
+
+        /* instructions */
+
+        @Override
+        public void visit(InstructionAssignment asg) {
+            inst = new InstructionAssignment(
+                    copy(asg.getMem()),
+                    copy(asg.getExp()),
+                    asg.getLinkToSource()
+            );
+        }
+
+        @Override
+        public void visit(InstructionBlock block) {
+            ArrayList<Declaration> decs = new ArrayList<>();
+            for(Declaration dec : block.getDecs()) {
+                decs.add(declare((DeclarationVariable)dec));
+            }
+            ArrayList<Inst> insts = new ArrayList<>();
+            for(Inst i : block.getInsts()) {
+                insts.add(copy(i));
+            }
+            inst = new InstructionBlock(decs, insts);
+        }
+
+        @Override
+        public void visit(InstructionCall call) {
+            InstructionCall c = new InstructionCall(
+                    call.getIdentProc(),
+                    copy(call.getArgs()),
+                    call.getLinkToSource()
+            );
+            c.setDecProc(call.getDecProc());
+            inst = c;
+        }
+
+        @Override
+        public void visit(InstructionNew i) {
+            inst = new InstructionNew(copy(i.getMem()), i.getLinkToSource());
+        }
+
+        @Override
+        public void visit(InstructionFree i) {
+            inst = new InstructionFree(copy(i.getMem()), i.getLinkToSource());
+        }
+
+        @Override
+        public void visit(InstructionWrite i) {
+            inst = new InstructionWrite(copy(i.getExp()), i.getLinkToSource());
+        }
+
+        @Override
+        public void visit(InstructionRead i) {
+            inst = new InstructionRead(copy(i.getMem()), i.getLinkToSource());
+        }
+
+        @Override
+        public void visit(InstructionWhile i) {
+            inst = new InstructionWhile(
+                    copy(i.getCondition()),
+                    copy(i.getBody()),
+                    i.getLinkToSource()
+            );
+        }
+
+        @Override
+        public void visit(InstructionDoWhile i) {
+            inst = new InstructionDoWhile(
+                    copy(i.getCondition()),
+                    copy(i.getBody()),
+                    i.getLinkToSource()
+            );
+        }
+
+        @Override
+        public void visit(InstructionIfThen i) {
+            inst = new InstructionIfThen(
+                    copy(i.getCondition()),
+                    copy(i.getBody()),
+                    i.getLinkToSource()
+            );
+        }
+
+        @Override
+        public void visit(InstructionIfThenElse i) {
+            inst = new InstructionIfThenElse(
+                    copy(i.getCondition()),
+                    copy(i.getBodyIf()),
+                    copy(i.getBodyElse()),
+                    i.getLinkToSource()
+            );
+        }
+
+        @Override
+        public void visit(InstructionSwitch i) {
+            ArrayList<InstructionSwitch.Case> cases = new ArrayList<>();
+            for(InstructionSwitch.Case c : i.getCases()) {
+                cases.add(new InstructionSwitch.Case(
+                        (Constant)copy(c.getLiteral()),
+                        copy(c.getInst()),
+                        c.getLinkToSource()
+                ));
+            }
+            inst = new InstructionSwitch(
+                    copy(i.getExp()),
+                    cases,
+                    i.getDefaultInst() == null ?
+                        null :
+                        copy(i.getDefaultInst()),
+                    i.getLinkToSource()
+            );
+        }
+
+        /* expressions - constants */
+
+        @Override
+        public void visit(ConstantInt e) {
+            exp = new ConstantInt(e.getValue(), e.getLinkToSource());
+        }
+
+        @Override
+        public void visit(ConstantBool e) {
+            exp = new ConstantBool(e.getValue(), e.getLinkToSource());
+        }
+
+        @Override
+        public void visit(ConstantReal e) {
+            exp = new ConstantReal(e.getValue(), e.getLinkToSource());
+        }
+
+        @Override
+        public void visit(ConstantChar e) {
+            exp = new ConstantChar(e.getValue(), e.getLinkToSource());
+        }
+
+        @Override
+        public void visit(ConstantString e) {
+            exp = new ConstantString(e.getValue(), e.getLinkToSource());
+        }
+
+        @Override
+        public void visit(ConstantNull e) {
+            exp = new ConstantNull(e.getLinkToSource());
+        }
+
+        /* expressions - mems */
+
+        @Override
+        public void visit(Variable var) {
+            Mem alias = aliases.get(var.getDec());
+            if(alias != null) {
+                // the argument is copied with the variables of the caller
+                exp = new Copier(prefix).copy(alias);
+                return;
+            }
+            DeclarationVariable dec = variables.get(var.getDec());
+            if(dec == null) {
+                dec = var.getDec();
+            }
+            Variable v = new Variable(dec.getIdent(), var.getLinkToSource());
+            v.setDec(dec);
+            exp = v;
+        }
+
+        @Override
+        public void visit(Dereference d) {
+            exp = new Dereference(copy(d.getMem()), d.getLinkToSource());
+        }
+
+        @Override
+        public void visit(Select s) {
+            exp = new Select(
+                    copy(s.getMem()),
+                    s.getField(),
+                    s.getLinkToSource()
+            );
+        }
+
+        @Override
+        public void visit(Index i) {
+            exp = new Index(
+                    copy(i.getMem()),
+                    copy(i.getExp()),
+                    i.getLinkToSource()
+            );
+        }
+
+        /* expressions - unary */
+
+        @Override
+        public void visit(SignChange e) {
+            exp = new SignChange(copy(e.getOp()), e.getLinkToSource());
+        }
+
+        @Override
+        public void visit(Not e) {
+            exp = new Not(copy(e.getOp()), e.getLinkToSource());
+        }
+
+        @Override
+        public void visit(ConversionInt e) {
+            exp = new ConversionInt(copy(e.getOp()), e.getLinkToSource());
+        }
+
+        @Override
+        public void visit(ConversionBool e) {
+            exp = new ConversionBool(copy(e.getOp()), e.getLinkToSource());
+        }
+
+        @Override
+        public void visit(ConversionReal e) {
+            exp = new ConversionReal(copy(e.getOp()), e.getLinkToSource());
+        }
+
+        @Override
+        public void visit(ConversionChar e) {
+            exp = new ConversionChar(copy(e.getOp()), e.getLinkToSource());
+        }
+
+        @Override
+        public void visit(ConversionString e) {
+            exp = new ConversionString(copy(e.getOp()), e.getLinkToSource());
+        }
+
+        /* expressions - binary */
+
+        @Override
+        public void visit(ChainElement e) {
+            exp = new ChainElement(op1(e), op2(e), e.getLinkToSource());
+        }
+
+        @Override
+        public void visit(Sum e) {
+            exp = new Sum(op1(e), op2(e), e.getLinkToSource());
+        }
+
+        @Override
+        public void visit(Difference e) {
+            exp = new Difference(op1(e), op2(e), e.getLinkToSource());
+        }
+
+        @Override
+        public void visit(Product e) {
+            exp = new Product(op1(e), op2(e), e.getLinkToSource());
+        }
+
+        @Override
+        public void visit(Quotient e) {
+            exp = new Quotient(op1(e), op2(e), e.getLinkToSource());
+        }
+
+        @Override
+        public void visit(Rest e) {
+            exp = new Rest(op1(e), op2(e), e.getLinkToSource());
+        }
+
+        @Override
+        public void visit(Equal e) {
+            exp = new Equal(op1(e), op2(e), e.getLinkToSource());
+        }
+
+        @Override
+        public void visit(Unequal e) {
+            exp = new Unequal(op1(e), op2(e), e.getLinkToSource());
+        }
+
+        @Override
+        public void visit(Less e) {
+            exp = new Less(op1(e), op2(e), e.getLinkToSource());
+        }
+
+        @Override
+        public void visit(LessEqual e) {
+            exp = new LessEqual(op1(e), op2(e), e.getLinkToSource());
+        }
+
+        @Override
+        public void visit(Greater e) {
+            exp = new Greater(op1(e), op2(e), e.getLinkToSource());
+        }
+
+        @Override
+        public void visit(GreaterEqual e) {
+            exp = new GreaterEqual(op1(e), op2(e), e.getLinkToSource());
+        }
+
+        @Override
+        public void visit(And e) {
+            exp = new And(op1(e), op2(e), e.getLinkToSource());
+        }
+
+        @Override
+        public void visit(Or e) {
+            exp = new Or(op1(e), op2(e), e.getLinkToSource());
+        }
+
+        private Exp op1(BinaryExp e) { return copy(e.getOp1()); }
+        private Exp op2(BinaryExp e) { return copy(e.getOp2()); }
+
+    }
+
+}
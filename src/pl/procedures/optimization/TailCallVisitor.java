@@ -0,0 +1,148 @@
+package pl.procedures.optimization;
+
+import java.util.List;
+import pl.abstractsyntax.Declaration;
+import pl.abstractsyntax.Declaration.*;
+import pl.abstractsyntax.Exp;
+import pl.abstractsyntax.Inst;
+import pl.abstractsyntax.Inst.*;
+import pl.abstractsyntax.Mem;
+import pl.abstractsyntax.Mem.*;
+import pl.procedures.Visitor;
+
+/**
+ * This visitor finds calls of a procedure to itself which are the last
+ * instruction executed before it returns and marks them as tail calls. The
+ * code generator compiles them to a jump which reuses the activation register
+ * of the procedure, so such a recursion runs in constant stack space. It has
+ * to be applied after addresses are assigned and before labeling.
+ *
+ * A call is in tail position if it is the last instruction of the body, or
+ * of a block, IF or IF ELSE in tail position. The cases of a SWITCH are not,
+ * as the selector may still be on the stack.
+ *
+ * Parameters by reference must not end up pointing into the register which
+ * is reused. So a call is only marked if no argument for a parameter by
+ * reference is (part of) a local variable or parameter by value of the
+ * procedure. Arguments by value are safe, the machine reads all of them
+ * before it overwrites the parameters.
+ */
+public class TailCallVisitor extends Visitor {
+
+    // the procedure whose body is visited, null for the main program
+    private DeclarationProc proc = null;
+    // true if the instruction visited next is in tail position
+    private boolean tail = false;
+
+    private int tailCalls = 0;
+
+    /**
+     * @return the number of calls which were marked as tail calls
+     */
+    public int getTailCalls() { return tailCalls; }
+
+    /* declarations */
+
+    @Override
+    public void visit(DeclarationProc dec) {
+        DeclarationProc outerProc = proc;
+        boolean outerTail = tail;
+        proc = dec;
+        tail = true;
+        dec.getBody().accept(this);
+        proc = outerProc;
+        tail = outerTail;
+    }
+
+    /* instructions */
+
+    @Override
+    public void visit(InstructionBlock block) {
+        boolean blockTail = tail;
+        for(Declaration dec : block.getDecs()) {
+            dec.accept(this);
+        }
+        List<Inst> insts = block.getInsts();
+        for(int i = 0; i < insts.size(); i++) {
+            tail = blockTail && i == insts.size() - 1;
+            insts.get(i).accept(this);
+        }
+        tail = blockTail;
+    }
+
+    @Override
+    public void visit(InstructionCall call) {
+        if( tail &&
+            proc != null &&
+            call.getDecProc() == proc &&
+            !referencesRegister(call)
+        ) {
+            call.setTailCall(true);
+            tailCalls++;
+        }
+    }
+
+    @Override
+    public void visit(InstructionWhile inst) { notInTail(inst.getBody()); }
+
+    @Override
+    public void visit(InstructionDoWhile inst) { notInTail(inst.getBody()); }
+
+    @Override
+    public void visit(InstructionIfThen inst) { inst.getBody().accept(this); }
+
+    @Override
+    public void visit(InstructionIfThenElse inst) {
+        inst.getBodyIf().accept(this);
+        inst.getBodyElse().accept(this);
+    }
+
+    @Override
+    public void visit(InstructionSwitch inst) {
+        for(InstructionSwitch.Case c : inst.getCases()) {
+            notInTail(c.getInst());
+        }
+        if(inst.getDefaultInst() != null) {
+            notInTail(inst.getDefaultInst());
+        }
+    }
+
+    // visits an instruction which is never in tail position
+    private void notInTail(Inst inst) {
+        boolean outerTail = tail;
+        tail = false;
+        inst.accept(this);
+        tail = outerTail;
+    }
+
+    // true if an argument for a parameter by reference may lie in the
+    // register of the procedure
+    private boolean referencesRegister(InstructionCall call) {
+        List<DeclarationParam> params = proc.getParams();
+        for(int i = 0; i < params.size(); i++) {
+            Exp arg = call.getArgs().get(i);
+            if( params.get(i).isParamByRef() &&
+                (!arg.isMem() || inRegister((Mem)arg))
+            ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // true if the cell denoted by mem may lie in the register of the
+    // procedure. Pointers only point into the heap.
+    private boolean inRegister(Mem mem) {
+        while(!(mem instanceof Variable)) {
+            if(mem instanceof Dereference) {
+                return false;
+            }
+            mem = mem instanceof Select
+                    ? ((Select)mem).getMem()
+                    : ((Index)mem).getMem();
+        }
+        DeclarationVariable dec = ((Variable)mem).getDec();
+        return dec.getLevel() == proc.getLevel() && !dec.isParamByRef();
+    }
+
+}
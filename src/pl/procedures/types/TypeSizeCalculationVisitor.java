@@ -114,6 +114,9 @@ public class TypeSizeCalculationVisitor extends Visitor {
         for(InstructionSwitch.Case c : inst.getCases()) {
             c.getInst().accept(this);
         }
+        if(inst.getDefaultInst() != null) {
+            inst.getDefaultInst().accept(this);
+        }
     }
 
 }
\ No newline at end of file
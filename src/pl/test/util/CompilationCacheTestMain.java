@@ -0,0 +1,99 @@
+package pl.test.util;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import pl.util.CompilationCache;
+import pl.virtualmachine.VirtualMachine;
+
+/**
+ * Checks that a CompilationCache may be shared by threads: many threads ask
+ * a single cache for the same few programs at once, so they miss on the
+ * same keys together, and the cache is small enough that entries are
+ * evicted while others are hit. Every request must return a machine.
+ *
+ * Usage: CompilationCacheTestMain [directory of programs] [threads]
+ */
+public class CompilationCacheTestMain {
+
+    private static final String DEFAULT_PATH = "src/pl/demo/";
+    private static final int REQUESTS_PER_THREAD = 50;
+
+    public static void main(String[] args) throws Exception {
+
+        Path programs = Paths.get(args.length > 0 ? args[0] : DEFAULT_PATH);
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+
+        final List<Path> sources = new ArrayList<>();
+        try(DirectoryStream<Path> stream
+                = Files.newDirectoryStream(programs, "*.txt")) {
+            for(Path file : stream) {
+                sources.add(file);
+            }
+        }
+        Path directory = Files.createTempDirectory("cache-test");
+        // about two entries, so most misses evict another one
+        final CompilationCache cache = new CompilationCache(directory, 4096);
+        final AtomicInteger failures = new AtomicInteger();
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        for(int t = 0; t < threads; t++) {
+            futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    for(int i = 0; i < REQUESTS_PER_THREAD; i++) {
+                        Path source = sources.get(i % sources.size());
+                        try {
+                            VirtualMachine machine = cache.machine(source);
+                            if(machine == null) {
+                                failures.incrementAndGet();
+                                System.out.println(
+                                        "FAILED: " + source + ": no machine"
+                                );
+                            }
+                        }
+                        catch(Exception e) {
+                            failures.incrementAndGet();
+                            System.out.println("FAILED: " + source + ": " + e);
+                        }
+                    }
+                }
+            }));
+        }
+        for(Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        delete(directory);
+
+        System.out.println(cache);
+        System.out.println(
+                threads * REQUESTS_PER_THREAD + " requests, "
+                + failures.get() + " failures"
+        );
+        if(failures.get() > 0) {
+            System.exit(1);
+        }
+
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try(DirectoryStream<Path> stream
+                = Files.newDirectoryStream(directory)) {
+            for(Path file : stream) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+}
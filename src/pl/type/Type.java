@@ -70,6 +70,10 @@ public abstract class Type {
         public DefinedType() {
             size = 0;
         }
+
+        DefinedType(int size) {
+            this.size = size;
+        }
         
         @Override
         public void accept(Visitor v) { v.visit(this); }
@@ -85,7 +89,24 @@ public abstract class Type {
         }
     }
     
-    public static abstract class AtomicDefinedType extends DefinedType {}
+    /**
+     * The atomic types are singletons shared by all programs, also by ones
+     * compiled in parallel. Their size is one cell from the start, so no
+     * visitor ever changes them.
+     */
+    public static abstract class AtomicDefinedType extends DefinedType {
+
+        AtomicDefinedType() {
+            super(1);
+        }
+
+        @Override
+        public void setSize(int size) {
+            if(size != 1) {
+                throw new IllegalArgumentException();
+            }
+        }
+    }
 
     /* primitive (atomic) types */
 
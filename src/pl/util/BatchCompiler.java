@@ -0,0 +1,247 @@
+package pl.util;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import pl.frontend.ParseException;
+import pl.frontend.TokenMgrError;
+
+/**
+ * Compiles many source files in parallel, e.g. all programs of a
+ * directory, see compile.
+ *
+ * Each file is compiled by a task of a fork-join pool with a parser and
+ * visitors of its own, like CompiledProgram.compile does. The tasks split
+ * the list of files in halves until each one holds a single file, so idle
+ * threads steal the halves of busy ones and a few large files do not hold
+ * up the rest. The errors and warnings of a file are collected in its
+ * result instead of being printed, see CompiledProgram.compile.
+ */
+public class BatchCompiler {
+
+    public static final String SUFFIX = ".txt";
+
+    private final ForkJoinPool pool;
+
+    /**
+     * Creates a compiler using as many threads as there are processors.
+     */
+    public BatchCompiler() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public BatchCompiler(int parallelism) {
+        this.pool = new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * Compiles the files of a directory ending in SUFFIX, in the order of
+     * their names.
+     */
+    public Report compile(Path directory) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try(DirectoryStream<Path> stream
+                = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for(Path file : stream) {
+                if(Files.isRegularFile(file)) {
+                    files.add(file);
+                }
+            }
+        }
+        Collections.sort(files);
+        return compile(files);
+    }
+
+    /**
+     * Compiles the given files, waiting until all of them are done.
+     */
+    public Report compile(List<Path> files) {
+        Result[] results = new Result[files.size()];
+        long start = System.nanoTime();
+        pool.invoke(new CompileTask(files, results, 0, results.length));
+        return new Report(Arrays.asList(results), System.nanoTime() - start);
+    }
+
+    /**
+     * Stops the pool's threads once the running compilations are done.
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    // compiles a single file on the current thread
+    private static Result compileFile(Path file) {
+        List<String> diagnostics = new ArrayList<>();
+        CompiledProgram program = null;
+        long start = System.nanoTime();
+        try(Reader source
+                = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            program = CompiledProgram.compile(source);
+            diagnostics.addAll(program.getWarnings());
+        }
+        catch(ParseException | TokenMgrError e) {
+            diagnostics.add("ERROR: " + e.getMessage());
+        }
+        catch(CompileException e) {
+            diagnostics.addAll(e.getDiagnostics());
+        }
+        catch(RuntimeException e) {
+            diagnostics.add("ERROR: internal compiler error: " + e);
+        }
+        catch(IOException e) {
+            diagnostics.add("ERROR: cannot read " + file + ": " + e);
+        }
+        return new Result(
+                file,
+                program,
+                diagnostics,
+                System.nanoTime() - start
+        );
+    }
+
+    // compiles the files from..to-1, splitting them until there is one left
+    private static class CompileTask extends RecursiveAction {
+
+        private final List<Path> files;
+        private final Result[] results;
+        private final int from;
+        private final int to;
+
+        CompileTask(List<Path> files, Result[] results, int from, int to) {
+            this.files = files;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if(to - from <= 1) {
+                if(from < to) {
+                    results[from] = compileFile(files.get(from));
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(
+                    new CompileTask(files, results, from, middle),
+                    new CompileTask(files, results, middle, to)
+            );
+        }
+    }
+
+    /**
+     * The outcome of compiling a single file.
+     */
+    public static class Result {
+
+        private final Path file;
+        private final CompiledProgram program;
+        private final List<String> diagnostics;
+        private final long nanos;
+
+        Result(
+                Path file,
+                CompiledProgram program,
+                List<String> diagnostics,
+                long nanos
+        ) {
+            this.file = file;
+            this.program = program;
+            this.diagnostics = Collections.unmodifiableList(diagnostics);
+            this.nanos = nanos;
+        }
+
+        public Path getFile() { return file; }
+
+        /**
+         * @return the compiled program, null if compiling was not succesful
+         */
+        public CompiledProgram getProgram() { return program; }
+
+        /**
+         * @return the errors and warnings in the order they were reported
+         */
+        public List<String> getDiagnostics() { return diagnostics; }
+
+        public long getNanos() { return nanos; }
+
+        public boolean isSuccessful() { return program != null; }
+    }
+
+    /**
+     * The results of a batch, in the order of its files, and the time it
+     * took as a whole.
+     */
+    public static class Report {
+
+        private final List<Result> results;
+        private final long nanos;
+
+        Report(List<Result> results, long nanos) {
+            this.results = Collections.unmodifiableList(results);
+            this.nanos = nanos;
+        }
+
+        public List<Result> getResults() { return results; }
+
+        public int getFiles() { return results.size(); }
+
+        public int getFailures() {
+            int failures = 0;
+            for(Result result : results) {
+                if(!result.isSuccessful()) {
+                    failures++;
+                }
+            }
+            return failures;
+        }
+
+        /**
+         * @return the wall time of the batch in nanoseconds
+         */
+        public long getNanos() { return nanos; }
+
+        /**
+         * @return the sum of the times of the single files in nanoseconds,
+         *         which exceeds the wall time by the parallelism achieved
+         */
+        public long getCompileNanos() {
+            long sum = 0;
+            for(Result result : results) {
+                sum += result.getNanos();
+            }
+            return sum;
+        }
+
+        /**
+         * @return the number of files compiled per second of wall time
+         */
+        public double getFilesPerSecond() {
+            return nanos == 0 ? 0 : results.size() * 1e9 / nanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "files: %d, failures: %d, time: %.1f ms, "
+                    + "files/sec: %.1f, parallelism: %.2f",
+                    getFiles(),
+                    getFailures(),
+                    nanos / 1e6,
+                    getFilesPerSecond(),
+                    nanos == 0 ? 0 : (double)getCompileNanos() / nanos
+            );
+        }
+    }
+
+}
@@ -0,0 +1,277 @@
+package pl.util;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import pl.abstractsyntax.Program;
+import pl.frontend.MyParser;
+import pl.frontend.ParseException;
+import pl.virtualmachine.VirtualMachine;
+
+/**
+ * On-disk cache of the object code of compiled programs, see ObjectCode.
+ *
+ * An entry is named by a SHA-256 hash of the source and of the compiler's
+ * code version for the cache's options, see Compiler.codeVersion, so a
+ * changed program or a compiler generating other code never finds an old
+ * entry. Entries which cannot be read count as misses and are replaced.
+ *
+ * The entries together take at most a given number of bytes, the least
+ * recently used ones are deleted first. The order of use survives in the
+ * entries' modification times, so caches of later runs continue it.
+ *
+ * A cache may be shared by threads compiling at the same time. Its
+ * bookkeeping is synchronized, the programs are compiled and loaded
+ * outside of the lock. Threads missing on the same program compile it
+ * each, the first entry moved in place is kept. An entry deleted by another
+ * thread or run while it is used is just written again on its next miss.
+ *
+ * The compiler's warnings are only reported on a miss. A hit loads the
+ * code without checking the program again, so it reports nothing, and a
+ * program with errors is never stored.
+ */
+public class CompilationCache {
+
+    private static final String SUFFIX = ".plo";
+
+    private final Path directory;
+    private final long maxSize;
+    private final CompileOptions options;
+
+    // size of each entry, least recently used first
+    private final LinkedHashMap<Path, Long> entries;
+    private long size;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * Opens the cache in a directory, which is created if necessary. The
+     * programs are compiled with the settings of the Compiler.
+     * @param maxSize number of bytes the entries may take at most
+     */
+    public CompilationCache(Path directory, long maxSize) throws IOException {
+        this(directory, maxSize, new CompileOptions());
+    }
+
+    /**
+     * Opens the cache in a directory, which is created if necessary.
+     * @param maxSize number of bytes the entries may take at most
+     * @param options the options the programs are compiled with. Caches
+     *        with other options may share the directory.
+     */
+    public CompilationCache(
+            Path directory,
+            long maxSize,
+            CompileOptions options
+    ) throws IOException {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.options = options;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+        Files.createDirectories(directory);
+        load();
+        evict();
+    }
+
+    // reads the entries of earlier runs, in the order of their last use
+    private void load() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try(DirectoryStream<Path> stream
+                = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for(Path file : stream) {
+                files.add(file);
+            }
+        }
+        final Map<Path, FileTime> times = new HashMap<>();
+        for(Path file : files) {
+            times.put(file, Files.getLastModifiedTime(file));
+        }
+        Collections.sort(files, new Comparator<Path>() {
+            @Override
+            public int compare(Path a, Path b) {
+                return times.get(a).compareTo(times.get(b));
+            }
+        });
+        for(Path file : files) {
+            long length = Files.size(file);
+            entries.put(file, length);
+            size += length;
+        }
+    }
+
+    /**
+     * Returns a machine holding the code of a program. The code is loaded
+     * from the cache or, on a miss, compiled and stored in the cache, see
+     * the class comment for the warnings.
+     *
+     * @param source the program's source file
+     * @return the machine, null if compiling was not succesful
+     * @throws ParseException if the program cannot be parsed
+     */
+    public VirtualMachine machine(Path source)
+            throws IOException, ParseException {
+        byte[] text = Files.readAllBytes(source);
+        Path entry = directory.resolve(key(text) + SUFFIX);
+
+        // the file is looked for, it may have been written by another run
+        if(Files.isRegularFile(entry)) {
+            try {
+                VirtualMachine machine = Compiler.loadObjectCode(entry);
+                hit(entry);
+                return machine;
+            }
+            catch(IOException e) {
+                // unreadable, e.g. truncated or deleted by another run
+                remove(entry);
+            }
+        }
+
+        synchronized(this) {
+            misses++;
+        }
+        // decoded like a FileReader does
+        Program p = new MyParser(new StringReader(new String(text))).parse();
+        // written aside first, so a reader never sees a partial entry
+        Path temporary = Files.createTempFile(directory, "compiling", ".tmp");
+        VirtualMachine machine;
+        try {
+            if(!Compiler.compileToObjectCode(p, temporary, options)) {
+                return null;
+            }
+            // loaded before another thread may evict the entry
+            machine = Compiler.loadObjectCode(temporary);
+            install(temporary, entry);
+        }
+        finally {
+            Files.deleteIfExists(temporary);
+        }
+        // the new entry is kept even if it exceeds the limit on its own
+        use(entry);
+        return machine;
+    }
+
+    // moves a new entry in place, replacing an entry of the same program
+    private static void install(Path temporary, Path entry)
+            throws IOException {
+        try {
+            Files.move(
+                    temporary,
+                    entry,
+                    StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING
+            );
+        }
+        catch(FileAlreadyExistsException | NoSuchFileException e) {
+            // another thread installed the same code at the same time
+        }
+    }
+
+    private synchronized void hit(Path entry) throws IOException {
+        hits++;
+        use(entry);
+    }
+
+    // makes the entry the most recently used one
+    private synchronized void use(Path entry) throws IOException {
+        try {
+            if(entries.get(entry) == null) {
+                long length = Files.size(entry);
+                entries.put(entry, length);
+                size += length;
+                evict();
+            }
+            Files.setLastModifiedTime(
+                    entry, FileTime.fromMillis(System.currentTimeMillis())
+            );
+        }
+        catch(NoSuchFileException e) {
+            // deleted by another thread or run after it was loaded
+            remove(entry);
+        }
+    }
+
+    // deletes the least recently used entries until the limit is met,
+    // except for the most recent one
+    private void evict() throws IOException {
+        Iterator<Map.Entry<Path, Long>> it = entries.entrySet().iterator();
+        while(size > maxSize && entries.size() > 1) {
+            Map.Entry<Path, Long> oldest = it.next();
+            it.remove();
+            size -= oldest.getValue();
+            Files.deleteIfExists(oldest.getKey());
+            evictions++;
+        }
+    }
+
+    private synchronized void remove(Path entry) throws IOException {
+        Long length = entries.remove(entry);
+        if(length != null) {
+            size -= length;
+        }
+        Files.deleteIfExists(entry);
+    }
+
+    // hex SHA-256 of the code version and the source
+    private String key(byte[] text) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch(NoSuchAlgorithmException e) {
+            // every Java platform implements SHA-256
+            throw new IllegalStateException(e);
+        }
+        digest.update(
+                Compiler.codeVersion(options).getBytes(StandardCharsets.UTF_8)
+        );
+        digest.update((byte)0);
+        StringBuilder key = new StringBuilder();
+        for(byte b : digest.digest(text)) {
+            key.append(String.format("%02x", b));
+        }
+        return key.toString();
+    }
+
+    /* statistics */
+
+    public synchronized long getHits() { return hits; }
+    public synchronized long getMisses() { return misses; }
+    public synchronized long getEvictions() { return evictions; }
+
+    /**
+     * @return the number of entries
+     */
+    public synchronized int getEntries() { return entries.size(); }
+
+    /**
+     * @return the number of bytes the entries take
+     */
+    public synchronized long getSize() { return size; }
+
+    @Override
+    public synchronized String toString() {
+        return "hits: " + hits + ", misses: " + misses
+                + ", evictions: " + evictions + ", entries: " + entries.size()
+                + ", bytes: " + size;
+    }
+
+}
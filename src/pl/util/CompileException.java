@@ -0,0 +1,34 @@
+package pl.util;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Thrown if a program has errors, which the compiler detected after
+ * parsing it, or if the compiler failed on it. The exception holds all
+ * errors and warnings reported while compiling, in the order they were
+ * reported.
+ */
+public class CompileException extends Exception {
+
+    private final List<String> diagnostics;
+
+    public CompileException(List<String> diagnostics) {
+        this(diagnostics, null);
+    }
+
+    /**
+     * @param cause the failure of the compiler itself, null if the errors
+     *        are the program's
+     */
+    public CompileException(List<String> diagnostics, Throwable cause) {
+        super(String.join(System.lineSeparator(), diagnostics), cause);
+        this.diagnostics = Collections.unmodifiableList(diagnostics);
+    }
+
+    /**
+     * @return the errors and warnings in the order they were reported
+     */
+    public List<String> getDiagnostics() { return diagnostics; }
+
+}
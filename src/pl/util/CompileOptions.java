@@ -0,0 +1,89 @@
+package pl.util;
+
+/**
+ * Options of compiling a program, see CompiledProgram.compile. The defaults
+ * are the settings of the Compiler. The setters return the options, so
+ * calls can be chained.
+ */
+public class CompileOptions {
+
+    private int inlineSize = Compiler.INLINE_SIZE;
+    private boolean constantFolding = Compiler.CONSTANT_FOLDING;
+    private boolean tailCalls = Compiler.TAIL_CALLS;
+    private boolean superinstructions = Compiler.SUPERINSTRUCTIONS;
+    private boolean peephole = Compiler.PEEPHOLE;
+    private boolean release = Compiler.RELEASE;
+    private boolean debug = Compiler.DEBUG;
+
+    public int getInlineSize() { return inlineSize; }
+    public boolean isConstantFolding() { return constantFolding; }
+    public boolean isTailCalls() { return tailCalls; }
+    public boolean isSuperinstructions() { return superinstructions; }
+    public boolean isPeephole() { return peephole; }
+    public boolean isRelease() { return release; }
+    public boolean isDebug() { return debug; }
+
+    /**
+     * @param size calls of procedures whose body has at most this many
+     *        instructions and expressions are inlined, 0 for none
+     */
+    public CompileOptions setInlineSize(int size) {
+        this.inlineSize = size;
+        return this;
+    }
+
+    /**
+     * @param constantFolding if constant expressions and branches are folded
+     *        before generating code
+     */
+    public CompileOptions setConstantFolding(boolean constantFolding) {
+        this.constantFolding = constantFolding;
+        return this;
+    }
+
+    /**
+     * @param tailCalls if self-recursive calls in tail position reuse the
+     *        activation register
+     */
+    public CompileOptions setTailCalls(boolean tailCalls) {
+        this.tailCalls = tailCalls;
+        return this;
+    }
+
+    /**
+     * @param superinstructions if the code generator emits
+     *        superinstructions
+     */
+    public CompileOptions setSuperinstructions(boolean superinstructions) {
+        this.superinstructions = superinstructions;
+        return this;
+    }
+
+    /**
+     * @param peephole if the generated code is rewritten by the peephole
+     *        optimizer
+     */
+    public CompileOptions setPeephole(boolean peephole) {
+        this.peephole = peephole;
+        return this;
+    }
+
+    /**
+     * @param release if the peephole optimizer drops the debugging
+     *        instructions and object files leave out the debugging messages
+     */
+    public CompileOptions setRelease(boolean release) {
+        this.release = release;
+        return this;
+    }
+
+    /**
+     * @param debug if debugging instructions are generated, which give the
+     *        messages of runtime errors their position in the source
+     */
+    public CompileOptions setDebug(boolean debug) {
+        this.debug = debug;
+        return this;
+    }
+
+}
@@ -0,0 +1,222 @@
+package pl.util;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import pl.abstractsyntax.AbstractSyntaxConstructors.AstConstException;
+import pl.abstractsyntax.Program;
+import pl.errors.Errors;
+import pl.frontend.MyParser;
+import pl.frontend.ParseException;
+import pl.virtualmachine.Bytecode;
+import pl.virtualmachine.CompiledForm;
+import pl.virtualmachine.ObjectCode;
+import pl.virtualmachine.VirtualMachine;
+
+/**
+ * A program which is compiled once and run by any number of machines, see
+ * newMachine. Each machine has its own memory, input, output and options,
+ * while all of them share the program's code, which never changes. Compiled
+ * programs may therefore be kept and used by several threads at once.
+ *
+ * Machines running the bytecode use the shared code as it is, and so do
+ * machines running the instruction objects, which are decoded only once.
+ * Likewise the code is linked into threaded form and compiled to a JVM
+ * class only once, by the first machine needing it, and the other machines
+ * just bind the shared form to themselves, see CompiledForm.
+ */
+public final class CompiledProgram {
+
+    private final Bytecode code;
+    private final int staticMemorySize;
+    private final int ndisplays;
+    private final List<String> warnings;
+
+    // the instruction objects, decoded by the first machine running them
+    private volatile List<VirtualMachine.MachineInstruction> instructions;
+    // the threaded and the compiled form, built by the first machine
+    // running them
+    private volatile CompiledForm threaded;
+    private volatile CompiledForm compiled;
+    private final Object threadedLock = new Object();
+    private final Object compiledLock = new Object();
+
+    private CompiledProgram(ObjectCode object, List<String> warnings) {
+        this.code = object.getBytecode();
+        this.staticMemorySize = object.getStaticMemorySize();
+        this.ndisplays = object.getNumberOfDisplays();
+        this.warnings = Collections.unmodifiableList(warnings);
+    }
+
+    /**
+     * Parses and compiles a program with the settings of the Compiler.
+     *
+     * @param source the program's source
+     * @throws ParseException if the program cannot be parsed
+     * @throws CompileException if the program has errors
+     */
+    public static CompiledProgram compile(Reader source)
+            throws ParseException, CompileException {
+        return compile(source, new CompileOptions());
+    }
+
+    /**
+     * Parses and compiles a program. Nothing is printed: the errors are
+     * thrown, the warnings are kept by the program, see getWarnings.
+     *
+     * @param source the program's source
+     * @param options the optimizations and debugging settings
+     * @throws ParseException if the program cannot be parsed
+     * @throws CompileException if the program has errors
+     */
+    public static CompiledProgram compile(
+            Reader source,
+            CompileOptions options
+    ) throws ParseException, CompileException {
+        List<String> diagnostics = new ArrayList<>();
+        VirtualMachine machine;
+        Errors.collect(diagnostics);
+        try {
+            Program p = new MyParser(source).parse();
+            machine = Compiler.build(p, options);
+        }
+        catch(AstConstException e) {
+            // its error was reported when it was thrown
+            machine = null;
+        }
+        catch(RuntimeException e) {
+            // the errors reported before are kept with the failure
+            diagnostics.add("ERROR: internal compiler error: " + e);
+            throw new CompileException(diagnostics, e);
+        }
+        finally {
+            Errors.stopCollecting();
+        }
+        if(machine == null) {
+            throw new CompileException(diagnostics);
+        }
+        return new CompiledProgram(ObjectCode.of(machine), diagnostics);
+    }
+
+    /**
+     * Reads a program from an object file, see ObjectCode.
+     */
+    public static CompiledProgram load(Path file) throws IOException {
+        return new CompiledProgram(
+                ObjectCode.read(file),
+                Collections.<String>emptyList()
+        );
+    }
+
+    /**
+     * Writes the program to an object file, with its debugging messages.
+     */
+    public void write(Path file) throws IOException {
+        new ObjectCode(code, staticMemorySize, ndisplays).write(file, true);
+    }
+
+    /**
+     * Creates a machine with the default options, ready to run the program.
+     */
+    public VirtualMachine newMachine() {
+        return newMachine(new MachineOptions());
+    }
+
+    /**
+     * Creates a machine ready to run the program.
+     * @param options the machine's memory, input, output, limits and
+     *        execution mode
+     */
+    public VirtualMachine newMachine(MachineOptions options) {
+        VirtualMachine machine = new VirtualMachine(
+                staticMemorySize,
+                options.getActivationStackSize(),
+                options.getHeapSize(),
+                ndisplays,
+                options.getMemoryModel(),
+                options.getAllocator(),
+                options.getMaxActivationStackSize(),
+                options.getMaxHeapSize()
+        );
+        machine.load(code);
+        if(options.getInput() != null) {
+            machine.setInput(options.getInput());
+        }
+        if(options.getOutput() != null) {
+            machine.setOutput(options.getOutput());
+        }
+        machine.setInstructionLimit(options.getInstructionLimit());
+        machine.setTimeLimit(options.getTimeLimit());
+        switch(options.getExecutionMode()) {
+            case BYTECODE:
+                break;
+            case THREADED:
+                machine.load(threaded(machine));
+                break;
+            case JVM:
+                machine.load(compiled(machine));
+                break;
+            default:
+                machine.load(instructions(machine));
+        }
+        return machine;
+    }
+
+    private List<VirtualMachine.MachineInstruction> instructions(
+            VirtualMachine machine) {
+        List<VirtualMachine.MachineInstruction> i = instructions;
+        if(i == null) {
+            // decoding twice at the same time is harmless
+            i = Collections.unmodifiableList(machine.decode(code));
+            instructions = i;
+        }
+        return i;
+    }
+
+    private CompiledForm threaded(VirtualMachine machine) {
+        CompiledForm f = threaded;
+        if(f == null) {
+            // linking is locked, so the program is linked only once
+            synchronized(threadedLock) {
+                f = threaded;
+                if(f == null) {
+                    machine.thread();
+                    f = machine.getCompiledForm();
+                    threaded = f;
+                }
+            }
+        }
+        return f;
+    }
+
+    private CompiledForm compiled(VirtualMachine machine) {
+        CompiledForm f = compiled;
+        if(f == null) {
+            // compiling takes long, so it must not happen twice
+            synchronized(compiledLock) {
+                f = compiled;
+                if(f == null) {
+                    machine.compile();
+                    f = machine.getCompiledForm();
+                    compiled = f;
+                }
+            }
+        }
+        return f;
+    }
+
+    /**
+     * @return the number of instructions
+     */
+    public int size() { return code.size(); }
+
+    /**
+     * @return the warnings of compiling the program, none if it was loaded
+     *         from an object file
+     */
+    public List<String> getWarnings() { return warnings; }
+
+}
@@ -1,14 +1,30 @@
 package pl.util;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import pl.abstractsyntax.Program;
+import pl.errors.Errors;
+import pl.frontend.ParseException;
 import pl.procedures.codegeneration.AddressAssignmentVisitor;
 import pl.procedures.codegeneration.CodeGenerationVisitor;
 import pl.procedures.codegeneration.LabelingVisitor;
+import pl.procedures.codegeneration.RegisterCodeGenerationVisitor;
 import pl.procedures.linking.LinkingVisitor;
+import pl.procedures.optimization.ConstantFoldingVisitor;
+import pl.procedures.optimization.InliningVisitor;
+import pl.procedures.optimization.TailCallVisitor;
 import pl.procedures.printing.PrintingVisitor;
 import pl.procedures.types.TypeCheckVisitor;
 import pl.procedures.types.TypeSizeCalculationVisitor;
 import pl.type.Type;
+import pl.virtualmachine.BufferedInput;
+import pl.virtualmachine.DynamicMemoryManager;
+import pl.virtualmachine.Memory;
+import pl.virtualmachine.ObjectCode;
+import pl.virtualmachine.PeepholeOptimizer;
+import pl.virtualmachine.PeepholeRule;
+import pl.virtualmachine.RegisterCode;
+import pl.virtualmachine.RegisterMachine;
 import pl.virtualmachine.VirtualMachine;
 
 /**
@@ -16,11 +32,61 @@ import pl.virtualmachine.VirtualMachine;
  */
 public class Compiler {
     
-    // heap size this procedure will use for the virtual machine
-    private static final int HEAP_SIZE = 1000;
-    private static final int ACTIVATION_STACK_SIZE = 1000;
+    // raised whenever the same program and settings lead to other code,
+    // which invalidates the object code in compilation caches
+    public static final int VERSION = 1;
+    
+    /**
+     * Ways of running the generated machine code.
+     */
+    public enum ExecutionMode {
+        // the machine interprets its instruction objects
+        INTERPRETED,
+        // the code is lowered to bytecode which is run by a switch interpreter;
+        // on loops about 1.4 times as fast as INTERPRETED, but only about
+        // half as fast as THREADED
+        BYTECODE,
+        // the code is compiled to a JVM class, needs a JDK at runtime
+        JVM,
+        // the instructions are linked to their successors and jump targets
+        // and run one after the other, without a program counter
+        THREADED,
+        // three-address code is generated for the register machine instead
+        // of the stack machine's code
+        REGISTERS
+    }
+    
+    // initial heap and activation stack size this procedure will use for the
+    // virtual machine, both grow on demand up to their maximal size
+    static final int HEAP_SIZE = 1000;
+    static final int ACTIVATION_STACK_SIZE = 1000;
+    static final int MAX_HEAP_SIZE = 1 << 24;
+    static final int MAX_ACTIVATION_STACK_SIZE = 1 << 22;
+    // representation of the virtual machine's memory cells
+    static final Memory.MemoryModel MEMORY_MODEL
+            = Memory.MemoryModel.VALUES;
+    // strategy for finding free heap cells
+    static final DynamicMemoryManager.Allocator ALLOCATOR
+            = DynamicMemoryManager.Allocator.FIRST_FIT;
+    // how the generated code is run
+    static final ExecutionMode EXECUTION_MODE = ExecutionMode.INTERPRETED;
+    // replace calls of procedures whose body has at most this many
+    // instructions and expressions by the body, 0 disables inlining
+    static final int INLINE_SIZE = 0;
+    // fold constant expressions and branches in the tree of abstract syntax
+    static final boolean CONSTANT_FOLDING = false;
+    // let self-recursive calls in tail position reuse the activation register
+    static final boolean TAIL_CALLS = false;
+    // fuse frequent instruction sequences into superinstructions
+    static final boolean SUPERINSTRUCTIONS = false;
+    // rewrite the generated code with the peephole optimizer
+    static final boolean PEEPHOLE = false;
+    // let the peephole optimizer drop the debugging instructions
+    static final boolean RELEASE = false;
+    // read the input without prompting for it, e.g. when it is piped in
+    private static final boolean BATCH_INPUT = false;
 
-    private static final boolean DEBUG = true;
+    static final boolean DEBUG = true;
     private static final boolean PRINT = false;
     private static final boolean VERBOSE = false;
     private static final boolean LINKER_VERBOSE = false;
@@ -34,6 +100,370 @@ public class Compiler {
      */
     public static void processAndRun(Program p) {
         
+        if(EXECUTION_MODE == ExecutionMode.REGISTERS) {
+            RegisterMachine registerMachine = compileRegisters(
+                    p, CONSTANT_FOLDING
+            );
+            if(registerMachine == null) return;
+            if(BATCH_INPUT) {
+                registerMachine.setInput(new BufferedInput(System.in, false));
+            }
+            registerMachine.execute();
+            System.out.println();
+            return;
+        }
+        
+        VirtualMachine machine = build(p);
+        
+        // do not continue if compiling produced errors
+        if(machine == null) return;
+        
+        run(machine);
+
+    }
+    
+    /**
+     * Runs a program given by its source file. Its code is taken from the
+     * cache if the program was compiled before and neither the source nor
+     * the compiler changed since, see CompilationCache.
+     * 
+     * @param source the program's source file
+     * @param cache the cache the code is taken from or stored in
+     */
+    public static void processAndRun(Path source, CompilationCache cache)
+            throws IOException, ParseException {
+        VirtualMachine machine = cache.machine(source);
+        if(machine == null) return;
+        run(machine);
+    }
+    
+    /**
+     * @return the compiler's version together with the settings which the
+     *         generated code depends on, see CompilationCache
+     */
+    public static String codeVersion() {
+        return codeVersion(new CompileOptions());
+    }
+    
+    /**
+     * @return the compiler's version together with the options which the
+     *         generated code depends on
+     */
+    public static String codeVersion(CompileOptions options) {
+        return VERSION + ":" + ObjectCode.VERSION
+                + ":" + options.getInlineSize()
+                + ":" + options.isConstantFolding()
+                + ":" + options.isTailCalls()
+                + ":" + options.isSuperinstructions()
+                + ":" + options.isPeephole()
+                + ":" + options.isRelease()
+                + ":" + options.isDebug();
+    }
+    
+    /**
+     * Compiles a program like processAndRun does and writes its code to an
+     * object file, see ObjectCode. Unless RELEASE is set, the file keeps the
+     * debugging messages.
+     * 
+     * @param p the program to be compiled.
+     * @param file the object file, replaced if it exists
+     * @return false if compiling was not succesful, nothing is written then
+     */
+    public static boolean compileToObjectCode(Program p, Path file)
+            throws IOException {
+        return compileToObjectCode(p, file, new CompileOptions());
+    }
+    
+    /**
+     * Compiles a program with the given options and writes its code to an
+     * object file. Unless the options are for release, the file keeps the
+     * debugging messages.
+     * 
+     * @return false if compiling was not succesful, nothing is written then
+     */
+    public static boolean compileToObjectCode(
+            Program p,
+            Path file,
+            CompileOptions options
+    ) throws IOException {
+        VirtualMachine machine = build(p, options);
+        if(machine == null) return false;
+        ObjectCode.of(machine).write(file, !options.isRelease());
+        return true;
+    }
+    
+    /**
+     * Creates a machine holding the code of an object file, without
+     * compiling anything. Run it with run.
+     * 
+     * @param file an object file written by compileToObjectCode
+     */
+    public static VirtualMachine loadObjectCode(Path file) throws IOException {
+        ObjectCode object = ObjectCode.read(file);
+        VirtualMachine machine = createMachine(
+                object.getStaticMemorySize(),
+                object.getNumberOfDisplays()
+        );
+        machine.load(object.getBytecode());
+        return machine;
+    }
+    
+    // compiles the program and rewrites its code with the peephole
+    // optimizer, null if compiling was not succesful
+    static VirtualMachine build(Program p) {
+        return build(p, new CompileOptions());
+    }
+    
+    static VirtualMachine build(Program p, CompileOptions options) {
+        
+        VirtualMachine machine = compile(p, options);
+        
+        // do not continue if compiling produced errors
+        if(machine == null) return null;
+        
+        /* PEEPHOLE OPTIMIZATION */
+        if(options.isPeephole()) {
+            PeepholeOptimizer optimizer = new PeepholeOptimizer(
+                options.isRelease()
+                    ? PeepholeRule.release()
+                    : PeepholeRule.defaults()
+            );
+            if(VERBOSE) System.out.print("optimizing code ... ");
+            machine.optimize(optimizer);
+            if(VERBOSE) {
+                System.out.println("optimization complete: " + 
+                    machine.getCode().size() + " lines\n");
+                optimizer.printReport();
+                System.out.println();
+            }
+            if(PRINT) {
+                machine.printCode();
+                System.out.println();
+            }
+        }
+        
+        return machine;
+        
+    }
+    
+    /**
+     * Runs the code of a machine in the configured execution mode. The code
+     * is lowered, threaded or compiled to JVM code first, as the mode
+     * requires. In the mode of the register machine, the instruction
+     * objects are run.
+     * 
+     * @param machine the machine holding the program's code
+     */
+    public static void run(VirtualMachine machine) {
+        
+        /* LOWERING */
+        if(EXECUTION_MODE == ExecutionMode.BYTECODE) {
+            if(VERBOSE) System.out.print("lowering code ... ");
+            machine.lower();
+            if(VERBOSE) System.out.println("lowering complete.\n");
+        }
+        
+        /* THREADING */
+        if(EXECUTION_MODE == ExecutionMode.THREADED) {
+            if(VERBOSE) System.out.print("threading code ... ");
+            machine.thread();
+            if(VERBOSE) System.out.println("threading complete.\n");
+        }
+        
+        /* COMPILING TO JVM CODE */
+        if(EXECUTION_MODE == ExecutionMode.JVM) {
+            if(VERBOSE) System.out.print("compiling to JVM code ... ");
+            machine.compile();
+            if(VERBOSE) System.out.println("compiling complete.\n");
+        }
+        
+        /* EXECUTE MACHINE CODE */
+        if(BATCH_INPUT) {
+            machine.setInput(new BufferedInput(System.in, false));
+        }
+        machine.execute();
+        System.out.println();
+        //machine.printState();
+
+    }
+    
+    /**
+     * Implements the compiling procedure for a program represented in its
+     * abstract tree of syntax, up to code generation.
+     * 
+     * @param p the program to be compiled.
+     * @param superinstructions if the code generator emits superinstructions
+     * @return the virtual machine holding the program's code, null if
+     *         compiling was not succesful.
+     */
+    public static VirtualMachine compile(Program p, boolean superinstructions) {
+        return compile(p, superinstructions, CONSTANT_FOLDING);
+    }
+    
+    /**
+     * Implements the compiling procedure for a program represented in its
+     * abstract tree of syntax, up to code generation.
+     * 
+     * @param p the program to be compiled.
+     * @param superinstructions if the code generator emits superinstructions
+     * @param constantFolding if constant expressions and branches are folded
+     *        before generating code
+     * @return the virtual machine holding the program's code, null if
+     *         compiling was not succesful.
+     */
+    public static VirtualMachine compile(
+            Program p,
+            boolean superinstructions,
+            boolean constantFolding
+    ) {
+        return compile(
+                p, superinstructions, constantFolding, INLINE_SIZE, TAIL_CALLS
+        );
+    }
+    
+    /**
+     * Implements the compiling procedure for a program represented in its
+     * abstract tree of syntax, up to code generation, with every pass on the
+     * tree chosen explicitly.
+     * 
+     * @param p the program to be compiled.
+     * @param superinstructions if the code generator emits superinstructions
+     * @param constantFolding if constant expressions and branches are folded
+     *        before generating code
+     * @param inlineSize calls of procedures whose body has at most this
+     *        many instructions and expressions are inlined, 0 for none
+     * @param tailCalls if self-recursive calls in tail position reuse the
+     *        activation register
+     * @return the virtual machine holding the program's code, null if
+     *         compiling was not succesful.
+     */
+    public static VirtualMachine compile(
+            Program p,
+            boolean superinstructions,
+            boolean constantFolding,
+            int inlineSize,
+            boolean tailCalls
+    ) {
+        return compile(p, new CompileOptions()
+                .setSuperinstructions(superinstructions)
+                .setConstantFolding(constantFolding)
+                .setInlineSize(inlineSize)
+                .setTailCalls(tailCalls)
+        );
+    }
+    
+    /**
+     * Implements the compiling procedure for a program represented in its
+     * abstract tree of syntax, up to code generation, with the passes on
+     * the tree chosen by the options. The peephole options are left to
+     * the caller.
+     * 
+     * @param p the program to be compiled.
+     * @return the virtual machine holding the program's code, null if
+     *         compiling was not succesful.
+     */
+    public static VirtualMachine compile(Program p, CompileOptions options) {
+        
+        boolean superinstructions = options.isSuperinstructions();
+        AddressAssignmentVisitor addrAssig = analyze(
+                p,
+                options.isConstantFolding(),
+                options.getInlineSize(),
+                options.isTailCalls()
+        );
+        
+        // do not continue if the analysis produced errors
+        if(addrAssig == null) return null;
+        
+        /* LABELLING */
+        LabelingVisitor labeling
+            = new LabelingVisitor(options.isDebug(), superinstructions);
+        if(VERBOSE) System.out.print("labeling ... ");
+        p.accept(labeling);
+        if(VERBOSE) System.out.println("labeling complete.\n");
+        
+        /* PRINTING WITH ATTRIBUTES */
+        if(PRINT) {
+            PrintingVisitor printer = new PrintingVisitor(true);
+            p.accept(printer);
+            System.out.println();
+        }
+
+        /* CREATE VIRTUAL MACHINE */
+        VirtualMachine machine = createMachine(addrAssig);
+
+        /* CODE GENERATION */
+        CodeGenerationVisitor codeGen = new CodeGenerationVisitor(
+                machine, options.isDebug(), superinstructions
+        );
+        if(VERBOSE) System.out.print("generating code ...");
+        p.accept(codeGen);
+        if(VERBOSE) {System.out.println("code generation complete: " + 
+            machine.getCode().size() + " lines\n");
+        }
+        if(PRINT) {
+            machine.printCode();
+            System.out.println();
+        }
+        
+        return machine;
+    }
+    
+    /**
+     * Implements the compiling procedure for a program represented in its
+     * abstract tree of syntax, up to the generation of code for the register
+     * machine.
+     * 
+     * @param p the program to be compiled.
+     * @param constantFolding if constant expressions and branches are folded
+     *        before generating code
+     * @return the register machine holding the program's code, null if
+     *         compiling was not succesful.
+     */
+    public static RegisterMachine compileRegisters(
+            Program p,
+            boolean constantFolding
+    ) {
+        
+        AddressAssignmentVisitor addrAssig = analyze(
+                p, constantFolding, INLINE_SIZE, TAIL_CALLS
+        );
+        
+        // do not continue if the analysis produced errors
+        if(addrAssig == null) return null;
+        
+        /* REGISTER CODE GENERATION */
+        RegisterCode code = new RegisterCode();
+        RegisterCodeGenerationVisitor codeGen
+            = new RegisterCodeGenerationVisitor(code, DEBUG);
+        if(VERBOSE) System.out.print("generating register code ...");
+        p.accept(codeGen);
+        if(VERBOSE) {System.out.println("code generation complete: " + 
+            code.size() + " lines, " + code.getRegisters() + " registers\n");
+        }
+        if(PRINT) {
+            code.printCode();
+            System.out.println();
+        }
+        
+        return new RegisterMachine(createMachine(addrAssig), code);
+    }
+    
+    /**
+     * Runs the passes before code generation: linking, type check and the
+     * optimizations on the tree of abstract syntax, type size calculation
+     * and address assignment.
+     * 
+     * @return the visitor which assigned the addresses, null if there were
+     *         errors
+     */
+    private static AddressAssignmentVisitor analyze(
+            Program p,
+            boolean constantFolding,
+            int inlineSize,
+            boolean tailCalls
+    ) {
+        
         /* PRINTING */
         if(PRINT) {
             PrintingVisitor printer = new PrintingVisitor();
@@ -45,26 +475,52 @@ public class Compiler {
         if(VERBOSE) System.out.print("linking ...\n");
         p.accept(linker);
         if(linker.isError())
-            System.out.println("linker detected error, aborting\n");
+            Errors.printMessage("linker detected error, aborting\n");
         else {
             if(VERBOSE) System.out.println("linking complete.");
             if(VERBOSE) System.out.println();
         }
         
         // do not continue if linker produced errors
-        if(linker.isError()) return;
+        if(linker.isError()) return null;
          
         /* TYPE CHECK */
         TypeCheckVisitor typeCheck = new TypeCheckVisitor(p);
         if(VERBOSE) System.out.print("type checking ... ");
         p.accept(typeCheck);
         if(p.getType().equals(Type.ERROR))
-            System.out.println("type checker detected error, aborting\n");
+            Errors.printMessage("type checker detected error, aborting\n");
         else
             if(VERBOSE) System.out.println("type check complete.\n");
         
         // do not continue if type check produced errors
-        if(p.getType().equals(Type.ERROR)) return;
+        if(p.getType().equals(Type.ERROR)) return null;
+        
+        /* INLINING */
+        if(inlineSize > 0) {
+            InliningVisitor inlining = new InliningVisitor(inlineSize);
+            if(VERBOSE) System.out.print("inlining procedures ... ");
+            p.accept(inlining);
+            if(VERBOSE) {
+                System.out.println("inlining complete: " +
+                    inlining.getInlinedCalls() + " calls inlined\n");
+                inlining.printReport();
+                System.out.println();
+            }
+        }
+        
+        /* CONSTANT FOLDING */
+        if(constantFolding) {
+            ConstantFoldingVisitor folding = new ConstantFoldingVisitor();
+            if(VERBOSE) System.out.print("folding constants ... ");
+            p.accept(folding);
+            if(VERBOSE) {System.out.println(
+                "constant folding complete: " +
+                folding.getFoldedExpressions() + " expressions folded, " +
+                folding.getPropagatedConstants() + " constants propagated, " +
+                folding.getEliminatedBranches() + " branches eliminated\n");
+            }
+        }
         
         /* TYPE SIZE CALCULATION */
         TypeSizeCalculationVisitor typeSize
@@ -84,45 +540,51 @@ public class Compiler {
             " cells\n");
         }
         
-        /* LABELLING */
-        LabelingVisitor labeling = new LabelingVisitor(DEBUG);
-        if(VERBOSE) System.out.print("labeling ... ");
-        p.accept(labeling);
-        if(VERBOSE) System.out.println("labeling complete.\n");
-        
-        /* PRINTING WITH ATTRIBUTES */
-        if(PRINT) {
-            PrintingVisitor printer = new PrintingVisitor(true);
-            p.accept(printer);
-            System.out.println();
+        /* TAIL CALL ELIMINATION */
+        if(tailCalls) {
+            TailCallVisitor tailCall = new TailCallVisitor();
+            if(VERBOSE) System.out.print("finding tail calls ... ");
+            p.accept(tailCall);
+            if(VERBOSE) {System.out.println(
+                "tail call elimination complete: " +
+                tailCall.getTailCalls() + " tail calls\n");
+            }
         }
-
-        /* CREATE VIRTUAL MACHINE */
-        VirtualMachine machine = new VirtualMachine(
+        
+        return addrAssig;
+    }
+    
+    /**
+     * Creates the virtual machine for a program whose addresses are
+     * assigned.
+     */
+    private static VirtualMachine createMachine(
+            AddressAssignmentVisitor addrAssig
+    ) {
+        return createMachine(
                 addrAssig.staticMemorySize(),
+                addrAssig.numberOfDisplays()
+        );
+    }
+    
+    /**
+     * Creates the virtual machine for a program with the given static memory
+     * size and number of displays.
+     */
+    private static VirtualMachine createMachine(
+            int staticMemorySize,
+            int ndisplays
+    ) {
+        return new VirtualMachine(
+                staticMemorySize,
                 ACTIVATION_STACK_SIZE,
                 HEAP_SIZE,
-                addrAssig.numberOfDisplays()
+                ndisplays,
+                MEMORY_MODEL,
+                ALLOCATOR,
+                MAX_ACTIVATION_STACK_SIZE,
+                MAX_HEAP_SIZE
         );
-
-        /* CODE GENERATION */
-        CodeGenerationVisitor codeGen
-            = new CodeGenerationVisitor(machine, DEBUG);
-        if(VERBOSE) System.out.print("generating code ...");
-        p.accept(codeGen);
-        if(VERBOSE) {System.out.println("code generation complete: " + 
-            machine.getCode().size() + " lines\n");
-        }
-        if(PRINT) {
-            machine.printCode();
-            System.out.println();
-        }
-        
-        /* EXECUTE MACHINE CODE */
-        machine.execute();
-        System.out.println();
-        //machine.printState();
-
     }
     
 }
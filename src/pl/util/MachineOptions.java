@@ -0,0 +1,122 @@
+package pl.util;
+
+import java.util.concurrent.TimeUnit;
+import pl.virtualmachine.DynamicMemoryManager;
+import pl.virtualmachine.Input;
+import pl.virtualmachine.Memory;
+import pl.virtualmachine.Output;
+
+/**
+ * Options of a machine running a CompiledProgram. The defaults are the
+ * settings of the Compiler. The setters return the options, so calls can be
+ * chained.
+ */
+public class MachineOptions {
+
+    private Compiler.ExecutionMode executionMode = Compiler.EXECUTION_MODE;
+    private Memory.MemoryModel memoryModel = Compiler.MEMORY_MODEL;
+    private DynamicMemoryManager.Allocator allocator = Compiler.ALLOCATOR;
+    private int activationStackSize = Compiler.ACTIVATION_STACK_SIZE;
+    private int heapSize = Compiler.HEAP_SIZE;
+    private int maxActivationStackSize = Compiler.MAX_ACTIVATION_STACK_SIZE;
+    private int maxHeapSize = Compiler.MAX_HEAP_SIZE;
+    // null for the console
+    private Input input;
+    private Output output;
+    // Long.MAX_VALUE for none
+    private long instructionLimit = Long.MAX_VALUE;
+    private long timeLimit = Long.MAX_VALUE;
+
+    public Compiler.ExecutionMode getExecutionMode() { return executionMode; }
+    public Memory.MemoryModel getMemoryModel() { return memoryModel; }
+    public DynamicMemoryManager.Allocator getAllocator() { return allocator; }
+    public int getActivationStackSize() { return activationStackSize; }
+    public int getHeapSize() { return heapSize; }
+    public int getMaxActivationStackSize() { return maxActivationStackSize; }
+    public int getMaxHeapSize() { return maxHeapSize; }
+    public Input getInput() { return input; }
+    public Output getOutput() { return output; }
+    public long getInstructionLimit() { return instructionLimit; }
+
+    /**
+     * @return the time limit in nanoseconds
+     */
+    public long getTimeLimit() { return timeLimit; }
+
+    /**
+     * @param executionMode how the code is run. REGISTERS needs the tree of
+     *        abstract syntax, so the instruction objects are run instead.
+     */
+    public MachineOptions setExecutionMode(
+            Compiler.ExecutionMode executionMode
+    ) {
+        this.executionMode = executionMode;
+        return this;
+    }
+
+    public MachineOptions setMemoryModel(Memory.MemoryModel memoryModel) {
+        this.memoryModel = memoryModel;
+        return this;
+    }
+
+    public MachineOptions setAllocator(
+            DynamicMemoryManager.Allocator allocator
+    ) {
+        this.allocator = allocator;
+        return this;
+    }
+
+    /**
+     * @param size the initial size of the activation stack
+     * @param maxSize the size it may grow to, size if it must not grow
+     */
+    public MachineOptions setActivationStackSize(int size, int maxSize) {
+        this.activationStackSize = size;
+        this.maxActivationStackSize = maxSize;
+        return this;
+    }
+
+    /**
+     * @param size the initial size of the heap
+     * @param maxSize the size it may grow to, size if it must not grow
+     */
+    public MachineOptions setHeapSize(int size, int maxSize) {
+        this.heapSize = size;
+        this.maxHeapSize = maxSize;
+        return this;
+    }
+
+    /**
+     * @param input the source of READ, null for the console
+     */
+    public MachineOptions setInput(Input input) {
+        this.input = input;
+        return this;
+    }
+
+    /**
+     * @param output the destination of WRITE, null for the console
+     */
+    public MachineOptions setOutput(Output output) {
+        this.output = output;
+        return this;
+    }
+
+    /**
+     * @param limit the number of instructions a run may execute,
+     *        Long.MAX_VALUE for none, see VirtualMachine.setInstructionLimit
+     */
+    public MachineOptions setInstructionLimit(long limit) {
+        this.instructionLimit = limit;
+        return this;
+    }
+
+    /**
+     * @param time the time a run may take, see VirtualMachine.setTimeLimit
+     */
+    public MachineOptions setTimeLimit(long time, TimeUnit unit) {
+        this.timeLimit = unit.toNanos(time);
+        return this;
+    }
+
+}
@@ -0,0 +1,423 @@
+package pl.util;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import pl.virtualmachine.BufferedInput;
+import pl.virtualmachine.BufferedOutput;
+import pl.virtualmachine.DynamicMemoryManager;
+import pl.virtualmachine.Input;
+import pl.virtualmachine.Memory;
+import pl.virtualmachine.Output;
+import pl.virtualmachine.VirtualMachine;
+
+/**
+ * Runs compiled programs on a set of threads, many of them at once, see
+ * submit.
+ *
+ * Each run has a machine of its own, with the input, output and limits of
+ * its options. The machines are recycled: when a run ends, its machine is
+ * reset and kept for the next run of the same program with the same memory
+ * options and execution mode. That run neither allocates the memory again
+ * nor lowers, threads or compiles the code again. At most as many machines
+ * as the pool has threads are kept for each program and options, and at
+ * most a fixed number in all, see setMaxIdleMachines. When there are more,
+ * the ones of the least recently used program and options are dropped.
+ * Machines whose activation stack or heap grew are not kept either, so a
+ * single large run does not hold on to its memory.
+ *
+ * By default a run keeps its thread until it ends. With a time slice, the
+ * runs take turns instead, so that a few threads serve any number of long
+ * runs fairly, see setTimeSlice.
+ */
+public class MachinePool {
+
+    private final ExecutorService executor;
+    private final int maxIdle;
+    private volatile int maxIdleMachines = DEFAULT_MAX_IDLE_MACHINES;
+    private volatile long timeSlice = Long.MAX_VALUE;
+
+    public static final int DEFAULT_MAX_IDLE_MACHINES = 64;
+
+    // number of instructions after which a run checks if it was cancelled
+    private static final long CANCEL_CHECK_INTERVAL = 1 << 16;
+
+    // idle machines by program and options, least recently used first,
+    // guarded by itself
+    private final LinkedHashMap<Key, ArrayDeque<VirtualMachine>> idle =
+            new LinkedHashMap<Key, ArrayDeque<VirtualMachine>>(
+                    16, 0.75f, true
+            );
+    private int idleMachines;
+
+    private final AtomicLong createdMachines = new AtomicLong();
+    private final AtomicLong runs = new AtomicLong();
+
+    /**
+     * Creates a pool running the programs on a fixed number of platform
+     * threads.
+     */
+    public MachinePool(int threads) {
+        this(threads, 0);
+    }
+
+    /**
+     * Creates a pool running the programs on a fixed number of platform
+     * threads with the given Java stack size. Threaded and compiled code
+     * use the Java stack for the calls of the program, so deeply recursive
+     * programs need a larger one.
+     * @param stackSize the stack size in bytes, 0 for the default one
+     */
+    public MachinePool(int threads, final long stackSize) {
+        this(Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private int n = 0;
+
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                return new Thread(
+                        null, r, "machine-pool-" + n++, stackSize
+                );
+            }
+        }), threads);
+    }
+
+    private MachinePool(ExecutorService executor, int maxIdle) {
+        this.executor = executor;
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * Creates a pool running each program on a virtual thread of its own.
+     * The machines of the pool are recycled as usual, as many of them are
+     * kept for each program as there are processors.
+     * @throws UnsupportedOperationException if the Java runtime has no
+     *         virtual threads
+     */
+    public static MachinePool withVirtualThreads() {
+        ExecutorService executor;
+        try {
+            executor = (ExecutorService)Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor")
+                    .invoke(null);
+        }
+        catch(ReflectiveOperationException e) {
+            throw new UnsupportedOperationException(
+                    "virtual threads are not supported", e
+            );
+        }
+        return new MachinePool(
+                executor, Runtime.getRuntime().availableProcessors()
+        );
+    }
+
+    /**
+     * Lets the runs take turns: a run executes about the given number of
+     * instructions, then it goes to the back of the queue and the thread
+     * continues with the next run waiting, see VirtualMachine.run. By
+     * default, every run keeps its thread until it ends.
+     * @param instructions the number of instructions of a turn,
+     *        Long.MAX_VALUE for no turns
+     */
+    public void setTimeSlice(long instructions) {
+        this.timeSlice = instructions;
+    }
+
+    /**
+     * Limits the number of idle machines kept for all programs together,
+     * DEFAULT_MAX_IDLE_MACHINES by default. Lowering it drops machines as
+     * soon as the next one is released.
+     */
+    public void setMaxIdleMachines(int machines) {
+        this.maxIdleMachines = machines;
+    }
+
+    /**
+     * Runs a program. The options are read when the run is submitted, so
+     * they may be changed and used for the next run right away. Runs without
+     * an input or output of their own use the console, and should not be
+     * run at the same time. The time limit counts the turns of the run
+     * only, not the time it waits for them. Cancelling the future stops the
+     * run within a few ten thousand instructions, also without a time
+     * slice, but not while it waits for input.
+     *
+     * @param program the program to run
+     * @param options the machine's memory, input, output, limits and
+     *        execution mode
+     * @return the number of instructions the run executed, see
+     *         VirtualMachine.getExecutedInstructions. Runtime errors of the
+     *         program, including exceeded limits, are thrown by the future
+     *         as the cause of an ExecutionException.
+     */
+    public Future<Long> submit(CompiledProgram program,
+            MachineOptions options) {
+        Run run = new Run(program, options);
+        executor.execute(run);
+        return run.result;
+    }
+
+    /**
+     * A submitted run, executed by one or more turns.
+     */
+    private class Run implements Runnable {
+
+        private final Key key;
+        private final MachineOptions options;
+        private final Input input;
+        private final Output output;
+        private final long instructionLimit;
+        private final long timeLimit;
+
+        private final CompletableFuture<Long> result =
+                new CompletableFuture<Long>();
+
+        // null before the first turn
+        private VirtualMachine machine;
+
+        Run(CompiledProgram program, MachineOptions options) {
+            this.key = new Key(program, options);
+            this.options = new MachineOptions()
+                    .setExecutionMode(options.getExecutionMode())
+                    .setMemoryModel(options.getMemoryModel())
+                    .setAllocator(options.getAllocator())
+                    .setActivationStackSize(
+                            options.getActivationStackSize(),
+                            options.getMaxActivationStackSize()
+                    )
+                    .setHeapSize(
+                            options.getHeapSize(), options.getMaxHeapSize()
+                    );
+            this.input = options.getInput();
+            this.output = options.getOutput();
+            this.instructionLimit = options.getInstructionLimit();
+            this.timeLimit = options.getTimeLimit();
+        }
+
+        @Override
+        public void run() {
+            while(true) {
+                boolean done = true;
+                try {
+                    if(machine == null) {
+                        if(result.isCancelled()) return;
+                        start();
+                    }
+                    done = turn();
+                    if(done) {
+                        result.complete(machine.getExecutedInstructions());
+                    }
+                }
+                catch(Throwable e) {
+                    result.completeExceptionally(e);
+                }
+                if(done || result.isDone()) {
+                    // no machine if creating it failed
+                    if(machine != null) {
+                        release();
+                    }
+                    return;
+                }
+                try {
+                    executor.execute(this);
+                    return;
+                }
+                catch(RejectedExecutionException e) {
+                    // the pool is shut down, take the next turn right away
+                }
+            }
+        }
+
+        // runs the program for a turn of timeSlice instructions, in pieces
+        // so that a cancellation is noticed, true if the run is over
+        private boolean turn() {
+            long left = timeSlice;
+            while(!result.isCancelled()) {
+                long piece = Math.min(left, CANCEL_CHECK_INTERVAL);
+                if(machine.run(piece, Long.MAX_VALUE)) {
+                    return true;
+                }
+                if(left != Long.MAX_VALUE) {
+                    left -= piece;
+                    if(left <= 0) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        private void start() {
+            machine = take(key, options);
+            // the console's input is shared, so no run loses what the
+            // one before read ahead
+            machine.setInput(input != null ? input : BufferedInput.console());
+            machine.setOutput(output != null
+                    ? output : new BufferedOutput(System.out));
+            machine.setInstructionLimit(instructionLimit);
+            machine.setTimeLimit(timeLimit);
+            runs.incrementAndGet();
+        }
+
+        private void release() {
+            // the run's input and output are not kept
+            machine.setInput(null);
+            machine.setOutput(null);
+            machine.reset();
+            keep(key, machine);
+        }
+
+    }
+
+    // an idle machine for the program, a new one if there is none
+    private VirtualMachine take(Key key, MachineOptions options) {
+        VirtualMachine machine = null;
+        synchronized(idle) {
+            ArrayDeque<VirtualMachine> machines = idle.get(key);
+            if(machines != null) {
+                machine = machines.poll();
+                idleMachines--;
+                if(machines.isEmpty()) {
+                    idle.remove(key);
+                }
+            }
+        }
+        if(machine == null) {
+            machine = key.program.newMachine(options);
+            createdMachines.incrementAndGet();
+        }
+        return machine;
+    }
+
+    // keeps a reset machine for the next run, unless its memory grew or
+    // there are enough idle machines
+    private void keep(Key key, VirtualMachine machine) {
+        if(machine.getMemorySize() > machine.getStaticMemorySize()
+                + machine.getActivationStackSize() + machine.getHeapSize()) {
+            return;
+        }
+        synchronized(idle) {
+            ArrayDeque<VirtualMachine> machines = idle.get(key);
+            if(machines == null) {
+                machines = new ArrayDeque<VirtualMachine>();
+                idle.put(key, machines);
+            }
+            if(machines.size() >= maxIdle) {
+                return;
+            }
+            machines.add(machine);
+            idleMachines++;
+            // drop the machines of the least recently used programs
+            Iterator<Map.Entry<Key, ArrayDeque<VirtualMachine>>> entries
+                    = idle.entrySet().iterator();
+            while(idleMachines > maxIdleMachines && entries.hasNext()) {
+                ArrayDeque<VirtualMachine> eldest = entries.next().getValue();
+                idleMachines -= eldest.size();
+                entries.remove();
+            }
+        }
+    }
+
+    /**
+     * Lets the submitted runs end, without accepting new ones.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Waits for the submitted runs to end after a shutdown.
+     * @return true if they ended, false if the time ran out
+     */
+    public boolean awaitTermination(long time, TimeUnit unit)
+            throws InterruptedException {
+        return executor.awaitTermination(time, unit);
+    }
+
+    /**
+     * @return the number of machines created so far, the other runs were
+     *         given recycled ones
+     */
+    public long getCreatedMachines() { return createdMachines.get(); }
+
+    /**
+     * @return the number of runs started so far
+     */
+    public long getRuns() { return runs.get(); }
+
+    /**
+     * @return the number of machines kept for later runs
+     */
+    public int getIdleMachines() {
+        synchronized(idle) {
+            return idleMachines;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "runs: " + getRuns()
+                + ", machines: " + getCreatedMachines()
+                + ", idle: " + getIdleMachines();
+    }
+
+    // what a machine can be recycled for: the same program, memory and
+    // execution mode
+    private static class Key {
+
+        private final CompiledProgram program;
+        private final Compiler.ExecutionMode executionMode;
+        private final Memory.MemoryModel memoryModel;
+        private final DynamicMemoryManager.Allocator allocator;
+        private final int activationStackSize;
+        private final int heapSize;
+        private final int maxActivationStackSize;
+        private final int maxHeapSize;
+
+        Key(CompiledProgram program, MachineOptions options) {
+            this.program = program;
+            this.executionMode = options.getExecutionMode();
+            this.memoryModel = options.getMemoryModel();
+            this.allocator = options.getAllocator();
+            this.activationStackSize = options.getActivationStackSize();
+            this.heapSize = options.getHeapSize();
+            this.maxActivationStackSize = options.getMaxActivationStackSize();
+            this.maxHeapSize = options.getMaxHeapSize();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof Key)) return false;
+            Key k = (Key)o;
+            return program == k.program
+                    && executionMode == k.executionMode
+                    && memoryModel == k.memoryModel
+                    && allocator == k.allocator
+                    && activationStackSize == k.activationStackSize
+                    && heapSize == k.heapSize
+                    && maxActivationStackSize == k.maxActivationStackSize
+                    && maxHeapSize == k.maxHeapSize;
+        }
+
+        @Override
+        public int hashCode() {
+            int h = System.identityHashCode(program);
+            h = 31 * h + executionMode.hashCode();
+            h = 31 * h + memoryModel.hashCode();
+            h = 31 * h + allocator.hashCode();
+            h = 31 * h + activationStackSize;
+            h = 31 * h + heapSize;
+            h = 31 * h + maxActivationStackSize;
+            return 31 * h + maxHeapSize;
+        }
+
+    }
+
+}
@@ -1,7 +1,22 @@
 package pl.virtualmachine;
 
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
 /**
- * 
+ * Manages the activation registers.
+ *
+ * The stack may consist of several chunks of consecutive cells. When a
+ * register does not fit into the current chunk, it is placed at the start
+ * of the next one, which is taken from the MemoryLayout if there is none
+ * yet. A new chunk is as large as all chunks together, so the stack doubles
+ * each time. Chunks are kept when the registers in them are freed, so deep
+ * recursions which are repeated do not take new cells. If the next chunk is
+ * too small for a register, the new chunk is put in front of it, so the
+ * small chunk is still used by the registers after it.
  */
 public class ActivationStackManager {
     
@@ -9,14 +24,57 @@ public class ActivationStackManager {
     private int[] displays;
     private int pp;
     
+    // where new chunks are taken from, null if the stack must not grow
+    private MemoryLayout layout;
+    // current and maximal number of cells in all chunks
+    private int tam;
+    private int tamMax;
+    // bounds of the chunks, and the pp of each chunk left for the next one
+    private int[] comienzos;
+    private int[] fines;
+    private int[] pps;
+    private int nchunks;
+    private int chunk;
+    // return addresses and saved displays of the registers created by
+    // pushFrame, which are kept apart from the memory
+    private int[] retornos;
+    private int[] displaysGuardados;
+    private int nframes;
+    
     public ActivationStackManager(int comienzo, int fin, int ndisplays) {
+       this(comienzo, fin, ndisplays, null, fin - comienzo + 1);
+    }
+    
+    /**
+     * @param layout where new chunks are taken from, null if the stack must
+     *        not grow
+     * @param tamMax the number of cells the stack may grow to
+     */
+    public ActivationStackManager(
+            int comienzo,
+            int fin,
+            int ndisplays,
+            MemoryLayout layout,
+            int tamMax
+    ) {
        pp = comienzo; 
        this.fin = fin;
        this.displays = new int[ndisplays];
+       this.layout = layout;
+       this.tam = fin - comienzo + 1;
+       this.tamMax = tamMax;
+       comienzos = new int[] {comienzo};
+       fines = new int[] {fin};
+       pps = new int[1];
+       nchunks = 1;
+       chunk = 0;
+       retornos = new int[16];
+       displaysGuardados = new int[16];
+       nframes = 0;
     }
     
     public int createActivationRegister(int tamdatos) {
-       if ((pp + tamdatos + 1) > fin) throw new StackOverflowError();
+       if ((pp + tamdatos + 1) > fin) nextChunk(tamdatos + 2);
        int base = pp;
        pp += tamdatos + 2;
        return base;
@@ -24,7 +82,79 @@ public class ActivationStackManager {
     
     public int freeActivationRegister(int tamdatos) {
        pp -= tamdatos + 2;
-       return pp;
+       int base = pp;
+       if (pp == comienzos[chunk] && chunk > 0) {
+          // the chunk is empty, continue with the previous one
+          chunk--;
+          pp = pps[chunk];
+          fin = fines[chunk];
+       }
+       return base;
+    }
+    
+    /**
+     * Creates the register of a call, saving the return address and the
+     * display of the level on the frame stack. The two cells in front of the
+     * display stay unused, so that the register looks like one created by
+     * createActivationRegister.
+     * @return the display of the new register, which is set for the level
+     */
+    public int pushFrame(int level, int tamdatos, int retorno) {
+       int display = createActivationRegister(tamdatos) + 2;
+       if (nframes == retornos.length) {
+          retornos = Arrays.copyOf(retornos, 2 * nframes);
+          displaysGuardados = Arrays.copyOf(displaysGuardados, 2 * nframes);
+       }
+       retornos[nframes] = retorno;
+       displaysGuardados[nframes] = displays[level-1];
+       nframes++;
+       displays[level-1] = display;
+       return display;
+    }
+    
+    /**
+     * Frees the register created by the matching pushFrame and restores the
+     * display of the level.
+     * @return the return address
+     */
+    public int popFrame(int level, int tamdatos) {
+       freeActivationRegister(tamdatos);
+       nframes--;
+       displays[level-1] = displaysGuardados[nframes];
+       return retornos[nframes];
+    }
+    
+    // moves to the next chunk, which must have room for tamregistro cells
+    private void nextChunk(int tamregistro) {
+       int siguiente = chunk + 1;
+       if (siguiente == nchunks ||
+           fines[siguiente] - comienzos[siguiente] + 1 < tamregistro
+       ) {
+          int crecer = Math.min(Math.max(tamregistro, tam), tamMax - tam);
+          if (layout == null || crecer < tamregistro) {
+             throw new StackOverflowError();
+          }
+          if (nchunks == comienzos.length) {
+             comienzos = Arrays.copyOf(comienzos, 2 * nchunks);
+             fines = Arrays.copyOf(fines, 2 * nchunks);
+             pps = Arrays.copyOf(pps, 2 * nchunks);
+          }
+          // the empty chunks after the current one move back, a chunk
+          // which is too small stays in use for the registers after this
+          int mover = nchunks - siguiente;
+          System.arraycopy(
+                comienzos, siguiente, comienzos, siguiente + 1, mover
+          );
+          System.arraycopy(fines, siguiente, fines, siguiente + 1, mover);
+          comienzos[siguiente] = layout.extend(crecer);
+          fines[siguiente] = comienzos[siguiente] + crecer - 1;
+          nchunks++;
+          tam += crecer;
+       }
+       pps[chunk] = pp;
+       chunk = siguiente;
+       pp = comienzos[chunk];
+       fin = fines[chunk];
     }
     
     public void fixDisplay(int d, int v) { displays[d-1] = v; }
@@ -32,4 +162,62 @@ public class ActivationStackManager {
     public int getDisplay(int d) { return displays[d-1]; }
     public int pp() { return pp; }
     
+    /**
+     * Writes the state of the stack for a Snapshot: pp, the displays, the
+     * chunks and the frames of pushFrame.
+     */
+    void write(DataOutput out) throws IOException {
+       out.writeInt(pp);
+       out.writeInt(fin);
+       out.writeInt(tam);
+       out.writeInt(displays.length);
+       for (int d : displays) out.writeInt(d);
+       out.writeInt(nchunks);
+       out.writeInt(chunk);
+       for (int k = 0; k < nchunks; k++) {
+          out.writeInt(comienzos[k]);
+          out.writeInt(fines[k]);
+          out.writeInt(pps[k]);
+       }
+       out.writeInt(nframes);
+       for (int k = 0; k < nframes; k++) {
+          out.writeInt(retornos[k]);
+          out.writeInt(displaysGuardados[k]);
+       }
+    }
+    
+    /**
+     * Restores the state written by write. The stack must have as many
+     * displays as the one which was written.
+     */
+    void read(ByteBuffer in) throws StreamCorruptedException {
+       pp = in.getInt();
+       fin = in.getInt();
+       tam = in.getInt();
+       if (in.getInt() != displays.length) {
+          throw new StreamCorruptedException("number of displays");
+       }
+       for (int k = 0; k < displays.length; k++) displays[k] = in.getInt();
+       nchunks = in.getInt();
+       chunk = in.getInt();
+       if (chunk < 0 || chunk >= nchunks) {
+          throw new StreamCorruptedException("chunk " + chunk);
+       }
+       comienzos = new int[nchunks];
+       fines = new int[nchunks];
+       pps = new int[nchunks];
+       for (int k = 0; k < nchunks; k++) {
+          comienzos[k] = in.getInt();
+          fines[k] = in.getInt();
+          pps[k] = in.getInt();
+       }
+       nframes = in.getInt();
+       retornos = new int[Math.max(16, nframes)];
+       displaysGuardados = new int[Math.max(16, nframes)];
+       for (int k = 0; k < nframes; k++) {
+          retornos[k] = in.getInt();
+          displaysGuardados[k] = in.getInt();
+       }
+    }
+    
 }
@@ -0,0 +1,328 @@
+package pl.virtualmachine;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import pl.type.Type;
+
+/**
+ * Reads the input through a single character buffer which is kept from one
+ * READ to the next, so nothing read ahead is lost. Lines end at "\n", "\r"
+ * or "\r\n". Integers, reals, booleans and characters are parsed right in
+ * the buffer, only strings are copied out of it.
+ *
+ * Lines are converted like Integer.parseInt, Double.parseDouble and
+ * Boolean.parseBoolean do it, a character must be the only one on its line.
+ * If the reader fails, READ throws an UncheckedIOException, which ends the
+ * machine's run.
+ */
+public class BufferedInput extends Input {
+
+    public static final int DEFAULT_SIZE = 8192;
+
+    // reals with at most this many digits and a decimal exponent of at most
+    // MAX_EXACT_EXPONENT are exact doubles multiplied or divided by an
+    // exact power of ten, which is rounded correctly
+    private static final int MAX_EXACT_DIGITS = 15;
+    private static final int MAX_EXACT_EXPONENT = 22;
+    private static final double[] POWERS_OF_TEN =
+            new double[MAX_EXACT_EXPONENT + 1];
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for(int i = 1; i <= MAX_EXACT_EXPONENT; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private static final char[] TRUE = "true".toCharArray();
+
+    // the input of all machines reading the console, see console
+    private static Input console;
+
+    private final Reader in;
+    private final boolean interactive;
+
+    // the characters not consumed yet are buffer[start] to buffer[end - 1]
+    private char[] buffer;
+    private int start;
+    private int end;
+    // true once the reader is exhausted
+    private boolean eof;
+    // the last line ended with "\r", a following "\n" belongs to it
+    private boolean skipLF;
+
+    /**
+     * Reads from a stream in the platform's default encoding, like System.in
+     * is read.
+     */
+    public BufferedInput(InputStream in, boolean interactive) {
+        this(new InputStreamReader(in), DEFAULT_SIZE, interactive);
+    }
+
+    /**
+     * @return the interactive input from System.in which all machines read
+     *         the console through, so what one machine read ahead is not
+     *         lost for the next. Its reads are synchronized, as machines
+     *         may run on several threads.
+     */
+    public static synchronized Input console() {
+        if(console == null) {
+            final BufferedInput in = new BufferedInput(System.in, true);
+            console = new Input() {
+                @Override
+                public boolean read(Type type, OperandStack stack) {
+                    synchronized(in) {
+                        return in.read(type, stack);
+                    }
+                }
+
+                @Override
+                public boolean isInteractive() { return true; }
+            };
+        }
+        return console;
+    }
+
+    /**
+     * @param in the source
+     * @param size number of characters read ahead at most, the buffer grows
+     *        for longer lines
+     * @param interactive if the user is prompted for each value
+     */
+    public BufferedInput(Reader in, int size, boolean interactive) {
+        if(size < 1) {
+            throw new IllegalArgumentException("buffer too small: " + size);
+        }
+        this.in = in;
+        this.interactive = interactive;
+        this.buffer = new char[size];
+    }
+
+    @Override
+    public boolean isInteractive() { return interactive; }
+
+    @Override
+    public boolean read(Type type, OperandStack stack) {
+        if( type != Type.INT && type != Type.REAL && type != Type.BOOL &&
+            type != Type.CHAR && type != Type.STRING
+        ) {
+            return false;
+        }
+        int lineEnd = lineEnd();
+        if(lineEnd < 0) {
+            stack.pushUnknown();
+            return true;
+        }
+        int from = start;
+        int length = lineEnd - from;
+        if(type == Type.INT) {
+            pushInt(from, length, stack);
+        }
+        else if(type == Type.REAL) {
+            pushReal(from, length, stack);
+        }
+        else if(type == Type.BOOL) {
+            stack.pushBool(isTrue(from, length));
+        }
+        else if(type == Type.CHAR) {
+            // only succesful if length of entered line is 1
+            if(length == 1) {
+                stack.pushChar(buffer[from]);
+            }
+            else {
+                stack.pushUnknown();
+            }
+        }
+        else {
+            stack.pushString(new String(buffer, from, length));
+        }
+        consumeLine(lineEnd);
+        return true;
+    }
+
+    /* lines */
+
+    // the index of the line break ending the next line, or of the end of
+    // the input if the last line has none, -1 if the input has ended.
+    // Reads only as far as needed, so a console is not waited for longer
+    // than the line takes to enter.
+    private int lineEnd() {
+        int i = start;
+        while(true) {
+            for(; i < end; i++) {
+                char c = buffer[i];
+                if(skipLF) {
+                    skipLF = false;
+                    if(c == '\n') {
+                        start++;
+                        continue;
+                    }
+                }
+                if(c == '\n' || c == '\r') {
+                    return i;
+                }
+            }
+            int scanned = i - start;
+            if(!fill()) {
+                return end > start ? end : -1;
+            }
+            i = start + scanned;
+        }
+    }
+
+    // skips the line and its line break
+    private void consumeLine(int lineEnd) {
+        if(lineEnd < end) {
+            skipLF = buffer[lineEnd] == '\r';
+            start = lineEnd + 1;
+        }
+        else {
+            start = lineEnd;
+        }
+    }
+
+    // moves the unconsumed characters to the front of the buffer, grown if
+    // they fill it, and reads more behind them; false at the end of input
+    private boolean fill() {
+        if(eof) {
+            return false;
+        }
+        int unconsumed = end - start;
+        if(unconsumed == buffer.length) {
+            char[] grown = new char[2 * buffer.length];
+            System.arraycopy(buffer, start, grown, 0, unconsumed);
+            buffer = grown;
+        }
+        else {
+            System.arraycopy(buffer, start, buffer, 0, unconsumed);
+        }
+        start = 0;
+        end = unconsumed;
+        int n;
+        try {
+            n = in.read(buffer, end, buffer.length - end);
+        }
+        catch(IOException e) {
+            throw new UncheckedIOException("cannot read input", e);
+        }
+        if(n < 0) {
+            eof = true;
+            return false;
+        }
+        end += n;
+        return true;
+    }
+
+    /* conversions */
+
+    // the digits are accumulated negatively, the negative range of int
+    // being the larger one
+    private void pushInt(int from, int length, OperandStack stack) {
+        int to = from + length;
+        int i = from;
+        boolean negative = false;
+        if(i < to && (buffer[i] == '-' || buffer[i] == '+')) {
+            negative = buffer[i] == '-';
+            i++;
+        }
+        if(i == to) {
+            stack.pushUnknown();
+            return;
+        }
+        int limit = negative ? Integer.MIN_VALUE : -Integer.MAX_VALUE;
+        int v = 0;
+        for(; i < to; i++) {
+            int digit = Character.digit(buffer[i], 10);
+            if( digit < 0 || v < limit / 10 ||
+                v * 10 < limit + digit
+            ) {
+                stack.pushUnknown();
+                return;
+            }
+            v = v * 10 - digit;
+        }
+        stack.pushInt(negative ? v : -v);
+    }
+
+    // plain decimals which are exact enough are converted here, everything
+    // else Double.parseDouble accepts is left to it
+    private void pushReal(int from, int length, OperandStack stack) {
+        int to = from + length;
+        int i = from;
+        boolean negative = false;
+        if(i < to && (buffer[i] == '-' || buffer[i] == '+')) {
+            negative = buffer[i] == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean point = false;
+        for(; i < to; i++) {
+            char c = buffer[i];
+            if(c >= '0' && c <= '9') {
+                mantissa = mantissa * 10 + (c - '0');
+                digits++;
+                if(point) {
+                    scale--;
+                }
+            }
+            else if(c == '.' && !point) {
+                point = true;
+            }
+            else {
+                break;
+            }
+        }
+        if(i < to && (buffer[i] == 'e' || buffer[i] == 'E') && digits > 0) {
+            int j = i + 1;
+            boolean negativeExponent = false;
+            if(j < to && (buffer[j] == '-' || buffer[j] == '+')) {
+                negativeExponent = buffer[j] == '-';
+                j++;
+            }
+            int exponent = 0;
+            int exponentDigits = 0;
+            for(; j < to && buffer[j] >= '0' && buffer[j] <= '9'; j++) {
+                exponent = exponent * 10 + (buffer[j] - '0');
+                exponentDigits++;
+            }
+            if(exponentDigits > 0 && exponentDigits < 4) {
+                scale += negativeExponent ? -exponent : exponent;
+                i = j;
+            }
+        }
+        if( i == to && digits > 0 && digits <= MAX_EXACT_DIGITS &&
+            Math.abs(scale) <= MAX_EXACT_EXPONENT
+        ) {
+            double v = scale < 0
+                    ? mantissa / POWERS_OF_TEN[-scale]
+                    : mantissa * POWERS_OF_TEN[scale];
+            stack.pushReal(negative ? -v : v);
+            return;
+        }
+        try {
+            stack.pushReal(Double.parseDouble(new String(buffer, from, length)));
+        }
+        catch(NumberFormatException e) {
+            stack.pushUnknown();
+        }
+    }
+
+    // Boolean.parseBoolean: "true" in any case, everything else is false
+    private boolean isTrue(int from, int length) {
+        if(length != TRUE.length) {
+            return false;
+        }
+        for(int k = 0; k < length; k++) {
+            char c = Character.toUpperCase(buffer[from + k]);
+            if(Character.toLowerCase(c) != TRUE[k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
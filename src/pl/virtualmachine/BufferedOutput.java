@@ -0,0 +1,163 @@
+package pl.virtualmachine;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+
+/**
+ * Collects the output in a character buffer which is passed on to a Writer
+ * only when it is full or when the machine flushes it. Integers, booleans
+ * and characters are formatted right into the buffer, without building a
+ * string for every value.
+ *
+ * If the writer fails, the output throws an UncheckedIOException, which
+ * ends the machine's run, and the buffered characters are dropped.
+ */
+public class BufferedOutput extends Output {
+
+    public static final int DEFAULT_SIZE = 8192;
+
+    // a formatted integer never takes more characters
+    private static final int MAX_INT_LENGTH = 11;
+
+    private static final char[] PREFIX = "<< ".toCharArray();
+    private static final char[] TRUE = "true".toCharArray();
+    private static final char[] FALSE = "false".toCharArray();
+    private static final char[] UNKNOWN = "?".toCharArray();
+    private static final char[] LINE_SEPARATOR =
+            System.lineSeparator().toCharArray();
+
+    private final Writer out;
+    private final char[] buffer;
+    private int size;
+
+    /**
+     * Creates an output to a stream in the platform's default encoding, like
+     * System.out uses it.
+     */
+    public BufferedOutput(OutputStream out) {
+        this(new OutputStreamWriter(out), DEFAULT_SIZE);
+    }
+
+    /**
+     * @param out the destination
+     * @param size number of characters held back at most
+     */
+    public BufferedOutput(Writer out, int size) {
+        if(size < MAX_INT_LENGTH) {
+            throw new IllegalArgumentException("buffer too small: " + size);
+        }
+        this.out = out;
+        this.buffer = new char[size];
+    }
+
+    @Override
+    public void writeValue(byte tag, long payload, String string) {
+        append(PREFIX);
+        switch(tag) {
+            case OperandStack.TAG_INT:
+                appendInt((int)payload);
+                break;
+            case OperandStack.TAG_BOOL:
+                append(payload != 0 ? TRUE : FALSE);
+                break;
+            case OperandStack.TAG_REAL:
+                append(String.valueOf(Double.longBitsToDouble(payload)));
+                break;
+            case OperandStack.TAG_CHAR:
+                append('\'');
+                append((char)payload);
+                append('\'');
+                break;
+            case OperandStack.TAG_STRING:
+                append('"');
+                append(String.valueOf(string));
+                append('"');
+                break;
+            default:
+                append(UNKNOWN);
+        }
+        append(LINE_SEPARATOR);
+    }
+
+    @Override
+    public void writeText(String text) {
+        append(text);
+    }
+
+    @Override
+    public void flush() {
+        drain();
+        try {
+            out.flush();
+        }
+        catch(IOException e) {
+            throw new UncheckedIOException("cannot write output", e);
+        }
+    }
+
+    private void append(char c) {
+        if(size == buffer.length) {
+            drain();
+        }
+        buffer[size++] = c;
+    }
+
+    private void append(char[] chars) {
+        for(char c : chars) {
+            append(c);
+        }
+    }
+
+    private void append(String s) {
+        int from = 0;
+        while(from < s.length()) {
+            if(size == buffer.length) {
+                drain();
+            }
+            int n = Math.min(s.length() - from, buffer.length - size);
+            s.getChars(from, from + n, buffer, size);
+            size += n;
+            from += n;
+        }
+    }
+
+    // writes the digits from the last one backwards, the value's length
+    // is counted first
+    private void appendInt(int v) {
+        if(buffer.length - size < MAX_INT_LENGTH) {
+            drain();
+        }
+        long w = v;
+        if(w < 0) {
+            buffer[size++] = '-';
+            w = -w;
+        }
+        int length = 1;
+        for(long rest = w / 10; rest != 0; rest /= 10) {
+            length++;
+        }
+        size += length;
+        for(int i = size - 1; i >= size - length; i--) {
+            buffer[i] = (char)('0' + w % 10);
+            w /= 10;
+        }
+    }
+
+    // passes the buffer on to the writer
+    private void drain() {
+        try {
+            out.write(buffer, 0, size);
+        }
+        catch(IOException e) {
+            throw new UncheckedIOException("cannot write output", e);
+        }
+        finally {
+            // not written again by the flush after a failed run
+            size = 0;
+        }
+    }
+
+}
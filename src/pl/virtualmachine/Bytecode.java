@@ -0,0 +1,223 @@
+package pl.virtualmachine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compact form of a machine program which is executed by the bytecode
+ * interpreter of the virtual machine.
+ *
+ * Every instruction occupies STRIDE consecutive ints of the code array: the
+ * opcode followed by up to three immediate operands. This way, instruction
+ * number pc starts at index pc * STRIDE and jump targets do not change when
+ * the instruction list is lowered. Operands which do not fit into an int
+ * (strings, types) are kept in a constant pool and referenced by index.
+ *
+ * The opcodes of instructions which pop one element and push the result are
+ * in [FIRST_POP_PUSH, LAST_POP_PUSH], the ones of instructions which pop two
+ * elements and push the result are in [FIRST_POP2_PUSH, LAST_POP2_PUSH],
+ * so that the interpreter can handle UNKNOWN for all of them at once.
+ */
+public class Bytecode {
+
+    // number of ints per instruction: the opcode and three operands
+    public static final int STRIDE = 4;
+
+    /* instructions popping one element and pushing the result */
+
+    public static final int CONVERT_INT = 0;
+    public static final int CONVERT_BOOL = 1;
+    public static final int CONVERT_REAL = 2;
+    public static final int CONVERT_CHAR = 3;
+    public static final int CONVERT_STRING = 4;
+    public static final int SIGN_CHANGE = 5;
+    public static final int NOT = 6;
+
+    /* instructions popping two elements and pushing the result */
+
+    public static final int ADD_INT = 7;
+    public static final int ADD_REAL = 8;
+    public static final int MULT_INT = 9;
+    public static final int MULT_REAL = 10;
+    public static final int SUBT_INT = 11;
+    public static final int SUBT_REAL = 12;
+    public static final int DIV_INT = 13;
+    public static final int DIV_REAL = 14;
+    public static final int REST = 15;
+    public static final int CONCAT_STRING = 16;
+    public static final int CHAIN_ELEMENT = 17;
+    public static final int EQUAL = 18;
+    public static final int EQUAL_POP1 = 19;
+    public static final int UNEQUAL = 20;
+    public static final int LESS = 21;
+    public static final int LESS_EQUAL = 22;
+    public static final int GREATER = 23;
+    public static final int GREATER_EQUAL = 24;
+    public static final int AND = 25;
+    public static final int OR = 26;
+
+    /* other instructions */
+
+    public static final int WRITE = 27;
+    public static final int READ = 28;             // type (constant)
+    public static final int PUSH_INT = 29;         // value
+    public static final int PUSH_BOOL = 30;        // 1 or 0
+    public static final int PUSH_REAL = 31;        // high bits, low bits
+    public static final int PUSH_CHAR = 32;        // value
+    public static final int PUSH_STRING = 33;      // value (constant)
+    public static final int POP2_STORE = 34;
+    public static final int POP_LOAD_PUSH = 35;
+    public static final int DUPLICATE = 36;
+    public static final int ALLOC = 37;            // size
+    public static final int DEALLOC = 38;          // size
+    public static final int COPY = 39;             // size
+    public static final int ACTIVATE = 40;         // level, size, return addr
+    public static final int DEACTIVATE = 41;       // level, size
+    public static final int SET_DISPLAY = 42;      // level
+    public static final int PUSH_DISPLAY = 43;     // level
+    public static final int JUMP = 44;             // target
+    public static final int JUMP_IF_FALSE = 45;    // target
+    public static final int JUMP_IF_TRUE = 46;     // target
+    public static final int POP_JUMP = 47;
+    public static final int IN_RANGE = 48;         // dimension
+    public static final int STOP = 49;
+    public static final int NOP = 50;
+    public static final int DEBUG = 51;            // message (constant)
+
+    /* superinstructions */
+
+    public static final int LOAD = 52;             // address
+    public static final int STORE = 53;            // address
+    public static final int LOAD_LOCAL = 54;       // level, offset
+    public static final int STORE_LOCAL = 55;      // level, offset
+    public static final int LOCAL_ADDRESS = 56;    // level, offset
+    public static final int ADD_IMM = 57;          // value
+    public static final int DUPLICATE_ADD_IMM = 58; // value
+    public static final int INDEX = 59;            // dimension, element size
+
+    /* switches, followed by their table of SWITCH_CASE entries */
+
+    public static final int TABLE_SWITCH = 60;     // default, low, count
+    public static final int LOOKUP_SWITCH = 61;    // default, count
+    public static final int SWITCH_CASE = 62;      // target, key
+
+    /* fused procedure call and return */
+
+    public static final int CALL = 63;             // target, frame (constant)
+    public static final int RETURN = 64;           // level, size
+    public static final int TAIL_CALL = 65;        // target, frame (constant)
+
+    public static final int FIRST_POP_PUSH = CONVERT_INT;
+    public static final int LAST_POP_PUSH = NOT;
+    public static final int FIRST_POP2_PUSH = ADD_INT;
+    public static final int LAST_POP2_PUSH = OR;
+
+    /**
+     * @return the index (1 to 3) of the operand holding a code position for
+     *         jumps, calls and activations, 0 if the instruction has none
+     */
+    public static int targetOperand(int opcode) {
+        switch(opcode) {
+            case JUMP:
+            case JUMP_IF_FALSE:
+            case JUMP_IF_TRUE:
+            case TABLE_SWITCH:
+            case LOOKUP_SWITCH:
+            case SWITCH_CASE:
+            case CALL:
+            case TAIL_CALL:
+                return 1;
+            case ACTIVATE:
+                // the return address
+                return 3;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * @return true for instructions after which the control flow never
+     *         continues with the next instruction. This does not hold for
+     *         switches, which are followed by their table, and calls, which
+     *         return to the next instruction.
+     */
+    public static boolean endsFlow(int opcode) {
+        return  opcode == JUMP ||
+                opcode == POP_JUMP ||
+                opcode == RETURN ||
+                opcode == TAIL_CALL ||
+                opcode == STOP;
+    }
+
+    /**
+     * @return the number of SWITCH_CASE entries following the instruction at
+     *         pc, 0 if it is no switch
+     */
+    public static int tableSize(int[] bc, int pc) {
+        int i = pc * STRIDE;
+        switch(bc[i]) {
+            case TABLE_SWITCH:
+                return bc[i + 3];
+            case LOOKUP_SWITCH:
+                return bc[i + 2];
+            default:
+                return 0;
+        }
+    }
+
+    private int[] code;
+    private int size;
+    private List<Object> constants;
+
+    public Bytecode() {
+        code = new int[64 * STRIDE];
+        size = 0;
+        constants = new ArrayList<>();
+    }
+
+    /**
+     * Appends an instruction.
+     * @param opcode one of the opcodes defined in this class
+     * @param a first operand
+     * @param b second operand
+     * @param c third operand
+     */
+    public void emit(int opcode, int a, int b, int c) {
+        if((size + 1) * STRIDE > code.length) {
+            code = Arrays.copyOf(code, code.length * 2);
+        }
+        int i = size * STRIDE;
+        code[i] = opcode;
+        code[i + 1] = a;
+        code[i + 2] = b;
+        code[i + 3] = c;
+        size++;
+    }
+
+    public void emit(int opcode) { emit(opcode, 0, 0, 0); }
+    public void emit(int opcode, int a) { emit(opcode, a, 0, 0); }
+    public void emit(int opcode, int a, int b) { emit(opcode, a, b, 0); }
+
+    /**
+     * Adds a value to the constant pool.
+     * @return the index of the value in the pool
+     */
+    public int constant(Object value) {
+        constants.add(value);
+        return constants.size() - 1;
+    }
+
+    /**
+     * @return the code array, which may be longer than size() * STRIDE
+     */
+    public int[] getCode() { return code; }
+
+    public Object[] getConstants() { return constants.toArray(); }
+
+    /**
+     * @return the number of instructions
+     */
+    public int size() { return size; }
+
+}
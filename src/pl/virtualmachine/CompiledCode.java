@@ -0,0 +1,727 @@
+package pl.virtualmachine;
+
+import java.util.Arrays;
+import pl.type.Type;
+
+/**
+ * Base class of the JVM classes generated by JvmCompiler and of the threaded
+ * code. An instance runs a CompiledForm on one machine and holds the state
+ * of the machine's runs, while the form is shared by all machines running
+ * the program.
+ *
+ * A generated class contains one method per basic block of the machine code
+ * and implements dispatch() to run the block starting at a given program
+ * counter. The blocks are straight-line sequences of calls to the final
+ * helper methods of this class, one per machine instruction, with all
+ * operands as constants. The JIT inlines the helpers, so neither the
+ * instruction dispatch nor the operand decoding remain at runtime.
+ *
+ * The helpers implement exactly the semantics of the machine's instructions,
+ * including UNKNOWN and all runtime checks. The program counter passed to
+ * them is only used for error messages.
+ */
+public abstract class CompiledCode {
+
+    private final VirtualMachine machine;
+    private final CompiledForm form;
+    private final OperandStack stack;
+    private final Memory memory;
+    // replaced by VirtualMachine.reset, fetched again by execute
+    private DynamicMemoryManager dynamicMemoryManager;
+    private ActivationStackManager activationStackManager;
+
+    // constant pool of the bytecode
+    protected final Object[] constants;
+
+    // number of instructions, pc == end means the program has terminated
+    protected final int end;
+
+    // instructions executed so far and the count at which the machine's
+    // limits are checked next, kept in fields while the code is running
+    protected long executed;
+    protected long checkpoint;
+
+    // the stack's arrays, kept in fields while the code is running
+    private byte[] tags;
+    private long[] payloads;
+    private String[] strings;
+    private int sp;
+
+    protected CompiledCode(VirtualMachine machine, CompiledForm form) {
+        this.machine = machine;
+        this.form = form;
+        this.stack = machine.operandStack();
+        this.memory = machine.memory();
+        this.constants = form.getBytecode().getConstants();
+        this.end = form.getBytecode().size();
+    }
+
+    /**
+     * @return the form this code runs
+     */
+    final CompiledForm form() { return form; }
+
+    /**
+     * Runs the basic block starting at pc and adds its instructions to
+     * executed.
+     * @return the program counter of the next block to run
+     */
+    protected abstract int dispatch(int pc);
+
+    /**
+     * Runs the code from pc until it terminates. The machine's limits are
+     * checked before every block, see VirtualMachine.checkLimits, so the
+     * run may also end by a limit or a preemption, with the machine's
+     * program counter at the block to continue with.
+     * @return the final program counter
+     */
+    public int execute(int pc) {
+        dynamicMemoryManager = machine.dynamicMemoryManager();
+        activationStackManager = machine.activationStackManager();
+        tags = stack.tags;
+        payloads = stack.payloads;
+        strings = stack.strings;
+        sp = stack.size;
+        executed = machine.getExecutedInstructions();
+        checkpoint = machine.checkpoint(executed);
+        try {
+            while(pc < end) {
+                if(executed >= checkpoint) {
+                    checkpoint = machine.checkLimits(executed, pc);
+                }
+                pc = dispatch(pc);
+            }
+            return pc;
+        }
+        finally {
+            machine.setExecutedInstructions(executed);
+            stack.size = sp;
+            Arrays.fill(stack.strings, sp, stack.strings.length, null);
+        }
+    }
+
+    /**
+     * Checks the machine's limits, see VirtualMachine.checkLimits.
+     * @return the next checkpoint
+     */
+    protected final long checkLimits(long executed, int pc) {
+        return machine.checkLimits(executed, pc);
+    }
+
+    /**
+     * Called by generated code on a jump to a pc which does not start a
+     * block. This cannot happen for code produced by the code generator.
+     */
+    protected final int invalidTarget(int pc) {
+        throw new IllegalStateException("no basic block starts at " + pc);
+    }
+
+    /**
+     * Makes sure that n more elements fit on the stack.
+     */
+    protected final void ensure(int n) {
+        if(sp + n > tags.length) {
+            stack.size = sp;
+            while(sp + n > stack.tags.length) {
+                stack.grow();
+            }
+            tags = stack.tags;
+            payloads = stack.payloads;
+            strings = stack.strings;
+        }
+    }
+
+    /* checks */
+
+    private void checkTag(byte tag, byte expected, int pc) {
+        if(tag != expected) {
+            throw machine.new TypeException(pc);
+        }
+    }
+
+    private double real(byte tag, long payload, int pc) {
+        switch(tag) {
+            case OperandStack.TAG_INT:
+                return (int)payload;
+            case OperandStack.TAG_REAL:
+                return Double.longBitsToDouble(payload);
+            default:
+                throw machine.new TypeException(pc);
+        }
+    }
+
+    // if the topmost element is UNKNOWN, the instruction has no effect
+    private boolean unknown1() {
+        return tags[sp - 1] == OperandStack.TAG_UNKNOWN;
+    }
+
+    // if one of the two topmost elements is UNKNOWN, they are replaced by
+    // UNKNOWN
+    private boolean unknown2() {
+        if( tags[sp - 1] == OperandStack.TAG_UNKNOWN ||
+            tags[sp - 2] == OperandStack.TAG_UNKNOWN
+        ) {
+            sp--;
+            tags[sp - 1] = OperandStack.TAG_UNKNOWN;
+            return true;
+        }
+        return false;
+    }
+
+    private int compare(int pc) {
+        int i1 = sp - 2;
+        int i2 = sp - 1;
+        switch(tags[i1]) {
+            case OperandStack.TAG_INT:
+            case OperandStack.TAG_REAL:
+                return Double.compare(
+                        real(tags[i1], payloads[i1], pc),
+                        real(tags[i2], payloads[i2], pc)
+                );
+            case OperandStack.TAG_BOOL:
+                checkTag(tags[i2], OperandStack.TAG_BOOL, pc);
+                return Boolean.compare(payloads[i1] != 0, payloads[i2] != 0);
+            case OperandStack.TAG_CHAR:
+                checkTag(tags[i2], OperandStack.TAG_CHAR, pc);
+                return Character.compare((char)payloads[i1], (char)payloads[i2]);
+            case OperandStack.TAG_STRING:
+                checkTag(tags[i2], OperandStack.TAG_STRING, pc);
+                return strings[i1].compareTo(strings[i2]);
+            default:
+                throw machine.new TypeException(pc);
+        }
+    }
+
+    // replaces the element at index i by a bool
+    private void setBool(int i, boolean v) {
+        tags[i] = OperandStack.TAG_BOOL;
+        payloads[i] = v ? 1 : 0;
+    }
+
+    /* conversion instructions */
+
+    protected final void convertInt(int pc) {
+        if(unknown1()) return;
+        int t = sp - 1;
+        switch(tags[t]) {
+            case OperandStack.TAG_INT:
+            case OperandStack.TAG_BOOL:
+            case OperandStack.TAG_CHAR:
+                // payload already is the int, 1/0 or the unicode
+                break;
+            case OperandStack.TAG_REAL:
+                payloads[t] = (int)Double.longBitsToDouble(payloads[t]);
+                break;
+            default:
+                throw machine.new TypeException(pc);
+        }
+        tags[t] = OperandStack.TAG_INT;
+    }
+
+    protected final void convertBool(int pc) {
+        if(unknown1()) return;
+        int t = sp - 1;
+        if(tags[t] == OperandStack.TAG_INT) {
+            payloads[t] = (int)payloads[t] != 0 ? 1 : 0;
+        }
+        else if(tags[t] != OperandStack.TAG_BOOL) {
+            throw machine.new TypeException(pc);
+        }
+        tags[t] = OperandStack.TAG_BOOL;
+    }
+
+    protected final void convertReal(int pc) {
+        if(unknown1()) return;
+        int t = sp - 1;
+        if(tags[t] == OperandStack.TAG_STRING) {
+            throw machine.new TypeException(pc);
+        }
+        if(tags[t] != OperandStack.TAG_REAL) {
+            payloads[t] = Double.doubleToRawLongBits((double)payloads[t]);
+        }
+        tags[t] = OperandStack.TAG_REAL;
+    }
+
+    protected final void convertChar(int pc) {
+        if(unknown1()) return;
+        int t = sp - 1;
+        if(tags[t] == OperandStack.TAG_INT) {
+            payloads[t] = (char)payloads[t];
+        }
+        else if(tags[t] != OperandStack.TAG_CHAR) {
+            throw machine.new TypeException(pc);
+        }
+        tags[t] = OperandStack.TAG_CHAR;
+    }
+
+    protected final void convertString(int pc) {
+        if(unknown1()) return;
+        int t = sp - 1;
+        if(tags[t] == OperandStack.TAG_INT) {
+            strings[t] = Integer.toString((int)payloads[t]);
+        }
+        else if(tags[t] == OperandStack.TAG_CHAR) {
+            strings[t] = "" + (char)payloads[t];
+        }
+        else if(tags[t] != OperandStack.TAG_STRING) {
+            throw machine.new TypeException(pc);
+        }
+        tags[t] = OperandStack.TAG_STRING;
+    }
+
+    /* arithmetic instructions */
+
+    protected final void signChange(int pc) {
+        if(unknown1()) return;
+        int t = sp - 1;
+        if(tags[t] == OperandStack.TAG_INT) {
+            payloads[t] = -(int)payloads[t];
+        }
+        else if(tags[t] == OperandStack.TAG_REAL) {
+            payloads[t] = Double.doubleToRawLongBits(
+                    -Double.longBitsToDouble(payloads[t]));
+        }
+        else {
+            throw machine.new TypeException(pc);
+        }
+    }
+
+    // checks the operands of an int instruction, true if it has no effect
+    private boolean intOperands(int pc) {
+        if(unknown2()) return true;
+        checkTag(tags[sp - 2], OperandStack.TAG_INT, pc);
+        checkTag(tags[sp - 1], OperandStack.TAG_INT, pc);
+        return false;
+    }
+
+    protected final void addInt(int pc) {
+        if(intOperands(pc)) return;
+        sp--;
+        payloads[sp - 1] = (int)payloads[sp - 1] + (int)payloads[sp];
+    }
+
+    protected final void subtInt(int pc) {
+        if(intOperands(pc)) return;
+        sp--;
+        payloads[sp - 1] = (int)payloads[sp - 1] - (int)payloads[sp];
+    }
+
+    protected final void multInt(int pc) {
+        if(intOperands(pc)) return;
+        sp--;
+        payloads[sp - 1] = (int)payloads[sp - 1] * (int)payloads[sp];
+    }
+
+    protected final void divInt(int pc) {
+        if(intOperands(pc)) return;
+        sp--;
+        payloads[sp - 1] = (int)payloads[sp - 1] / (int)payloads[sp];
+    }
+
+    protected final void mod(int pc) {
+        if(intOperands(pc)) return;
+        sp--;
+        payloads[sp - 1] = (int)payloads[sp - 1] % (int)payloads[sp];
+    }
+
+    // replaces the two topmost elements by a real
+    private void pushRealResult(double v) {
+        sp--;
+        tags[sp - 1] = OperandStack.TAG_REAL;
+        payloads[sp - 1] = Double.doubleToRawLongBits(v);
+    }
+
+    protected final void addReal(int pc) {
+        if(unknown2()) return;
+        pushRealResult(
+            real(tags[sp - 2], payloads[sp - 2], pc)
+            + real(tags[sp - 1], payloads[sp - 1], pc)
+        );
+    }
+
+    protected final void subtReal(int pc) {
+        if(unknown2()) return;
+        pushRealResult(
+            real(tags[sp - 2], payloads[sp - 2], pc)
+            - real(tags[sp - 1], payloads[sp - 1], pc)
+        );
+    }
+
+    protected final void multReal(int pc) {
+        if(unknown2()) return;
+        pushRealResult(
+            real(tags[sp - 2], payloads[sp - 2], pc)
+            * real(tags[sp - 1], payloads[sp - 1], pc)
+        );
+    }
+
+    protected final void divReal(int pc) {
+        if(unknown2()) return;
+        pushRealResult(
+            real(tags[sp - 2], payloads[sp - 2], pc)
+            / real(tags[sp - 1], payloads[sp - 1], pc)
+        );
+    }
+
+    /* instructions with strings */
+
+    protected final void concatString(int pc) {
+        if(unknown2()) return;
+        checkTag(tags[sp - 2], OperandStack.TAG_STRING, pc);
+        checkTag(tags[sp - 1], OperandStack.TAG_STRING, pc);
+        sp--;
+        strings[sp - 1] = strings[sp - 1] + strings[sp];
+    }
+
+    protected final void chainElement(int pc) {
+        if(unknown2()) return;
+        checkTag(tags[sp - 2], OperandStack.TAG_STRING, pc);
+        checkTag(tags[sp - 1], OperandStack.TAG_INT, pc);
+        sp--;
+        String s = strings[sp - 1];
+        int i = (int)payloads[sp];
+        if(i < 0 || i >= s.length()) {
+            tags[sp - 1] = OperandStack.TAG_UNKNOWN;
+        }
+        else {
+            tags[sp - 1] = OperandStack.TAG_CHAR;
+            payloads[sp - 1] = s.charAt(i);
+        }
+    }
+
+    /* relational instructions */
+
+    protected final void equal(int pc) {
+        if(unknown2()) return;
+        boolean v = compare(pc) == 0;
+        setBool(--sp - 1, v);
+    }
+
+    protected final void equalPop1(int pc) {
+        if(unknown2()) return;
+        // keep op1
+        setBool(sp - 1, compare(pc) == 0);
+    }
+
+    protected final void unequal(int pc) {
+        if(unknown2()) return;
+        boolean v = compare(pc) != 0;
+        setBool(--sp - 1, v);
+    }
+
+    protected final void less(int pc) {
+        if(unknown2()) return;
+        boolean v = compare(pc) < 0;
+        setBool(--sp - 1, v);
+    }
+
+    protected final void lessEqual(int pc) {
+        if(unknown2()) return;
+        boolean v = compare(pc) <= 0;
+        setBool(--sp - 1, v);
+    }
+
+    protected final void greater(int pc) {
+        if(unknown2()) return;
+        boolean v = compare(pc) > 0;
+        setBool(--sp - 1, v);
+    }
+
+    protected final void greaterEqual(int pc) {
+        if(unknown2()) return;
+        boolean v = compare(pc) >= 0;
+        setBool(--sp - 1, v);
+    }
+
+    /* logical instructions */
+
+    protected final void not(int pc) {
+        if(unknown1()) return;
+        checkTag(tags[sp - 1], OperandStack.TAG_BOOL, pc);
+        payloads[sp - 1] ^= 1;
+    }
+
+    protected final void and(int pc) {
+        if(unknown2()) return;
+        checkTag(tags[sp - 2], OperandStack.TAG_BOOL, pc);
+        if(payloads[sp - 2] != 0) {
+            checkTag(tags[sp - 1], OperandStack.TAG_BOOL, pc);
+            payloads[sp - 2] = payloads[sp - 1];
+        }
+        sp--;
+    }
+
+    protected final void or(int pc) {
+        if(unknown2()) return;
+        checkTag(tags[sp - 2], OperandStack.TAG_BOOL, pc);
+        if(payloads[sp - 2] == 0) {
+            checkTag(tags[sp - 1], OperandStack.TAG_BOOL, pc);
+            payloads[sp - 2] = payloads[sp - 1];
+        }
+        sp--;
+    }
+
+    /* IO instructions */
+
+    protected final void write() {
+        sp--;
+        machine.getOutput().writeValue(tags[sp], payloads[sp], strings[sp]);
+    }
+
+    protected final void read(int pc, int typeConstant) {
+        stack.size = sp;
+        machine.readInput(pc, (Type)constants[typeConstant]);
+        sp = stack.size;
+        tags = stack.tags;
+        payloads = stack.payloads;
+        strings = stack.strings;
+    }
+
+    /* load and store instructions */
+
+    protected final void pushInt(int value) {
+        tags[sp] = OperandStack.TAG_INT;
+        payloads[sp++] = value;
+    }
+
+    protected final void pushBool(boolean value) {
+        tags[sp] = OperandStack.TAG_BOOL;
+        payloads[sp++] = value ? 1 : 0;
+    }
+
+    protected final void pushReal(double value) {
+        tags[sp] = OperandStack.TAG_REAL;
+        payloads[sp++] = Double.doubleToRawLongBits(value);
+    }
+
+    protected final void pushChar(char value) {
+        tags[sp] = OperandStack.TAG_CHAR;
+        payloads[sp++] = value;
+    }
+
+    protected final void pushString(int constant) {
+        tags[sp] = OperandStack.TAG_STRING;
+        strings[sp++] = (String)constants[constant];
+    }
+
+    // "desapilaInd"
+    protected final void pop2Store(int pc) {
+        checkTag(tags[sp - 2], OperandStack.TAG_INT, pc);
+        int addr = (int)payloads[sp - 2];
+        if(addr >= memory.size()) {
+            throw machine.new InvalidAddressException(pc, addr);
+        }
+        memory.store(addr, tags[sp - 1], payloads[sp - 1], strings[sp - 1]);
+        sp -= 2;
+    }
+
+    // "apilaInd"
+    protected final void popLoadPush(int pc) {
+        int t = sp - 1;
+        checkTag(tags[t], OperandStack.TAG_INT, pc);
+        int addr = (int)payloads[t];
+        if(addr >= memory.size() || addr < 0) {
+            throw machine.new InvalidAddressException(pc, addr);
+        }
+        if(!memory.isInitialized(addr)) {
+            throw machine.new UninitializedMemoryAccessException(pc, addr);
+        }
+        byte tag = memory.tag(addr);
+        tags[t] = tag;
+        if(tag == OperandStack.TAG_STRING) {
+            strings[t] = memory.string(addr);
+        }
+        else {
+            payloads[t] = memory.payload(addr);
+        }
+    }
+
+    protected final void duplicate() {
+        tags[sp] = tags[sp - 1];
+        payloads[sp] = payloads[sp - 1];
+        strings[sp] = strings[sp - 1];
+        sp++;
+    }
+
+    /* memory management instructions */
+
+    protected final void alloc(int size) {
+        pushInt(dynamicMemoryManager.alloc(size));
+    }
+
+    protected final void dealloc(int pc, int size) {
+        checkTag(tags[sp - 1], OperandStack.TAG_INT, pc);
+        dynamicMemoryManager.free((int)payloads[--sp], size);
+    }
+
+    protected final void copy(int pc, int size) {
+        checkTag(tags[sp - 1], OperandStack.TAG_INT, pc);
+        checkTag(tags[sp - 2], OperandStack.TAG_INT, pc);
+        int addrFrom = (int)payloads[sp - 1];
+        int addrTo = (int)payloads[sp - 2];
+        if(addrFrom + size > memory.size()) {
+            throw machine.new InvalidAddressException(pc, addrFrom + size);
+        }
+        if(addrTo + size > memory.size()) {
+            throw machine.new InvalidAddressException(pc, addrTo + size);
+        }
+        memory.copy(addrFrom, addrTo, size);
+        sp -= 2;
+    }
+
+    /* activation stack instructions */
+
+    protected final void activate(int level, int size, int returnAddr) {
+        int base = activationStackManager.createActivationRegister(size);
+        memory.storeInt(base, returnAddr);
+        memory.storeInt(base + 1, activationStackManager.getDisplay(level));
+        pushInt(base + 2);
+    }
+
+    protected final void deactivate(int level, int size) {
+        int base = activationStackManager.freeActivationRegister(size);
+        activationStackManager.fixDisplay(level, memory.loadInt(base + 1));
+        tags[sp] = memory.tag(base);
+        payloads[sp++] = memory.payload(base);
+    }
+
+    protected final void call(int pc, int frame) {
+        sp = machine.enter(
+                (FrameLayout)constants[frame],
+                tags,
+                payloads,
+                strings,
+                sp,
+                pc
+        );
+    }
+
+    protected final void tailCall(int pc, int frame) {
+        sp = machine.reenter(
+                (FrameLayout)constants[frame],
+                tags,
+                payloads,
+                strings,
+                sp,
+                pc
+        );
+    }
+
+    /**
+     * @return the return address
+     */
+    protected final int ret(int level, int size) {
+        return activationStackManager.popFrame(level, size);
+    }
+
+    // "setd"
+    protected final void setDisplay(int pc, int level) {
+        checkTag(tags[sp - 1], OperandStack.TAG_INT, pc);
+        activationStackManager.fixDisplay(level, (int)payloads[--sp]);
+    }
+
+    // "apilad"
+    protected final void pushDisplay(int level) {
+        pushInt(activationStackManager.getDisplay(level));
+    }
+
+    /* jump instructions */
+
+    /**
+     * Pops a bool.
+     * @return true if it was false
+     */
+    protected final boolean popFalse(int pc) {
+        checkTag(tags[sp - 1], OperandStack.TAG_BOOL, pc);
+        return payloads[--sp] == 0;
+    }
+
+    // "irind"
+    protected final int popJump(int pc) {
+        checkTag(tags[sp - 1], OperandStack.TAG_INT, pc);
+        return (int)payloads[--sp];
+    }
+
+    // the selector of a switch, the generated code switches on it
+    protected final int switchKey(int pc) {
+        byte tag = tags[sp - 1];
+        if(tag != OperandStack.TAG_INT && tag != OperandStack.TAG_CHAR) {
+            throw machine.new TypeException(pc);
+        }
+        return (int)payloads[--sp];
+    }
+
+    /* miscellaneous instructions */
+
+    protected final void inRange(int pc, int dim) {
+        checkTag(tags[sp - 1], OperandStack.TAG_INT, pc);
+        int i = (int)payloads[sp - 1];
+        if(i >= dim || i < 0) {
+            throw machine.new OutOfBoundsException(pc);
+        }
+    }
+
+    protected final void debug(int constant) {
+        machine.setDebugMsg((String)constants[constant]);
+    }
+
+    /* superinstructions */
+
+    protected final void load(int pc, int addr) {
+        if(addr >= memory.size() || addr < 0) {
+            throw machine.new InvalidAddressException(pc, addr);
+        }
+        if(!memory.isInitialized(addr)) {
+            throw machine.new UninitializedMemoryAccessException(pc, addr);
+        }
+        byte tag = memory.tag(addr);
+        tags[sp] = tag;
+        if(tag == OperandStack.TAG_STRING) {
+            strings[sp] = memory.string(addr);
+        }
+        else {
+            payloads[sp] = memory.payload(addr);
+        }
+        sp++;
+    }
+
+    protected final void store(int pc, int addr) {
+        if(addr >= memory.size()) {
+            throw machine.new InvalidAddressException(pc, addr);
+        }
+        sp--;
+        memory.store(addr, tags[sp], payloads[sp], strings[sp]);
+    }
+
+    protected final void loadLocal(int pc, int level, int dir) {
+        load(pc, activationStackManager.getDisplay(level) + dir);
+    }
+
+    protected final void storeLocal(int pc, int level, int dir) {
+        store(pc, activationStackManager.getDisplay(level) + dir);
+    }
+
+    protected final void localAddress(int level, int dir) {
+        pushInt(activationStackManager.getDisplay(level) + dir);
+    }
+
+    protected final void addImm(int pc, int value) {
+        if(unknown1()) return;
+        checkTag(tags[sp - 1], OperandStack.TAG_INT, pc);
+        payloads[sp - 1] = (int)payloads[sp - 1] + value;
+    }
+
+    protected final void duplicateAddImm(int pc, int value) {
+        duplicate();
+        addImm(pc, value);
+    }
+
+    protected final void index(int pc, int dim, int size) {
+        inRange(pc, dim);
+        sp--;
+        if(unknown1()) return;
+        checkTag(tags[sp - 1], OperandStack.TAG_INT, pc);
+        payloads[sp - 1] = (int)payloads[sp - 1] + (int)payloads[sp] * size;
+    }
+
+}
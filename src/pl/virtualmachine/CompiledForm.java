@@ -0,0 +1,32 @@
+package pl.virtualmachine;
+
+/**
+ * The threaded or JVM compiled form of a program's bytecode, see
+ * VirtualMachine.thread and VirtualMachine.compile.
+ *
+ * A form does not belong to a machine. The state of a run lives in the
+ * CompiledCode which each machine creates for the form when it loads it,
+ * and the form's code gets it as a parameter, just like the instruction
+ * objects get the machine. So the form is built once and any number of
+ * machines run it at the same time, see VirtualMachine.load(CompiledForm).
+ */
+public abstract class CompiledForm {
+
+    private final Bytecode bytecode;
+
+    CompiledForm(Bytecode bytecode) {
+        this.bytecode = bytecode;
+    }
+
+    /**
+     * @return the bytecode the form was built from
+     */
+    public Bytecode getBytecode() { return bytecode; }
+
+    /**
+     * Creates the code running the form on a machine, which holds the state
+     * of the machine's runs.
+     */
+    abstract CompiledCode bind(VirtualMachine machine);
+
+}
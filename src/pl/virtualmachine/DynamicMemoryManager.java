@@ -1,100 +1,150 @@
 package pl.virtualmachine;
 
-public class DynamicMemoryManager {
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
 
-    private final static boolean DEBUG = false;
-    
-    private Hole holes;
+/**
+ * Manages the heap of the virtual machine, i.e. the cells which are
+ * allocated by NEW and freed by DELETE.
+ *
+ * How free cells are found is up to the implementation, see
+ * FirstFitMemoryManager and SegregatedMemoryManager. Programs get the same
+ * output from both, unless they print pointers or read cells which were
+ * freed, as the blocks are placed at different addresses.
+ */
+public abstract class DynamicMemoryManager {
 
-    private static class Hole {
-        private int first;
-        private int size;
-        private Hole next;
-        public Hole(int first, int size) {
-            this.first = first;
-            this.size = size;
-            next = null;
-        }
+    // where new cells are taken from, null if the heap is fixed
+    private MemoryLayout layout;
+    // current and maximal number of cells
+    private int heapSize;
+    private int maxHeapSize;
+
+    /**
+     * Creates a manager for a heap of fixed size between two addresses.
+     * @param allocator the strategy for finding free cells
+     * @param first address of the first cell of the heap
+     * @param last address of the last cell of the heap
+     */
+    public static DynamicMemoryManager create(
+            Allocator allocator,
+            int first,
+            int last
+    ) {
+        return create(allocator, first, last, null, last - first + 1);
     }
 
-    public DynamicMemoryManager(int first, int last) {
-        holes = new Hole(first, (last - first) + 1);
-        if(DEBUG) {
-            System.out.print("START:");
-            showHoles();
-            System.out.println("----");
+    /**
+     * Creates a manager for a heap which grows when it is full. The heap
+     * gets at least as many new cells as it already has, so that the number
+     * of times it grows is logarithmic in its final size.
+     * @param allocator the strategy for finding free cells
+     * @param first address of the first cell of the initial heap
+     * @param last address of the last cell of the initial heap
+     * @param layout where new cells are taken from, null if the heap must
+     *        not grow
+     * @param maxSize the number of cells the heap may grow to
+     */
+    public static DynamicMemoryManager create(
+            Allocator allocator,
+            int first,
+            int last,
+            MemoryLayout layout,
+            int maxSize
+    ) {
+        DynamicMemoryManager manager;
+        switch(allocator) {
+            case SEGREGATED:
+                manager = new SegregatedMemoryManager(first, last);
+                break;
+            default:
+                manager = new FirstFitMemoryManager(first, last);
         }
+        manager.layout = layout;
+        manager.heapSize = last - first + 1;
+        manager.maxHeapSize = maxSize;
+        return manager;
     }
 
+    /**
+     * Available strategies for finding free cells.
+     */
+    public enum Allocator {
+        // address ordered first fit over a list of holes
+        FIRST_FIT,
+        // free lists per size for small blocks, a tree for large ones
+        SEGREGATED
+    }
+
+    /**
+     * Allocates consecutive cells, growing the heap if they do not fit.
+     * @return the address of the first cell
+     * @throws OutOfMemoryError if there are not enough consecutive free
+     *         cells and the heap must not grow any more
+     */
     public int alloc(int size) {
-        Hole h = holes;
-        Hole prev = null;
-        while(h != null && h.size < size) {
-            prev = h;
-            h = h.next;
-        }
-        if(h == null) {
-            throw new OutOfMemoryError("alloc " + size);
-        }
-        int dir = h.first;
-        h.first += size;
-        h.size -= size;
-        if(h.size == 0) {
-            if(prev == null) {
-                holes = h.next;
-            }
-            else {
-                prev.next = h.next;
+        int dir = allocate(size);
+        if(dir < 0) {
+            int grow = Math.min(
+                    Math.max(size, heapSize),
+                    maxHeapSize - heapSize
+            );
+            if(layout == null || grow < size) {
+                throw new OutOfMemoryError("alloc " + size);
             }
+            addCells(layout.extend(grow), grow);
+            heapSize += grow;
+            dir = allocate(size);
         }
-        if(DEBUG) {
-            System.out.println("alloc(" + size + ")=" + dir);
-            showHoles();
-            System.out.println("----");
-        }
-        //System.out.println("memory manager: returning cells " + dir + " to " + (dir + size) + " (excluding)");
         return dir;
     }
 
-    public void free(int dir, int size) {
-        Hole h = holes;
-        Hole prev = null;
-        while(h != null && h.first < dir) {
-            prev = h;
-            h = h.next;
-        }
-        Hole newHole = new Hole(dir, size);
-        newHole.next = h;
+    /**
+     * @return the address of the first of size consecutive free cells which
+     *         are now allocated, -1 if there are not enough
+     */
+    protected abstract int allocate(int size);
 
-        if(prev == null) {
-            holes = newHole;
-            prev = holes;
-        }
-        else {
-            prev.next = newHole;
-            newHole.next = h;
-        }
-        if(prev != null && prev.first + prev.size == newHole.first) {
-            prev.size += newHole.size;
-            prev.next = h;
-            if(h != null && prev.first + prev.size == h.first) {
-                prev.size += h.size;
-                prev.next = h.next;
-            }
-        }
-        if(DEBUG) {
-            System.out.println("free(" + dir + "," + size + ")");
-            showHoles();
-            System.out.println("----");
-        }
+    /**
+     * Adds fresh cells behind all cells of the heap.
+     */
+    protected abstract void addCells(int first, int size);
+
+    /**
+     * Frees cells which were allocated before.
+     * @param dir the address returned by alloc
+     * @param size the size passed to alloc
+     */
+    public abstract void free(int dir, int size);
+
+    /**
+     * Writes the size of the heap and its free blocks for a Snapshot.
+     */
+    void write(DataOutput out) throws IOException {
+        out.writeInt(heapSize);
+        writeFree(out);
     }
 
-    public void showHoles() {
-        Hole h = holes;
-        while(h != null) {
-            System.out.print("<" + h.first + "," + h.size + "," + (h.first + h.size - 1) + ">");
-            h = h.next;
-        }
-        System.out.println();
+    /**
+     * Restores the state written by write, on a manager of the same kind.
+     */
+    void read(ByteBuffer in) throws StreamCorruptedException {
+        heapSize = in.getInt();
+        readFree(in);
     }
+
+    /**
+     * Writes the free blocks, so that readFree restores exactly the same
+     * state and later allocations get the same addresses.
+     */
+    protected abstract void writeFree(DataOutput out) throws IOException;
+
+    /**
+     * Replaces the free blocks by the ones written by writeFree.
+     */
+    protected abstract void readFree(ByteBuffer in)
+            throws StreamCorruptedException;
+
 }
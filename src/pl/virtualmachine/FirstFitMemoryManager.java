@@ -0,0 +1,149 @@
+package pl.virtualmachine;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Address ordered first fit allocator. The holes are kept in a singly linked
+ * list sorted by address, which is walked by alloc and free.
+ */
+public class FirstFitMemoryManager extends DynamicMemoryManager {
+
+    private final static boolean DEBUG = false;
+    
+    private Hole holes;
+
+    private static class Hole {
+        private int first;
+        private int size;
+        private Hole next;
+        public Hole(int first, int size) {
+            this.first = first;
+            this.size = size;
+            next = null;
+        }
+    }
+
+    public FirstFitMemoryManager(int first, int last) {
+        holes = new Hole(first, (last - first) + 1);
+        if(DEBUG) {
+            System.out.print("START:");
+            showHoles();
+            System.out.println("----");
+        }
+    }
+
+    @Override
+    protected int allocate(int size) {
+        Hole h = holes;
+        Hole prev = null;
+        while(h != null && h.size < size) {
+            prev = h;
+            h = h.next;
+        }
+        if(h == null) {
+            return -1;
+        }
+        int dir = h.first;
+        h.first += size;
+        h.size -= size;
+        if(h.size == 0) {
+            if(prev == null) {
+                holes = h.next;
+            }
+            else {
+                prev.next = h.next;
+            }
+        }
+        if(DEBUG) {
+            System.out.println("alloc(" + size + ")=" + dir);
+            showHoles();
+            System.out.println("----");
+        }
+        //System.out.println("memory manager: returning cells " + dir + " to " + (dir + size) + " (excluding)");
+        return dir;
+    }
+
+    @Override
+    protected void addCells(int first, int size) {
+        // the new cells lie behind all holes
+        free(first, size);
+    }
+
+    @Override
+    public void free(int dir, int size) {
+        Hole h = holes;
+        Hole prev = null;
+        while(h != null && h.first < dir) {
+            prev = h;
+            h = h.next;
+        }
+        Hole newHole = new Hole(dir, size);
+        newHole.next = h;
+
+        if(prev == null) {
+            holes = newHole;
+            prev = holes;
+        }
+        else {
+            prev.next = newHole;
+            newHole.next = h;
+        }
+        if(prev != null && prev.first + prev.size == newHole.first) {
+            prev.size += newHole.size;
+            prev.next = h;
+            if(h != null && prev.first + prev.size == h.first) {
+                prev.size += h.size;
+                prev.next = h.next;
+            }
+        }
+        if(DEBUG) {
+            System.out.println("free(" + dir + "," + size + ")");
+            showHoles();
+            System.out.println("----");
+        }
+    }
+
+    // the number of holes, then the address and size of each one in the
+    // order of the list
+    @Override
+    protected void writeFree(DataOutput out) throws IOException {
+        int n = 0;
+        for(Hole h = holes; h != null; h = h.next) {
+            n++;
+        }
+        out.writeInt(n);
+        for(Hole h = holes; h != null; h = h.next) {
+            out.writeInt(h.first);
+            out.writeInt(h.size);
+        }
+    }
+
+    @Override
+    protected void readFree(ByteBuffer in) {
+        holes = null;
+        Hole last = null;
+        int n = in.getInt();
+        for(int k = 0; k < n; k++) {
+            int first = in.getInt();
+            Hole h = new Hole(first, in.getInt());
+            if(last == null) {
+                holes = h;
+            }
+            else {
+                last.next = h;
+            }
+            last = h;
+        }
+    }
+
+    public void showHoles() {
+        Hole h = holes;
+        while(h != null) {
+            System.out.print("<" + h.first + "," + h.size + "," + (h.first + h.size - 1) + ">");
+            h = h.next;
+        }
+        System.out.println();
+    }
+}
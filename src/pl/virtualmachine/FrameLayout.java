@@ -0,0 +1,46 @@
+package pl.virtualmachine;
+
+import java.util.Arrays;
+
+/**
+ * Describes the activation register of a procedure for the fused call
+ * instruction: the level of the procedure, the size of its data and where
+ * its parameters are.
+ *
+ * Before the call, the arguments are pushed in the order of the parameters.
+ * Argument k is stored in the cell display + getDir(k) of the new register.
+ * If getCopySize(k) is not 0, the argument is the address of that many cells
+ * which are copied to display + getDir(k) instead.
+ */
+public class FrameLayout {
+
+    private final int level;
+    private final int size;
+    private final int[] dirs;
+    private final int[] copySizes;
+
+    public FrameLayout(int level, int size, int[] dirs, int[] copySizes) {
+        this.level = level;
+        this.size = size;
+        this.dirs = dirs;
+        this.copySizes = copySizes;
+    }
+
+    public int getLevel() { return level; }
+    public int getSize() { return size; }
+
+    /**
+     * @return the number of parameters
+     */
+    public int getParams() { return dirs.length; }
+
+    public int getDir(int k) { return dirs[k]; }
+    public int getCopySize(int k) { return copySizes[k]; }
+
+    @Override
+    public String toString() {
+        return level + ", " + size + ", "
+            + Arrays.toString(dirs) + ", " + Arrays.toString(copySizes);
+    }
+
+}
@@ -0,0 +1,28 @@
+package pl.virtualmachine;
+
+import pl.type.Type;
+
+/**
+ * Where the machine reads the values of READ instructions from. Each READ
+ * consumes one line of the input.
+ *
+ * If the input is interactive, the machine prompts for every value and
+ * flushes its output first, see Output. Otherwise the input is read as a
+ * batch, without any prompts.
+ */
+public abstract class Input {
+
+    /**
+     * Reads the next line and pushes its value. If the line cannot be
+     * converted to the type or the input has ended, UNKNOWN is pushed.
+     * @return false if values of the type cannot be read at all, nothing is
+     *         pushed then
+     */
+    public abstract boolean read(Type type, OperandStack stack);
+
+    /**
+     * @return true if the user is prompted for each value
+     */
+    public abstract boolean isInteractive();
+
+}
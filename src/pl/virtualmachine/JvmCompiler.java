@@ -0,0 +1,455 @@
+package pl.virtualmachine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+/**
+ * Translates the bytecode of a program into a JVM class, see CompiledCode.
+ *
+ * The machine code is split into basic blocks. A block starts at pc 0, at
+ * every jump target, at every return address of an activation and after
+ * every jump. Each block becomes a method which calls the helper of each of
+ * its instructions with constant operands and returns the pc of the block
+ * to run next, while the dispatch counts the block's instructions. Long
+ * blocks are split so that the methods stay small enough to be compiled by
+ * the JIT. Switches become Java switch statements, which javac turns into a
+ * tableswitch or lookupswitch.
+ *
+ * The class is generated as Java source, compiled in memory with the system
+ * Java compiler and defined as a hidden class, so it can be unloaded together
+ * with its CompiledForm. This needs a JDK at runtime. The class does not
+ * depend on a machine: each machine running the program creates an
+ * instance of it, bound to the machine, see CompiledForm.bind.
+ */
+public class JvmCompiler {
+
+    // maximal number of instructions per generated method
+    private static final int MAX_BLOCK_SIZE = 100;
+
+    private static final String CLASS_NAME = "CompiledProgram";
+
+    private JvmCompiler() {}
+
+    /**
+     * Compiles the bytecode of a program.
+     * @param bytecode the lowered code of the program
+     * @return the compiled class, which the machines running the program
+     *         bind to themselves
+     */
+    public static CompiledForm compile(Bytecode bytecode) {
+        String source = generateSource(bytecode);
+        byte[] classBytes = compileSource(source);
+        try {
+            Class<?> c = MethodHandles.lookup()
+                    .defineHiddenClass(classBytes, true)
+                    .lookupClass();
+            return new Form(
+                    bytecode,
+                    c.getDeclaredConstructor(
+                            VirtualMachine.class,
+                            CompiledForm.class
+                    )
+            );
+        }
+        catch(ReflectiveOperationException e) {
+            throw new IllegalStateException("cannot load compiled code", e);
+        }
+    }
+
+    // the compiled class of a program
+    private static final class Form extends CompiledForm {
+
+        private final Constructor<?> constructor;
+
+        Form(Bytecode bytecode, Constructor<?> constructor) {
+            super(bytecode);
+            this.constructor = constructor;
+        }
+
+        @Override
+        CompiledCode bind(VirtualMachine machine) {
+            try {
+                return (CompiledCode)constructor.newInstance(machine, this);
+            }
+            catch(ReflectiveOperationException e) {
+                throw new IllegalStateException(
+                        "cannot load compiled code", e
+                );
+            }
+        }
+
+    }
+
+    /**
+     * @return the Java source of the class for the bytecode
+     */
+    public static String generateSource(Bytecode bytecode) {
+        int[] bc = bytecode.getCode();
+        int size = bytecode.size();
+        boolean[] leaders = findLeaders(bc, size);
+
+        StringBuilder dispatch = new StringBuilder();
+        StringBuilder blocks = new StringBuilder();
+        int start = 0;
+        while(start < size) {
+            int end = start + 1;
+            while(  end < size &&
+                    !leaders[end] &&
+                    end - start < MAX_BLOCK_SIZE &&
+                    !endsBlock(bc[(end - 1) * Bytecode.STRIDE])
+            ) {
+                end++;
+            }
+            dispatch.append("            case ").append(start)
+                    .append(": executed += ").append(end - start)
+                    .append("; return b").append(start).append("();\n");
+            generateBlock(bc, start, end, blocks);
+            // the table of a switch is part of the switch's block
+            start = end + Bytecode.tableSize(bc, end - 1);
+        }
+
+        StringBuilder src = new StringBuilder();
+        src.append("package pl.virtualmachine;\n\n");
+        src.append("final class ").append(CLASS_NAME)
+           .append(" extends CompiledCode {\n\n");
+        src.append("    public ").append(CLASS_NAME)
+           .append("(VirtualMachine m, CompiledForm f) { super(m, f); }\n\n");
+        src.append("    @Override\n");
+        src.append("    protected int dispatch(int pc) {\n");
+        src.append("        switch(pc) {\n");
+        src.append(dispatch);
+        src.append("            default: return invalidTarget(pc);\n");
+        src.append("        }\n");
+        src.append("    }\n\n");
+        src.append(blocks);
+        src.append("}\n");
+        return src.toString();
+    }
+
+    // marks the instructions starting a basic block
+    private static boolean[] findLeaders(int[] bc, int size) {
+        boolean[] leaders = new boolean[size + 1];
+        leaders[0] = true;
+        for(int pc = 0; pc < size; pc++) {
+            int i = pc * Bytecode.STRIDE;
+            int target = Bytecode.targetOperand(bc[i]);
+            if(target != 0) {
+                markLeader(leaders, bc[i + target], size);
+            }
+            if(endsBlock(bc[i])) {
+                leaders[pc + 1] = true;
+            }
+        }
+        return leaders;
+    }
+
+    private static void markLeader(boolean[] leaders, int pc, int size) {
+        if(pc >= 0 && pc <= size) {
+            leaders[pc] = true;
+        }
+    }
+
+    // true for instructions after which the control flow may not continue
+    // with the next instruction
+    private static boolean endsBlock(int opcode) {
+        switch(opcode) {
+            case Bytecode.JUMP:
+            case Bytecode.JUMP_IF_FALSE:
+            case Bytecode.JUMP_IF_TRUE:
+            case Bytecode.POP_JUMP:
+            case Bytecode.CALL:
+            case Bytecode.RETURN:
+            case Bytecode.TAIL_CALL:
+            case Bytecode.STOP:
+            case Bytecode.TABLE_SWITCH:
+            case Bytecode.LOOKUP_SWITCH:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // change of the stack size caused by an instruction
+    private static int stackEffect(int opcode) {
+        if( opcode >= Bytecode.FIRST_POP_PUSH &&
+            opcode <= Bytecode.LAST_POP_PUSH
+        ) {
+            return 0;
+        }
+        if( opcode >= Bytecode.FIRST_POP2_PUSH &&
+            opcode <= Bytecode.LAST_POP2_PUSH
+        ) {
+            return opcode == Bytecode.EQUAL_POP1 ? 0 : -1;
+        }
+        switch(opcode) {
+            case Bytecode.READ:
+            case Bytecode.PUSH_INT:
+            case Bytecode.PUSH_BOOL:
+            case Bytecode.PUSH_REAL:
+            case Bytecode.PUSH_CHAR:
+            case Bytecode.PUSH_STRING:
+            case Bytecode.DUPLICATE:
+            case Bytecode.ALLOC:
+            case Bytecode.ACTIVATE:
+            case Bytecode.DEACTIVATE:
+            case Bytecode.PUSH_DISPLAY:
+            case Bytecode.LOAD:
+            case Bytecode.LOAD_LOCAL:
+            case Bytecode.LOCAL_ADDRESS:
+            case Bytecode.DUPLICATE_ADD_IMM:
+                return 1;
+            case Bytecode.POP2_STORE:
+            case Bytecode.COPY:
+                return -2;
+            case Bytecode.WRITE:
+            case Bytecode.DEALLOC:
+            case Bytecode.SET_DISPLAY:
+            case Bytecode.JUMP_IF_FALSE:
+            case Bytecode.JUMP_IF_TRUE:
+            case Bytecode.POP_JUMP:
+            case Bytecode.STORE:
+            case Bytecode.STORE_LOCAL:
+            case Bytecode.INDEX:
+            case Bytecode.TABLE_SWITCH:
+            case Bytecode.LOOKUP_SWITCH:
+                return -1;
+            default:
+                return 0;
+        }
+    }
+
+    private static void generateBlock(
+            int[] bc,
+            int start,
+            int end,
+            StringBuilder out
+    ) {
+        // the stack is grown once per block
+        int depth = 0;
+        int maxDepth = 0;
+        for(int pc = start; pc < end; pc++) {
+            depth += stackEffect(bc[pc * Bytecode.STRIDE]);
+            maxDepth = Math.max(maxDepth, depth);
+        }
+        out.append("    private int b").append(start).append("() {\n");
+        if(maxDepth > 0) {
+            out.append("        ensure(").append(maxDepth).append(");\n");
+        }
+        boolean terminated = false;
+        for(int pc = start; pc < end; pc++) {
+            terminated = generateInstruction(bc, pc, out);
+        }
+        if(!terminated) {
+            out.append("        return ").append(end).append(";\n");
+        }
+        out.append("    }\n\n");
+    }
+
+    /**
+     * Appends the statements of one instruction.
+     * @return true if the statements always return
+     */
+    private static boolean generateInstruction(int[] bc, int pc, StringBuilder out) {
+        int i = pc * Bytecode.STRIDE;
+        int a = bc[i + 1];
+        int b = bc[i + 2];
+        int c = bc[i + 3];
+        String s;
+        switch(bc[i]) {
+            case Bytecode.CONVERT_INT: s = "convertInt(" + pc + ");"; break;
+            case Bytecode.CONVERT_BOOL: s = "convertBool(" + pc + ");"; break;
+            case Bytecode.CONVERT_REAL: s = "convertReal(" + pc + ");"; break;
+            case Bytecode.CONVERT_CHAR: s = "convertChar(" + pc + ");"; break;
+            case Bytecode.CONVERT_STRING: s = "convertString(" + pc + ");"; break;
+            case Bytecode.SIGN_CHANGE: s = "signChange(" + pc + ");"; break;
+            case Bytecode.NOT: s = "not(" + pc + ");"; break;
+            case Bytecode.ADD_INT: s = "addInt(" + pc + ");"; break;
+            case Bytecode.ADD_REAL: s = "addReal(" + pc + ");"; break;
+            case Bytecode.MULT_INT: s = "multInt(" + pc + ");"; break;
+            case Bytecode.MULT_REAL: s = "multReal(" + pc + ");"; break;
+            case Bytecode.SUBT_INT: s = "subtInt(" + pc + ");"; break;
+            case Bytecode.SUBT_REAL: s = "subtReal(" + pc + ");"; break;
+            case Bytecode.DIV_INT: s = "divInt(" + pc + ");"; break;
+            case Bytecode.DIV_REAL: s = "divReal(" + pc + ");"; break;
+            case Bytecode.REST: s = "mod(" + pc + ");"; break;
+            case Bytecode.CONCAT_STRING: s = "concatString(" + pc + ");"; break;
+            case Bytecode.CHAIN_ELEMENT: s = "chainElement(" + pc + ");"; break;
+            case Bytecode.EQUAL: s = "equal(" + pc + ");"; break;
+            case Bytecode.EQUAL_POP1: s = "equalPop1(" + pc + ");"; break;
+            case Bytecode.UNEQUAL: s = "unequal(" + pc + ");"; break;
+            case Bytecode.LESS: s = "less(" + pc + ");"; break;
+            case Bytecode.LESS_EQUAL: s = "lessEqual(" + pc + ");"; break;
+            case Bytecode.GREATER: s = "greater(" + pc + ");"; break;
+            case Bytecode.GREATER_EQUAL: s = "greaterEqual(" + pc + ");"; break;
+            case Bytecode.AND: s = "and(" + pc + ");"; break;
+            case Bytecode.OR: s = "or(" + pc + ");"; break;
+            case Bytecode.WRITE: s = "write();"; break;
+            case Bytecode.READ: s = "read(" + pc + ", " + a + ");"; break;
+            case Bytecode.PUSH_INT: s = "pushInt(" + a + ");"; break;
+            case Bytecode.PUSH_BOOL: s = "pushBool(" + (a != 0) + ");"; break;
+            case Bytecode.PUSH_REAL:
+                long bits = ((long)a << 32) | (b & 0xffffffffL);
+                s = "pushReal(Double.longBitsToDouble(0x"
+                    + Long.toHexString(bits) + "L));";
+                break;
+            case Bytecode.PUSH_CHAR: s = "pushChar((char)" + a + ");"; break;
+            case Bytecode.PUSH_STRING: s = "pushString(" + a + ");"; break;
+            case Bytecode.POP2_STORE: s = "pop2Store(" + pc + ");"; break;
+            case Bytecode.POP_LOAD_PUSH: s = "popLoadPush(" + pc + ");"; break;
+            case Bytecode.DUPLICATE: s = "duplicate();"; break;
+            case Bytecode.ALLOC: s = "alloc(" + a + ");"; break;
+            case Bytecode.DEALLOC: s = "dealloc(" + pc + ", " + a + ");"; break;
+            case Bytecode.COPY: s = "copy(" + pc + ", " + a + ");"; break;
+            case Bytecode.ACTIVATE:
+                s = "activate(" + a + ", " + b + ", " + c + ");";
+                break;
+            case Bytecode.DEACTIVATE: s = "deactivate(" + a + ", " + b + ");"; break;
+            case Bytecode.SET_DISPLAY: s = "setDisplay(" + pc + ", " + a + ");"; break;
+            case Bytecode.PUSH_DISPLAY: s = "pushDisplay(" + a + ");"; break;
+            case Bytecode.JUMP:
+                out.append("        return ").append(a).append(";\n");
+                return true;
+            case Bytecode.JUMP_IF_FALSE:
+                s = "if(popFalse(" + pc + ")) return " + a + ";";
+                break;
+            case Bytecode.JUMP_IF_TRUE:
+                s = "if(!popFalse(" + pc + ")) return " + a + ";";
+                break;
+            case Bytecode.POP_JUMP:
+                out.append("        return popJump(").append(pc).append(");\n");
+                return true;
+            case Bytecode.CALL:
+                out.append("        call(").append(pc).append(", ").append(b)
+                   .append(");\n");
+                out.append("        return ").append(a).append(";\n");
+                return true;
+            case Bytecode.TAIL_CALL:
+                out.append("        tailCall(").append(pc).append(", ").append(b)
+                   .append(");\n");
+                out.append("        return ").append(a).append(";\n");
+                return true;
+            case Bytecode.RETURN:
+                out.append("        return ret(").append(a).append(", ").append(b)
+                   .append(");\n");
+                return true;
+            case Bytecode.IN_RANGE: s = "inRange(" + pc + ", " + a + ");"; break;
+            case Bytecode.STOP:
+                out.append("        return end;\n");
+                return true;
+            case Bytecode.NOP: return false;
+            case Bytecode.DEBUG: s = "debug(" + a + ");"; break;
+            case Bytecode.LOAD: s = "load(" + pc + ", " + a + ");"; break;
+            case Bytecode.STORE: s = "store(" + pc + ", " + a + ");"; break;
+            case Bytecode.LOAD_LOCAL:
+                s = "loadLocal(" + pc + ", " + a + ", " + b + ");";
+                break;
+            case Bytecode.STORE_LOCAL:
+                s = "storeLocal(" + pc + ", " + a + ", " + b + ");";
+                break;
+            case Bytecode.LOCAL_ADDRESS: s = "localAddress(" + a + ", " + b + ");"; break;
+            case Bytecode.ADD_IMM: s = "addImm(" + pc + ", " + a + ");"; break;
+            case Bytecode.DUPLICATE_ADD_IMM:
+                s = "duplicateAddImm(" + pc + ", " + a + ");";
+                break;
+            case Bytecode.INDEX: s = "index(" + pc + ", " + a + ", " + b + ");"; break;
+            case Bytecode.TABLE_SWITCH:
+            case Bytecode.LOOKUP_SWITCH:
+                generateSwitch(bc, pc, out);
+                return true;
+            default:
+                throw new IllegalArgumentException("unknown opcode " + bc[i]);
+        }
+        out.append("        ").append(s).append("\n");
+        return false;
+    }
+
+    // appends a switch over the selector with one case per table entry
+    private static void generateSwitch(int[] bc, int pc, StringBuilder out) {
+        int i = pc * Bytecode.STRIDE;
+        out.append("        switch(switchKey(").append(pc).append(")) {\n");
+        for(int k = 1; k <= Bytecode.tableSize(bc, pc); k++) {
+            int entry = i + k * Bytecode.STRIDE;
+            out.append("            case ").append(bc[entry + 2])
+               .append(": return ").append(bc[entry + 1]).append(";\n");
+        }
+        out.append("            default: return ").append(bc[i + 1]).append(";\n");
+        out.append("        }\n");
+    }
+
+    // compiles the source of the generated class to class file bytes
+    private static byte[] compileSource(String source) {
+        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+        if(javac == null) {
+            throw new IllegalStateException(
+                "compiling to JVM code needs a JDK, no Java compiler found"
+            );
+        }
+        JavaFileObject file = new SimpleJavaFileObject(
+                URI.create("string:///pl/virtualmachine/" + CLASS_NAME + ".java"),
+                JavaFileObject.Kind.SOURCE
+        ) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return source;
+            }
+        };
+        Map<String, ByteArrayOutputStream> classes = new HashMap<>();
+        StandardJavaFileManager std = javac.getStandardFileManager(null, null, null);
+        JavaFileManager fm = new ForwardingJavaFileManager<JavaFileManager>(std) {
+            @Override
+            public JavaFileObject getJavaFileForOutput(
+                    JavaFileManager.Location location,
+                    String className,
+                    JavaFileObject.Kind kind,
+                    FileObject sibling
+            ) {
+                return new SimpleJavaFileObject(
+                        URI.create("mem:///" + className + kind.extension),
+                        kind
+                ) {
+                    @Override
+                    public OutputStream openOutputStream() {
+                        ByteArrayOutputStream out = new ByteArrayOutputStream();
+                        classes.put(className, out);
+                        return out;
+                    }
+                };
+            }
+        };
+        StringWriter errors = new StringWriter();
+        boolean ok = javac.getTask(
+                errors,
+                fm,
+                null,
+                Arrays.asList(
+                    "-classpath", System.getProperty("java.class.path"),
+                    "-g:none",
+                    "-nowarn"
+                ),
+                null,
+                Arrays.asList(file)
+        ).call();
+        if(!ok) {
+            throw new IllegalStateException(
+                "cannot compile generated code:\n" + errors
+            );
+        }
+        return classes.get("pl.virtualmachine." + CLASS_NAME).toByteArray();
+    }
+
+}
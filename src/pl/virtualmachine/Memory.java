@@ -0,0 +1,133 @@
+package pl.virtualmachine;
+
+/**
+ * The memory of the virtual machine. It spans the static area, the
+ * activation stack and the heap.
+ *
+ * Values are moved between memory and the evaluation stack without ever
+ * being boxed on the stack side. How the cells are represented is up to the
+ * implementation, see ValueMemory and TaggedMemory.
+ *
+ * Implementations do not check addresses, this is done by the machine.
+ */
+public abstract class Memory {
+
+    /**
+     * Creates a memory of the given model.
+     * @param model the representation of the cells
+     * @param size number of cells
+     */
+    public static Memory create(MemoryModel model, int size) {
+        switch(model) {
+            case TAGGED:
+                return new TaggedMemory(size);
+            default:
+                return new ValueMemory(size);
+        }
+    }
+
+    /**
+     * Available representations of the memory cells.
+     */
+    public enum MemoryModel {
+        // one boxed value object per cell
+        VALUES,
+        // parallel primitive tag and payload arrays
+        TAGGED
+    }
+
+    /**
+     * @return the number of cells
+     */
+    public abstract int size();
+
+    /**
+     * @return false if nothing was ever written to the cell
+     */
+    public abstract boolean isInitialized(int addr);
+
+    /**
+     * Pushes the content of an initialized cell onto the stack.
+     */
+    public void load(int addr, OperandStack stack) {
+        stack.push(tag(addr), payload(addr), string(addr));
+    }
+
+    /**
+     * Copies a cell into slot i of the arrays of a stack, in one call
+     * instead of one per component.
+     * @return false if the cell is uninitialized, then nothing is copied
+     */
+    public abstract boolean load(
+            int addr,
+            byte[] tags,
+            long[] payloads,
+            String[] strings,
+            int i
+    );
+
+    /**
+     * Pops the topmost element of the stack and stores it in a cell.
+     */
+    public void store(int addr, OperandStack stack) {
+        store(addr, stack.tag(0), stack.payload(0), stack.stringAt(0));
+        stack.drop(1);
+    }
+
+    /* raw access using the encoding of the OperandStack */
+
+    /**
+     * @return the tag of an initialized cell
+     */
+    public abstract byte tag(int addr);
+
+    /**
+     * @return the payload of an initialized cell
+     */
+    public abstract long payload(int addr);
+
+    /**
+     * @return the string of an initialized cell, null if it is no string
+     */
+    public abstract String string(int addr);
+
+    /**
+     * Stores a tagged value in a cell.
+     * @param string the string if tag is TAG_STRING, otherwise ignored
+     */
+    public abstract void store(int addr, byte tag, long payload, String string);
+
+    /**
+     * Reads a cell which is known to hold an int, e.g. the return address or
+     * saved display of an activation register.
+     */
+    public abstract int loadInt(int addr);
+
+    /**
+     * Writes an int to a cell.
+     */
+    public abstract void storeInt(int addr, int value);
+
+    /**
+     * Enlarges the memory, keeping the content of all cells. The new cells
+     * are uninitialized.
+     * @param size the new number of cells, not less than the current one
+     */
+    public abstract void grow(int size);
+
+    /**
+     * Makes all cells uninitialized again, keeping the size of the memory.
+     */
+    public abstract void clear();
+
+    /**
+     * Copies size cells starting at addrFrom to the cells starting at addrTo.
+     */
+    public abstract void copy(int addrFrom, int addrTo, int size);
+
+    /**
+     * @return the string representation of a cell, "null" if uninitialized
+     */
+    public abstract String toString(int addr);
+
+}
@@ -0,0 +1,56 @@
+package pl.virtualmachine;
+
+/**
+ * Keeps track of which cells of the memory belong to a region.
+ *
+ * The static area comes first, followed by the initial activation stack and
+ * the initial heap. When the activation stack or the heap is full and may
+ * grow, it gets a block of fresh cells from the end of the memory. The
+ * memory is enlarged by doubling, which copies the cells but keeps their
+ * addresses, so pointers and references stay valid. As the blocks of both
+ * regions are interleaved, neither of them is ever moved.
+ */
+public class MemoryLayout {
+
+    private Memory memory;
+    // first cell which belongs to no region
+    private int end;
+
+    /**
+     * @param end number of cells given to the initial regions
+     */
+    public MemoryLayout(Memory memory, int end) {
+        this.memory = memory;
+        this.end = end;
+    }
+
+    /**
+     * Appends fresh cells to the memory.
+     * @return the address of the first new cell
+     */
+    public int extend(int size) {
+        int first = end;
+        end += size;
+        if(end > memory.size()) {
+            memory.grow(Math.max(end, 2 * memory.size()));
+        }
+        return first;
+    }
+
+    /**
+     * @return the number of cells given to regions
+     */
+    public int end() { return end; }
+
+    /**
+     * Gives the cells up to end to the regions, e.g. when a Snapshot is
+     * restored, enlarging the memory if necessary.
+     */
+    void setEnd(int end) {
+        this.end = end;
+        if(end > memory.size()) {
+            memory.grow(end);
+        }
+    }
+
+}
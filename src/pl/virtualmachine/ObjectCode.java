@@ -0,0 +1,369 @@
+package pl.virtualmachine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import pl.type.Type;
+
+/**
+ * Binary object format of a machine program, so that a program which has
+ * not changed can be run without compiling it again.
+ *
+ * All numbers are big endian. The file consists of:
+ *  - the header: MAGIC, VERSION (short), flags (byte), the size of the
+ *    static memory and the number of displays,
+ *  - the constant pool: the number of constants, then each one as its kind
+ *    (byte) followed by a string (length and UTF-8 bytes), a type (byte) or
+ *    a frame layout (level, size, number of parameters, then address and
+ *    copy size of each parameter),
+ *  - the debug table, only if FLAG_DEBUG is set: the number of entries,
+ *    then the position of each DEBUG instruction and the constant holding
+ *    its message,
+ *  - the code: the number of instructions, then each one as its opcode
+ *    (byte) followed only by the operands it uses.
+ *
+ * Without the debug table, DEBUG instructions are loaded as NOP, so that no
+ * jump target moves. Equal constants are stored once.
+ */
+public class ObjectCode {
+
+    public static final int MAGIC = 0x504c4243;
+    public static final int VERSION = 1;
+
+    public static final int FLAG_DEBUG = 1;
+
+    private static final byte CONSTANT_STRING = 0;
+    private static final byte CONSTANT_TYPE = 1;
+    private static final byte CONSTANT_FRAME = 2;
+
+    // the types READ instructions may refer to, by their number in the file
+    private static final Type[] TYPES = {
+        Type.INT, Type.BOOL, Type.REAL, Type.CHAR, Type.STRING
+    };
+
+    private final Bytecode bytecode;
+    private final int staticMemorySize;
+    private final int displays;
+
+    public ObjectCode(Bytecode bytecode, int staticMemorySize, int displays) {
+        this.bytecode = bytecode;
+        this.staticMemorySize = staticMemorySize;
+        this.displays = displays;
+    }
+
+    /**
+     * Takes the code of a machine in its lowered form.
+     */
+    public static ObjectCode of(VirtualMachine machine) {
+        return new ObjectCode(
+                machine.lowered(),
+                machine.getStaticMemorySize(),
+                machine.getNumberOfDisplays()
+        );
+    }
+
+    public Bytecode getBytecode() { return bytecode; }
+    public int getStaticMemorySize() { return staticMemorySize; }
+    public int getNumberOfDisplays() { return displays; }
+
+    /**
+     * @return the number of operands an instruction stores in the file, the
+     *         message of DEBUG is stored in the debug table instead
+     */
+    private static int operands(int opcode) {
+        switch(opcode) {
+            case Bytecode.READ:
+            case Bytecode.PUSH_INT:
+            case Bytecode.PUSH_BOOL:
+            case Bytecode.PUSH_CHAR:
+            case Bytecode.PUSH_STRING:
+            case Bytecode.ALLOC:
+            case Bytecode.DEALLOC:
+            case Bytecode.COPY:
+            case Bytecode.SET_DISPLAY:
+            case Bytecode.PUSH_DISPLAY:
+            case Bytecode.JUMP:
+            case Bytecode.JUMP_IF_FALSE:
+            case Bytecode.JUMP_IF_TRUE:
+            case Bytecode.IN_RANGE:
+            case Bytecode.LOAD:
+            case Bytecode.STORE:
+            case Bytecode.ADD_IMM:
+            case Bytecode.DUPLICATE_ADD_IMM:
+                return 1;
+            case Bytecode.PUSH_REAL:
+            case Bytecode.DEACTIVATE:
+            case Bytecode.LOAD_LOCAL:
+            case Bytecode.STORE_LOCAL:
+            case Bytecode.LOCAL_ADDRESS:
+            case Bytecode.INDEX:
+            case Bytecode.LOOKUP_SWITCH:
+            case Bytecode.SWITCH_CASE:
+            case Bytecode.CALL:
+            case Bytecode.RETURN:
+            case Bytecode.TAIL_CALL:
+                return 2;
+            case Bytecode.ACTIVATE:
+            case Bytecode.TABLE_SWITCH:
+                return 3;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * @return the index (1 to 3) of the operand referring to the constant
+     *         pool, 0 if the instruction has none
+     */
+    private static int constantOperand(int opcode) {
+        switch(opcode) {
+            case Bytecode.READ:
+            case Bytecode.PUSH_STRING:
+            case Bytecode.DEBUG:
+                return 1;
+            case Bytecode.CALL:
+            case Bytecode.TAIL_CALL:
+                return 2;
+            default:
+                return 0;
+        }
+    }
+
+    /* writing */
+
+    /**
+     * Writes the object code to a file, replacing it.
+     * @param debug if the debug table is written
+     */
+    public void write(Path file, boolean debug) throws IOException {
+        try(OutputStream out = Files.newOutputStream(file)) {
+            write(out, debug);
+        }
+    }
+
+    /**
+     * Writes the object code to a stream.
+     * @param debug if the debug table is written
+     */
+    public void write(OutputStream stream, boolean debug) throws IOException {
+        int[] bc = bytecode.getCode();
+        Object[] constants = bytecode.getConstants();
+
+        // the pool of the file, with each constant only once
+        Map<Object, Integer> pool = new HashMap<>();
+        List<Object> poolOrder = new ArrayList<>();
+        int[] poolIndex = new int[constants.length];
+        List<Integer> debugPcs = new ArrayList<>();
+        for(int pc = 0; pc < bytecode.size(); pc++) {
+            int op = bc[pc * Bytecode.STRIDE];
+            int k = constantOperand(op);
+            if(k == 0 || op == Bytecode.DEBUG && !debug) {
+                continue;
+            }
+            int c = bc[pc * Bytecode.STRIDE + k];
+            Integer index = pool.get(constants[c]);
+            if(index == null) {
+                index = poolOrder.size();
+                pool.put(constants[c], index);
+                poolOrder.add(constants[c]);
+            }
+            poolIndex[c] = index;
+            if(op == Bytecode.DEBUG) {
+                debugPcs.add(pc);
+            }
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeByte(debug ? FLAG_DEBUG : 0);
+        out.writeInt(staticMemorySize);
+        out.writeInt(displays);
+
+        out.writeInt(poolOrder.size());
+        for(Object constant : poolOrder) {
+            writeConstant(out, constant);
+        }
+
+        if(debug) {
+            out.writeInt(debugPcs.size());
+            for(int pc : debugPcs) {
+                out.writeInt(pc);
+                out.writeInt(poolIndex[bc[pc * Bytecode.STRIDE + 1]]);
+            }
+        }
+
+        out.writeInt(bytecode.size());
+        for(int pc = 0; pc < bytecode.size(); pc++) {
+            int i = pc * Bytecode.STRIDE;
+            int op = bc[i];
+            out.writeByte(op);
+            int k = constantOperand(op);
+            for(int j = 1; j <= operands(op); j++) {
+                out.writeInt(j == k ? poolIndex[bc[i + j]] : bc[i + j]);
+            }
+        }
+        out.flush();
+        bytes.writeTo(stream);
+    }
+
+    private static void writeConstant(DataOutputStream out, Object constant)
+            throws IOException {
+        if(constant instanceof String) {
+            byte[] utf8 = ((String)constant).getBytes(StandardCharsets.UTF_8);
+            out.writeByte(CONSTANT_STRING);
+            out.writeInt(utf8.length);
+            out.write(utf8);
+        }
+        else if(constant instanceof Type) {
+            out.writeByte(CONSTANT_TYPE);
+            out.writeByte(typeNumber((Type)constant));
+        }
+        else {
+            FrameLayout frame = (FrameLayout)constant;
+            out.writeByte(CONSTANT_FRAME);
+            out.writeInt(frame.getLevel());
+            out.writeInt(frame.getSize());
+            out.writeInt(frame.getParams());
+            for(int k = 0; k < frame.getParams(); k++) {
+                out.writeInt(frame.getDir(k));
+                out.writeInt(frame.getCopySize(k));
+            }
+        }
+    }
+
+    private static int typeNumber(Type type) {
+        for(int k = 0; k < TYPES.length; k++) {
+            if(TYPES[k] == type) {
+                return k;
+            }
+        }
+        throw new IllegalArgumentException("type cannot be read: " + type);
+    }
+
+    /* reading */
+
+    /**
+     * Reads the object code from a file, which is mapped into memory rather
+     * than copied.
+     */
+    public static ObjectCode read(Path file) throws IOException {
+        try(FileChannel channel = FileChannel.open(
+                file, StandardOpenOption.READ)) {
+            return read(channel.map(
+                    FileChannel.MapMode.READ_ONLY, 0, channel.size()
+            ));
+        }
+    }
+
+    /**
+     * Reads the object code from the buffer's position on.
+     * @throws StreamCorruptedException if the content is no object code of
+     *         this version
+     */
+    public static ObjectCode read(ByteBuffer in) throws IOException {
+        try {
+            if(in.getInt() != MAGIC || in.getShort() != VERSION) {
+                throw new StreamCorruptedException("no object code");
+            }
+            boolean debug = (in.get() & FLAG_DEBUG) != 0;
+            int staticMemorySize = in.getInt();
+            int displays = in.getInt();
+
+            Bytecode b = new Bytecode();
+            int constants = in.getInt();
+            for(int k = 0; k < constants; k++) {
+                b.constant(readConstant(in));
+            }
+
+            // message constant of each DEBUG instruction, by position
+            Map<Integer, Integer> messages = new HashMap<>();
+            if(debug) {
+                int entries = in.getInt();
+                for(int k = 0; k < entries; k++) {
+                    messages.put(in.getInt(), in.getInt());
+                }
+            }
+
+            int size = in.getInt();
+            int[] operand = new int[4];
+            for(int pc = 0; pc < size; pc++) {
+                int op = in.get();
+                // TAIL_CALL is the last opcode
+                if(op < 0 || op > Bytecode.TAIL_CALL) {
+                    throw new StreamCorruptedException("opcode " + op);
+                }
+                operand[1] = operand[2] = operand[3] = 0;
+                for(int j = 1; j <= operands(op); j++) {
+                    operand[j] = in.getInt();
+                }
+                int k = constantOperand(op);
+                if(k != 0 && op != Bytecode.DEBUG &&
+                   (operand[k] < 0 || operand[k] >= constants)
+                ) {
+                    throw new StreamCorruptedException("constant " + operand[k]);
+                }
+                if(op == Bytecode.DEBUG) {
+                    Integer message = messages.get(pc);
+                    if(message == null) {
+                        b.emit(Bytecode.NOP);
+                        continue;
+                    }
+                    operand[1] = message;
+                }
+                b.emit(op, operand[1], operand[2], operand[3]);
+            }
+            return new ObjectCode(b, staticMemorySize, displays);
+        }
+        catch(BufferUnderflowException | NegativeArraySizeException e) {
+            throw new StreamCorruptedException("truncated object code");
+        }
+    }
+
+    private static Object readConstant(ByteBuffer in) throws IOException {
+        byte kind = in.get();
+        switch(kind) {
+            case CONSTANT_STRING: {
+                byte[] utf8 = new byte[in.getInt()];
+                in.get(utf8);
+                return new String(utf8, StandardCharsets.UTF_8);
+            }
+            case CONSTANT_TYPE: {
+                int type = in.get();
+                if(type < 0 || type >= TYPES.length) {
+                    throw new StreamCorruptedException("type " + type);
+                }
+                return TYPES[type];
+            }
+            case CONSTANT_FRAME: {
+                int level = in.getInt();
+                int size = in.getInt();
+                int params = in.getInt();
+                int[] dirs = new int[params];
+                int[] copySizes = new int[params];
+                for(int k = 0; k < params; k++) {
+                    dirs[k] = in.getInt();
+                    copySizes[k] = in.getInt();
+                }
+                return new FrameLayout(level, size, dirs, copySizes);
+            }
+            default:
+                throw new StreamCorruptedException("constant kind " + kind);
+        }
+    }
+
+}
@@ -0,0 +1,150 @@
+package pl.virtualmachine;
+
+import java.util.Arrays;
+
+/**
+ * The evaluation stack of the virtual machine.
+ *
+ * Unlike java.util.Stack it is not synchronized and it does not box its
+ * values. Every slot consists of a tag telling the type of the value and a
+ * primitive payload:
+ *      int, char:  the value widened to long
+ *      bool:       1 if true, 0 if false
+ *      real:       the raw long bits of the double
+ *      string:     no payload, the reference is kept in a parallel array
+ *      unknown:    no payload
+ *
+ * The stack does not check types, this is left to the machine which knows
+ * the program counter for its error messages.
+ */
+public class OperandStack {
+
+    public static final byte TAG_INT = 0;
+    public static final byte TAG_BOOL = 1;
+    public static final byte TAG_REAL = 2;
+    public static final byte TAG_CHAR = 3;
+    public static final byte TAG_STRING = 4;
+    public static final byte TAG_UNKNOWN = 5;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    // package private, so the bytecode interpreter of the machine can keep
+    // them in local variables
+    byte[] tags;
+    long[] payloads;
+    String[] strings;
+
+    // number of elements on the stack
+    int size;
+
+    public OperandStack() {
+        tags = new byte[INITIAL_CAPACITY];
+        payloads = new long[INITIAL_CAPACITY];
+        strings = new String[INITIAL_CAPACITY];
+        size = 0;
+    }
+
+    /* push */
+
+    public void pushInt(int value) { push(TAG_INT, value, null); }
+    public void pushBool(boolean value) { push(TAG_BOOL, value ? 1 : 0, null); }
+    public void pushReal(double value) {
+        push(TAG_REAL, Double.doubleToRawLongBits(value), null);
+    }
+    public void pushChar(char value) { push(TAG_CHAR, value, null); }
+    public void pushString(String value) { push(TAG_STRING, 0, value); }
+    public void pushUnknown() { push(TAG_UNKNOWN, 0, null); }
+
+    /**
+     * Pushes a raw slot, e.g. one that was loaded from memory.
+     * @param tag the type of the value
+     * @param payload the primitive bits of the value
+     * @param string the string if tag is TAG_STRING, otherwise ignored
+     */
+    public void push(byte tag, long payload, String string) {
+        if(size == tags.length) {
+            grow();
+        }
+        tags[size] = tag;
+        payloads[size] = payload;
+        strings[size] = tag == TAG_STRING ? string : null;
+        size++;
+    }
+
+    /**
+     * Pushes a copy of the topmost element.
+     */
+    public void duplicate() {
+        push(tags[size - 1], payloads[size - 1], strings[size - 1]);
+    }
+
+    /* peek - depth 0 is the topmost element, depth 1 the one below ... */
+
+    public byte tag(int depth) { return tags[size - 1 - depth]; }
+    public long payload(int depth) { return payloads[size - 1 - depth]; }
+    public int intAt(int depth) { return (int)payloads[size - 1 - depth]; }
+    public boolean boolAt(int depth) { return payloads[size - 1 - depth] != 0; }
+    public double realAt(int depth) {
+        return Double.longBitsToDouble(payloads[size - 1 - depth]);
+    }
+    public char charAt(int depth) { return (char)payloads[size - 1 - depth]; }
+    public String stringAt(int depth) { return strings[size - 1 - depth]; }
+
+    /* pop */
+
+    /**
+     * Removes the n topmost elements without looking at them.
+     */
+    public void drop(int n) {
+        for(int i = 0; i < n; i++) {
+            strings[--size] = null;
+        }
+    }
+
+    public int size() { return size; }
+    public boolean isEmpty() { return size == 0; }
+
+    /**
+     * Empties the stack. The allocated slots are kept for reuse.
+     */
+    public void clear() {
+        Arrays.fill(strings, 0, size, null);
+        size = 0;
+    }
+
+    /**
+     * Returns the string representation of the element at the specified
+     * position, counted from the bottom of the stack.
+     */
+    public String toString(int index) {
+        return format(tags[index], payloads[index], strings[index]);
+    }
+
+    /**
+     * Formats a tagged value the way the machine prints it.
+     */
+    public static String format(byte tag, long payload, String string) {
+        switch(tag) {
+            case TAG_INT:
+                return String.valueOf((int)payload);
+            case TAG_BOOL:
+                return String.valueOf(payload != 0);
+            case TAG_REAL:
+                return String.valueOf(Double.longBitsToDouble(payload));
+            case TAG_CHAR:
+                return "'" + String.valueOf((char)payload) + "'";
+            case TAG_STRING:
+                return "\"" + string + "\"";
+            default:
+                return "?";
+        }
+    }
+
+    void grow() {
+        int capacity = tags.length * 2;
+        tags = Arrays.copyOf(tags, capacity);
+        payloads = Arrays.copyOf(payloads, capacity);
+        strings = Arrays.copyOf(strings, capacity);
+    }
+
+}
@@ -0,0 +1,29 @@
+package pl.virtualmachine;
+
+/**
+ * Where the machine writes the values of WRITE instructions and the prompts
+ * of READ instructions. The machine flushes its output before it reads
+ * input and whenever a run ends, be it by STOP or by an exception, so
+ * implementations may hold back everything written in between.
+ *
+ * Values are passed the way the operand stack stores them and are printed
+ * like OperandStack.format does.
+ */
+public abstract class Output {
+
+    /**
+     * Writes "<< ", the value and a line break.
+     */
+    public abstract void writeValue(byte tag, long payload, String string);
+
+    /**
+     * Writes a text as it is, without a line break.
+     */
+    public abstract void writeText(String text);
+
+    /**
+     * Passes everything written so far on to the destination.
+     */
+    public abstract void flush();
+
+}
@@ -0,0 +1,285 @@
+package pl.virtualmachine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Rewrites generated machine code by applying a set of PeepholeRules until
+ * none of them applies anymore.
+ *
+ * The optimizer works on the bytecode form of the code, see
+ * VirtualMachine.optimize(). Rules only mark instructions as removed, the
+ * code is compacted after every sweep of a rule. A jump to a removed
+ * instruction then continues at the next instruction which was kept, so
+ * jump targets and return addresses stay consistent.
+ *
+ * For every rule, the optimizer counts how often it was applied and how many
+ * instructions it removed.
+ */
+public class PeepholeOptimizer {
+
+    private List<PeepholeRule> rules;
+    private int[] applied;
+    private int[] removed;
+
+    /**
+     * Constructs an optimizer with the default rules, see
+     * PeepholeRule.defaults().
+     */
+    public PeepholeOptimizer() {
+        this(PeepholeRule.defaults());
+    }
+
+    /**
+     * @param rules the rules to apply, in this order
+     */
+    public PeepholeOptimizer(List<PeepholeRule> rules) {
+        this.rules = new ArrayList<>(rules);
+        applied = new int[rules.size()];
+        removed = new int[rules.size()];
+    }
+
+    /**
+     * Optimizes a program.
+     * @return the optimized program, sharing the constant pool of the
+     *         original one
+     */
+    public Bytecode optimize(Bytecode bytecode) {
+        Code code = new Code(bytecode);
+        boolean changed;
+        do {
+            changed = false;
+            for(int r = 0; r < rules.size(); r++) {
+                code.findTargets();
+                int before = code.removed;
+                for(int i = 0; i < code.size; i++) {
+                    if(!code.isRemoved(i) && rules.get(r).apply(code, i)) {
+                        applied[r]++;
+                        changed = true;
+                    }
+                }
+                removed[r] += code.removed - before;
+                code.compact();
+            }
+        } while(changed);
+        return code.toBytecode(bytecode.getConstants());
+    }
+
+    public List<PeepholeRule> getRules() { return rules; }
+
+    /**
+     * @return the number of instructions removed by a rule
+     */
+    public int getRemoved(PeepholeRule rule) {
+        return removed[rules.indexOf(rule)];
+    }
+
+    /**
+     * @return the number of times a rule was applied
+     */
+    public int getApplied(PeepholeRule rule) {
+        return applied[rules.indexOf(rule)];
+    }
+
+    /**
+     * @return the number of instructions removed by all rules
+     */
+    public int getRemoved() {
+        int sum = 0;
+        for(int r : removed) {
+            sum += r;
+        }
+        return sum;
+    }
+
+    /**
+     * Prints how often each rule was applied and how many instructions it
+     * removed.
+     */
+    public void printReport() {
+        System.out.println("Peephole optimization:");
+        for(int r = 0; r < rules.size(); r++) {
+            System.out.println(String.format(
+                    " %-20s applied %6d, removed %6d",
+                    rules.get(r).getName(), applied[r], removed[r]
+            ));
+        }
+        System.out.println(" total removed: " + getRemoved());
+    }
+
+    /**
+     * The code being optimized, as seen by the rules. Instructions are
+     * addressed by their position in the code before the current sweep.
+     */
+    public static class Code {
+
+        private int[] opcodes;
+        private int[][] operands;
+        private boolean[] removedMarks;
+        private boolean[] targets;
+        private int size;
+        private int removed;
+
+        private Code(Bytecode bytecode) {
+            int[] bc = bytecode.getCode();
+            size = bytecode.size();
+            opcodes = new int[size];
+            operands = new int[size][3];
+            for(int pc = 0; pc < size; pc++) {
+                int i = pc * Bytecode.STRIDE;
+                opcodes[pc] = bc[i];
+                operands[pc][0] = bc[i + 1];
+                operands[pc][1] = bc[i + 2];
+                operands[pc][2] = bc[i + 3];
+            }
+            removedMarks = new boolean[size];
+            targets = new boolean[size + 1];
+        }
+
+        /**
+         * @return the number of instructions, including removed ones
+         */
+        public int size() { return size; }
+
+        public int opcode(int pc) { return opcodes[pc]; }
+
+        /**
+         * @param k 1, 2 or 3
+         */
+        public int operand(int pc, int k) { return operands[pc][k - 1]; }
+
+        public boolean isRemoved(int pc) { return removedMarks[pc]; }
+
+        /**
+         * @return true if a jump or a return may continue at pc. This also
+         *         holds if the target is a removed instruction right before
+         *         pc.
+         */
+        public boolean isTarget(int pc) {
+            if(targets[pc]) {
+                return true;
+            }
+            for(int i = pc - 1; i >= 0 && removedMarks[i]; i--) {
+                if(targets[i]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @return the position of the next instruction which was not
+         *         removed, size() if there is none
+         */
+        public int next(int pc) {
+            pc++;
+            while(pc < size && removedMarks[pc]) {
+                pc++;
+            }
+            return pc;
+        }
+
+        /**
+         * @return the position of the previous instruction which was not
+         *         removed, -1 if there is none
+         */
+        public int previous(int pc) {
+            pc--;
+            while(pc >= 0 && removedMarks[pc]) {
+                pc--;
+            }
+            return pc;
+        }
+
+        /**
+         * Replaces an instruction.
+         */
+        public void set(int pc, int opcode, int a, int b, int c) {
+            opcodes[pc] = opcode;
+            operands[pc][0] = a;
+            operands[pc][1] = b;
+            operands[pc][2] = c;
+        }
+
+        public void set(int pc, int opcode, int a) { set(pc, opcode, a, 0, 0); }
+
+        /**
+         * Changes one operand of an instruction.
+         */
+        public void setOperand(int pc, int k, int value) {
+            operands[pc][k - 1] = value;
+        }
+
+        /**
+         * Removes an instruction. Jumps to it continue at the next
+         * instruction.
+         */
+        public void remove(int pc) {
+            if(!removedMarks[pc]) {
+                removedMarks[pc] = true;
+                removed++;
+            }
+        }
+
+        // marks the targets of all jumps and return addresses
+        private void findTargets() {
+            Arrays.fill(targets, false);
+            for(int pc = 0; pc < size; pc++) {
+                int k = Bytecode.targetOperand(opcodes[pc]);
+                if(!removedMarks[pc] && k != 0) {
+                    int target = operands[pc][k - 1];
+                    if(target >= 0 && target <= size) {
+                        targets[target] = true;
+                    }
+                }
+            }
+        }
+
+        // drops the removed instructions and fixes all code positions
+        private void compact() {
+            // new position of every old position: the number of instructions
+            // kept before it
+            int[] positions = new int[size + 1];
+            int kept = 0;
+            for(int pc = 0; pc < size; pc++) {
+                positions[pc] = kept;
+                if(!removedMarks[pc]) {
+                    opcodes[kept] = opcodes[pc];
+                    operands[kept] = operands[pc];
+                    kept++;
+                }
+            }
+            positions[size] = kept;
+            for(int pc = 0; pc < kept; pc++) {
+                int k = Bytecode.targetOperand(opcodes[pc]);
+                if(k != 0) {
+                    int target = operands[pc][k - 1];
+                    if(target >= 0 && target <= size) {
+                        operands[pc][k - 1] = positions[target];
+                    }
+                }
+            }
+            size = kept;
+            Arrays.fill(removedMarks, false);
+        }
+
+        private Bytecode toBytecode(Object[] constants) {
+            Bytecode b = new Bytecode();
+            for(Object c : constants) {
+                b.constant(c);
+            }
+            for(int pc = 0; pc < size; pc++) {
+                b.emit(
+                        opcodes[pc],
+                        operands[pc][0],
+                        operands[pc][1],
+                        operands[pc][2]
+                );
+            }
+            return b;
+        }
+
+    }
+
+}
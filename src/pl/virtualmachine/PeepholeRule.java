@@ -0,0 +1,278 @@
+package pl.virtualmachine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A rewriting rule of the PeepholeOptimizer. A rule looks at the instruction
+ * at a given position and the ones following it and replaces or removes
+ * them if they match its pattern. Every rule must preserve the semantics of
+ * the code, including UNKNOWN and runtime errors.
+ */
+public abstract class PeepholeRule {
+
+    /**
+     * @return a short name for reports
+     */
+    public abstract String getName();
+
+    /**
+     * Tries to apply the rule at an instruction which was not removed.
+     * @return true if the code was changed
+     */
+    public abstract boolean apply(PeepholeOptimizer.Code code, int pc);
+
+    @Override
+    public String toString() { return getName(); }
+
+    /**
+     * @return the rules which are used by default. They keep all debugging
+     *         information.
+     */
+    public static List<PeepholeRule> defaults() {
+        return new ArrayList<>(Arrays.asList(
+                new RemoveNop(),
+                new RemoveDeadDebug(),
+                new FoldConstants(),
+                new ThreadJumps(),
+                new RemoveJumpToNext(),
+                new RemoveUnreachable()
+        ));
+    }
+
+    /**
+     * @return the default rules plus StripDebug, for release builds
+     */
+    public static List<PeepholeRule> release() {
+        List<PeepholeRule> rules = defaults();
+        rules.add(1, new StripDebug());
+        return rules;
+    }
+
+    // skips debug instructions which are no jump targets, so that patterns
+    // can match across them
+    private static int skipDebug(PeepholeOptimizer.Code code, int pc) {
+        while(  pc < code.size() &&
+                code.opcode(pc) == Bytecode.DEBUG &&
+                !code.isTarget(pc)
+        ) {
+            pc = code.next(pc);
+        }
+        return pc;
+    }
+
+    /**
+     * Removes nop.
+     */
+    public static class RemoveNop extends PeepholeRule {
+        @Override
+        public String getName() { return "removeNop"; }
+        @Override
+        public boolean apply(PeepholeOptimizer.Code code, int pc) {
+            if(code.opcode(pc) != Bytecode.NOP) {
+                return false;
+            }
+            code.remove(pc);
+            return true;
+        }
+    }
+
+    /**
+     * Removes a debug instruction which is directly followed by another one,
+     * as its message is overwritten before anything can go wrong.
+     */
+    public static class RemoveDeadDebug extends PeepholeRule {
+        @Override
+        public String getName() { return "removeDeadDebug"; }
+        @Override
+        public boolean apply(PeepholeOptimizer.Code code, int pc) {
+            int next = code.next(pc);
+            if( code.opcode(pc) != Bytecode.DEBUG ||
+                next >= code.size() ||
+                code.opcode(next) != Bytecode.DEBUG
+            ) {
+                return false;
+            }
+            code.remove(pc);
+            return true;
+        }
+    }
+
+    /**
+     * Removes all debug instructions. Runtime errors are reported without
+     * their position in the source code afterwards.
+     */
+    public static class StripDebug extends PeepholeRule {
+        @Override
+        public String getName() { return "stripDebug"; }
+        @Override
+        public boolean apply(PeepholeOptimizer.Code code, int pc) {
+            if(code.opcode(pc) != Bytecode.DEBUG) {
+                return false;
+            }
+            code.remove(pc);
+            return true;
+        }
+    }
+
+    /**
+     * Evaluates integer arithmetic and comparisons on constants and turns
+     * constant operands of additions into immediates:
+     *      pushInt(a); pushInt(b); addInt     --> pushInt(a + b)
+     *      pushInt(a); pushInt(b); less       --> pushBool(a < b)
+     *      pushInt(a); addImm(b)              --> pushInt(a + b)
+     *      pushInt(b); addInt                 --> addImm(b)
+     *      addImm(a); addImm(b)               --> addImm(a + b)
+     *      addImm(0)                          --> (nothing)
+     * Debug instructions in between are kept. Divisions by zero are left to
+     * fail at runtime.
+     */
+    public static class FoldConstants extends PeepholeRule {
+        @Override
+        public String getName() { return "foldConstants"; }
+        @Override
+        public boolean apply(PeepholeOptimizer.Code code, int pc) {
+            int op = code.opcode(pc);
+            if(op == Bytecode.ADD_IMM && code.operand(pc, 1) == 0) {
+                code.remove(pc);
+                return true;
+            }
+            if(op != Bytecode.PUSH_INT && op != Bytecode.ADD_IMM) {
+                return false;
+            }
+            int a = code.operand(pc, 1);
+            int second = skipDebug(code, code.next(pc));
+            if(second >= code.size() || code.isTarget(second)) {
+                return false;
+            }
+            int op2 = code.opcode(second);
+            // pushInt(a); addImm(b) and addImm(a); addImm(b)
+            if(op2 == Bytecode.ADD_IMM) {
+                code.set(second, op, a + code.operand(second, 1));
+                code.remove(pc);
+                return true;
+            }
+            if(op != Bytecode.PUSH_INT) {
+                return false;
+            }
+            // pushInt(b); addInt
+            if(op2 == Bytecode.ADD_INT) {
+                code.set(second, Bytecode.ADD_IMM, a);
+                code.remove(pc);
+                return true;
+            }
+            if(op2 != Bytecode.PUSH_INT) {
+                return false;
+            }
+            int b = code.operand(second, 1);
+            int third = skipDebug(code, code.next(second));
+            if(third >= code.size() || code.isTarget(third)) {
+                return false;
+            }
+            int result;
+            int resultOp = Bytecode.PUSH_INT;
+            switch(code.opcode(third)) {
+                case Bytecode.ADD_INT: result = a + b; break;
+                case Bytecode.SUBT_INT: result = a - b; break;
+                case Bytecode.MULT_INT: result = a * b; break;
+                case Bytecode.DIV_INT:
+                    if(b == 0) return false;
+                    result = a / b;
+                    break;
+                case Bytecode.REST:
+                    if(b == 0) return false;
+                    result = a % b;
+                    break;
+                default:
+                    resultOp = Bytecode.PUSH_BOOL;
+                    switch(code.opcode(third)) {
+                        case Bytecode.EQUAL: result = a == b ? 1 : 0; break;
+                        case Bytecode.UNEQUAL: result = a != b ? 1 : 0; break;
+                        case Bytecode.LESS: result = a < b ? 1 : 0; break;
+                        case Bytecode.LESS_EQUAL: result = a <= b ? 1 : 0; break;
+                        case Bytecode.GREATER: result = a > b ? 1 : 0; break;
+                        case Bytecode.GREATER_EQUAL: result = a >= b ? 1 : 0; break;
+                        default: return false;
+                    }
+            }
+            code.remove(pc);
+            code.set(second, resultOp, result);
+            code.remove(third);
+            return true;
+        }
+    }
+
+    /**
+     * Lets jumps and switch targets leading to unconditional jumps go
+     * directly to the final target.
+     */
+    public static class ThreadJumps extends PeepholeRule {
+        @Override
+        public String getName() { return "threadJumps"; }
+        @Override
+        public boolean apply(PeepholeOptimizer.Code code, int pc) {
+            // jumps, switches and switch table entries
+            if(Bytecode.targetOperand(code.opcode(pc)) != 1) {
+                return false;
+            }
+            int target = code.operand(pc, 1);
+            // the number of hops is limited, in case of an endless loop
+            int hops = 0;
+            while(  target < code.size() &&
+                    code.opcode(target) == Bytecode.JUMP &&
+                    code.operand(target, 1) != target &&
+                    hops < code.size()
+            ) {
+                target = code.operand(target, 1);
+                hops++;
+            }
+            if(target == code.operand(pc, 1)) {
+                return false;
+            }
+            code.setOperand(pc, 1, target);
+            return true;
+        }
+    }
+
+    /**
+     * Removes unconditional jumps to the next instruction.
+     */
+    public static class RemoveJumpToNext extends PeepholeRule {
+        @Override
+        public String getName() { return "removeJumpToNext"; }
+        @Override
+        public boolean apply(PeepholeOptimizer.Code code, int pc) {
+            if( code.opcode(pc) != Bytecode.JUMP ||
+                code.operand(pc, 1) != code.next(pc)
+            ) {
+                return false;
+            }
+            code.remove(pc);
+            return true;
+        }
+    }
+
+    /**
+     * Removes instructions which follow an instruction never continuing
+     * with the next one and are no jump target, e.g. jumps left over after
+     * threading.
+     */
+    public static class RemoveUnreachable extends PeepholeRule {
+        @Override
+        public String getName() { return "removeUnreachable"; }
+        @Override
+        public boolean apply(PeepholeOptimizer.Code code, int pc) {
+            int previous = code.previous(pc);
+            if( previous < 0 ||
+                !Bytecode.endsFlow(code.opcode(previous)) ||
+                code.isTarget(pc)
+            ) {
+                return false;
+            }
+            code.remove(pc);
+            return true;
+        }
+    }
+
+}
@@ -0,0 +1,394 @@
+package pl.virtualmachine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Program of the register machine, see RegisterMachine.
+ *
+ * Like the bytecode, every instruction occupies STRIDE consecutive ints: the
+ * opcode followed by three fields. Unlike the bytecode, the instructions
+ * take their operands and store their result themselves, so there is no
+ * evaluation stack. An operand is an int which tells its kind in the lowest
+ * KIND_BITS bits and its value in the remaining ones:
+ *      REGISTER:   register r of the register file
+ *      CONSTANT:   constant k of the code, a register which is never written
+ *      CELL:       the memory cell with a fixed address
+ *      LOCAL:      the cell display(level) + dir
+ *      INDIRECT:   the cell whose address is register r plus an offset
+ * The last three are memory operands, which are read and written by the
+ * instruction directly.
+ *
+ * Most instructions are three-address instructions: the first field is the
+ * destination, the other two are the sources. Switches are followed by their
+ * table of SWITCH_CASE entries, INDEX by a SHAPE entry. The entries are never
+ * executed.
+ */
+public class RegisterCode {
+
+    // number of ints per instruction: the opcode and three fields
+    public static final int STRIDE = 4;
+
+    /* operand kinds */
+
+    public static final int REGISTER = 0;
+    public static final int CONSTANT = 1;
+    public static final int CELL = 2;
+    public static final int LOCAL = 3;
+    public static final int INDIRECT = 4;
+
+    public static final int KIND_BITS = 3;
+    public static final int KIND_MASK = (1 << KIND_BITS) - 1;
+
+    // registers which can be used by INDIRECT and levels of LOCAL operands
+    private static final int SMALL_BITS = 8;
+    private static final int SMALL_MASK = (1 << SMALL_BITS) - 1;
+
+    /* unary instructions: destination, source */
+
+    public static final int CONVERT_INT = 0;
+    public static final int CONVERT_BOOL = 1;
+    public static final int CONVERT_REAL = 2;
+    public static final int CONVERT_CHAR = 3;
+    public static final int CONVERT_STRING = 4;
+    public static final int SIGN_CHANGE = 5;
+    public static final int NOT = 6;
+
+    /* binary instructions: destination, source 1, source 2 */
+
+    public static final int ADD_INT = 7;
+    public static final int ADD_REAL = 8;
+    public static final int MULT_INT = 9;
+    public static final int MULT_REAL = 10;
+    public static final int SUBT_INT = 11;
+    public static final int SUBT_REAL = 12;
+    public static final int DIV_INT = 13;
+    public static final int DIV_REAL = 14;
+    public static final int REST = 15;
+    public static final int CONCAT_STRING = 16;
+    public static final int CHAIN_ELEMENT = 17;
+    public static final int EQUAL = 18;
+    public static final int UNEQUAL = 19;
+    public static final int LESS = 20;
+    public static final int LESS_EQUAL = 21;
+    public static final int GREATER = 22;
+    public static final int GREATER_EQUAL = 23;
+    public static final int AND = 24;
+    public static final int OR = 25;
+
+    /* other instructions */
+
+    public static final int MOVE = 26;             // destination, source
+    public static final int COPY = 27;             // destination, source, size
+    public static final int ADDRESS = 28;          // destination, source
+    public static final int ADD_IMM = 29;          // destination, source, value
+    public static final int INDEX = 30;            // destination, array, index
+    public static final int WRITE = 31;            // source
+    public static final int READ = 32;             // destination, type (constant)
+    public static final int ALLOC = 33;            // destination, size
+    public static final int DEALLOC = 34;          // source, size
+    public static final int JUMP = 35;             // target
+    public static final int JUMP_IF_FALSE = 36;    // source, target
+    public static final int JUMP_IF_TRUE = 37;     // source, target
+    public static final int TABLE_SWITCH = 38;     // source, default, count
+    public static final int LOOKUP_SWITCH = 39;    // source, default, count
+    public static final int CALL = 40;             // target, frame (constant), first arg
+    public static final int TAIL_CALL = 41;        // target, frame (constant), first arg
+    public static final int RETURN = 42;           // level, size
+    public static final int STOP = 43;
+
+    /* entries following an instruction */
+
+    public static final int SWITCH_CASE = 44;      // target, key
+    public static final int SHAPE = 45;            // dimension, element size
+
+    public static final int FIRST_UNARY = CONVERT_INT;
+    public static final int LAST_UNARY = NOT;
+    public static final int FIRST_BINARY = ADD_INT;
+    public static final int LAST_BINARY = OR;
+
+    private static final String[] NAMES = {
+        "convertInt", "convertBool", "convertReal", "convertChar",
+        "convertString", "signChange", "not", "addInt", "addReal",
+        "multInt", "multReal", "subtInt", "subtReal", "divInt", "divReal",
+        "rest", "concatString", "chainElement", "equal", "unequal", "less",
+        "lessEqual", "greater", "greaterEqual", "and", "or", "move", "copy",
+        "address", "addImm", "index", "write", "read", "alloc", "dealloc",
+        "jump", "jumpIfFalse", "jumpIfTrue", "tableSwitch", "lookupSwitch",
+        "call", "tailCall", "return", "stop", "switchCase", "shape"
+    };
+
+    /**
+     * @return a bit set of the fields of an instruction which hold operands,
+     *         bit 0 for the first field
+     */
+    public static int operandFields(int opcode) {
+        if(opcode <= LAST_UNARY) {
+            return 3;
+        }
+        if(opcode <= LAST_BINARY) {
+            return 7;
+        }
+        switch(opcode) {
+            case MOVE:
+            case COPY:
+            case ADDRESS:
+            case ADD_IMM:
+                return 3;
+            case INDEX:
+                return 7;
+            case WRITE:
+            case READ:
+            case ALLOC:
+            case DEALLOC:
+            case JUMP_IF_FALSE:
+            case JUMP_IF_TRUE:
+            case TABLE_SWITCH:
+            case LOOKUP_SWITCH:
+                return 1;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * @return the number of entries following the instruction at pc
+     */
+    public static int entries(int[] code, int pc) {
+        int i = pc * STRIDE;
+        switch(code[i]) {
+            case TABLE_SWITCH:
+            case LOOKUP_SWITCH:
+                return code[i + 3];
+            case INDEX:
+                return 1;
+            default:
+                return 0;
+        }
+    }
+
+    /* operands */
+
+    public static int register(int r) { return r << KIND_BITS | REGISTER; }
+    public static int cell(int addr) { return addr << KIND_BITS | CELL; }
+
+    public static int local(int level, int dir) {
+        return (dir << SMALL_BITS | small(level)) << KIND_BITS | LOCAL;
+    }
+
+    public static int indirect(int r, int offset) {
+        return (offset << SMALL_BITS | small(r)) << KIND_BITS | INDIRECT;
+    }
+
+    public static int kind(int operand) { return operand & KIND_MASK; }
+    public static int value(int operand) { return operand >> KIND_BITS; }
+
+    /**
+     * @return true if the operand denotes a cell of the memory
+     */
+    public static boolean isMemory(int operand) {
+        return kind(operand) >= CELL;
+    }
+
+    /**
+     * @return the operand denoting the cell offset cells behind the one of
+     *         a memory operand
+     */
+    public static int displace(int operand, int offset) {
+        switch(kind(operand)) {
+            case CELL:
+                return cell(value(operand) + offset);
+            case LOCAL:
+                return local(level(operand), dir(operand) + offset);
+            case INDIRECT:
+                return indirect(base(operand), dir(operand) + offset);
+            default:
+                throw new IllegalArgumentException("no memory operand");
+        }
+    }
+
+    // level of a LOCAL operand, register of an INDIRECT one
+    static int level(int operand) { return value(operand) & SMALL_MASK; }
+    static int base(int operand) { return value(operand) & SMALL_MASK; }
+
+    // dir of a LOCAL operand, offset of an INDIRECT one
+    static int dir(int operand) { return value(operand) >> SMALL_BITS; }
+
+    private static int small(int v) {
+        if(v < 0 || v > SMALL_MASK) {
+            throw new IllegalArgumentException("operand out of range: " + v);
+        }
+        return v;
+    }
+
+    private int[] code;
+    private int size;
+    private List<Object> constants;
+    private List<String> links;
+    private int registers;
+
+    // the values of the CONSTANT operands, in the encoding of the
+    // OperandStack, and the operand of each value
+    private List<Byte> valueTags;
+    private List<Long> valuePayloads;
+    private List<String> valueStrings;
+    private Map<Object, Integer> valueOperands;
+
+    public RegisterCode() {
+        code = new int[64 * STRIDE];
+        size = 0;
+        constants = new ArrayList<>();
+        links = new ArrayList<>();
+        registers = 0;
+        valueTags = new ArrayList<>();
+        valuePayloads = new ArrayList<>();
+        valueStrings = new ArrayList<>();
+        valueOperands = new HashMap<>();
+    }
+
+    /**
+     * Appends an instruction.
+     * @param link the position in the source code reported by runtime
+     *        errors of the instruction, may be null
+     * @return the number of the instruction
+     */
+    public int emit(int opcode, int a, int b, int c, String link) {
+        if((size + 1) * STRIDE > code.length) {
+            code = Arrays.copyOf(code, code.length * 2);
+        }
+        int i = size * STRIDE;
+        code[i] = opcode;
+        code[i + 1] = a;
+        code[i + 2] = b;
+        code[i + 3] = c;
+        links.add(link);
+        return size++;
+    }
+
+    /**
+     * Sets a field of an emitted instruction, e.g. a jump target which was
+     * not known when the instruction was emitted.
+     * @param field 1 to 3
+     */
+    public void patch(int pc, int field, int value) {
+        code[pc * STRIDE + field] = value;
+    }
+
+    /**
+     * Adds a value to the constant pool, which holds the types of READ and
+     * the frames of CALL.
+     * @return the index of the value in the pool
+     */
+    public int constant(Object value) {
+        constants.add(value);
+        return constants.size() - 1;
+    }
+
+    /* CONSTANT operands, equal values share their operand */
+
+    public int intValue(int v) { return value(v, OperandStack.TAG_INT, v, null); }
+    public int boolValue(boolean v) {
+        return value(v, OperandStack.TAG_BOOL, v ? 1 : 0, null);
+    }
+    public int realValue(double v) {
+        return value(v, OperandStack.TAG_REAL, Double.doubleToRawLongBits(v), null);
+    }
+    public int charValue(char v) { return value(v, OperandStack.TAG_CHAR, v, null); }
+    public int stringValue(String v) {
+        return value(v, OperandStack.TAG_STRING, 0, v);
+    }
+    public int nullValue() { return intValue(VirtualMachine.NULL_POINTER_VALUE); }
+
+    private int value(Object key, byte tag, long payload, String string) {
+        Integer operand = valueOperands.get(key);
+        if(operand == null) {
+            operand = valueTags.size() << KIND_BITS | CONSTANT;
+            valueTags.add(tag);
+            valuePayloads.add(payload);
+            valueStrings.add(string);
+            valueOperands.put(key, operand);
+        }
+        return operand;
+    }
+
+    /**
+     * Makes sure that the register file has at least n registers.
+     */
+    public void useRegisters(int n) { registers = Math.max(registers, n); }
+
+    /**
+     * @return the code array, which may be longer than size() * STRIDE
+     */
+    public int[] getCode() { return code; }
+
+    public Object[] getConstants() { return constants.toArray(); }
+
+    /**
+     * @return the link to the source code of each instruction
+     */
+    public String[] getLinks() { return links.toArray(new String[size]); }
+
+    /**
+     * @return the number of instructions
+     */
+    public int size() { return size; }
+
+    /**
+     * @return the number of registers, not counting the CONSTANT operands
+     */
+    public int getRegisters() { return registers; }
+
+    /**
+     * @return the number of CONSTANT operands
+     */
+    public int getValues() { return valueTags.size(); }
+
+    byte valueTag(int k) { return valueTags.get(k); }
+    long valuePayload(int k) { return valuePayloads.get(k); }
+    String valueString(int k) { return valueStrings.get(k); }
+
+    /**
+     * Prints the code, one instruction or entry per line.
+     */
+    public void printCode() {
+        System.out.println("Code:");
+        for(int pc = 0; pc < size; pc++) {
+            int i = pc * STRIDE;
+            StringBuilder line = new StringBuilder();
+            line.append(' ').append(pc).append(": ").append(NAMES[code[i]]);
+            int fields = operandFields(code[i]);
+            for(int f = 0; f < 3; f++) {
+                line.append(f == 0 ? " " : ", ");
+                if((fields & (1 << f)) != 0) {
+                    line.append(format(code[i + 1 + f]));
+                }
+                else {
+                    line.append(code[i + 1 + f]);
+                }
+            }
+            System.out.println(line);
+        }
+    }
+
+    private String format(int operand) {
+        switch(kind(operand)) {
+            case REGISTER:
+                return "r" + value(operand);
+            case CONSTANT: {
+                int k = value(operand);
+                return OperandStack.format(
+                        valueTag(k), valuePayload(k), valueString(k));
+            }
+            case CELL:
+                return "[" + value(operand) + "]";
+            case LOCAL:
+                return "[d" + level(operand) + "+" + dir(operand) + "]";
+            default:
+                return "[r" + base(operand) + "+" + dir(operand) + "]";
+        }
+    }
+
+}
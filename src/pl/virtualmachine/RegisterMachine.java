@@ -0,0 +1,638 @@
+package pl.virtualmachine;
+
+import pl.type.Type;
+
+/**
+ * Register based variant of the virtual machine, running a RegisterCode.
+ *
+ * Instead of the evaluation stack there is a register file of tagged slots,
+ * encoded like the ones of the OperandStack. It holds the registers of the
+ * code followed by its CONSTANT operands, which are turned into register
+ * operands when the machine is created, and two scratch slots into which
+ * the memory operands of an instruction are read. Values are only kept in
+ * registers within a single statement, so calls need not save them.
+ *
+ * The memory, the activation stack, the heap, the input and the runtime
+ * errors are the ones of the given stack machine, whose instructions are
+ * not used. The semantics of the instructions, including UNKNOWN and all
+ * runtime checks, are the ones of the stack machine's instructions.
+ */
+public class RegisterMachine {
+
+    private final VirtualMachine machine;
+    private final RegisterCode program;
+    private final Memory memory;
+    private final DynamicMemoryManager dynamicMemoryManager;
+    private final ActivationStackManager activationStackManager;
+
+    private final int[] code;
+    private final Object[] constants;
+    private final String[] links;
+    private final int end;
+
+    // the register file
+    private final byte[] tags;
+    private final long[] payloads;
+    private final String[] strings;
+
+    // scratch slots for the first and second source of an instruction
+    private final int scratchX;
+    private final int scratchY;
+
+    private int pc;
+
+    // number of instructions executed so far
+    private long executedInstructions;
+
+    /**
+     * @param machine the machine providing memory, input and errors
+     * @param program the code to run
+     */
+    public RegisterMachine(VirtualMachine machine, RegisterCode program) {
+        this.machine = machine;
+        this.program = program;
+        this.memory = machine.memory();
+        this.dynamicMemoryManager = machine.dynamicMemoryManager();
+        this.activationStackManager = machine.activationStackManager();
+        int registers = program.getRegisters();
+        int values = program.getValues();
+        end = program.size();
+        code = link(program, registers);
+        constants = program.getConstants();
+        links = program.getLinks();
+        scratchX = registers + values;
+        scratchY = scratchX + 1;
+        tags = new byte[scratchY + 1];
+        payloads = new long[scratchY + 1];
+        strings = new String[scratchY + 1];
+        for(int k = 0; k < values; k++) {
+            tags[registers + k] = program.valueTag(k);
+            payloads[registers + k] = program.valuePayload(k);
+            strings[registers + k] = program.valueString(k);
+        }
+        pc = 0;
+    }
+
+    // copy of the code with the CONSTANT operands turned into registers
+    private static int[] link(RegisterCode program, int registers) {
+        int[] code = new int[program.size() * RegisterCode.STRIDE];
+        System.arraycopy(program.getCode(), 0, code, 0, code.length);
+        for(int pc = 0; pc < program.size(); pc++) {
+            int i = pc * RegisterCode.STRIDE;
+            int fields = RegisterCode.operandFields(code[i]);
+            for(int f = 0; f < 3; f++) {
+                int operand = code[i + 1 + f];
+                if( (fields & (1 << f)) != 0 &&
+                    RegisterCode.kind(operand) == RegisterCode.CONSTANT
+                ) {
+                    code[i + 1 + f] = RegisterCode.register(
+                            registers + RegisterCode.value(operand));
+                }
+            }
+            pc += RegisterCode.entries(code, pc);
+        }
+        return code;
+    }
+
+    /**
+     * Runs the program. The machine's output is flushed when the run ends.
+     */
+    public void execute() {
+        final int[] code = this.code;
+        final byte[] tags = this.tags;
+        final long[] payloads = this.payloads;
+        final String[] strings = this.strings;
+        int pc = this.pc;
+        long executed = executedInstructions;
+        try {
+            while(pc < end) {
+                final int i = pc * RegisterCode.STRIDE;
+                final int op = code[i];
+                final int d = code[i + 1];
+                executed++;
+                int x = 0;
+                int y = 0;
+                if(op <= RegisterCode.LAST_BINARY) {
+                    x = fetch(code[i + 2], scratchX, pc);
+                    if(op >= RegisterCode.FIRST_BINARY) {
+                        y = fetch(code[i + 3], scratchY, pc);
+                    }
+                    // UNKNOWN as a source --> the result is UNKNOWN
+                    if( tags[x] == OperandStack.TAG_UNKNOWN ||
+                        tags[y] == OperandStack.TAG_UNKNOWN &&
+                        op >= RegisterCode.FIRST_BINARY
+                    ) {
+                        put(d, OperandStack.TAG_UNKNOWN, 0, null, pc);
+                        pc++;
+                        continue;
+                    }
+                }
+                switch(op) {
+                    /* conversion and other unary instructions */
+                    case RegisterCode.CONVERT_INT:
+                        switch(tags[x]) {
+                            case OperandStack.TAG_INT:
+                            case OperandStack.TAG_BOOL:
+                            case OperandStack.TAG_CHAR:
+                                // payload already is the int, 1/0 or the
+                                // unicode
+                                putInt(d, (int)payloads[x], pc);
+                                break;
+                            case OperandStack.TAG_REAL:
+                                putInt(d, (int)Double.longBitsToDouble(payloads[x]), pc);
+                                break;
+                            default:
+                                throw typeError(pc);
+                        }
+                        pc++;
+                        break;
+                    case RegisterCode.CONVERT_BOOL:
+                        if(tags[x] == OperandStack.TAG_INT) {
+                            putBool(d, (int)payloads[x] != 0, pc);
+                        }
+                        else {
+                            checkTag(tags[x], OperandStack.TAG_BOOL, pc);
+                            putBool(d, payloads[x] != 0, pc);
+                        }
+                        pc++;
+                        break;
+                    case RegisterCode.CONVERT_REAL:
+                        if(tags[x] == OperandStack.TAG_STRING) {
+                            throw typeError(pc);
+                        }
+                        putReal(d, tags[x] == OperandStack.TAG_REAL
+                                ? Double.longBitsToDouble(payloads[x])
+                                : (double)payloads[x], pc);
+                        pc++;
+                        break;
+                    case RegisterCode.CONVERT_CHAR:
+                        if(tags[x] != OperandStack.TAG_INT) {
+                            checkTag(tags[x], OperandStack.TAG_CHAR, pc);
+                        }
+                        put(d, OperandStack.TAG_CHAR, (char)payloads[x], null, pc);
+                        pc++;
+                        break;
+                    case RegisterCode.CONVERT_STRING:
+                        if(tags[x] == OperandStack.TAG_INT) {
+                            putString(d, Integer.toString((int)payloads[x]), pc);
+                        }
+                        else if(tags[x] == OperandStack.TAG_CHAR) {
+                            putString(d, "" + (char)payloads[x], pc);
+                        }
+                        else {
+                            checkTag(tags[x], OperandStack.TAG_STRING, pc);
+                            putString(d, strings[x], pc);
+                        }
+                        pc++;
+                        break;
+                    case RegisterCode.SIGN_CHANGE:
+                        if(tags[x] == OperandStack.TAG_INT) {
+                            putInt(d, -(int)payloads[x], pc);
+                        }
+                        else if(tags[x] == OperandStack.TAG_REAL) {
+                            putReal(d, -Double.longBitsToDouble(payloads[x]), pc);
+                        }
+                        else {
+                            throw typeError(pc);
+                        }
+                        pc++;
+                        break;
+                    case RegisterCode.NOT:
+                        checkTag(tags[x], OperandStack.TAG_BOOL, pc);
+                        putBool(d, payloads[x] == 0, pc);
+                        pc++;
+                        break;
+                    /* arithmetic instructions */
+                    case RegisterCode.ADD_INT:
+                        putInt(d, intAt(x, pc) + intAt(y, pc), pc);
+                        pc++;
+                        break;
+                    case RegisterCode.SUBT_INT:
+                        putInt(d, intAt(x, pc) - intAt(y, pc), pc);
+                        pc++;
+                        break;
+                    case RegisterCode.MULT_INT:
+                        putInt(d, intAt(x, pc) * intAt(y, pc), pc);
+                        pc++;
+                        break;
+                    case RegisterCode.DIV_INT:
+                        putInt(d, intAt(x, pc) / intAt(y, pc), pc);
+                        pc++;
+                        break;
+                    case RegisterCode.REST:
+                        putInt(d, intAt(x, pc) % intAt(y, pc), pc);
+                        pc++;
+                        break;
+                    case RegisterCode.ADD_REAL:
+                        putReal(d, realAt(x, pc) + realAt(y, pc), pc);
+                        pc++;
+                        break;
+                    case RegisterCode.SUBT_REAL:
+                        putReal(d, realAt(x, pc) - realAt(y, pc), pc);
+                        pc++;
+                        break;
+                    case RegisterCode.MULT_REAL:
+                        putReal(d, realAt(x, pc) * realAt(y, pc), pc);
+                        pc++;
+                        break;
+                    case RegisterCode.DIV_REAL:
+                        putReal(d, realAt(x, pc) / realAt(y, pc), pc);
+                        pc++;
+                        break;
+                    /* instructions with strings */
+                    case RegisterCode.CONCAT_STRING:
+                        checkTag(tags[x], OperandStack.TAG_STRING, pc);
+                        checkTag(tags[y], OperandStack.TAG_STRING, pc);
+                        putString(d, strings[x] + strings[y], pc);
+                        pc++;
+                        break;
+                    case RegisterCode.CHAIN_ELEMENT: {
+                        checkTag(tags[x], OperandStack.TAG_STRING, pc);
+                        String str = strings[x];
+                        int index = intAt(y, pc);
+                        if(index < 0 || index >= str.length()) {
+                            put(d, OperandStack.TAG_UNKNOWN, 0, null, pc);
+                        }
+                        else {
+                            put(d, OperandStack.TAG_CHAR, str.charAt(index), null, pc);
+                        }
+                        pc++;
+                        break;
+                    }
+                    /* relational instructions */
+                    case RegisterCode.EQUAL:
+                        putBool(d, compare(x, y, pc) == 0, pc);
+                        pc++;
+                        break;
+                    case RegisterCode.UNEQUAL:
+                        putBool(d, compare(x, y, pc) != 0, pc);
+                        pc++;
+                        break;
+                    case RegisterCode.LESS:
+                        putBool(d, compare(x, y, pc) < 0, pc);
+                        pc++;
+                        break;
+                    case RegisterCode.LESS_EQUAL:
+                        putBool(d, compare(x, y, pc) <= 0, pc);
+                        pc++;
+                        break;
+                    case RegisterCode.GREATER:
+                        putBool(d, compare(x, y, pc) > 0, pc);
+                        pc++;
+                        break;
+                    case RegisterCode.GREATER_EQUAL:
+                        putBool(d, compare(x, y, pc) >= 0, pc);
+                        pc++;
+                        break;
+                    /* logical instructions */
+                    case RegisterCode.AND:
+                        checkTag(tags[x], OperandStack.TAG_BOOL, pc);
+                        if(payloads[x] != 0) {
+                            checkTag(tags[y], OperandStack.TAG_BOOL, pc);
+                        }
+                        putBool(d, payloads[x] != 0 && payloads[y] != 0, pc);
+                        pc++;
+                        break;
+                    case RegisterCode.OR:
+                        checkTag(tags[x], OperandStack.TAG_BOOL, pc);
+                        if(payloads[x] == 0) {
+                            checkTag(tags[y], OperandStack.TAG_BOOL, pc);
+                        }
+                        putBool(d, payloads[x] != 0 || payloads[y] != 0, pc);
+                        pc++;
+                        break;
+                    /* moving values and addresses */
+                    case RegisterCode.MOVE:
+                        x = fetch(code[i + 2], scratchX, pc);
+                        put(d, tags[x], payloads[x], strings[x], pc);
+                        pc++;
+                        break;
+                    case RegisterCode.COPY: {
+                        int size = code[i + 3];
+                        int addrFrom = cell(code[i + 2], pc);
+                        int addrTo = cell(d, pc);
+                        if(addrFrom + size > memory.size() || addrFrom < 0) {
+                            throw invalidAddress(pc, addrFrom + size);
+                        }
+                        if(addrTo + size > memory.size() || addrTo < 0) {
+                            throw invalidAddress(pc, addrTo + size);
+                        }
+                        memory.copy(addrFrom, addrTo, size);
+                        pc++;
+                        break;
+                    }
+                    case RegisterCode.ADDRESS:
+                        putInt(d, cell(code[i + 2], pc), pc);
+                        pc++;
+                        break;
+                    case RegisterCode.ADD_IMM:
+                        x = fetch(code[i + 2], scratchX, pc);
+                        if(tags[x] == OperandStack.TAG_UNKNOWN) {
+                            put(d, OperandStack.TAG_UNKNOWN, 0, null, pc);
+                        }
+                        else {
+                            putInt(d, intAt(x, pc) + code[i + 3], pc);
+                        }
+                        pc++;
+                        break;
+                    case RegisterCode.INDEX: {
+                        int base = cell(code[i + 2], pc);
+                        y = fetch(code[i + 3], scratchY, pc);
+                        int index = intAt(y, pc);
+                        int shape = i + RegisterCode.STRIDE;
+                        if(index >= code[shape + 1] || index < 0) {
+                            throw outOfBounds(pc);
+                        }
+                        putInt(d, base + index * code[shape + 2], pc);
+                        // skip the SHAPE entry
+                        pc += 2;
+                        break;
+                    }
+                    /* IO instructions */
+                    case RegisterCode.WRITE:
+                        x = fetch(d, scratchX, pc);
+                        machine.getOutput().writeValue(
+                                tags[x], payloads[x], strings[x]);
+                        pc++;
+                        break;
+                    case RegisterCode.READ: {
+                        machine.setDebugMsg(links[pc]);
+                        machine.readInput(pc, (Type)constants[code[i + 2]]);
+                        OperandStack stack = machine.operandStack();
+                        put(d, stack.tag(0), stack.payload(0), stack.stringAt(0), pc);
+                        stack.drop(1);
+                        pc++;
+                        break;
+                    }
+                    /* memory management instructions */
+                    case RegisterCode.ALLOC:
+                        putInt(d, dynamicMemoryManager.alloc(code[i + 2]), pc);
+                        pc++;
+                        break;
+                    case RegisterCode.DEALLOC:
+                        x = fetch(d, scratchX, pc);
+                        dynamicMemoryManager.free(intAt(x, pc), code[i + 2]);
+                        pc++;
+                        break;
+                    /* jump instructions */
+                    case RegisterCode.JUMP:
+                        pc = d;
+                        break;
+                    case RegisterCode.JUMP_IF_FALSE:
+                        x = fetch(d, scratchX, pc);
+                        checkTag(tags[x], OperandStack.TAG_BOOL, pc);
+                        pc = payloads[x] == 0 ? code[i + 2] : pc + 1;
+                        break;
+                    case RegisterCode.JUMP_IF_TRUE:
+                        x = fetch(d, scratchX, pc);
+                        checkTag(tags[x], OperandStack.TAG_BOOL, pc);
+                        pc = payloads[x] != 0 ? code[i + 2] : pc + 1;
+                        break;
+                    case RegisterCode.TABLE_SWITCH: {
+                        x = fetch(d, scratchX, pc);
+                        int count = code[i + 3];
+                        // the key of the first entry is the lowest one
+                        long k = (long)switchKey(x, pc)
+                                - code[i + RegisterCode.STRIDE + 2];
+                        pc = k >= 0 && k < count
+                                ? code[i + (1 + (int)k) * RegisterCode.STRIDE + 1]
+                                : code[i + 2];
+                        break;
+                    }
+                    case RegisterCode.LOOKUP_SWITCH:
+                        x = fetch(d, scratchX, pc);
+                        pc = lookup(code, i, switchKey(x, pc));
+                        break;
+                    /* procedure calls */
+                    case RegisterCode.CALL:
+                    case RegisterCode.TAIL_CALL: {
+                        FrameLayout frame = (FrameLayout)constants[code[i + 2]];
+                        int sp = code[i + 3] + frame.getParams();
+                        machine.setDebugMsg(links[pc]);
+                        if(op == RegisterCode.CALL) {
+                            machine.enter(frame, tags, payloads, strings, sp, pc);
+                        }
+                        else {
+                            machine.reenter(frame, tags, payloads, strings, sp, pc);
+                        }
+                        pc = d;
+                        break;
+                    }
+                    case RegisterCode.RETURN:
+                        pc = activationStackManager.popFrame(d, code[i + 2]);
+                        break;
+                    case RegisterCode.STOP:
+                        pc = end;
+                        break;
+                    default:
+                        throw new IllegalStateException("unknown opcode " + op);
+                }
+            }
+        }
+        finally {
+            this.pc = pc;
+            executedInstructions = executed;
+            machine.getOutput().flush();
+        }
+    }
+
+    /**
+     * @return the number of instructions executed so far
+     */
+    public long getExecutedInstructions() { return executedInstructions; }
+
+    /**
+     * Replaces the output of the underlying machine, see
+     * VirtualMachine.setOutput.
+     */
+    public void setOutput(Output output) { machine.setOutput(output); }
+
+    /**
+     * Replaces the input of the underlying machine, see
+     * VirtualMachine.setInput.
+     */
+    public void setInput(Input input) { machine.setInput(input); }
+
+    public RegisterCode getCode() { return program; }
+
+    /* operands */
+
+    /**
+     * @return the slot of the register file holding the value of a source
+     *         operand. The value of a memory operand is read into the given
+     *         scratch slot.
+     */
+    private int fetch(int operand, int scratch, int pc) {
+        if(RegisterCode.kind(operand) == RegisterCode.REGISTER) {
+            return RegisterCode.value(operand);
+        }
+        int addr = cell(operand, pc);
+        if(addr >= memory.size() || addr < 0) {
+            throw invalidAddress(pc, addr);
+        }
+        if(!memory.isInitialized(addr)) {
+            throw uninitializedMemoryAccess(pc, addr);
+        }
+        byte tag = memory.tag(addr);
+        tags[scratch] = tag;
+        if(tag == OperandStack.TAG_STRING) {
+            strings[scratch] = memory.string(addr);
+        }
+        else {
+            payloads[scratch] = memory.payload(addr);
+        }
+        return scratch;
+    }
+
+    // stores a value in the register or cell of a destination operand
+    private void put(int operand, byte tag, long payload, String string, int pc) {
+        if(RegisterCode.kind(operand) == RegisterCode.REGISTER) {
+            int r = RegisterCode.value(operand);
+            tags[r] = tag;
+            payloads[r] = payload;
+            strings[r] = tag == OperandStack.TAG_STRING ? string : null;
+            return;
+        }
+        int addr = cell(operand, pc);
+        if(addr >= memory.size() || addr < 0) {
+            throw invalidAddress(pc, addr);
+        }
+        memory.store(addr, tag, payload, string);
+    }
+
+    private void putInt(int operand, int v, int pc) {
+        put(operand, OperandStack.TAG_INT, v, null, pc);
+    }
+
+    private void putBool(int operand, boolean v, int pc) {
+        put(operand, OperandStack.TAG_BOOL, v ? 1 : 0, null, pc);
+    }
+
+    private void putReal(int operand, double v, int pc) {
+        put(operand, OperandStack.TAG_REAL, Double.doubleToRawLongBits(v), null, pc);
+    }
+
+    private void putString(int operand, String v, int pc) {
+        put(operand, OperandStack.TAG_STRING, 0, v, pc);
+    }
+
+    // the address of the cell of a memory operand
+    private int cell(int operand, int pc) {
+        switch(RegisterCode.kind(operand)) {
+            case RegisterCode.CELL:
+                return RegisterCode.value(operand);
+            case RegisterCode.LOCAL:
+                return activationStackManager.getDisplay(RegisterCode.level(operand))
+                        + RegisterCode.dir(operand);
+            case RegisterCode.INDIRECT: {
+                int r = RegisterCode.base(operand);
+                return intAt(r, pc) + RegisterCode.dir(operand);
+            }
+            default:
+                throw new IllegalStateException("no memory operand " + operand);
+        }
+    }
+
+    /* typed access to the register file */
+
+    // the slot must hold an int
+    private int intAt(int slot, int pc) {
+        checkTag(tags[slot], OperandStack.TAG_INT, pc);
+        return (int)payloads[slot];
+    }
+
+    // the slot must hold an int or a real
+    private double realAt(int slot, int pc) {
+        switch(tags[slot]) {
+            case OperandStack.TAG_INT:
+                return (int)payloads[slot];
+            case OperandStack.TAG_REAL:
+                return Double.longBitsToDouble(payloads[slot]);
+            default:
+                throw typeError(pc);
+        }
+    }
+
+    // the selector of a switch, an int or a char
+    private int switchKey(int slot, int pc) {
+        if( tags[slot] != OperandStack.TAG_INT &&
+            tags[slot] != OperandStack.TAG_CHAR
+        ) {
+            throw typeError(pc);
+        }
+        return (int)payloads[slot];
+    }
+
+    /**
+     * Compares the values of two slots, the same way the stack machine
+     * compares op1 to op2.
+     */
+    private int compare(int x, int y, int pc) {
+        switch(tags[x]) {
+            case OperandStack.TAG_INT:
+            case OperandStack.TAG_REAL:
+                return Double.compare(realAt(x, pc), realAt(y, pc));
+            case OperandStack.TAG_BOOL:
+                checkTag(tags[y], OperandStack.TAG_BOOL, pc);
+                return Boolean.compare(payloads[x] != 0, payloads[y] != 0);
+            case OperandStack.TAG_CHAR:
+                checkTag(tags[y], OperandStack.TAG_CHAR, pc);
+                return Character.compare((char)payloads[x], (char)payloads[y]);
+            case OperandStack.TAG_STRING:
+                checkTag(tags[y], OperandStack.TAG_STRING, pc);
+                return strings[x].compareTo(strings[y]);
+            default:
+                throw typeError(pc);
+        }
+    }
+
+    // binary search in the table of the LOOKUP_SWITCH at index i, returns
+    // the target for key
+    private static int lookup(int[] code, int i, int key) {
+        int low = 0;
+        int high = code[i + 3] - 1;
+        while(low <= high) {
+            int mid = (low + high) >>> 1;
+            int entry = i + (1 + mid) * RegisterCode.STRIDE;
+            if(code[entry + 2] < key) {
+                low = mid + 1;
+            }
+            else if(code[entry + 2] > key) {
+                high = mid - 1;
+            }
+            else {
+                return code[entry + 1];
+            }
+        }
+        return code[i + 2];
+    }
+
+    /* runtime errors, reported with the link of the instruction */
+
+    private void checkTag(byte tag, byte expected, int pc) {
+        if(tag != expected) {
+            throw typeError(pc);
+        }
+    }
+
+    private RuntimeException typeError(int pc) {
+        machine.setDebugMsg(links[pc]);
+        return machine.new TypeException(pc);
+    }
+
+    private RuntimeException invalidAddress(int pc, int addr) {
+        machine.setDebugMsg(links[pc]);
+        return machine.new InvalidAddressException(pc, addr);
+    }
+
+    private RuntimeException uninitializedMemoryAccess(int pc, int addr) {
+        machine.setDebugMsg(links[pc]);
+        return machine.new UninitializedMemoryAccessException(pc, addr);
+    }
+
+    private RuntimeException outOfBounds(int pc) {
+        machine.setDebugMsg(links[pc]);
+        return machine.new OutOfBoundsException(pc);
+    }
+
+}
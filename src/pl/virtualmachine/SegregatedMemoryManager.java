@@ -0,0 +1,242 @@
+package pl.virtualmachine;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.TreeSet;
+
+/**
+ * Segregated fit allocator.
+ *
+ * Free blocks of up to MAX_SMALL cells are kept in one list per size. A
+ * bitmap tells which lists are not empty, so the smallest fitting small
+ * block is found in constant time. Larger free blocks are kept in a tree
+ * ordered by size and address, where the best fitting one is found in
+ * O(log n). A block is always taken from the start of the chosen hole, the
+ * rest of the hole stays free.
+ *
+ * The lists are threaded through arrays indexed by the position of a block
+ * in the heap, and so are the boundary tags: the size of every free block is
+ * recorded at its first cell and its start at its last cell. Thus a freed
+ * block is merged with free neighbours without searching, and freeing a
+ * small block creates no object.
+ */
+public class SegregatedMemoryManager extends DynamicMemoryManager {
+
+    // largest size with its own free list, one bit of the bitmap per size
+    private static final int MAX_SMALL = 63;
+
+    // address of the first cell, all other positions are relative to it
+    private final int first;
+
+    // size of the free block starting at a position, 0 if none
+    private int[] sizeAt;
+    // start of the free block ending at a position, -1 if none
+    private int[] startAt;
+
+    // doubly linked free lists of small blocks, -1 terminated
+    private int[] heads;
+    private int[] next;
+    private int[] previous;
+    // bit k is set if the list for size k is not empty
+    private long nonEmpty;
+
+    // large free blocks as size << 32 | start
+    private TreeSet<Long> large;
+
+    public SegregatedMemoryManager(int first, int last) {
+        this.first = first;
+        int size = last - first + 1;
+        sizeAt = new int[size];
+        startAt = new int[size];
+        Arrays.fill(startAt, -1);
+        heads = new int[MAX_SMALL + 1];
+        Arrays.fill(heads, -1);
+        next = new int[size];
+        previous = new int[size];
+        nonEmpty = 0;
+        large = new TreeSet<>();
+        if(size > 0) {
+            insert(0, size);
+        }
+    }
+
+    @Override
+    protected int allocate(int size) {
+        if(size <= 0) {
+            return first;
+        }
+        int block = -1;
+        int blockSize = 0;
+        if(size <= MAX_SMALL) {
+            long fitting = nonEmpty & (-1L << size);
+            if(fitting != 0) {
+                blockSize = Long.numberOfTrailingZeros(fitting);
+                block = heads[blockSize];
+            }
+        }
+        if(block < 0) {
+            Long fit = large.ceiling((long)size << 32);
+            if(fit == null) {
+                return -1;
+            }
+            blockSize = (int)(fit >>> 32);
+            block = (int)(long)fit;
+        }
+        remove(block, blockSize);
+        if(blockSize > size) {
+            insert(block + size, blockSize - size);
+        }
+        return first + block;
+    }
+
+    /**
+     * Adds fresh cells as a free block. The arrays are enlarged to cover
+     * them, cells in between belong to other regions and are never free.
+     */
+    @Override
+    protected void addCells(int first, int size) {
+        int length = first - this.first + size;
+        if(length > sizeAt.length) {
+            int oldLength = sizeAt.length;
+            sizeAt = Arrays.copyOf(sizeAt, length);
+            startAt = Arrays.copyOf(startAt, length);
+            Arrays.fill(startAt, oldLength, length, -1);
+            next = Arrays.copyOf(next, length);
+            previous = Arrays.copyOf(previous, length);
+        }
+        free(first, size);
+    }
+
+    /**
+     * Frees cells and merges them with the free cells around them. Cells
+     * outside the heap (e.g. when deleting a null pointer) and blocks which
+     * are already free are ignored.
+     */
+    @Override
+    public void free(int dir, int size) {
+        int block = dir - first;
+        if( size <= 0 ||
+            block < 0 ||
+            block + size > sizeAt.length ||
+            sizeAt[block] != 0
+        ) {
+            return;
+        }
+        int after = block + size;
+        if(after < sizeAt.length && sizeAt[after] != 0) {
+            int afterSize = sizeAt[after];
+            remove(after, afterSize);
+            size += afterSize;
+        }
+        if(block > 0 && startAt[block - 1] >= 0) {
+            int before = startAt[block - 1];
+            remove(before, block - before);
+            size += block - before;
+            block = before;
+        }
+        insert(block, size);
+    }
+
+    // the length of the arrays, then for each small size the number of
+    // blocks and the blocks from the tail of the list to its head, then the
+    // large blocks. Inserting the blocks in this order rebuilds the lists.
+    @Override
+    protected void writeFree(DataOutput out) throws IOException {
+        out.writeInt(sizeAt.length);
+        for(int size = 1; size <= MAX_SMALL; size++) {
+            int n = 0;
+            int tail = -1;
+            for(int block = heads[size]; block >= 0; block = next[block]) {
+                n++;
+                tail = block;
+            }
+            out.writeInt(n);
+            for(int block = tail; block >= 0; block = previous[block]) {
+                out.writeInt(block);
+            }
+        }
+        out.writeInt(large.size());
+        for(long block : large) {
+            out.writeLong(block);
+        }
+    }
+
+    @Override
+    protected void readFree(ByteBuffer in) throws StreamCorruptedException {
+        int length = in.getInt();
+        sizeAt = new int[length];
+        startAt = new int[length];
+        Arrays.fill(startAt, -1);
+        next = new int[length];
+        previous = new int[length];
+        Arrays.fill(heads, -1);
+        nonEmpty = 0;
+        large.clear();
+        for(int size = 1; size <= MAX_SMALL; size++) {
+            int n = in.getInt();
+            for(int k = 0; k < n; k++) {
+                insert(checkBlock(in.getInt(), size, length), size);
+            }
+        }
+        int n = in.getInt();
+        for(int k = 0; k < n; k++) {
+            long block = in.getLong();
+            int size = (int)(block >>> 32);
+            insert(checkBlock((int)block, size, length), size);
+        }
+    }
+
+    // a block which was read must lie within the arrays
+    private static int checkBlock(int block, int size, int length)
+            throws StreamCorruptedException {
+        if(block < 0 || size <= 0 || block + size > length) {
+            throw new StreamCorruptedException("free block " + block);
+        }
+        return block;
+    }
+
+    // records a free block and puts it into its list or the tree
+    private void insert(int block, int size) {
+        sizeAt[block] = size;
+        startAt[block + size - 1] = block;
+        if(size <= MAX_SMALL) {
+            next[block] = heads[size];
+            previous[block] = -1;
+            if(heads[size] >= 0) {
+                previous[heads[size]] = block;
+            }
+            heads[size] = block;
+            nonEmpty |= 1L << size;
+        }
+        else {
+            large.add(((long)size << 32) | block);
+        }
+    }
+
+    // takes a free block out of its list or the tree
+    private void remove(int block, int size) {
+        sizeAt[block] = 0;
+        startAt[block + size - 1] = -1;
+        if(size <= MAX_SMALL) {
+            if(previous[block] >= 0) {
+                next[previous[block]] = next[block];
+            }
+            else {
+                heads[size] = next[block];
+            }
+            if(next[block] >= 0) {
+                previous[next[block]] = previous[block];
+            }
+            if(heads[size] < 0) {
+                nonEmpty &= ~(1L << size);
+            }
+        }
+        else {
+            large.remove(((long)size << 32) | block);
+        }
+    }
+
+}
@@ -0,0 +1,366 @@
+package pl.virtualmachine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The state of a machine between two slices of a run, see
+ * VirtualMachine.run, so that the run can be continued later, on another
+ * machine or on many machines at once.
+ *
+ * A snapshot holds what changes while the machine runs: the program
+ * counter, the number of executed instructions, the debug message, the
+ * operand stack, the memory and the state of the activation stack and of
+ * the heap. The code, the input, the output and the limits are not part of
+ * it, so it is restored on a machine with the same code and the same
+ * memory options, e.g. one created by the same CompiledProgram and
+ * MachineOptions. The memory model may differ and so may the execution
+ * mode, except that compiled code only continues at the start of a basic
+ * block, where the other modes need not have stopped.
+ *
+ * All numbers are big endian. A snapshot consists of:
+ *  - the header: MAGIC, VERSION (short), the allocator (byte), the size of
+ *    the static memory, the initial sizes of the activation stack and the
+ *    heap, the number of displays and the number of instructions,
+ *  - the registers: pc, the number of executed instructions (long) and the
+ *    debug message as a string, or -1 if there is none,
+ *  - the operand stack: the number of elements, then each one as a value,
+ *  - the memory: the number of cells given to its regions, then the runs
+ *    of initialized cells as their address and length followed by the
+ *    cells as values, ended by a run of length 0,
+ *  - the activation stack and the heap, see the write methods of
+ *    ActivationStackManager and DynamicMemoryManager.
+ *
+ * A value is its tag (byte) followed by an int, a byte, a long or a char
+ * for INT, BOOL, REAL and CHAR, a string for STRING and nothing for
+ * UNKNOWN. A string is its number in the snapshot's table of strings. The
+ * first time it occurs, the number is the size of the table and the length
+ * and UTF-8 bytes of the string follow, so each string is stored once.
+ * Uninitialized cells are not stored at all.
+ */
+public class Snapshot {
+
+    public static final int MAGIC = 0x504c534e;
+    public static final int VERSION = 1;
+
+    private final byte[] data;
+
+    private Snapshot(byte[] data) {
+        this.data = data;
+    }
+
+    /**
+     * Takes the state of a machine. The machine must not be running.
+     */
+    public static Snapshot of(VirtualMachine machine) {
+        try {
+            return new Snapshot(write(machine));
+        }
+        catch(IOException e) {
+            // a ByteArrayOutputStream throws none
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Wraps the bytes of a snapshot, which are checked when it is restored.
+     */
+    public static Snapshot of(byte[] data) {
+        return new Snapshot(data.clone());
+    }
+
+    /**
+     * Reads a snapshot from a file, which is checked when it is restored.
+     */
+    public static Snapshot read(Path file) throws IOException {
+        return new Snapshot(Files.readAllBytes(file));
+    }
+
+    /**
+     * Writes the snapshot to a file, replacing it.
+     */
+    public void write(Path file) throws IOException {
+        Files.write(file, data);
+    }
+
+    public byte[] toByteArray() { return data.clone(); }
+
+    /**
+     * @return the number of bytes
+     */
+    public int size() { return data.length; }
+
+    /* writing */
+
+    private static byte[] write(VirtualMachine machine) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        Map<String, Integer> strings = new HashMap<>();
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeByte(machine.allocator().ordinal());
+        out.writeInt(machine.getStaticMemorySize());
+        out.writeInt(machine.getActivationStackSize());
+        out.writeInt(machine.getHeapSize());
+        out.writeInt(machine.getNumberOfDisplays());
+        out.writeInt(machine.codeSize());
+
+        out.writeInt(machine.pc());
+        out.writeLong(machine.getExecutedInstructions());
+        if(machine.debugMsg() == null) {
+            out.writeInt(-1);
+        }
+        else {
+            writeString(out, machine.debugMsg(), strings);
+        }
+
+        OperandStack stack = machine.operandStack();
+        out.writeInt(stack.size);
+        for(int i = 0; i < stack.size; i++) {
+            writeValue(
+                    out,
+                    stack.tags[i],
+                    stack.payloads[i],
+                    stack.strings[i],
+                    strings
+            );
+        }
+
+        Memory memory = machine.memory();
+        int end = machine.layout().end();
+        out.writeInt(end);
+        int addr = 0;
+        while(addr < end) {
+            if(!memory.isInitialized(addr)) {
+                addr++;
+                continue;
+            }
+            int run = addr;
+            while(run < end && memory.isInitialized(run)) {
+                run++;
+            }
+            out.writeInt(addr);
+            out.writeInt(run - addr);
+            for(; addr < run; addr++) {
+                writeValue(
+                        out,
+                        memory.tag(addr),
+                        memory.payload(addr),
+                        memory.string(addr),
+                        strings
+                );
+            }
+        }
+        out.writeInt(0);
+        out.writeInt(0);
+
+        machine.activationStackManager().write(out);
+        machine.dynamicMemoryManager().write(out);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static void writeValue(
+            DataOutputStream out,
+            byte tag,
+            long payload,
+            String string,
+            Map<String, Integer> strings
+    ) throws IOException {
+        out.writeByte(tag);
+        switch(tag) {
+            case OperandStack.TAG_INT:
+                out.writeInt((int)payload);
+                break;
+            case OperandStack.TAG_BOOL:
+                out.writeByte((int)payload);
+                break;
+            case OperandStack.TAG_REAL:
+                out.writeLong(payload);
+                break;
+            case OperandStack.TAG_CHAR:
+                out.writeChar((int)payload);
+                break;
+            case OperandStack.TAG_STRING:
+                writeString(out, string, strings);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static void writeString(
+            DataOutputStream out,
+            String string,
+            Map<String, Integer> strings
+    ) throws IOException {
+        Integer index = strings.get(string);
+        if(index != null) {
+            out.writeInt(index);
+            return;
+        }
+        out.writeInt(strings.size());
+        strings.put(string, strings.size());
+        byte[] utf8 = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(utf8.length);
+        out.write(utf8);
+    }
+
+    /* restoring */
+
+    /**
+     * Brings a machine into the state of the snapshot. The next call of its
+     * run() or execute() continues the run from there.
+     * @throws IllegalArgumentException if the machine's code or memory
+     *         options differ from the ones of the snapshot
+     * @throws StreamCorruptedException if the content is no snapshot of
+     *         this version. The machine is reset in this case.
+     */
+    public void restore(VirtualMachine machine)
+            throws StreamCorruptedException {
+        ByteBuffer in = ByteBuffer.wrap(data);
+        try {
+            if(in.getInt() != MAGIC || in.getShort() != VERSION) {
+                throw new StreamCorruptedException("no snapshot");
+            }
+            if( in.get() != machine.allocator().ordinal() ||
+                in.getInt() != machine.getStaticMemorySize() ||
+                in.getInt() != machine.getActivationStackSize() ||
+                in.getInt() != machine.getHeapSize() ||
+                in.getInt() != machine.getNumberOfDisplays() ||
+                in.getInt() != machine.codeSize()
+            ) {
+                throw new IllegalArgumentException(
+                        "snapshot of another program or memory options"
+                );
+            }
+            machine.reset();
+            read(in, machine);
+        }
+        catch(StreamCorruptedException e) {
+            machine.reset();
+            throw e;
+        }
+        catch(BufferUnderflowException | IndexOutOfBoundsException |
+                NegativeArraySizeException e) {
+            machine.reset();
+            throw new StreamCorruptedException("truncated snapshot");
+        }
+    }
+
+    private static void read(ByteBuffer in, VirtualMachine machine)
+            throws StreamCorruptedException {
+        List<String> strings = new ArrayList<>();
+        int pc = in.getInt();
+        if(pc < 0 || pc > machine.codeSize()) {
+            throw new StreamCorruptedException("pc " + pc);
+        }
+        machine.setPc(pc);
+        machine.setExecutedInstructions(in.getLong());
+        int debugMsg = in.getInt();
+        machine.setDebugMsg(
+                debugMsg < 0 ? null : readString(in, debugMsg, strings)
+        );
+
+        OperandStack stack = machine.operandStack();
+        int size = in.getInt();
+        for(int i = 0; i < size; i++) {
+            byte tag = in.get();
+            stack.push(
+                    tag,
+                    readPayload(in, tag),
+                    readString(in, tag, strings)
+            );
+        }
+
+        Memory memory = machine.memory();
+        int end = in.getInt();
+        if(end < machine.layout().end()) {
+            throw new StreamCorruptedException("memory end " + end);
+        }
+        machine.layout().setEnd(end);
+        while(true) {
+            int addr = in.getInt();
+            int length = in.getInt();
+            if(length == 0) {
+                break;
+            }
+            if(addr < 0 || length < 0 || addr > end - length) {
+                throw new StreamCorruptedException("cells at " + addr);
+            }
+            for(int k = 0; k < length; k++) {
+                byte tag = in.get();
+                memory.store(
+                        addr + k,
+                        tag,
+                        readPayload(in, tag),
+                        readString(in, tag, strings)
+                );
+            }
+        }
+
+        machine.activationStackManager().read(in);
+        machine.dynamicMemoryManager().read(in);
+    }
+
+    private static long readPayload(ByteBuffer in, byte tag)
+            throws StreamCorruptedException {
+        switch(tag) {
+            case OperandStack.TAG_INT:
+                return in.getInt();
+            case OperandStack.TAG_BOOL:
+                return in.get() != 0 ? 1 : 0;
+            case OperandStack.TAG_REAL:
+                return in.getLong();
+            case OperandStack.TAG_CHAR:
+                return in.getChar();
+            case OperandStack.TAG_STRING:
+            case OperandStack.TAG_UNKNOWN:
+                return 0;
+            default:
+                throw new StreamCorruptedException("tag " + tag);
+        }
+    }
+
+    // the string of a value, null if it is no string
+    private static String readString(
+            ByteBuffer in,
+            byte tag,
+            List<String> strings
+    ) throws StreamCorruptedException {
+        if(tag != OperandStack.TAG_STRING) {
+            return null;
+        }
+        return readString(in, in.getInt(), strings);
+    }
+
+    private static String readString(
+            ByteBuffer in,
+            int index,
+            List<String> strings
+    ) throws StreamCorruptedException {
+        if(index < 0 || index > strings.size()) {
+            throw new StreamCorruptedException("string " + index);
+        }
+        if(index < strings.size()) {
+            return strings.get(index);
+        }
+        byte[] utf8 = new byte[in.getInt()];
+        in.get(utf8);
+        String string = new String(utf8, StandardCharsets.UTF_8);
+        strings.add(string);
+        return string;
+    }
+
+}
@@ -0,0 +1,728 @@
+package pl.virtualmachine;
+
+import java.util.Arrays;
+
+/**
+ * Direct threaded form of the machine code.
+ *
+ * Every instruction becomes a node which holds its operands and direct
+ * references to the node which follows it and to its jump target. Executing
+ * a node returns the node to run next, so the interpreter loop is just
+ * node = node.execute(), without indexing into the code or keeping the
+ * program counter up to date. Only return addresses, which are computed at
+ * runtime, are looked up by their pc.
+ *
+ * The nodes run the helpers of CompiledCode, so the semantics are exactly
+ * the ones of the other execution modes. The pc of a node is only passed
+ * to the helpers for error messages. The nodes get the code of the machine
+ * running them as a parameter, so the nodes of a program are linked once,
+ * see link, and shared by all machines running it.
+ */
+final class ThreadedCode extends CompiledCode {
+
+    // the node of each instruction, the one at end is null
+    private final Node[] nodes;
+
+    private ThreadedCode(VirtualMachine machine, Form form) {
+        super(machine, form);
+        this.nodes = form.nodes;
+    }
+
+    /**
+     * Links the nodes of a program.
+     */
+    static CompiledForm link(Bytecode bytecode) {
+        return new Form(bytecode);
+    }
+
+    // the linked nodes of a program
+    private static final class Form extends CompiledForm {
+
+        private final Node[] nodes;
+
+        Form(Bytecode bytecode) {
+            super(bytecode);
+            int[] bc = bytecode.getCode();
+            int end = bytecode.size();
+            nodes = new Node[end + 1];
+            for(int pc = 0; pc < end; pc++) {
+                nodes[pc] = node(bc, pc);
+            }
+            for(int pc = 0; pc < end; pc++) {
+                int i = pc * Bytecode.STRIDE;
+                Node node = nodes[pc];
+                node.next = nodes[pc + 1];
+                int target = Bytecode.targetOperand(bc[i]);
+                // the operand of activate is a return address, not a jump
+                if(target != 0 && bc[i] != Bytecode.ACTIVATE) {
+                    node.target = at(nodes, bc[i + target]);
+                }
+                node.link(bc, nodes);
+            }
+        }
+
+        @Override
+        CompiledCode bind(VirtualMachine machine) {
+            return new ThreadedCode(machine, this);
+        }
+
+    }
+
+    /**
+     * Runs the nodes from pc until the program terminates. The nodes are
+     * counted one by one, so the limits can stop the run at any node.
+     * @return end
+     */
+    @Override
+    protected int dispatch(int pc) {
+        Node node = at(pc);
+        long executed = this.executed;
+        long checkpoint = this.checkpoint;
+        try {
+            while(node != null) {
+                if(executed >= checkpoint) {
+                    checkpoint = checkLimits(executed, node.pc);
+                }
+                node = node.execute(this);
+                executed++;
+            }
+        }
+        finally {
+            this.executed = executed;
+            this.checkpoint = checkpoint;
+        }
+        return end;
+    }
+
+    // the node at pc, null if the program terminates there
+    private Node at(int pc) {
+        return at(nodes, pc);
+    }
+
+    private static Node at(Node[] nodes, int pc) {
+        return pc >= 0 && pc < nodes.length - 1 ? nodes[pc] : null;
+    }
+
+    /**
+     * An instruction of the threaded code.
+     */
+    private abstract static class Node {
+
+        // position in the code, for error messages
+        final int pc;
+        Node next;
+        // null if the instruction does not jump
+        Node target;
+
+        Node(int pc) { this.pc = pc; }
+
+        /**
+         * Runs the instruction on the code of a machine.
+         * @return the node to run next, null if the program terminates
+         */
+        abstract Node execute(ThreadedCode code);
+
+        /**
+         * Called after all nodes were created, to link more targets.
+         */
+        void link(int[] bc, Node[] nodes) {}
+
+    }
+
+    // creates the node of the instruction at pc, without its links
+    private static Node node(int[] bc, int pc) {
+        int i = pc * Bytecode.STRIDE;
+        final int a = bc[i + 1];
+        final int b = bc[i + 2];
+        final int c = bc[i + 3];
+        switch(bc[i]) {
+            case Bytecode.CONVERT_INT:
+                return new Node(pc) {
+                    @Override
+                    Node execute(ThreadedCode code) {
+                        code.convertInt(pc);
+                        return next;
+                    }
+                };
+            case Bytecode.CONVERT_BOOL:
+                return new Node(pc) {
+                    @Override
+                    Node execute(ThreadedCode code) {
+                        code.convertBool(pc);
+                        return next;
+                    }
+                };
+            case Bytecode.CONVERT_REAL:
+                return new Node(pc) {
+                    @Override
+                    Node execute(ThreadedCode code) {
+                        code.convertReal(pc);
+                        return next;
+                    }
+                };
+            case Bytecode.CONVERT_CHAR:
+                return new Node(pc) {
+                    @Override
+                    Node execute(ThreadedCode code) {
+                        code.convertChar(pc);
+                        return next;
+                    }
+                };
+            case Bytecode.CONVERT_STRING:
+                return new Node(pc) {
+                    @Override
+                    Node execute(ThreadedCode code) {
+                        code.convertString(pc);
+                        return next;
+                    }
+                };
+            case Bytecode.SIGN_CHANGE:
+                return new Node(pc) {
+                    @Override
+                    Node execute(ThreadedCode code) {
+                        code.signChange(pc);
+                        return next;
+                    }
+                };
+            case Bytecode.NOT:
+                return new Node(pc) {
+                    @Override
+                    Node execute(ThreadedCode code) {
+                        code.not(pc);
+                        return next;
+                    }
+                };
+            case Bytecode.ADD_INT:
+                return new Node(pc) {
+                    @Override
+                    Node execute(ThreadedCode code) {
+                        code.addInt(pc);
+                        return next;
+                    }
+                };
+            case Bytecode.ADD_REAL:
+                return new Node(pc) {
+                    @Override
+                    Node execute(ThreadedCode code) {
+                        code.addReal(pc);
+                        return next;
+                    }
+                };
+            case Bytecode.MULT_INT:
+                return new Node(pc) {
+                    @Override
+                    Node execute(ThreadedCode code) {
+                        code.multInt(pc);
+                        return next;
+                    }
+                };
+            case Bytecode.MULT_REAL:
+                return new Node(pc) {
+                    @Override
+                    Node execute(ThreadedCode code) {
+                        code.multReal(pc);
+                        return next;
+                    }
+                };
+            case Bytecode.SUBT_INT:
+                return new Node(pc) {
+                    @Override
+                    Node execute(ThreadedCode code) {
+                        code.subtInt(pc);
+                        return next;
+                    }
+                };
+            case Bytecode.SUBT_REAL:
+                return new Node(pc) {
+                    @Override
+                    Node execute(ThreadedCode code) {
+                        code.subtReal(pc);
+                        return next;
+                    }
+                };
+            case Bytecode.DIV_INT:
+                return new Node(pc) {
+                    @Override
+                    Node execute(ThreadedCode code) {
+                        code.divInt(pc);
+                        return next;
+                    }
+                };
+            case Bytecode.DIV_REAL:
+                return new Node(pc) {
+                    @Override
+                    Node execute(ThreadedCode code) {
+                        code.divReal(pc);
+                        return next;
+                    }
+                };
+            case Bytecode.REST:
+                return new Node(pc) {
+                    @Override
+                    Node execute(ThreadedCode code) {
+                        code.mod(pc);
+                        return next;
+                    }
+                };
+            case Bytecode.CONCAT_STRING:
+                return new Node(pc) {
+                    @Override
+                    Node execute(ThreadedCode code) {
+                        code.concatString(pc);
+                        return next;
+                    }
+                };
+            case Bytecode.CHAIN_ELEMENT:
+                return new Node(pc) {
+                    @Override
+                    Node execute(ThreadedCode code) {
+                        code.chainElement(pc);
+                        return next;
+                    }
+                };
+            case Bytecode.EQUAL:
+                return new Node(pc) {
+                    @Override
+                    Node execute(ThreadedCode code) {
+                        code.equal(pc);
+                        return next;
+                    }
+                };
+            case Bytecode.EQUAL_POP1:
+                return new Node(pc) {
+                    @Override
+                    Node execute(ThreadedCode code) {
+                        code.equalPop1(pc);
+                        return next;
+                    }
+                };
+            case Bytecode.UNEQUAL:
+                return new Node(pc) {
+                    @Override
+                    Node execute(ThreadedCode code) {
+                        code.unequal(pc);
+                        return next;
+                    }
+                };
+            case Bytecode.LESS:
+                return new Node(pc) {
+                    @Override
+                    Node execute(ThreadedCode code) {
+                        code.less(pc);
+                        return next;
+                    }
+                };
+            case Bytecode.LESS_EQUAL:
+                return new Node(pc) {
+                    @Override
+                    Node execute(ThreadedCode code) {
+                        code.lessEqual(pc);
+                        return next;
+                    }
+                };
+            case Bytecode.GREATER:
+                return new Node(pc) {
+                    @Override
+                    Node execute(ThreadedCode code) {
+                        code.greater(pc);
+                        return next;
+                    }
+                };
+            case Bytecode.GREATER_EQUAL:
+                return new Node(pc) {
+                    @Override
+                    Node execute(ThreadedCode code) {
+                        code.greaterEqual(pc);
+                        return next;
+                    }
+                };
+            case Bytecode.AND:
+                return new Node(pc) {
+                    @Override
+                    Node execute(ThreadedCode code) {
+                        code.and(pc);
+                        return next;
+                    }
+                };
+            case Bytecode.OR:
+                return new Node(pc) {
+                    @Override
+                    Node execute(ThreadedCode code) {
+                        code.or(pc);
+                        return next;
+                    }
+                };
+            case Bytecode.WRITE:
+                return new Node(pc) {
+                    @Override
+                    Node execute(ThreadedCode code) {
+                        code.write();
+                        return next;
+                    }
+                };
+            case Bytecode.READ:
+                return new Node(pc) {
+                    @Override
+                    Node execute(ThreadedCode code) {
+                        code.ensure(1);
+                        code.read(pc, a);
+                        return next;
+                    }
+                };
+            case Bytecode.PUSH_INT:
+                return new Node(pc) {
+                    @Override
+                    Node execute(ThreadedCode code) {
+                        code.ensure(1);
+                        code.pushInt(a);
+                        return next;
+                    }
+                };
+            case Bytecode.PUSH_BOOL:
+                final boolean bool = a != 0;
+                return new Node(pc) {
+                    @Override
+                    Node execute(ThreadedCode code) {
+                        code.ensure(1);
+                        code.pushBool(bool);
+                        return next;
+                    }
+                };
+            case Bytecode.PUSH_REAL:
+                final double real = Double.longBitsToDouble(
+                        ((long)a << 32) | (b & 0xffffffffL));
+                return new Node(pc) {
+                    @Override
+                    Node execute(ThreadedCode code) {
+                        code.ensure(1);
+                        code.pushReal(real);
+                        return next;
+                    }
+                };
+            case Bytecode.PUSH_CHAR:
+                return new Node(pc) {
+                    @Override
+                    Node execute(ThreadedCode code) {
+                        code.ensure(1);
+                        code.pushChar((char)a);
+                        return next;
+                    }
+                };
+            case Bytecode.PUSH_STRING:
+                return new Node(pc) {
+                    @Override
+                    Node execute(ThreadedCode code) {
+                        code.ensure(1);
+                        code.pushString(a);
+                        return next;
+                    }
+                };
+            case Bytecode.POP2_STORE:
+                return new Node(pc) {
+                    @Override
+                    Node execute(ThreadedCode code) {
+                        code.pop2Store(pc);
+                        return next;
+                    }
+                };
+            case Bytecode.POP_LOAD_PUSH:
+                return new Node(pc) {
+                    @Override
+                    Node execute(ThreadedCode code) {
+                        code.popLoadPush(pc);
+                        return next;
+                    }
+                };
+            case Bytecode.DUPLICATE:
+                return new Node(pc) {
+                    @Override
+                    Node execute(ThreadedCode code) {
+                        code.ensure(1);
+                        code.duplicate();
+                        return next;
+                    }
+                };
+            case Bytecode.ALLOC:
+                return new Node(pc) {
+                    @Override
+                    Node execute(ThreadedCode code) {
+                        code.ensure(1);
+                        code.alloc(a);
+                        return next;
+                    }
+                };
+            case Bytecode.DEALLOC:
+                return new Node(pc) {
+                    @Override
+                    Node execute(ThreadedCode code) {
+                        code.dealloc(pc, a);
+                        return next;
+                    }
+                };
+            case Bytecode.COPY:
+                return new Node(pc) {
+                    @Override
+                    Node execute(ThreadedCode code) {
+                        code.copy(pc, a);
+                        return next;
+                    }
+                };
+            case Bytecode.ACTIVATE:
+                return new Node(pc) {
+                    @Override
+                    Node execute(ThreadedCode code) {
+                        code.ensure(1);
+                        code.activate(a, b, c);
+                        return next;
+                    }
+                };
+            case Bytecode.DEACTIVATE:
+                return new Node(pc) {
+                    @Override
+                    Node execute(ThreadedCode code) {
+                        code.ensure(1);
+                        code.deactivate(a, b);
+                        return next;
+                    }
+                };
+            case Bytecode.SET_DISPLAY:
+                return new Node(pc) {
+                    @Override
+                    Node execute(ThreadedCode code) {
+                        code.setDisplay(pc, a);
+                        return next;
+                    }
+                };
+            case Bytecode.PUSH_DISPLAY:
+                return new Node(pc) {
+                    @Override
+                    Node execute(ThreadedCode code) {
+                        code.ensure(1);
+                        code.pushDisplay(a);
+                        return next;
+                    }
+                };
+            case Bytecode.JUMP:
+                return new Node(pc) {
+                    @Override
+                    Node execute(ThreadedCode code) { return target; }
+                };
+            case Bytecode.JUMP_IF_FALSE:
+                return new Node(pc) {
+                    @Override
+                    Node execute(ThreadedCode code) {
+                        return code.popFalse(pc) ? target : next;
+                    }
+                };
+            case Bytecode.JUMP_IF_TRUE:
+                return new Node(pc) {
+                    @Override
+                    Node execute(ThreadedCode code) {
+                        return code.popFalse(pc) ? next : target;
+                    }
+                };
+            case Bytecode.POP_JUMP:
+                return new Node(pc) {
+                    @Override
+                    Node execute(ThreadedCode code) {
+                        return code.at(code.popJump(pc));
+                    }
+                };
+            case Bytecode.CALL:
+                return new Node(pc) {
+                    @Override
+                    Node execute(ThreadedCode code) {
+                        code.call(pc, b);
+                        return target;
+                    }
+                };
+            case Bytecode.RETURN:
+                return new Node(pc) {
+                    @Override
+                    Node execute(ThreadedCode code) {
+                        return code.at(code.ret(a, b));
+                    }
+                };
+            case Bytecode.TAIL_CALL:
+                return new Node(pc) {
+                    @Override
+                    Node execute(ThreadedCode code) {
+                        code.tailCall(pc, b);
+                        return target;
+                    }
+                };
+            case Bytecode.IN_RANGE:
+                return new Node(pc) {
+                    @Override
+                    Node execute(ThreadedCode code) {
+                        code.inRange(pc, a);
+                        return next;
+                    }
+                };
+            case Bytecode.STOP:
+                return new Node(pc) {
+                    @Override
+                    Node execute(ThreadedCode code) { return null; }
+                };
+            case Bytecode.NOP:
+                return new Node(pc) {
+                    @Override
+                    Node execute(ThreadedCode code) { return next; }
+                };
+            case Bytecode.DEBUG:
+                return new Node(pc) {
+                    @Override
+                    Node execute(ThreadedCode code) {
+                        code.debug(a);
+                        return next;
+                    }
+                };
+            case Bytecode.LOAD:
+                return new Node(pc) {
+                    @Override
+                    Node execute(ThreadedCode code) {
+                        code.ensure(1);
+                        code.load(pc, a);
+                        return next;
+                    }
+                };
+            case Bytecode.STORE:
+                return new Node(pc) {
+                    @Override
+                    Node execute(ThreadedCode code) {
+                        code.store(pc, a);
+                        return next;
+                    }
+                };
+            case Bytecode.LOAD_LOCAL:
+                return new Node(pc) {
+                    @Override
+                    Node execute(ThreadedCode code) {
+                        code.ensure(1);
+                        code.loadLocal(pc, a, b);
+                        return next;
+                    }
+                };
+            case Bytecode.STORE_LOCAL:
+                return new Node(pc) {
+                    @Override
+                    Node execute(ThreadedCode code) {
+                        code.storeLocal(pc, a, b);
+                        return next;
+                    }
+                };
+            case Bytecode.LOCAL_ADDRESS:
+                return new Node(pc) {
+                    @Override
+                    Node execute(ThreadedCode code) {
+                        code.ensure(1);
+                        code.localAddress(a, b);
+                        return next;
+                    }
+                };
+            case Bytecode.ADD_IMM:
+                return new Node(pc) {
+                    @Override
+                    Node execute(ThreadedCode code) {
+                        code.addImm(pc, a);
+                        return next;
+                    }
+                };
+            case Bytecode.DUPLICATE_ADD_IMM:
+                return new Node(pc) {
+                    @Override
+                    Node execute(ThreadedCode code) {
+                        code.ensure(1);
+                        code.duplicateAddImm(pc, a);
+                        return next;
+                    }
+                };
+            case Bytecode.INDEX:
+                return new Node(pc) {
+                    @Override
+                    Node execute(ThreadedCode code) {
+                        code.index(pc, a, b);
+                        return next;
+                    }
+                };
+            case Bytecode.TABLE_SWITCH:
+                return new TableSwitch(pc, b, c);
+            case Bytecode.LOOKUP_SWITCH:
+                return new LookupSwitch(pc, b);
+            case Bytecode.SWITCH_CASE:
+                return new Node(pc) {
+                    @Override
+                    Node execute(ThreadedCode code) {
+                        throw new IllegalStateException(
+                                "switch table entry executed at " + pc);
+                    }
+                };
+            default:
+                throw new IllegalArgumentException("unknown opcode " + bc[i]);
+        }
+    }
+
+    /**
+     * Jumps to the node of the selector's entry in a table indexed by the
+     * selector minus low, or to the default target.
+     */
+    private static class TableSwitch extends Node {
+
+        private final int low;
+        private final Node[] table;
+
+        TableSwitch(int pc, int low, int count) {
+            super(pc);
+            this.low = low;
+            this.table = new Node[count];
+        }
+
+        @Override
+        void link(int[] bc, Node[] nodes) {
+            for(int k = 0; k < table.length; k++) {
+                table[k] = at(nodes, bc[(pc + 1 + k) * Bytecode.STRIDE + 1]);
+            }
+        }
+
+        @Override
+        Node execute(ThreadedCode code) {
+            // as long, the difference may overflow
+            long k = (long)code.switchKey(pc) - low;
+            return k >= 0 && k < table.length ? table[(int)k] : target;
+        }
+
+    }
+
+    /**
+     * Finds the selector among the sorted keys of the table by binary
+     * search and jumps to the node of its entry, or to the default target.
+     */
+    private static class LookupSwitch extends Node {
+
+        private final int[] keys;
+        private final Node[] table;
+
+        LookupSwitch(int pc, int count) {
+            super(pc);
+            this.keys = new int[count];
+            this.table = new Node[count];
+        }
+
+        @Override
+        void link(int[] bc, Node[] nodes) {
+            for(int k = 0; k < table.length; k++) {
+                int entry = (pc + 1 + k) * Bytecode.STRIDE;
+                table[k] = at(nodes, bc[entry + 1]);
+                keys[k] = bc[entry + 2];
+            }
+        }
+
+        @Override
+        Node execute(ThreadedCode code) {
+            int k = Arrays.binarySearch(keys, code.switchKey(pc));
+            return k >= 0 ? table[k] : target;
+        }
+
+    }
+
+}
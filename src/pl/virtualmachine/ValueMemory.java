@@ -0,0 +1,237 @@
+package pl.virtualmachine;
+
+import java.util.Arrays;
+
+/**
+ * Memory keeping one boxed value object per cell. An uninitialized cell is
+ * null.
+ */
+public class ValueMemory extends Memory {
+
+    private Value[] cells;
+
+    public ValueMemory(int size) {
+        cells = new Value[size];
+    }
+
+    @Override
+    public int size() { return cells.length; }
+
+    @Override
+    public boolean isInitialized(int addr) { return cells[addr] != null; }
+
+    @Override
+    public byte tag(int addr) { return cells[addr].tag(); }
+
+    @Override
+    public long payload(int addr) { return cells[addr].payload(); }
+
+    @Override
+    public String string(int addr) { return cells[addr].string(); }
+
+    @Override
+    public boolean load(
+            int addr,
+            byte[] tags,
+            long[] payloads,
+            String[] strings,
+            int i
+    ) {
+        Value v = cells[addr];
+        if(v == null) {
+            return false;
+        }
+        byte tag = v.tag();
+        tags[i] = tag;
+        if(tag == OperandStack.TAG_STRING) {
+            strings[i] = v.string();
+        }
+        else {
+            payloads[i] = v.payload();
+        }
+        return true;
+    }
+
+    @Override
+    public void store(int addr, byte tag, long payload, String string) {
+        Value v;
+        switch(tag) {
+            case OperandStack.TAG_INT:
+                v = new ValueInt((int)payload);
+                break;
+            case OperandStack.TAG_BOOL:
+                v = payload != 0 ? TRUE : FALSE;
+                break;
+            case OperandStack.TAG_REAL:
+                v = new ValueReal(Double.longBitsToDouble(payload));
+                break;
+            case OperandStack.TAG_CHAR:
+                v = new ValueChar((char)payload);
+                break;
+            case OperandStack.TAG_STRING:
+                v = new ValueString(string);
+                break;
+            default:
+                v = UNKNOWN;
+        }
+        cells[addr] = v;
+    }
+
+    @Override
+    public int loadInt(int addr) { return ((ValueInt)cells[addr]).value; }
+
+    @Override
+    public void storeInt(int addr, int value) {
+        cells[addr] = new ValueInt(value);
+    }
+
+    @Override
+    public void grow(int size) {
+        cells = Arrays.copyOf(cells, size);
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(cells, null);
+    }
+
+    @Override
+    public void copy(int addrFrom, int addrTo, int size) {
+        // values are immutable, so the references can be shared
+        for(int i = 0; i < size; i++) {
+            cells[addrTo + i] = cells[addrFrom + i];
+        }
+    }
+
+    @Override
+    public String toString(int addr) { return String.valueOf(cells[addr]); }
+
+    /* values */
+
+    /**
+     * Represents a value in the machine's memory.
+     */
+    private static abstract class Value {
+
+        /**
+         * @return the tag of this value on the evaluation stack
+         */
+        public abstract byte tag();
+
+        /**
+         * @return the payload of this value on the evaluation stack
+         */
+        public long payload() { return 0; }
+
+        public String string() { return null; }
+
+    }
+
+    /**
+     * Represents an integer in the machine's memory.
+     */
+    private static class ValueInt extends Value {
+        private final int value;
+        public ValueInt(int value) {
+            this.value = value;
+        }
+        @Override
+        public byte tag() { return OperandStack.TAG_INT; }
+        @Override
+        public long payload() { return value; }
+        @Override
+        public String toString() {
+            return String.valueOf(value);
+        }
+    }
+
+    /**
+     * Represents a Boolean in the machine's memory.
+     * There are only two instances of this class.
+     */
+    private static final Value TRUE = new ValueBool(true);
+    private static final Value FALSE = new ValueBool(false);
+    private static class ValueBool extends Value {
+        private final boolean value;
+        public ValueBool(boolean value) {
+            this.value = value;
+        }
+        @Override
+        public byte tag() { return OperandStack.TAG_BOOL; }
+        @Override
+        public long payload() { return value ? 1 : 0; }
+        @Override
+        public String toString() {
+            return String.valueOf(value);
+        }
+    }
+
+    /**
+     * Represents a real in the machine's memory.
+     */
+    private static class ValueReal extends Value {
+        private final double value;
+        public ValueReal(double value) {
+            this.value = value;
+        }
+        @Override
+        public byte tag() { return OperandStack.TAG_REAL; }
+        @Override
+        public long payload() { return Double.doubleToRawLongBits(value); }
+        @Override
+        public String toString() {
+            return String.valueOf(value);
+        }
+    }
+
+    /**
+     * Represents a char in the machine's memory.
+     */
+    private static class ValueChar extends Value {
+        private final char value;
+        public ValueChar(char value) {
+            this.value = value;
+        }
+        @Override
+        public byte tag() { return OperandStack.TAG_CHAR; }
+        @Override
+        public long payload() { return value; }
+        @Override
+        public String toString() {
+            return "'" + String.valueOf(value) + "'";
+        }
+    }
+
+    /**
+     * Represents a string in the machine's memory.
+     */
+    private static class ValueString extends Value {
+        private final String value;
+        public ValueString(String value) {
+            this.value = value;
+        }
+        @Override
+        public byte tag() { return OperandStack.TAG_STRING; }
+        @Override
+        public String string() { return value; }
+        @Override
+        public String toString() {
+            return "\"" + String.valueOf(value) + "\"";
+        }
+    }
+
+    /**
+     * Represents a value resulting of expressions with uninitialized variables.
+     * Is kept as a singleton.
+     */
+    private static final Value UNKNOWN = new ValueUnknown();
+    private static class ValueUnknown extends Value {
+        @Override
+        public byte tag() { return OperandStack.TAG_UNKNOWN; }
+        @Override
+        public String toString() {
+            return "?";
+        }
+    }
+
+}
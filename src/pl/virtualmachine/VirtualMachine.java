@@ -1,11 +1,8 @@
 package pl.virtualmachine;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Stack;
 import pl.errors.Errors;
 import pl.type.Type;
 
@@ -17,28 +14,62 @@ import pl.type.Type;
  */
 public class VirtualMachine {
     
-    private final int NULL_POINTER_VALUE = -1000;
+    static final int NULL_POINTER_VALUE = -1000;
     
     private String debugMsg;
 
-    // code containing the compiled program which the machine should execute
+    // code containing the compiled program which the machine should execute,
+    // null while it is only loaded in lowered form, see code()
     private List<MachineInstruction> code;
 
+    // compact form of the code, null as long as the code was not lowered
+    private Bytecode bytecode;
+
+    // the code compiled to a JVM class or linked into threaded form, null if
+    // it was neither compiled nor threaded
+    private CompiledCode compiledCode;
+
     // the machine's internal evaluation stack
-    private Stack<Value> stack;
+    private OperandStack stack;
 
     // memory and mamanger
-    private Value[] memory;
+    private Memory memory;
     private DynamicMemoryManager dynamicMemoryManager;
     private int staticMemorySize;
     private int activationStackSize;
     private int heapSize;
+    private int ndisplays;
+    private DynamicMemoryManager.Allocator allocator;
+    private int maxActivationStackSize;
+    private int maxHeapSize;
     
     // ...
     private ActivationStackManager activationStackManager;
+    // where both managers take new cells from
+    private MemoryLayout layout;
 
     // program counter - necessary for realizing control structures
     private int pc;
+
+    // number of instructions executed so far
+    private long executedInstructions;
+
+    // limits of a run, see setInstructionLimit and setTimeLimit
+    private long instructionLimit = Long.MAX_VALUE;
+    private long timeLimit = Long.MAX_VALUE;
+    // nanoseconds the run has taken in earlier calls of run()
+    private long elapsed;
+    // System.nanoTime() at which the current run exceeds its time limit
+    private long deadline;
+    // end of the current slice, see run(long, long)
+    private long sliceEnd;
+    private long sliceDeadline;
+
+    // destination of WRITE, flushed whenever a run ends
+    private Output output;
+
+    // source of READ, kept from one READ to the next
+    private Input input;
     
     public abstract class VirtualMachineRuntimeException extends RuntimeException {
         
@@ -108,367 +139,1527 @@ public class VirtualMachine {
         }
         
     }
+    
+    /**
+     * Thrown by virtual machine when a run executed more instructions than
+     * its limit allows, see setInstructionLimit. The machine can continue
+     * the run at pc once the limit is raised.
+     */
+    public class InstructionLimitException
+            extends VirtualMachineRuntimeException {
+        
+        public InstructionLimitException(int pc) {
+            super(Errors.ERROR_RUNTIME_INSTRUCTION_LIMIT + ": instruction: " + pc);
+        }
+        
+    }
+    
+    /**
+     * Thrown by virtual machine when a run takes longer than its time limit,
+     * see setTimeLimit. The machine can continue the run at pc.
+     */
+    public class TimeLimitException
+            extends VirtualMachineRuntimeException {
+        
+        public TimeLimitException(int pc) {
+            super(Errors.ERROR_RUNTIME_TIME_LIMIT + ": instruction: " + pc);
+        }
+        
+    }
+
+    // ends a slice of a run, see run(long, long)
+    private static final class Preemption extends RuntimeException {
+
+        Preemption() {
+            super(null, null, false, false);
+        }
+
+    }
+
+    private static final Preemption PREEMPTION = new Preemption();
 
     public VirtualMachine(
             int staticMemorySize,
             int activationStackSize,
             int heapSize,
             int ndisplays
+    ) {
+        this(
+            staticMemorySize,
+            activationStackSize,
+            heapSize,
+            ndisplays,
+            Memory.MemoryModel.VALUES
+        );
+    }
+
+    /**
+     * @param memoryModel the representation of the memory cells
+     */
+    public VirtualMachine(
+            int staticMemorySize,
+            int activationStackSize,
+            int heapSize,
+            int ndisplays,
+            Memory.MemoryModel memoryModel
+    ) {
+        this(
+            staticMemorySize,
+            activationStackSize,
+            heapSize,
+            ndisplays,
+            memoryModel,
+            DynamicMemoryManager.Allocator.FIRST_FIT
+        );
+    }
+
+    /**
+     * @param memoryModel the representation of the memory cells
+     * @param allocator the strategy of the heap allocator
+     */
+    public VirtualMachine(
+            int staticMemorySize,
+            int activationStackSize,
+            int heapSize,
+            int ndisplays,
+            Memory.MemoryModel memoryModel,
+            DynamicMemoryManager.Allocator allocator
+    ) {
+        this(
+            staticMemorySize,
+            activationStackSize,
+            heapSize,
+            ndisplays,
+            memoryModel,
+            allocator,
+            activationStackSize,
+            heapSize
+        );
+    }
+
+    /**
+     * Creates a machine whose activation stack and heap start with the given
+     * sizes and grow on demand, see MemoryLayout.
+     * @param memoryModel the representation of the memory cells
+     * @param allocator the strategy of the heap allocator
+     * @param maxActivationStackSize the number of cells the activation stack
+     *        may grow to, activationStackSize if it must not grow
+     * @param maxHeapSize the number of cells the heap may grow to, heapSize
+     *        if it must not grow
+     */
+    public VirtualMachine(
+            int staticMemorySize,
+            int activationStackSize,
+            int heapSize,
+            int ndisplays,
+            Memory.MemoryModel memoryModel,
+            DynamicMemoryManager.Allocator allocator,
+            int maxActivationStackSize,
+            int maxHeapSize
     ) {
         debugMsg = null;
         this.staticMemorySize = staticMemorySize;
         this.activationStackSize = activationStackSize;
         this.heapSize = heapSize;
-        memory = new Value[staticMemorySize + activationStackSize + heapSize];
+        this.ndisplays = ndisplays;
+        this.allocator = allocator;
+        this.maxActivationStackSize = maxActivationStackSize;
+        this.maxHeapSize = maxHeapSize;
+        memory = Memory.create(
+                memoryModel,
+                staticMemorySize + activationStackSize + heapSize
+        );
         code = new ArrayList<>();
-        stack = new Stack<>();
-        dynamicMemoryManager = new DynamicMemoryManager(
+        stack = new OperandStack();
+        output = new BufferedOutput(System.out);
+        input = BufferedInput.console();
+        createManagers();
+        pc = 0;
+    }
+
+    // creates the managers of the heap and the activation stack, which
+    // start with their initial sizes at the beginning of the memory
+    private void createManagers() {
+        layout = new MemoryLayout(
+                memory,
+                staticMemorySize + activationStackSize + heapSize
+        );
+        dynamicMemoryManager = DynamicMemoryManager.create(
+                allocator,
                 staticMemorySize + activationStackSize,
-                staticMemorySize + activationStackSize + heapSize - 1
+                staticMemorySize + activationStackSize + heapSize - 1,
+                maxHeapSize > heapSize ? layout : null,
+                maxHeapSize
         );
         activationStackManager = new ActivationStackManager(
                 staticMemorySize,
                 staticMemorySize + activationStackSize - 1,
-                ndisplays
+                ndisplays,
+                maxActivationStackSize > activationStackSize ? layout : null,
+                maxActivationStackSize
         );
-        pc = 0;
     }
-    
+
     /**
-     * Runs the specified program on the virtual machine.
+     * Brings the machine back to the state before its first run, so that
+     * it can run its code again. The memory is cleared but keeps the size
+     * it grew to, the code and the lowered, threaded or compiled form of it
+     * are kept, just like the input, the output and the limits.
      */
-    public void execute() {
-        while(pc < code.size()) {
-            //System.out.println("!!! " + pc);
-            //if(pc == 172) printState();
-            code.get(pc).execute();
-        }
+    public void reset() {
+        memory.clear();
+        createManagers();
+        stack.clear();
+        pc = 0;
+        debugMsg = null;
+        executedInstructions = 0;
+        elapsed = 0;
     }
 
     /**
-     * Adds an instruction to this machine's code.
-     * @param i MachineInstruction to be appended to the end of the code of
-     *          this machine.
+     * Limits the number of instructions a run may execute, counted by
+     * getExecutedInstructions. Exceeding it throws an
+     * InstructionLimitException. The bytecode interpreter only checks the
+     * limit on backward jumps and calls and compiled code on every basic
+     * block, so a run may exceed it by less than the length of the code.
+     * The register machine is not limited.
+     * @param limit the number of instructions, Long.MAX_VALUE for none
      */
-    public void addInstruction(MachineInstruction i) { code.add(i); }
+    public void setInstructionLimit(long limit) { instructionLimit = limit; }
 
     /**
-     * Prints the machine's current code.
+     * Limits the time a run may take, summed over the calls of run() and
+     * execute() until it ends. Exceeding it throws a TimeLimitException. It
+     * is checked at the same points as the instruction limit, but only
+     * every few thousand instructions.
+     * @param nanos the time in nanoseconds, Long.MAX_VALUE for none
      */
-    public void printCode() {
-        System.out.println("Code:");
-        for(int i = 0; i < code.size(); i++) {
-            System.out.println(" "+ i + ": " + code.get(i));
+    public void setTimeLimit(long nanos) { timeLimit = nanos; }
+
+    // number of instructions after which the time is checked again
+    private static final long TIME_CHECK_INTERVAL = 1 << 14;
+
+    // the number of executed instructions at which the limits are checked
+    // next
+    long checkpoint(long executed) {
+        long next = Math.min(instructionLimit, sliceEnd);
+        if(deadline == Long.MAX_VALUE && sliceDeadline == Long.MAX_VALUE) {
+            return next;
         }
+        return Math.min(next, executed + TIME_CHECK_INTERVAL);
     }
 
     /**
-     * Prints the machine internal state, that is, the stack, program counter
-     * and registers.
+     * Throws if a limit is exceeded and ends the slice of the run if it is
+     * over, otherwise returns the next checkpoint. The run must be able to
+     * continue at pc, which becomes the machine's program counter when the
+     * slice ends.
      */
-    public void printState() {
-        System.out.println("Stack:");
-        for(int i = 0; i < stack.size(); i++) {
-            System.out.println(" " + i + ": " + stack.get(i));
+    long checkLimits(long executed, int pc) {
+        if(executed >= instructionLimit) {
+            throw new InstructionLimitException(pc);
+        }
+        if(deadline != Long.MAX_VALUE || sliceDeadline != Long.MAX_VALUE) {
+            long now = System.nanoTime();
+            if(now >= deadline) {
+                throw new TimeLimitException(pc);
+            }
+            if(now >= sliceDeadline) {
+                this.pc = pc;
+                throw PREEMPTION;
+            }
         }
-        System.out.println("Memory:");
-        for(int i = 0; i < memory.length; i++) {
-            if(i == staticMemorySize) {
-                System.out.println("----------");
+        if(executed >= sliceEnd) {
+            this.pc = pc;
+            throw PREEMPTION;
+        }
+        return checkpoint(executed);
+    }
+    
+    /**
+     * Runs the specified program on the virtual machine.
+     * If the code was compiled or threaded, that form is run. Otherwise, if
+     * the code was lowered, the bytecode interpreter is used.
+     * The output is flushed when the run ends, even by an exception.
+     */
+    public void execute() {
+        run(Long.MAX_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Runs a slice of the program: until it terminates, has executed the
+     * given number of instructions or the given time is over. The slice is
+     * checked at the same points as the limits, see setInstructionLimit,
+     * so it may take a little longer. A run whose slice is over stops at a
+     * point where the next call of run() or execute() continues it, so one
+     * thread can take turns running many machines. The limits apply to the
+     * whole run, not to each slice.
+     * The output is flushed whenever a slice ends.
+     *
+     * @param instructions the number of instructions of the slice,
+     *        Long.MAX_VALUE for no limit
+     * @param nanos the time of the slice in nanoseconds, Long.MAX_VALUE for
+     *        no limit
+     * @return true if the program terminated, false if the slice is over
+     */
+    public boolean run(long instructions, long nanos) {
+        long start = System.nanoTime();
+        deadline = timeLimit == Long.MAX_VALUE
+                ? Long.MAX_VALUE
+                : start + (timeLimit - elapsed);
+        sliceEnd = instructions >= Long.MAX_VALUE - executedInstructions
+                ? Long.MAX_VALUE
+                : executedInstructions + instructions;
+        sliceDeadline = nanos == Long.MAX_VALUE
+                ? Long.MAX_VALUE
+                : start + nanos;
+        try {
+            if(compiledCode != null) {
+                pc = compiledCode.execute(pc);
+                return true;
             }
-            else if(i == staticMemorySize + activationStackSize) {
-                System.out.println("----------");
+            if(bytecode != null) {
+                executeBytecode();
+                return true;
             }
-            System.out.println(" " + i + ": " + memory[i]);
+            List<MachineInstruction> code = code();
+            long checkpoint = checkpoint(executedInstructions);
+            while(pc < code.size()) {
+                //System.out.println("!!! " + pc);
+                //if(pc == 172) printState();
+                if(executedInstructions >= checkpoint) {
+                    checkpoint = checkLimits(executedInstructions, pc);
+                }
+                code.get(pc).execute(this);
+                executedInstructions++;
+            }
+            return true;
+        }
+        catch(Preemption p) {
+            return false;
+        }
+        finally {
+            elapsed += System.nanoTime() - start;
+            output.flush();
         }
-        System.out.println("PC:");
-        System.out.println(" " + pc);
     }
 
-    public List<MachineInstruction> getCode() { return code; }
-    public int getStaticMemorySize() { return staticMemorySize; }
-    public int getActivationStackSize() { return activationStackSize; }
-    public int getHeapSize() { return heapSize; }
+    /**
+     * Replaces the destination of WRITE and of the prompts of READ, by
+     * default a BufferedOutput to System.out.
+     */
+    public void setOutput(Output output) { this.output = output; }
+    public Output getOutput() { return output; }
 
-    /* values */
+    /**
+     * Replaces the source of READ, by default the console's input shared
+     * by all machines, see BufferedInput.console.
+     */
+    public void setInput(Input input) { this.input = input; }
+    public Input getInput() { return input; }
 
     /**
-     * Represents a value on the machines stack or in its registers.
+     * @return the number of instructions executed so far. The bytecode
+     *         interpreter counts when control is transferred, so the count
+     *         is exact once a slice of the run ends. Compiled code counts
+     *         whole basic blocks, including the one a runtime error occurs
+     *         in.
      */
-    private abstract class Value implements Comparable<Value> {
-        
-        public int getInt() { throw new TypeException(pc); }
-        public boolean getBool() { throw new TypeException(pc); }
-        public double getReal() { throw new TypeException(pc); }
-        public char getChar() { throw new TypeException(pc); }
-        public String getString() { throw new TypeException(pc); }
-        
-        public Value signChange() {
-            throw new TypeException(pc);
-        }
+    public long getExecutedInstructions() { return executedInstructions; }
 
-        public ValueInt convertToInt() {
-            throw new TypeException(pc);
-        }
-        public ValueBool convertToBool() {
-            throw new TypeException(pc);
-        }
-        public ValueReal convertToReal() {
-            throw new TypeException(pc);
-        }
-        public ValueChar convertToChar() {
-            throw new TypeException(pc);
-        }
-        public ValueString convertToString() {
-            throw new TypeException(pc);
-        }
+    // for the compiled code, which counts on its own
+    void setExecutedInstructions(long n) { executedInstructions = n; }
 
-        @Override
-        public abstract int compareTo(Value o);
+    /**
+     * Lowers the machine's code into its compact bytecode form, see Bytecode.
+     * Must be called once after code generation is complete. Afterwards,
+     * execute() runs the bytecode instead of the instruction objects.
+     */
+    public void lower() {
+        bytecode = lowerCode();
+    }
 
+    /**
+     * Replaces the machine's code by a lowered program, e.g. one read from
+     * object code. The machine is ready to run the bytecode afterwards. The
+     * instruction objects are only decoded from it when they are needed, so
+     * machines loading the same program share its code. The program must
+     * not be changed afterwards.
+     */
+    public void load(Bytecode b) {
+        code = null;
+        bytecode = b;
+        compiledCode = null;
     }
 
     /**
-     * Represents an integer in the evaluation stack or in the machine's memory.
-     *
-     * Conversion overview:
-     *      int -> bool:    false if 0, else 1
-     *      int -> real:    round to nearest integer smaller or equal
-     *      int -> char:    chracter with unicode associated to this integer
-     *      int -> string:  a string representation of this integer
+     * Replaces the machine's code by instruction objects, e.g. ones shared
+     * with other machines running the same program, see decode(Bytecode).
+     * The machine is ready to run them afterwards. The code must not be
+     * changed afterwards.
      */
-    private class ValueInt extends Value{
-        private int value;
-        public ValueInt(int value) {
-            this.value = value;
-        }
-        @Override
-        public int getInt() {
-            return value;
-        }
-        @Override
-        public double getReal() {
-            return (double)value;
-        }
+    public void load(List<MachineInstruction> code) {
+        this.code = code;
+        bytecode = null;
+        compiledCode = null;
+    }
 
-        @Override
-        public Value signChange() {
-            return new ValueInt(-value);
-        }
+    /**
+     * Replaces the machine's code by a compiled or threaded program, e.g.
+     * one shared with other machines running the same program, see
+     * getCompiledForm. The machine only binds the form to itself, without
+     * compiling or linking the code again.
+     */
+    public void load(CompiledForm form) {
+        code = null;
+        bytecode = form.getBytecode();
+        compiledCode = form.bind(this);
+    }
 
-        @Override
-        public ValueInt convertToInt() {
-            return new ValueInt(value);
-        }
-        @Override
-        public ValueBool convertToBool() {
-            return new ValueBool(value != 0);
-        }
-        @Override
-        public ValueReal convertToReal() {
-            return new ValueReal((double)value);
+    /**
+     * Runs the instruction objects instead of the lowered or compiled code
+     * from now on, the inverse of lower().
+     */
+    public void raise() {
+        code();
+        bytecode = null;
+        compiledCode = null;
+    }
+
+    // the instruction objects, decoded first if the code was only loaded
+    private List<MachineInstruction> code() {
+        if(code == null) {
+            code = decode(bytecode);
         }
-        @Override
-        public ValueChar convertToChar() {
-            return new ValueChar((char)value);
+        return code;
+    }
+
+    // the lowered form of the current code, for the object code
+    Bytecode lowered() {
+        return bytecode != null ? bytecode : lowerCode();
+    }
+
+    private Bytecode lowerCode() {
+        if(code == null) {
+            return bytecode;
         }
-        @Override
-        public ValueString convertToString() {
-            return new ValueString(Integer.toString(value));
+        Bytecode b = new Bytecode();
+        for(MachineInstruction i : code) {
+            i.lower(b);
         }
+        return b;
+    }
 
-        // always compare as doubles
-        @Override
-        public int compareTo(Value o) {
-            return Double.valueOf(value).compareTo(o.getReal());
-        }
+    /**
+     * Rewrites the machine's code with a peephole optimizer. Must be called
+     * after code generation is complete and before lowering or compiling.
+     */
+    public void optimize(PeepholeOptimizer optimizer) {
+        code = decode(optimizer.optimize(lowerCode()));
+        bytecode = null;
+        compiledCode = null;
+    }
 
-        @Override
-        public String toString() {
-            return String.valueOf(value);
+    /**
+     * Creates the instruction objects of a lowered program. They are not
+     * bound to this machine, so any number of machines can load and run
+     * them, see load(List).
+     */
+    public List<MachineInstruction> decode(Bytecode b) {
+        int[] bc = b.getCode();
+        Object[] constants = b.getConstants();
+        List<MachineInstruction> instructions = new ArrayList<>();
+        for(int pc = 0; pc < b.size(); pc++) {
+            instructions.add(decode(bc, pc * Bytecode.STRIDE, constants));
         }
+        return instructions;
     }
 
     /**
-     * Represents a Boolean in the evaluation stack or in the machine's memory.
-     *
-     * Conversion overview:
-     *      bool -> int:     1 if true, 0 if false
-     *      bool -> real:    1.0 if true, 0.0 if false
-     *      bool -> char:    not possible
-     *      bool -> string:  not possible
+     * Creates the instruction object of a lowered instruction.
+     * @param i index of the instruction's opcode in the code array
      */
-    private class ValueBool extends Value {
-       private boolean value;
-        public ValueBool(boolean value) {
-            this.value = value;
+    private MachineInstruction decode(int[] bc, int i, Object[] constants) {
+        int a = bc[i + 1];
+        int b = bc[i + 2];
+        int c = bc[i + 3];
+        switch(bc[i]) {
+            case Bytecode.CONVERT_INT: return convertInt();
+            case Bytecode.CONVERT_BOOL: return convertBool();
+            case Bytecode.CONVERT_REAL: return convertReal();
+            case Bytecode.CONVERT_CHAR: return convertChar();
+            case Bytecode.CONVERT_STRING: return convertString();
+            case Bytecode.SIGN_CHANGE: return signChange();
+            case Bytecode.NOT: return not();
+            case Bytecode.ADD_INT: return addInt();
+            case Bytecode.ADD_REAL: return addReal();
+            case Bytecode.MULT_INT: return multInt();
+            case Bytecode.MULT_REAL: return multReal();
+            case Bytecode.SUBT_INT: return subtInt();
+            case Bytecode.SUBT_REAL: return subtReal();
+            case Bytecode.DIV_INT: return divInt();
+            case Bytecode.DIV_REAL: return divReal();
+            case Bytecode.REST: return mod();
+            case Bytecode.CONCAT_STRING: return concatString();
+            case Bytecode.CHAIN_ELEMENT: return chainElement();
+            case Bytecode.EQUAL: return equal();
+            case Bytecode.EQUAL_POP1: return equalPop1();
+            case Bytecode.UNEQUAL: return unequal();
+            case Bytecode.LESS: return less();
+            case Bytecode.LESS_EQUAL: return lessEqual();
+            case Bytecode.GREATER: return greater();
+            case Bytecode.GREATER_EQUAL: return greaterEqual();
+            case Bytecode.AND: return and();
+            case Bytecode.OR: return or();
+            case Bytecode.WRITE: return write();
+            case Bytecode.READ: return read((Type)constants[a]);
+            case Bytecode.PUSH_INT: return pushInt(a);
+            case Bytecode.PUSH_BOOL: return pushBool(a != 0);
+            case Bytecode.PUSH_REAL:
+                return pushReal(Double.longBitsToDouble(
+                        ((long)a << 32) | (b & 0xffffffffL)));
+            case Bytecode.PUSH_CHAR: return pushChar((char)a);
+            case Bytecode.PUSH_STRING: return pushString((String)constants[a]);
+            case Bytecode.POP2_STORE: return pop2Store();
+            case Bytecode.POP_LOAD_PUSH: return popLoadPush();
+            case Bytecode.DUPLICATE: return duplicate();
+            case Bytecode.ALLOC: return alloc(a);
+            case Bytecode.DEALLOC: return dealloc(a);
+            case Bytecode.COPY: return copy(a);
+            case Bytecode.ACTIVATE: return activate(a, b, c);
+            case Bytecode.DEACTIVATE: return deactivate(a, b);
+            case Bytecode.SET_DISPLAY: return setDisplay(a);
+            case Bytecode.PUSH_DISPLAY: return pushDisplay(a);
+            case Bytecode.JUMP: return jump(a);
+            case Bytecode.JUMP_IF_FALSE: return jumpIfFalse(a);
+            case Bytecode.JUMP_IF_TRUE: return jumpIfTrue(a);
+            case Bytecode.POP_JUMP: return popJump();
+            case Bytecode.IN_RANGE: return inRange(a);
+            case Bytecode.STOP: return stop();
+            case Bytecode.NOP: return nop();
+            case Bytecode.DEBUG: return debug((String)constants[a]);
+            case Bytecode.LOAD: return load(a);
+            case Bytecode.STORE: return store(a);
+            case Bytecode.LOAD_LOCAL: return loadLocal(a, b);
+            case Bytecode.STORE_LOCAL: return storeLocal(a, b);
+            case Bytecode.LOCAL_ADDRESS: return localAddress(a, b);
+            case Bytecode.ADD_IMM: return addImm(a);
+            case Bytecode.DUPLICATE_ADD_IMM: return duplicateAddImm(a);
+            case Bytecode.INDEX: return index(a, b);
+            case Bytecode.CALL: return call(a, (FrameLayout)constants[b]);
+            case Bytecode.RETURN: return ret(a, b);
+            case Bytecode.TAIL_CALL: return tailCall(a, (FrameLayout)constants[b]);
+            case Bytecode.TABLE_SWITCH: return tableSwitch(a, b, c);
+            case Bytecode.LOOKUP_SWITCH: return lookupSwitch(a, b);
+            case Bytecode.SWITCH_CASE: return switchCase(a, b);
+            default:
+                throw new IllegalArgumentException("unknown opcode " + bc[i]);
         }
-        @Override
-        public boolean getBool() {
-            return value;
+    }
+
+    /**
+     * Compiles the machine's code to a JVM class, see JvmCompiler. Must be
+     * called once after code generation is complete. Afterwards, execute()
+     * runs the compiled class. Needs a JDK at runtime.
+     */
+    public void compile() {
+        if(bytecode == null) {
+            lower();
         }
-        @Override
-        public ValueInt convertToInt() {
-            return new ValueInt(value ? 1 : 0);
+        compiledCode = JvmCompiler.compile(bytecode).bind(this);
+    }
+
+    /**
+     * Links the machine's code into direct threaded form, see ThreadedCode.
+     * Must be called once after code generation is complete. Afterwards,
+     * execute() runs the threaded code.
+     */
+    public void thread() {
+        if(bytecode == null) {
+            lower();
         }
-        @Override
-        public ValueBool convertToBool() {
-            return new ValueBool(value);
+        compiledCode = ThreadedCode.link(bytecode).bind(this);
+    }
+
+    /**
+     * @return the compiled or threaded form of the machine's code, which
+     *         other machines can load, null if the machine runs neither
+     */
+    public CompiledForm getCompiledForm() {
+        return compiledCode == null ? null : compiledCode.form();
+    }
+
+    /**
+     * Bytecode interpreter. Semantics are the same as the ones of the
+     * instruction objects, but the program counter, the stack pointer and the
+     * memory are held in local variables and every instruction is dispatched
+     * by a single switch.
+     */
+    private void executeBytecode() {
+        final int[] bc = bytecode.getCode();
+        final Object[] constants = bytecode.getConstants();
+        final int end = bytecode.size();
+        final Memory memory = this.memory;
+        final OperandStack stack = this.stack;
+        byte[] tags = stack.tags;
+        long[] payloads = stack.payloads;
+        String[] strings = stack.strings;
+        int sp = stack.size;
+        int pc = this.pc;
+        // the instructions are counted when control is transferred: from is
+        // the first instruction run since the last transfer
+        long executed = executedInstructions;
+        long checkpoint = checkpoint(executed);
+        int from = pc;
+        try {
+            while(pc < end) {
+                // no instruction grows the stack by more than one element
+                if(sp == tags.length) {
+                    stack.size = sp;
+                    stack.grow();
+                    tags = stack.tags;
+                    payloads = stack.payloads;
+                    strings = stack.strings;
+                }
+                final int i = pc * Bytecode.STRIDE;
+                final int op = bc[i];
+                // one test for all the other instructions
+                if(op <= Bytecode.LAST_POP2_PUSH) {
+                    // if there is UNKNWOWN on top --> do not do anything
+                    if( op <= Bytecode.LAST_POP_PUSH &&
+                        tags[sp - 1] == OperandStack.TAG_UNKNOWN
+                    ) {
+                        pc++;
+                        continue;
+                    }
+                    // if there is UNKNWOWN on top or as second element -->
+                    // push UNKNOWN
+                    if( op >= Bytecode.FIRST_POP2_PUSH &&
+                        ( tags[sp - 1] == OperandStack.TAG_UNKNOWN ||
+                          tags[sp - 2] == OperandStack.TAG_UNKNOWN )
+                    ) {
+                        sp--;
+                        tags[sp - 1] = OperandStack.TAG_UNKNOWN;
+                        pc++;
+                        continue;
+                    }
+                }
+                final int t = sp - 1; // topmost element
+                final int s = sp - 2; // second element
+                switch(op) {
+                    /* conversion and other unary instructions */
+                    case Bytecode.CONVERT_INT:
+                        switch(tags[t]) {
+                            case OperandStack.TAG_INT:
+                                break;
+                            case OperandStack.TAG_REAL:
+                                payloads[t] = (int)Double.longBitsToDouble(payloads[t]);
+                                break;
+                            case OperandStack.TAG_BOOL:
+                            case OperandStack.TAG_CHAR:
+                                // payload already is 1/0 or the unicode
+                                break;
+                            default:
+                                throw new TypeException(pc);
+                        }
+                        tags[t] = OperandStack.TAG_INT;
+                        pc++;
+                        break;
+                    case Bytecode.CONVERT_BOOL:
+                        if(tags[t] == OperandStack.TAG_INT) {
+                            payloads[t] = (int)payloads[t] != 0 ? 1 : 0;
+                        }
+                        else if(tags[t] != OperandStack.TAG_BOOL) {
+                            throw new TypeException(pc);
+                        }
+                        tags[t] = OperandStack.TAG_BOOL;
+                        pc++;
+                        break;
+                    case Bytecode.CONVERT_REAL:
+                        if(tags[t] == OperandStack.TAG_STRING) {
+                            throw new TypeException(pc);
+                        }
+                        if(tags[t] != OperandStack.TAG_REAL) {
+                            payloads[t] = Double.doubleToRawLongBits((double)payloads[t]);
+                        }
+                        tags[t] = OperandStack.TAG_REAL;
+                        pc++;
+                        break;
+                    case Bytecode.CONVERT_CHAR:
+                        if(tags[t] == OperandStack.TAG_INT) {
+                            payloads[t] = (char)payloads[t];
+                        }
+                        else if(tags[t] != OperandStack.TAG_CHAR) {
+                            throw new TypeException(pc);
+                        }
+                        tags[t] = OperandStack.TAG_CHAR;
+                        pc++;
+                        break;
+                    case Bytecode.CONVERT_STRING:
+                        if(tags[t] == OperandStack.TAG_INT) {
+                            strings[t] = Integer.toString((int)payloads[t]);
+                        }
+                        else if(tags[t] == OperandStack.TAG_CHAR) {
+                            strings[t] = "" + (char)payloads[t];
+                        }
+                        else if(tags[t] != OperandStack.TAG_STRING) {
+                            throw new TypeException(pc);
+                        }
+                        tags[t] = OperandStack.TAG_STRING;
+                        pc++;
+                        break;
+                    case Bytecode.SIGN_CHANGE:
+                        if(tags[t] == OperandStack.TAG_INT) {
+                            payloads[t] = -(int)payloads[t];
+                        }
+                        else if(tags[t] == OperandStack.TAG_REAL) {
+                            payloads[t] = Double.doubleToRawLongBits(
+                                    -Double.longBitsToDouble(payloads[t]));
+                        }
+                        else {
+                            throw new TypeException(pc);
+                        }
+                        pc++;
+                        break;
+                    case Bytecode.NOT:
+                        checkTag(tags[t], OperandStack.TAG_BOOL, pc);
+                        payloads[t] ^= 1;
+                        pc++;
+                        break;
+                    /* arithmetic instructions */
+                    case Bytecode.ADD_INT:
+                        checkTag(tags[s], OperandStack.TAG_INT, pc);
+                        checkTag(tags[t], OperandStack.TAG_INT, pc);
+                        payloads[s] = (int)payloads[s] + (int)payloads[t];
+                        sp--;
+                        pc++;
+                        break;
+                    case Bytecode.SUBT_INT:
+                        checkTag(tags[s], OperandStack.TAG_INT, pc);
+                        checkTag(tags[t], OperandStack.TAG_INT, pc);
+                        payloads[s] = (int)payloads[s] - (int)payloads[t];
+                        sp--;
+                        pc++;
+                        break;
+                    case Bytecode.MULT_INT:
+                        checkTag(tags[s], OperandStack.TAG_INT, pc);
+                        checkTag(tags[t], OperandStack.TAG_INT, pc);
+                        payloads[s] = (int)payloads[s] * (int)payloads[t];
+                        sp--;
+                        pc++;
+                        break;
+                    case Bytecode.DIV_INT:
+                        checkTag(tags[s], OperandStack.TAG_INT, pc);
+                        checkTag(tags[t], OperandStack.TAG_INT, pc);
+                        payloads[s] = (int)payloads[s] / (int)payloads[t];
+                        sp--;
+                        pc++;
+                        break;
+                    case Bytecode.REST:
+                        checkTag(tags[s], OperandStack.TAG_INT, pc);
+                        checkTag(tags[t], OperandStack.TAG_INT, pc);
+                        payloads[s] = (int)payloads[s] % (int)payloads[t];
+                        sp--;
+                        pc++;
+                        break;
+                    case Bytecode.ADD_REAL:
+                        payloads[s] = Double.doubleToRawLongBits(
+                            real(tags[s], payloads[s], pc) + real(tags[t], payloads[t], pc));
+                        tags[s] = OperandStack.TAG_REAL;
+                        sp--;
+                        pc++;
+                        break;
+                    case Bytecode.SUBT_REAL:
+                        payloads[s] = Double.doubleToRawLongBits(
+                            real(tags[s], payloads[s], pc) - real(tags[t], payloads[t], pc));
+                        tags[s] = OperandStack.TAG_REAL;
+                        sp--;
+                        pc++;
+                        break;
+                    case Bytecode.MULT_REAL:
+                        payloads[s] = Double.doubleToRawLongBits(
+                            real(tags[s], payloads[s], pc) * real(tags[t], payloads[t], pc));
+                        tags[s] = OperandStack.TAG_REAL;
+                        sp--;
+                        pc++;
+                        break;
+                    case Bytecode.DIV_REAL:
+                        payloads[s] = Double.doubleToRawLongBits(
+                            real(tags[s], payloads[s], pc) / real(tags[t], payloads[t], pc));
+                        tags[s] = OperandStack.TAG_REAL;
+                        sp--;
+                        pc++;
+                        break;
+                    /* instructions with strings */
+                    case Bytecode.CONCAT_STRING:
+                        checkTag(tags[s], OperandStack.TAG_STRING, pc);
+                        checkTag(tags[t], OperandStack.TAG_STRING, pc);
+                        strings[s] = strings[s] + strings[t];
+                        sp--;
+                        pc++;
+                        break;
+                    case Bytecode.CHAIN_ELEMENT: {
+                        checkTag(tags[s], OperandStack.TAG_STRING, pc);
+                        checkTag(tags[t], OperandStack.TAG_INT, pc);
+                        String str = strings[s];
+                        int index = (int)payloads[t];
+                        if(index < 0 || index >= str.length()) {
+                            tags[s] = OperandStack.TAG_UNKNOWN;
+                        }
+                        else {
+                            tags[s] = OperandStack.TAG_CHAR;
+                            payloads[s] = str.charAt(index);
+                        }
+                        sp--;
+                        pc++;
+                        break;
+                    }
+                    /* relational instructions */
+                    case Bytecode.EQUAL:
+                        setBool(tags, payloads, s,
+                                tags[s] == OperandStack.TAG_INT && tags[t] == OperandStack.TAG_INT
+                                ? (int)payloads[s] == (int)payloads[t]
+                                : compare(tags, payloads, strings, s, t, pc) == 0);
+                        sp--;
+                        pc++;
+                        break;
+                    case Bytecode.EQUAL_POP1:
+                        // keep op1
+                        setBool(tags, payloads, t,
+                                tags[s] == OperandStack.TAG_INT && tags[t] == OperandStack.TAG_INT
+                                ? (int)payloads[s] == (int)payloads[t]
+                                : compare(tags, payloads, strings, s, t, pc) == 0);
+                        pc++;
+                        break;
+                    case Bytecode.UNEQUAL:
+                        setBool(tags, payloads, s,
+                                tags[s] == OperandStack.TAG_INT && tags[t] == OperandStack.TAG_INT
+                                ? (int)payloads[s] != (int)payloads[t]
+                                : compare(tags, payloads, strings, s, t, pc) != 0);
+                        sp--;
+                        pc++;
+                        break;
+                    case Bytecode.LESS:
+                        setBool(tags, payloads, s,
+                                tags[s] == OperandStack.TAG_INT && tags[t] == OperandStack.TAG_INT
+                                ? (int)payloads[s] < (int)payloads[t]
+                                : compare(tags, payloads, strings, s, t, pc) < 0);
+                        sp--;
+                        pc++;
+                        break;
+                    case Bytecode.LESS_EQUAL:
+                        setBool(tags, payloads, s,
+                                tags[s] == OperandStack.TAG_INT && tags[t] == OperandStack.TAG_INT
+                                ? (int)payloads[s] <= (int)payloads[t]
+                                : compare(tags, payloads, strings, s, t, pc) <= 0);
+                        sp--;
+                        pc++;
+                        break;
+                    case Bytecode.GREATER:
+                        setBool(tags, payloads, s,
+                                tags[s] == OperandStack.TAG_INT && tags[t] == OperandStack.TAG_INT
+                                ? (int)payloads[s] > (int)payloads[t]
+                                : compare(tags, payloads, strings, s, t, pc) > 0);
+                        sp--;
+                        pc++;
+                        break;
+                    case Bytecode.GREATER_EQUAL:
+                        setBool(tags, payloads, s,
+                                tags[s] == OperandStack.TAG_INT && tags[t] == OperandStack.TAG_INT
+                                ? (int)payloads[s] >= (int)payloads[t]
+                                : compare(tags, payloads, strings, s, t, pc) >= 0);
+                        sp--;
+                        pc++;
+                        break;
+                    /* logical instructions */
+                    case Bytecode.AND:
+                        checkTag(tags[s], OperandStack.TAG_BOOL, pc);
+                        if(payloads[s] != 0) {
+                            checkTag(tags[t], OperandStack.TAG_BOOL, pc);
+                            payloads[s] = payloads[t];
+                        }
+                        sp--;
+                        pc++;
+                        break;
+                    case Bytecode.OR:
+                        checkTag(tags[s], OperandStack.TAG_BOOL, pc);
+                        if(payloads[s] == 0) {
+                            checkTag(tags[t], OperandStack.TAG_BOOL, pc);
+                            payloads[s] = payloads[t];
+                        }
+                        sp--;
+                        pc++;
+                        break;
+                    /* IO instructions */
+                    case Bytecode.WRITE:
+                        output.writeValue(tags[t], payloads[t], strings[t]);
+                        sp--;
+                        pc++;
+                        break;
+                    case Bytecode.READ:
+                        this.pc = pc;
+                        stack.size = sp;
+                        readInput((Type)constants[bc[i + 1]]);
+                        sp = stack.size;
+                        tags = stack.tags;
+                        payloads = stack.payloads;
+                        strings = stack.strings;
+                        pc++;
+                        break;
+                    /* load and store instructions */
+                    case Bytecode.PUSH_INT:
+                    case Bytecode.PUSH_CHAR:
+                        tags[sp] = op == Bytecode.PUSH_INT
+                                ? OperandStack.TAG_INT
+                                : OperandStack.TAG_CHAR;
+                        payloads[sp] = bc[i + 1];
+                        sp++;
+                        pc++;
+                        break;
+                    case Bytecode.PUSH_BOOL:
+                        tags[sp] = OperandStack.TAG_BOOL;
+                        payloads[sp] = bc[i + 1];
+                        sp++;
+                        pc++;
+                        break;
+                    case Bytecode.PUSH_REAL:
+                        tags[sp] = OperandStack.TAG_REAL;
+                        payloads[sp] = ((long)bc[i + 1] << 32)
+                                | (bc[i + 2] & 0xffffffffL);
+                        sp++;
+                        pc++;
+                        break;
+                    case Bytecode.PUSH_STRING:
+                        tags[sp] = OperandStack.TAG_STRING;
+                        strings[sp] = (String)constants[bc[i + 1]];
+                        sp++;
+                        pc++;
+                        break;
+                    // "desapilaInd"
+                    case Bytecode.POP2_STORE: {
+                        checkTag(tags[s], OperandStack.TAG_INT, pc);
+                        int addr = (int)payloads[s];
+                        if(addr >= memory.size()) {
+                            throw new InvalidAddressException(pc, addr);
+                        }
+                        memory.store(addr, tags[t], payloads[t], strings[t]);
+                        sp -= 2;
+                        pc++;
+                        break;
+                    }
+                    // "apilaInd"
+                    case Bytecode.POP_LOAD_PUSH: {
+                        checkTag(tags[t], OperandStack.TAG_INT, pc);
+                        int addr = (int)payloads[t];
+                        if(addr >= memory.size() || addr < 0) {
+                            throw new InvalidAddressException(pc, addr);
+                        }
+                        if(!memory.load(addr, tags, payloads, strings, t)) {
+                            throw new UninitializedMemoryAccessException(pc, addr);
+                        }
+                        pc++;
+                        break;
+                    }
+                    case Bytecode.DUPLICATE:
+                        tags[sp] = tags[t];
+                        payloads[sp] = payloads[t];
+                        strings[sp] = strings[t];
+                        sp++;
+                        pc++;
+                        break;
+                    /* memory management instructions */
+                    case Bytecode.ALLOC:
+                        tags[sp] = OperandStack.TAG_INT;
+                        payloads[sp] = dynamicMemoryManager.alloc(bc[i + 1]);
+                        sp++;
+                        pc++;
+                        break;
+                    case Bytecode.DEALLOC:
+                        checkTag(tags[t], OperandStack.TAG_INT, pc);
+                        dynamicMemoryManager.free((int)payloads[t], bc[i + 1]);
+                        sp--;
+                        pc++;
+                        break;
+                    case Bytecode.COPY: {
+                        checkTag(tags[t], OperandStack.TAG_INT, pc);
+                        checkTag(tags[s], OperandStack.TAG_INT, pc);
+                        int size = bc[i + 1];
+                        int addrFrom = (int)payloads[t];
+                        int addrTo = (int)payloads[s];
+                        if(addrFrom + size > memory.size()) {
+                            throw new InvalidAddressException(pc, addrFrom + size);
+                        }
+                        if(addrTo + size > memory.size()) {
+                            throw new InvalidAddressException(pc, addrTo + size);
+                        }
+                        memory.copy(addrFrom, addrTo, size);
+                        sp -= 2;
+                        pc++;
+                        break;
+                    }
+                    /* activation stack instructions */
+                    case Bytecode.ACTIVATE: {
+                        int base = activationStackManager
+                                .createActivationRegister(bc[i + 2]);
+                        memory.storeInt(base, bc[i + 3]);
+                        memory.storeInt(base + 1,
+                                activationStackManager.getDisplay(bc[i + 1]));
+                        tags[sp] = OperandStack.TAG_INT;
+                        payloads[sp] = base + 2;
+                        sp++;
+                        pc++;
+                        break;
+                    }
+                    case Bytecode.DEACTIVATE: {
+                        int base = activationStackManager
+                                .freeActivationRegister(bc[i + 2]);
+                        activationStackManager.fixDisplay(
+                                bc[i + 1], memory.loadInt(base + 1));
+                        tags[sp] = memory.tag(base);
+                        payloads[sp] = memory.payload(base);
+                        sp++;
+                        pc++;
+                        break;
+                    }
+                    // "setd"
+                    case Bytecode.SET_DISPLAY:
+                        checkTag(tags[t], OperandStack.TAG_INT, pc);
+                        activationStackManager.fixDisplay(bc[i + 1], (int)payloads[t]);
+                        sp--;
+                        pc++;
+                        break;
+                    // "apilad"
+                    case Bytecode.PUSH_DISPLAY:
+                        tags[sp] = OperandStack.TAG_INT;
+                        payloads[sp] = activationStackManager.getDisplay(bc[i + 1]);
+                        sp++;
+                        pc++;
+                        break;
+                    /* jump instructions */
+                    // "irA"
+                    case Bytecode.JUMP:
+                        executed += pc + 1 - from;
+                        from = bc[i + 1];
+                        // the limits are checked on backward jumps
+                        if(from <= pc && executed >= checkpoint) {
+                            pc = from;
+                            checkpoint = checkLimits(executed, pc);
+                        }
+                        pc = from;
+                        break;
+                    // "irF"
+                    case Bytecode.JUMP_IF_FALSE:
+                        checkTag(tags[t], OperandStack.TAG_BOOL, pc);
+                        sp--;
+                        if(payloads[t] != 0) {
+                            pc++;
+                            break;
+                        }
+                        executed += pc + 1 - from;
+                        from = bc[i + 1];
+                        if(from <= pc && executed >= checkpoint) {
+                            pc = from;
+                            checkpoint = checkLimits(executed, pc);
+                        }
+                        pc = from;
+                        break;
+                    case Bytecode.JUMP_IF_TRUE:
+                        checkTag(tags[t], OperandStack.TAG_BOOL, pc);
+                        sp--;
+                        if(payloads[t] == 0) {
+                            pc++;
+                            break;
+                        }
+                        executed += pc + 1 - from;
+                        from = bc[i + 1];
+                        if(from <= pc && executed >= checkpoint) {
+                            pc = from;
+                            checkpoint = checkLimits(executed, pc);
+                        }
+                        pc = from;
+                        break;
+                    // "irind"
+                    case Bytecode.POP_JUMP:
+                        checkTag(tags[t], OperandStack.TAG_INT, pc);
+                        sp--;
+                        executed += pc + 1 - from;
+                        pc = from = (int)payloads[t];
+                        break;
+                    case Bytecode.CALL:
+                        sp = enter((FrameLayout)constants[bc[i + 2]],
+                                tags, payloads, strings, sp, pc);
+                        executed += pc + 1 - from;
+                        pc = from = bc[i + 1];
+                        // and on every call
+                        if(executed >= checkpoint) {
+                            checkpoint = checkLimits(executed, pc);
+                        }
+                        break;
+                    case Bytecode.RETURN:
+                        executed += pc + 1 - from;
+                        pc = from = activationStackManager.popFrame(
+                                bc[i + 1], bc[i + 2]);
+                        break;
+                    case Bytecode.TAIL_CALL:
+                        sp = reenter((FrameLayout)constants[bc[i + 2]],
+                                tags, payloads, strings, sp, pc);
+                        executed += pc + 1 - from;
+                        pc = from = bc[i + 1];
+                        if(executed >= checkpoint) {
+                            checkpoint = checkLimits(executed, pc);
+                        }
+                        break;
+                    /* miscellaneous instructions */
+                    case Bytecode.IN_RANGE:
+                        checkTag(tags[t], OperandStack.TAG_INT, pc);
+                        if((int)payloads[t] >= bc[i + 1] || (int)payloads[t] < 0) {
+                            throw new OutOfBoundsException(pc);
+                        }
+                        pc++;
+                        break;
+                    case Bytecode.STOP:
+                        executed += pc + 1 - from;
+                        pc = from = end;
+                        break;
+                    case Bytecode.NOP:
+                        pc++;
+                        break;
+                    case Bytecode.DEBUG:
+                        debugMsg = (String)constants[bc[i + 1]];
+                        pc++;
+                        break;
+                    /* superinstructions */
+                    case Bytecode.LOAD:
+                    case Bytecode.LOAD_LOCAL: {
+                        int addr = op == Bytecode.LOAD
+                                ? bc[i + 1]
+                                : activationStackManager.getDisplay(bc[i + 1]) + bc[i + 2];
+                        if(addr >= memory.size() || addr < 0) {
+                            throw new InvalidAddressException(pc, addr);
+                        }
+                        if(!memory.load(addr, tags, payloads, strings, sp)) {
+                            throw new UninitializedMemoryAccessException(pc, addr);
+                        }
+                        sp++;
+                        pc++;
+                        break;
+                    }
+                    case Bytecode.STORE:
+                    case Bytecode.STORE_LOCAL: {
+                        int addr = op == Bytecode.STORE
+                                ? bc[i + 1]
+                                : activationStackManager.getDisplay(bc[i + 1]) + bc[i + 2];
+                        if(addr >= memory.size()) {
+                            throw new InvalidAddressException(pc, addr);
+                        }
+                        memory.store(addr, tags[t], payloads[t], strings[t]);
+                        sp--;
+                        pc++;
+                        break;
+                    }
+                    case Bytecode.LOCAL_ADDRESS:
+                        tags[sp] = OperandStack.TAG_INT;
+                        payloads[sp] = activationStackManager.getDisplay(bc[i + 1]) + bc[i + 2];
+                        sp++;
+                        pc++;
+                        break;
+                    case Bytecode.ADD_IMM:
+                        if(tags[t] != OperandStack.TAG_UNKNOWN) {
+                            checkTag(tags[t], OperandStack.TAG_INT, pc);
+                            payloads[t] = (int)payloads[t] + bc[i + 1];
+                        }
+                        pc++;
+                        break;
+                    case Bytecode.DUPLICATE_ADD_IMM:
+                        tags[sp] = tags[t];
+                        if(tags[t] != OperandStack.TAG_UNKNOWN) {
+                            checkTag(tags[t], OperandStack.TAG_INT, pc);
+                            payloads[sp] = (int)payloads[t] + bc[i + 1];
+                        }
+                        sp++;
+                        pc++;
+                        break;
+                    case Bytecode.INDEX: {
+                        checkTag(tags[t], OperandStack.TAG_INT, pc);
+                        int index = (int)payloads[t];
+                        if(index >= bc[i + 1] || index < 0) {
+                            throw new OutOfBoundsException(pc);
+                        }
+                        if(tags[s] != OperandStack.TAG_UNKNOWN) {
+                            checkTag(tags[s], OperandStack.TAG_INT, pc);
+                            payloads[s] = (int)payloads[s] + index * bc[i + 2];
+                        }
+                        sp--;
+                        pc++;
+                        break;
+                    }
+                    /* switches */
+                    case Bytecode.TABLE_SWITCH: {
+                        long k = (long)switchKey(tags[t], payloads[t], pc) - bc[i + 2];
+                        sp--;
+                        executed += pc + 1 - from;
+                        from = k >= 0 && k < bc[i + 3]
+                                ? bc[i + (1 + (int)k) * Bytecode.STRIDE + 1]
+                                : bc[i + 1];
+                        if(from <= pc && executed >= checkpoint) {
+                            pc = from;
+                            checkpoint = checkLimits(executed, pc);
+                        }
+                        pc = from;
+                        break;
+                    }
+                    case Bytecode.LOOKUP_SWITCH: {
+                        int key = switchKey(tags[t], payloads[t], pc);
+                        sp--;
+                        executed += pc + 1 - from;
+                        from = lookup(bc, i, key);
+                        if(from <= pc && executed >= checkpoint) {
+                            pc = from;
+                            checkpoint = checkLimits(executed, pc);
+                        }
+                        pc = from;
+                        break;
+                    }
+                    default:
+                        throw new IllegalStateException("unknown opcode " + op);
+                }
+            }
         }
-        @Override
-        public ValueReal convertToReal() {
-            return new ValueReal(value ? 1.0 : 0.0);
+        finally {
+            // write the registers back so that the state can be inspected,
+            // counting the instructions run since the last transfer
+            this.pc = pc;
+            executedInstructions = executed + (pc - from);
+            stack.size = sp;
+            Arrays.fill(stack.strings, sp, stack.strings.length, null);
         }
+    }
 
-        @Override
-        public int compareTo(Value o) {
-            return Boolean.valueOf(value).compareTo(o.getBool());
+    // throws a TypeException if the tag is not the expected one
+    private void checkTag(byte tag, byte expected, int pc) {
+        if(tag != expected) {
+            throw new TypeException(pc);
         }
+    }
 
-        @Override
-        public String toString() {
-            return String.valueOf(value);
+    /**
+     * Creates the register of a fused call returning to pc + 1 and moves
+     * the arguments from the stack into it.
+     * @return the new size of the stack
+     */
+    int enter(
+            FrameLayout frame,
+            byte[] tags,
+            long[] payloads,
+            String[] strings,
+            int sp,
+            int pc
+    ) {
+        int display = activationStackManager.pushFrame(
+                frame.getLevel(),
+                frame.getSize(),
+                pc + 1
+        );
+        int first = sp - frame.getParams();
+        for(int k = 0; k < frame.getParams(); k++) {
+            int addrTo = display + frame.getDir(k);
+            int size = frame.getCopySize(k);
+            int s = first + k;
+            if(size == 0) {
+                memory.store(addrTo, tags[s], payloads[s], strings[s]);
+            }
+            else {
+                checkTag(tags[s], OperandStack.TAG_INT, pc);
+                int addrFrom = (int)payloads[s];
+                if(addrFrom + size > memory.size()) {
+                    throw new InvalidAddressException(pc, addrFrom + size);
+                }
+                memory.copy(addrFrom, addrTo, size);
+            }
         }
+        return first;
     }
 
     /**
-     * Represents a real in the evaluation stack or in the machine's memory.
-     *
-     * Conversion overview:
-     *      real -> int:     round down to nearest integer
-     *      real -> bool:    not possible
-     *      real -> char:    not possible
-     *      real -> string:  not possible
+     * Moves the arguments of a tail call from the stack into the parameters
+     * of the current activation register of the procedure, which is reused.
+     * Arguments which are copied from memory may be parameters themselves,
+     * so they are copied to a scratch register first.
+     * @return the new size of the stack
      */
-    private class ValueReal extends Value {
-        private double value;
-        public ValueReal(double value) {
-            this.value = value;
+    int reenter(
+            FrameLayout frame,
+            byte[] tags,
+            long[] payloads,
+            String[] strings,
+            int sp,
+            int pc
+    ) {
+        int display = activationStackManager.getDisplay(frame.getLevel());
+        int first = sp - frame.getParams();
+        int scratch = -1;
+        for(int k = 0; k < frame.getParams(); k++) {
+            int size = frame.getCopySize(k);
+            if(size == 0) {
+                continue;
+            }
+            if(scratch < 0) {
+                scratch = activationStackManager
+                        .createActivationRegister(frame.getSize()) + 2;
+            }
+            int s = first + k;
+            checkTag(tags[s], OperandStack.TAG_INT, pc);
+            int addrFrom = (int)payloads[s];
+            if(addrFrom + size > memory.size()) {
+                throw new InvalidAddressException(pc, addrFrom + size);
+            }
+            memory.copy(addrFrom, scratch + frame.getDir(k), size);
+        }
+        for(int k = 0; k < frame.getParams(); k++) {
+            int addrTo = display + frame.getDir(k);
+            int size = frame.getCopySize(k);
+            int s = first + k;
+            if(size == 0) {
+                memory.store(addrTo, tags[s], payloads[s], strings[s]);
+            }
+            else {
+                memory.copy(scratch + frame.getDir(k), addrTo, size);
+            }
         }
-        @Override
-        public double getReal() {
-            return value;
+        if(scratch >= 0) {
+            activationStackManager.freeActivationRegister(frame.getSize());
         }
-        @Override
-        public String toString() {
-            return String.valueOf(value);
+        return first;
+    }
+
+    // the selector of a switch, an int or a char
+    private int switchKey(byte tag, long payload, int pc) {
+        if(tag != OperandStack.TAG_INT && tag != OperandStack.TAG_CHAR) {
+            throw new TypeException(pc);
         }
+        return (int)payload;
+    }
 
-        @Override
-        public Value signChange() {
-            return new ValueReal(-value);
+    // binary search in the table of the LOOKUP_SWITCH at index i, returns
+    // the target for key
+    private static int lookup(int[] bc, int i, int key) {
+        int low = 0;
+        int high = bc[i + 2] - 1;
+        while(low <= high) {
+            int mid = (low + high) >>> 1;
+            int entry = i + (1 + mid) * Bytecode.STRIDE;
+            if(bc[entry + 2] < key) {
+                low = mid + 1;
+            }
+            else if(bc[entry + 2] > key) {
+                high = mid - 1;
+            }
+            else {
+                return bc[entry + 1];
+            }
         }
+        return bc[i + 1];
+    }
 
-        @Override
-        public ValueInt convertToInt() {
-            return new ValueInt((int)value);
+    // int or real slot as double
+    private double real(byte tag, long payload, int pc) {
+        switch(tag) {
+            case OperandStack.TAG_INT:
+                return (int)payload;
+            case OperandStack.TAG_REAL:
+                return Double.longBitsToDouble(payload);
+            default:
+                throw new TypeException(pc);
         }
+    }
 
-        @Override
-        public int compareTo(Value o) {
-            return Double.valueOf(value).compareTo(o.getReal());
+    private static void setBool(byte[] tags, long[] payloads, int i, boolean v) {
+        tags[i] = OperandStack.TAG_BOOL;
+        payloads[i] = v ? 1 : 0;
+    }
+
+    // same as compareTop2, for slot i1 (op1) and slot i2 (op2)
+    private int compare(
+            byte[] tags,
+            long[] payloads,
+            String[] strings,
+            int i1,
+            int i2,
+            int pc
+    ) {
+        switch(tags[i1]) {
+            case OperandStack.TAG_INT:
+            case OperandStack.TAG_REAL:
+                return Double.compare(
+                        real(tags[i1], payloads[i1], pc),
+                        real(tags[i2], payloads[i2], pc)
+                );
+            case OperandStack.TAG_BOOL:
+                checkTag(tags[i2], OperandStack.TAG_BOOL, pc);
+                return Boolean.compare(payloads[i1] != 0, payloads[i2] != 0);
+            case OperandStack.TAG_CHAR:
+                checkTag(tags[i2], OperandStack.TAG_CHAR, pc);
+                return Character.compare((char)payloads[i1], (char)payloads[i2]);
+            case OperandStack.TAG_STRING:
+                checkTag(tags[i2], OperandStack.TAG_STRING, pc);
+                return strings[i1].compareTo(strings[i2]);
+            default:
+                throw new TypeException(pc);
         }
+    }
 
-        @Override
-        public ValueReal convertToReal() {
-            return new ValueReal(value);
+    /**
+     * Adds an instruction to this machine's code.
+     * @param i MachineInstruction to be appended to the end of the code of
+     *          this machine.
+     */
+    public void addInstruction(MachineInstruction i) { code().add(i); }
+
+    /**
+     * Prints the machine's current code.
+     */
+    public void printCode() {
+        List<MachineInstruction> code = code();
+        System.out.println("Code:");
+        for(int i = 0; i < code.size(); i++) {
+            System.out.println(" "+ i + ": " + code.get(i));
         }
     }
 
     /**
-     * Represents a char in the evaluation stack or in the machine's memory.
-     *
-     * Conversion overview:
-     *      char -> int:     unicode of this char
-     *      char -> bool:    not possible
-     *      char -> real:    unicode of this char
-     *      char -> string:  string containing only this char
+     * Prints the machine internal state, that is, the stack, program counter
+     * and registers.
      */
-    private class ValueChar extends Value {
-        private char value;
-        public ValueChar(char value) {
-            this.value = value;
+    public void printState() {
+        System.out.println("Stack:");
+        for(int i = 0; i < stack.size(); i++) {
+            System.out.println(" " + i + ": " + stack.toString(i));
         }
-        @Override
-        public char getChar() {
-            return value;
+        System.out.println("Memory:");
+        for(int i = 0; i < memory.size(); i++) {
+            if(i == staticMemorySize) {
+                System.out.println("----------");
+            }
+            else if(i == staticMemorySize + activationStackSize) {
+                System.out.println("----------");
+            }
+            System.out.println(" " + i + ": " + memory.toString(i));
         }
+        System.out.println("PC:");
+        System.out.println(" " + pc);
+    }
 
-        @Override
-        public int compareTo(Value o) {
-            return Character.valueOf(value).compareTo(o.getChar());
-        }
+    public List<MachineInstruction> getCode() { return code(); }
 
-        @Override
-        public String toString() {
-            return "'" + String.valueOf(value) + "'";
-        }
+    // access for the compiled code
+    OperandStack operandStack() { return stack; }
+    Memory memory() { return memory; }
+    DynamicMemoryManager dynamicMemoryManager() { return dynamicMemoryManager; }
+    ActivationStackManager activationStackManager() { return activationStackManager; }
+    void setDebugMsg(String msg) { debugMsg = msg; }
 
-        @Override
-        public ValueInt convertToInt() {
-            return new ValueInt((int)value);
-        }
-        @Override
-        public ValueReal convertToReal() {
-            return new ValueReal((double)value);
-        }
-        @Override
-        public ValueChar convertToChar() {
-            return new ValueChar(value);
-        }
-        @Override
-        public ValueString convertToString() {
-            return new ValueString("" + value);
-        }
+    // access for snapshots
+    String debugMsg() { return debugMsg; }
+    int pc() { return pc; }
+    void setPc(int pc) { this.pc = pc; }
+    MemoryLayout layout() { return layout; }
+    DynamicMemoryManager.Allocator allocator() { return allocator; }
+    int codeSize() {
+        return bytecode != null ? bytecode.size() : code().size();
     }
+    public int getStaticMemorySize() { return staticMemorySize; }
+    public int getActivationStackSize() { return activationStackSize; }
+    public int getHeapSize() { return heapSize; }
+    public int getNumberOfDisplays() { return ndisplays; }
 
     /**
-     * Represents a string in the evaluation stack or in the machine's memory.
-     *
-     * Conversion overview:
-     *      cannot be converted to other types.
+     * @return the number of cells of the memory, more than the sizes above
+     *         add up to if the activation stack or the heap grew
      */
-    private class ValueString extends Value {
-       private String value;
-        public ValueString(String value) {
-            this.value = value;
+    public int getMemorySize() { return memory.size(); }
+
+    /* typed access to the evaluation stack */
+
+    // the element at the given depth must be an int
+    private int getInt(int depth) {
+        if(stack.tag(depth) != OperandStack.TAG_INT) {
+            throw new TypeException(pc);
         }
-        @Override
-        public String getString() {
-            return value;
+        return stack.intAt(depth);
+    }
+
+    // the element at the given depth must be a bool
+    private boolean getBool(int depth) {
+        if(stack.tag(depth) != OperandStack.TAG_BOOL) {
+            throw new TypeException(pc);
         }
-        @Override
-        public String toString() {
-            return "\"" + String.valueOf(value) + "\"";
+        return stack.boolAt(depth);
+    }
+
+    // the element at the given depth must be an int or a real
+    private double getReal(int depth) {
+        switch(stack.tag(depth)) {
+            case OperandStack.TAG_INT:
+                return stack.intAt(depth);
+            case OperandStack.TAG_REAL:
+                return stack.realAt(depth);
+            default:
+                throw new TypeException(pc);
         }
+    }
 
-        @Override
-        public int compareTo(Value o) {
-            return value.compareTo(o.getString());
+    // the element at the given depth must be a char
+    private char getChar(int depth) {
+        if(stack.tag(depth) != OperandStack.TAG_CHAR) {
+            throw new TypeException(pc);
         }
+        return stack.charAt(depth);
+    }
 
-        @Override
-        public ValueString convertToString() {
-            return new ValueString(value);
+    // the element at the given depth must be a string
+    private String getString(int depth) {
+        if(stack.tag(depth) != OperandStack.TAG_STRING) {
+            throw new TypeException(pc);
         }
+        return stack.stringAt(depth);
+    }
+
+    private int popInt() {
+        int v = getInt(0);
+        stack.drop(1);
+        return v;
+    }
+
+    private boolean popBool() {
+        boolean v = getBool(0);
+        stack.drop(1);
+        return v;
     }
 
     /**
-     * Represents a value resulting of expressions with uninitialized variables.
-     * Is kept as a singleton.
+     * Compares the second element of the stack (op1) to the topmost one (op2).
+     * The type of op1 determines how the values are compared:
+     *      int, real:  always compare as doubles
+     *      bool:       false < true
+     *      char:       by unicode
+     *      string:     lexicographically
      *
-     * Conversion overview:
-     *      cannot be converted to other types.
+     * @return a negative integer, zero, or a positive integer as op1 is less
+     *         than, equal to, or greater than op2
      */
-    private final Value UNKNOWN = new ValueUnknown();
-    private class ValueUnknown extends Value {
-        @Override
-        public String toString() {
-            return "?";
-        }
-        @Override
-        public int compareTo(Value o) {
-            throw new TypeException(pc);
+    private int compareTop2() {
+        switch(stack.tag(1)) {
+            case OperandStack.TAG_INT:
+            case OperandStack.TAG_REAL:
+                return Double.compare(getReal(1), getReal(0));
+            case OperandStack.TAG_BOOL:
+                return Boolean.compare(getBool(1), getBool(0));
+            case OperandStack.TAG_CHAR:
+                return Character.compare(getChar(1), getChar(0));
+            case OperandStack.TAG_STRING:
+                return getString(1).compareTo(getString(0));
+            default:
+                throw new TypeException(pc);
         }
     }
 
@@ -477,13 +1668,23 @@ public class VirtualMachine {
 
     /**
      * Represents a code instruction the virtual machine can execute.
+     * Instructions hold no state of a run and belong to no machine: the
+     * machine running them is passed to execute(), so the same code can be
+     * run by any number of machines, even at once.
      */
     public interface MachineInstruction {
 
         /**
          * Is called when the machine tries to execute this instruction.
+         * @param machine the machine running the instruction, whose program
+         *        counter, stack and memory it works on
+         */
+        void execute(VirtualMachine machine);
+
+        /**
+         * Appends the compact form of this instruction to the bytecode.
          */
-        void execute();
+        void lower(Bytecode b);
     }
 
     /**
@@ -492,26 +1693,24 @@ public class VirtualMachine {
      * increased by 1. The instruction has no further parameters.
      * If there is UNKNWOWN on top of the stack, the instruction has no effect.
      */
-    private abstract class PopPushInstruction implements MachineInstruction {
+    private abstract static class PopPushInstruction
+            implements MachineInstruction {
 
         /**
          * Subclasses must implement this method to specify how the value is
-         * processed.
-         *
-         * @param op is the value popped from the stack
-         * @return value to be pushed on the stack
+         * processed. The value is the topmost element of the stack, it must
+         * be popped and replaced by the result.
          */
-        protected abstract Value process(Value op);
+        protected abstract void process(VirtualMachine machine);
 
         @Override
-        public void execute() {
+        public void execute(VirtualMachine machine) {
             // if there is UNKNWOWN on top --> do not do anything
-            if(stack.peek() != UNKNOWN) {
-                Value op = stack.pop();
-                stack.push(process(op));
+            if(machine.stack.tag(0) != OperandStack.TAG_UNKNOWN) {
+                process(machine);
             }
             // in each case, increase program counter by 1
-            pc++;
+            machine.pc++;
         }
     }
 
@@ -522,91 +1721,210 @@ public class VirtualMachine {
      * If there is UNKNWOWN among the first to values on the stack, then then
      * instruction pushs UNKNOWN.
      */
-    private abstract class Pop2PushInstruction implements MachineInstruction {
+    private abstract static class Pop2PushInstruction
+            implements MachineInstruction {
 
         /**
          * Subclasses must implement this method to specify how the values are
-         * processed.
-         *
-         * @param op1 is the element below the topmost element from the stack
-         * @param op2 is the topmost element from the stack
-         * @return value to be pushed on the stack
+         * processed. The operands are the two topmost elements of the stack
+         * (op1 below op2), they must be popped and replaced by the result.
          */
-        protected abstract Value process(Value op1, Value op2);
+        protected abstract void process(VirtualMachine machine);
 
         @Override
-        public void execute() {
-            Value op2 = stack.pop();
-            Value op1 = stack.pop();
+        public void execute(VirtualMachine machine) {
             // if there is UNKNWOWN on top or as second element --> push UNKNOWN
-            if(op1 != UNKNOWN && op2 != UNKNOWN) {
-                stack.push(process(op1, op2));
+            if( machine.stack.tag(0) != OperandStack.TAG_UNKNOWN &&
+                machine.stack.tag(1) != OperandStack.TAG_UNKNOWN
+            ) {
+                process(machine);
             }
             else {
-                stack.push(UNKNOWN);
+                machine.stack.drop(2);
+                machine.stack.pushUnknown();
             }
             // in each case, increase program counter by 1
-            pc++;
+            machine.pc++;
         }
     }
 
     /* conversion instructions */
 
-    private InstructionConvertInt INSTRUCTION_CONVERT_INT = new InstructionConvertInt();
-    private class InstructionConvertInt extends PopPushInstruction {
-        @Override
-        protected Value process(Value op) {
-            return op.convertToInt();
+    /**
+     * Conversion overview:
+     *      int -> int:     the same integer
+     *      bool -> int:    1 if true, 0 if false
+     *      real -> int:    round down to nearest integer
+     *      char -> int:    unicode of this char
+     *      string -> int:  not possible
+     */
+    private static final InstructionConvertInt INSTRUCTION_CONVERT_INT = new InstructionConvertInt();
+    private static class InstructionConvertInt extends PopPushInstruction {
+        @Override
+        protected void process(VirtualMachine machine) {
+            int v;
+            switch(machine.stack.tag(0)) {
+                case OperandStack.TAG_INT:
+                    v = machine.stack.intAt(0);
+                    break;
+                case OperandStack.TAG_BOOL:
+                    v = machine.stack.boolAt(0) ? 1 : 0;
+                    break;
+                case OperandStack.TAG_REAL:
+                    v = (int)machine.stack.realAt(0);
+                    break;
+                case OperandStack.TAG_CHAR:
+                    v = (int)machine.stack.charAt(0);
+                    break;
+                default:
+                    throw machine.new TypeException(machine.pc);
+            }
+            machine.stack.drop(1);
+            machine.stack.pushInt(v);
         }
         @Override
+        public void lower(Bytecode b) { b.emit(Bytecode.CONVERT_INT); }
+        @Override
         public String toString() {
             return "convert to int";
         }
     }
 
-    private InstructionConvertBool INSTRUCTION_CONVERT_BOOL = new InstructionConvertBool();
-    private class InstructionConvertBool extends PopPushInstruction {
-        @Override
-        protected Value process(Value op) {
-            return op.convertToBool();
+    /**
+     * Conversion overview:
+     *      int -> bool:    false if 0, else true
+     *      bool -> bool:   the same Boolean
+     *      others:         not possible
+     */
+    private static final InstructionConvertBool INSTRUCTION_CONVERT_BOOL = new InstructionConvertBool();
+    private static class InstructionConvertBool extends PopPushInstruction {
+        @Override
+        protected void process(VirtualMachine machine) {
+            boolean v;
+            switch(machine.stack.tag(0)) {
+                case OperandStack.TAG_INT:
+                    v = machine.stack.intAt(0) != 0;
+                    break;
+                case OperandStack.TAG_BOOL:
+                    v = machine.stack.boolAt(0);
+                    break;
+                default:
+                    throw machine.new TypeException(machine.pc);
+            }
+            machine.stack.drop(1);
+            machine.stack.pushBool(v);
         }
         @Override
+        public void lower(Bytecode b) { b.emit(Bytecode.CONVERT_BOOL); }
+        @Override
         public String toString() {
             return "convert to bool";
         }
     }
 
-    private InstructionConvertReal INSTRUCTION_CONVERT_REAL = new InstructionConvertReal();
-    private class InstructionConvertReal extends PopPushInstruction {
-        @Override
-        protected Value process(Value op) {
-            return op.convertToReal();
+    /**
+     * Conversion overview:
+     *      int -> real:    the same number
+     *      bool -> real:   1.0 if true, 0.0 if false
+     *      real -> real:   the same real
+     *      char -> real:   unicode of this char
+     *      string -> real: not possible
+     */
+    private static final InstructionConvertReal INSTRUCTION_CONVERT_REAL = new InstructionConvertReal();
+    private static class InstructionConvertReal extends PopPushInstruction {
+        @Override
+        protected void process(VirtualMachine machine) {
+            double v;
+            switch(machine.stack.tag(0)) {
+                case OperandStack.TAG_INT:
+                    v = (double)machine.stack.intAt(0);
+                    break;
+                case OperandStack.TAG_BOOL:
+                    v = machine.stack.boolAt(0) ? 1.0 : 0.0;
+                    break;
+                case OperandStack.TAG_REAL:
+                    v = machine.stack.realAt(0);
+                    break;
+                case OperandStack.TAG_CHAR:
+                    v = (double)machine.stack.charAt(0);
+                    break;
+                default:
+                    throw machine.new TypeException(machine.pc);
+            }
+            machine.stack.drop(1);
+            machine.stack.pushReal(v);
         }
         @Override
+        public void lower(Bytecode b) { b.emit(Bytecode.CONVERT_REAL); }
+        @Override
         public String toString() {
             return "convert to real";
         }
     }
 
-    private InstructionConvertChar INSTRUCTION_CONVERT_CHAR = new InstructionConvertChar();
-    private class InstructionConvertChar extends PopPushInstruction {
-        @Override
-        protected Value process(Value op) {
-            return op.convertToChar();
+    /**
+     * Conversion overview:
+     *      int -> char:    chracter with unicode associated to this integer
+     *      char -> char:   the same char
+     *      others:         not possible
+     */
+    private static final InstructionConvertChar INSTRUCTION_CONVERT_CHAR = new InstructionConvertChar();
+    private static class InstructionConvertChar extends PopPushInstruction {
+        @Override
+        protected void process(VirtualMachine machine) {
+            char v;
+            switch(machine.stack.tag(0)) {
+                case OperandStack.TAG_INT:
+                    v = (char)machine.stack.intAt(0);
+                    break;
+                case OperandStack.TAG_CHAR:
+                    v = machine.stack.charAt(0);
+                    break;
+                default:
+                    throw machine.new TypeException(machine.pc);
+            }
+            machine.stack.drop(1);
+            machine.stack.pushChar(v);
         }
         @Override
+        public void lower(Bytecode b) { b.emit(Bytecode.CONVERT_CHAR); }
+        @Override
         public String toString() {
             return "convert to char";
         }
     }
 
-    private InstructionConvertString INSTRUCTION_CONVERT_STRING = new InstructionConvertString();
-    private class InstructionConvertString extends PopPushInstruction {
-        @Override
-        protected Value process(Value op) {
-            return op.convertToString();
+    /**
+     * Conversion overview:
+     *      int -> string:      a string representation of this integer
+     *      char -> string:     string containing only this char
+     *      string -> string:   the same string
+     *      others:             not possible
+     */
+    private static final InstructionConvertString INSTRUCTION_CONVERT_STRING = new InstructionConvertString();
+    private static class InstructionConvertString extends PopPushInstruction {
+        @Override
+        protected void process(VirtualMachine machine) {
+            String v;
+            switch(machine.stack.tag(0)) {
+                case OperandStack.TAG_INT:
+                    v = Integer.toString(machine.stack.intAt(0));
+                    break;
+                case OperandStack.TAG_CHAR:
+                    v = "" + machine.stack.charAt(0);
+                    break;
+                case OperandStack.TAG_STRING:
+                    v = machine.stack.stringAt(0);
+                    break;
+                default:
+                    throw machine.new TypeException(machine.pc);
+            }
+            machine.stack.drop(1);
+            machine.stack.pushString(v);
         }
         @Override
+        public void lower(Bytecode b) { b.emit(Bytecode.CONVERT_STRING); }
+        @Override
         public String toString() {
             return "convert to string";
         }
@@ -614,121 +1932,170 @@ public class VirtualMachine {
 
     /* arithmetic instructions */
 
-    private InstructionSignChange INSTRUCTION_SIGN_CHANGE = new InstructionSignChange();
-    private class InstructionSignChange extends PopPushInstruction {
-        @Override
-        protected Value process(Value op) {
-            return op.signChange();
+    private static final InstructionSignChange INSTRUCTION_SIGN_CHANGE = new InstructionSignChange();
+    private static class InstructionSignChange extends PopPushInstruction {
+        @Override
+        protected void process(VirtualMachine machine) {
+            switch(machine.stack.tag(0)) {
+                case OperandStack.TAG_INT:
+                    machine.stack.pushInt(-machine.popInt());
+                    break;
+                case OperandStack.TAG_REAL:
+                    double v = machine.stack.realAt(0);
+                    machine.stack.drop(1);
+                    machine.stack.pushReal(-v);
+                    break;
+                default:
+                    throw machine.new TypeException(machine.pc);
+            }
         }
         @Override
+        public void lower(Bytecode b) { b.emit(Bytecode.SIGN_CHANGE); }
+        @Override
         public String toString() {
             return "signChange";
         }
     }
 
-    private InstructionAddInt INSTRUCTION_ADD_INT = new InstructionAddInt();
-    private class InstructionAddInt extends Pop2PushInstruction {
+    private static final InstructionAddInt INSTRUCTION_ADD_INT = new InstructionAddInt();
+    private static class InstructionAddInt extends Pop2PushInstruction {
         @Override
-        protected Value process(Value op1, Value op2) {
-            return new ValueInt(op1.getInt() + op2.getInt());
+        protected void process(VirtualMachine machine) {
+            int v = machine.getInt(1) + machine.getInt(0);
+            machine.stack.drop(2);
+            machine.stack.pushInt(v);
         }
         @Override
+        public void lower(Bytecode b) { b.emit(Bytecode.ADD_INT); }
+        @Override
         public String toString() {
             return "addInt";
         }
     }
 
-    private InstructionAddReal INSTRUCTION_ADD_REAL = new InstructionAddReal();
-    private class InstructionAddReal extends Pop2PushInstruction {
+    private static final InstructionAddReal INSTRUCTION_ADD_REAL = new InstructionAddReal();
+    private static class InstructionAddReal extends Pop2PushInstruction {
         @Override
-        protected Value process(Value op1, Value op2) {
-            return new ValueReal(op1.getReal() + op2.getReal());
+        protected void process(VirtualMachine machine) {
+            double v = machine.getReal(1) + machine.getReal(0);
+            machine.stack.drop(2);
+            machine.stack.pushReal(v);
         }
         @Override
+        public void lower(Bytecode b) { b.emit(Bytecode.ADD_REAL); }
+        @Override
         public String toString() {
             return "addReal";
         }
     }
 
-    private InstructionMultInt INSTRUCTION_MULT_INT = new InstructionMultInt();
-    private class InstructionMultInt extends Pop2PushInstruction {
+    private static final InstructionMultInt INSTRUCTION_MULT_INT = new InstructionMultInt();
+    private static class InstructionMultInt extends Pop2PushInstruction {
         @Override
-        protected Value process(Value op1, Value op2) {
-            return new ValueInt(op1.getInt() * op2.getInt());
+        protected void process(VirtualMachine machine) {
+            int v = machine.getInt(1) * machine.getInt(0);
+            machine.stack.drop(2);
+            machine.stack.pushInt(v);
         }
         @Override
+        public void lower(Bytecode b) { b.emit(Bytecode.MULT_INT); }
+        @Override
         public String toString() {
             return "multInt";
         }
     }
 
-    private InstructionMultReal INSTRUCTION_MULT_REAL = new InstructionMultReal();
-    private class InstructionMultReal extends Pop2PushInstruction {
+    private static final InstructionMultReal INSTRUCTION_MULT_REAL = new InstructionMultReal();
+    private static class InstructionMultReal extends Pop2PushInstruction {
         @Override
-        protected Value process(Value op1, Value op2) {
-            return new ValueReal(op1.getReal() * op2.getReal());
+        protected void process(VirtualMachine machine) {
+            double v = machine.getReal(1) * machine.getReal(0);
+            machine.stack.drop(2);
+            machine.stack.pushReal(v);
         }
         @Override
+        public void lower(Bytecode b) { b.emit(Bytecode.MULT_REAL); }
+        @Override
         public String toString() {
             return "multReal";
         }
     }
 
-    private InstructionSubtInt INSTRUCTION_SUBT_INT = new InstructionSubtInt();
-    private class InstructionSubtInt extends Pop2PushInstruction {
+    private static final InstructionSubtInt INSTRUCTION_SUBT_INT = new InstructionSubtInt();
+    private static class InstructionSubtInt extends Pop2PushInstruction {
         @Override
-        protected Value process(Value op1, Value op2) {
-            return new ValueInt(op1.getInt() - op2.getInt());
+        protected void process(VirtualMachine machine) {
+            int v = machine.getInt(1) - machine.getInt(0);
+            machine.stack.drop(2);
+            machine.stack.pushInt(v);
         }
         @Override
+        public void lower(Bytecode b) { b.emit(Bytecode.SUBT_INT); }
+        @Override
         public String toString() {
             return "subtInt";
         }
     }
 
-    private InstructionSubtReal INSTRUCTION_SUBT_REAL = new InstructionSubtReal();
-    private class InstructionSubtReal extends Pop2PushInstruction {
+    private static final InstructionSubtReal INSTRUCTION_SUBT_REAL = new InstructionSubtReal();
+    private static class InstructionSubtReal extends Pop2PushInstruction {
         @Override
-        protected Value process(Value op1, Value op2) {
-            return new ValueReal(op1.getReal() - op2.getReal());
+        protected void process(VirtualMachine machine) {
+            double v = machine.getReal(1) - machine.getReal(0);
+            machine.stack.drop(2);
+            machine.stack.pushReal(v);
         }
         @Override
+        public void lower(Bytecode b) { b.emit(Bytecode.SUBT_REAL); }
+        @Override
         public String toString() {
             return "subtReal";
         }
     }
 
-    private InstructionDivInt INSTRUCTION_DIV_INT = new InstructionDivInt();
-    private class InstructionDivInt extends Pop2PushInstruction {
+    private static final InstructionDivInt INSTRUCTION_DIV_INT = new InstructionDivInt();
+    private static class InstructionDivInt extends Pop2PushInstruction {
         @Override
-        protected Value process(Value op1, Value op2) {
-            return new ValueInt(op1.getInt() / op2.getInt());
+        protected void process(VirtualMachine machine) {
+            int v = machine.getInt(1) / machine.getInt(0);
+            machine.stack.drop(2);
+            machine.stack.pushInt(v);
         }
         @Override
+        public void lower(Bytecode b) { b.emit(Bytecode.DIV_INT); }
+        @Override
         public String toString() {
             return "divInt";
         }
     }
 
-    private InstructionDivReal INSTRUCTION_DIV_REAL = new InstructionDivReal();
-    private class InstructionDivReal extends Pop2PushInstruction {
+    private static final InstructionDivReal INSTRUCTION_DIV_REAL = new InstructionDivReal();
+    private static class InstructionDivReal extends Pop2PushInstruction {
         @Override
-        protected Value process(Value op1, Value op2) {
-            return new ValueReal(op1.getReal() / op2.getReal());
+        protected void process(VirtualMachine machine) {
+            double v = machine.getReal(1) / machine.getReal(0);
+            machine.stack.drop(2);
+            machine.stack.pushReal(v);
         }
         @Override
+        public void lower(Bytecode b) { b.emit(Bytecode.DIV_REAL); }
+        @Override
         public String toString() {
             return "divReal";
         }
     }
 
-    private InstructionRest INSTRUCTION_REST = new InstructionRest();
-    private class InstructionRest extends Pop2PushInstruction {
+    private static final InstructionRest INSTRUCTION_REST = new InstructionRest();
+    private static class InstructionRest extends Pop2PushInstruction {
         @Override
-        protected Value process(Value op1, Value op2) {
-            return new ValueInt(op1.getInt() % op2.getInt());
+        protected void process(VirtualMachine machine) {
+            int v = machine.getInt(1) % machine.getInt(0);
+            machine.stack.drop(2);
+            machine.stack.pushInt(v);
         }
         @Override
+        public void lower(Bytecode b) { b.emit(Bytecode.REST); }
+        @Override
         public String toString() {
             return "rest";
         }
@@ -737,31 +2104,40 @@ public class VirtualMachine {
 
     /* instructions with strings */
 
-    private InstructionConcatString INSTRUCTION_CONCAT_STRING = new InstructionConcatString();
-    private class InstructionConcatString extends Pop2PushInstruction {
+    private static final InstructionConcatString INSTRUCTION_CONCAT_STRING = new InstructionConcatString();
+    private static class InstructionConcatString extends Pop2PushInstruction {
         @Override
-        protected Value process(Value op1, Value op2) {
-            return new ValueString(op1.getString() + op2.getString());
+        protected void process(VirtualMachine machine) {
+            String v = machine.getString(1) + machine.getString(0);
+            machine.stack.drop(2);
+            machine.stack.pushString(v);
         }
         @Override
+        public void lower(Bytecode b) { b.emit(Bytecode.CONCAT_STRING); }
+        @Override
         public String toString() {
             return "concatString";
         }
 
     }
 
-    private InstructionChainElement INSTRUCTION_CHAIN_ELEMENT = new InstructionChainElement();
-    private class InstructionChainElement extends Pop2PushInstruction {
+    private static final InstructionChainElement INSTRUCTION_CHAIN_ELEMENT = new InstructionChainElement();
+    private static class InstructionChainElement extends Pop2PushInstruction {
         @Override
-        protected Value process(Value op1, Value op2) {
-            if(op2.getInt() < 0 || op2.getInt() >= op1.getString().length()) {
-                return UNKNOWN;
+        protected void process(VirtualMachine machine) {
+            String s = machine.getString(1);
+            int i = machine.getInt(0);
+            machine.stack.drop(2);
+            if(i < 0 || i >= s.length()) {
+                machine.stack.pushUnknown();
             }
             else {
-                return new ValueChar(op1.getString().charAt(op2.getInt()));
+                machine.stack.pushChar(s.charAt(i));
             }
         }
         @Override
+        public void lower(Bytecode b) { b.emit(Bytecode.CHAIN_ELEMENT); }
+        @Override
         public String toString() {
             return "chainElement";
         }
@@ -770,86 +2146,113 @@ public class VirtualMachine {
 
     /* relational instructions */
 
-    private InstructionEqual INSTRUCTION_EQUAL = new InstructionEqual();
-    private class InstructionEqual extends Pop2PushInstruction {
+    private static final InstructionEqual INSTRUCTION_EQUAL = new InstructionEqual();
+    private static class InstructionEqual extends Pop2PushInstruction {
         @Override
-        protected Value process(Value op1, Value op2) {
-            return new ValueBool(op1.compareTo(op2) == 0);
+        protected void process(VirtualMachine machine) {
+            boolean v = machine.compareTop2() == 0;
+            machine.stack.drop(2);
+            machine.stack.pushBool(v);
         }
         @Override
+        public void lower(Bytecode b) { b.emit(Bytecode.EQUAL); }
+        @Override
         public String toString() {
             return "equal";
         }
     }
 
-    private InstructionEqualPop1 INSTRUCTION_EQUAL_POP1 = new InstructionEqualPop1();
-    private class InstructionEqualPop1 extends Pop2PushInstruction {
+    private static final InstructionEqualPop1 INSTRUCTION_EQUAL_POP1 = new InstructionEqualPop1();
+    private static class InstructionEqualPop1 extends Pop2PushInstruction {
         @Override
-        protected Value process(Value op1, Value op2) {
-            stack.push(op1); // push op1 back
-            return new ValueBool(op1.compareTo(op2) == 0);
+        protected void process(VirtualMachine machine) {
+            boolean v = machine.compareTop2() == 0;
+            machine.stack.drop(1); // keep op1
+            machine.stack.pushBool(v);
         }
         @Override
+        public void lower(Bytecode b) { b.emit(Bytecode.EQUAL_POP1); }
+        @Override
         public String toString() {
             return "equalPop1";
         }
     }
 
-    private InstructionUnequal INSTRUCTION_UNEQUAL = new InstructionUnequal();
-    private class InstructionUnequal extends Pop2PushInstruction {
+    private static final InstructionUnequal INSTRUCTION_UNEQUAL = new InstructionUnequal();
+    private static class InstructionUnequal extends Pop2PushInstruction {
         @Override
-        protected Value process(Value op1, Value op2) {
-            return new ValueBool(op1.compareTo(op2) != 0);
+        protected void process(VirtualMachine machine) {
+            boolean v = machine.compareTop2() != 0;
+            machine.stack.drop(2);
+            machine.stack.pushBool(v);
         }
         @Override
+        public void lower(Bytecode b) { b.emit(Bytecode.UNEQUAL); }
+        @Override
         public String toString() {
             return "unequal";
         }
     }
 
-    private InstructionLess INSTRUCTION_LESS = new InstructionLess();
-    private class InstructionLess extends Pop2PushInstruction {
+    private static final InstructionLess INSTRUCTION_LESS = new InstructionLess();
+    private static class InstructionLess extends Pop2PushInstruction {
         @Override
-        protected Value process(Value op1, Value op2) {
-            return new ValueBool(op1.compareTo(op2) < 0);
+        protected void process(VirtualMachine machine) {
+            boolean v = machine.compareTop2() < 0;
+            machine.stack.drop(2);
+            machine.stack.pushBool(v);
         }
         @Override
+        public void lower(Bytecode b) { b.emit(Bytecode.LESS); }
+        @Override
         public String toString() {
             return "less";
         }
     }
 
-    private InstructionLessEqual INSTRUCTION_LESS_EQUAL = new InstructionLessEqual();
-    private class InstructionLessEqual extends Pop2PushInstruction {
+    private static final InstructionLessEqual INSTRUCTION_LESS_EQUAL = new InstructionLessEqual();
+    private static class InstructionLessEqual extends Pop2PushInstruction {
         @Override
-        protected Value process(Value op1, Value op2) {
-            return new ValueBool(op1.compareTo(op2) <= 0);
+        protected void process(VirtualMachine machine) {
+            boolean v = machine.compareTop2() <= 0;
+            machine.stack.drop(2);
+            machine.stack.pushBool(v);
         }
         @Override
+        public void lower(Bytecode b) { b.emit(Bytecode.LESS_EQUAL); }
+        @Override
         public String toString() {
             return "lessEqual";
         }
     }
 
-    private InstructionGreater INSTRUCTION_GREATER = new InstructionGreater();
-    private class InstructionGreater extends Pop2PushInstruction {
+    private static final InstructionGreater INSTRUCTION_GREATER = new InstructionGreater();
+    private static class InstructionGreater extends Pop2PushInstruction {
         @Override
-        protected Value process(Value op1, Value op2) {
-            return new ValueBool(op1.compareTo(op2) > 0);
+        protected void process(VirtualMachine machine) {
+            boolean v = machine.compareTop2() > 0;
+            machine.stack.drop(2);
+            machine.stack.pushBool(v);
         }
         @Override
+        public void lower(Bytecode b) { b.emit(Bytecode.GREATER); }
+        @Override
         public String toString() {
             return "greater";
         }
     }
 
-    private InstructionGreaterEqual INSTRUCTION_GREATER_EQUAL = new InstructionGreaterEqual();
-    private class InstructionGreaterEqual extends Pop2PushInstruction {
+    private static final InstructionGreaterEqual INSTRUCTION_GREATER_EQUAL = new InstructionGreaterEqual();
+    private static class InstructionGreaterEqual extends Pop2PushInstruction {
         @Override
-        protected Value process(Value op1, Value op2) {
-            return new ValueBool(op1.compareTo(op2) >= 0);
+        protected void process(VirtualMachine machine) {
+            boolean v = machine.compareTop2() >= 0;
+            machine.stack.drop(2);
+            machine.stack.pushBool(v);
         }
         @Override
+        public void lower(Bytecode b) { b.emit(Bytecode.GREATER_EQUAL); }
+        @Override
         public String toString() {
             return "greaterEqual";
         }
@@ -857,37 +2260,47 @@ public class VirtualMachine {
 
     /* logical instructions */
 
-    private InstructionNot INSTRUCTION_NOT = new InstructionNot();
-    private class InstructionNot extends PopPushInstruction {
+    private static final InstructionNot INSTRUCTION_NOT = new InstructionNot();
+    private static class InstructionNot extends PopPushInstruction {
         @Override
-        protected Value process(Value op) {
-            return new ValueBool(!op.getBool());
+        protected void process(VirtualMachine machine) {
+            machine.stack.pushBool(!machine.popBool());
         }
         @Override
+        public void lower(Bytecode b) { b.emit(Bytecode.NOT); }
+        @Override
         public String toString() {
             return "not";
         }
     }
 
-    private InstructionAnd INSTRUCTION_AND = new InstructionAnd();
-    private class InstructionAnd extends Pop2PushInstruction {
+    private static final InstructionAnd INSTRUCTION_AND = new InstructionAnd();
+    private static class InstructionAnd extends Pop2PushInstruction {
         @Override
-        protected Value process(Value op1, Value op2) {
-            return new ValueBool(op1.getBool() && op2.getBool());
+        protected void process(VirtualMachine machine) {
+            boolean v = machine.getBool(1) && machine.getBool(0);
+            machine.stack.drop(2);
+            machine.stack.pushBool(v);
         }
         @Override
+        public void lower(Bytecode b) { b.emit(Bytecode.AND); }
+        @Override
         public String toString() {
             return "and";
         }
     }
 
-    private InstructionOr INSTRUCTION_OR = new InstructionOr();
-    private class InstructionOr extends Pop2PushInstruction {
+    private static final InstructionOr INSTRUCTION_OR = new InstructionOr();
+    private static class InstructionOr extends Pop2PushInstruction {
         @Override
-        protected Value process(Value op1, Value op2) {
-            return new ValueBool(op1.getBool() || op2.getBool());
+        protected void process(VirtualMachine machine) {
+            boolean v = machine.getBool(1) || machine.getBool(0);
+            machine.stack.drop(2);
+            machine.stack.pushBool(v);
         }
         @Override
+        public void lower(Bytecode b) { b.emit(Bytecode.OR); }
+        @Override
         public String toString() {
             return "or";
         }
@@ -895,80 +2308,59 @@ public class VirtualMachine {
     
     /* IO instructions */
 
-    private InstructionWrite INSTRUCTION_WRITE = new InstructionWrite();
-    private class InstructionWrite implements MachineInstruction {
+    private static final InstructionWrite INSTRUCTION_WRITE = new InstructionWrite();
+    private static class InstructionWrite implements MachineInstruction {
         @Override
-        public void execute() {
-            System.out.println("<< " + stack.pop());
-            pc++;
+        public void execute(VirtualMachine machine) {
+            OperandStack stack = machine.stack;
+            machine.output.writeValue(
+                    stack.tag(0), stack.payload(0), stack.stringAt(0)
+            );
+            stack.drop(1);
+            machine.pc++;
         }
         @Override
+        public void lower(Bytecode b) { b.emit(Bytecode.WRITE); }
+        @Override
         public String toString() {
             return "write";
         }
     }
     
-    private class InstructionRead implements MachineInstruction {
+    /**
+     * Reads a line from the machine's input and pushes its value. If the
+     * input cannot be converted to the target type or has ended, UNKNOWN is
+     * pushed.
+     */
+    void readInput(int pc, Type targetType) {
+        this.pc = pc;
+        readInput(targetType);
+    }
+
+    private void readInput(Type targetType) {
+        if(input.isInteractive()) {
+            output.writeText(">> ");
+            output.flush();
+        }
+        // this should not happen due to static type check
+        if(!input.read(targetType, stack)) {
+            throw new TypeException(pc);
+        }
+    }
+
+    private static class InstructionRead implements MachineInstruction {
         private Type targetType;
         public InstructionRead(Type targetType) {
             this.targetType = targetType;
         }
         @Override
-        public void execute()  {
-            BufferedReader br = new BufferedReader(
-                    new InputStreamReader(System.in)
-            );
-            System.out.print(">> ");
-            String input = "";
-            try {
-                input = br.readLine();
-            }
-            catch(IOException e) {
-                e.printStackTrace();
-                System.exit(1);
-            }
-            if(targetType == Type.BOOL) {
-                // parseBoolean throws no exception and always works
-                boolean v = Boolean.parseBoolean(input);
-                stack.push(new ValueBool(v));
-            }
-            if(targetType == Type.STRING) {
-                stack.push(new ValueString(input));
-            }
-            else if(targetType == Type.INT) {
-                try{
-                    int v = Integer.parseInt(input);
-                    stack.push(new ValueInt(v));
-                }
-                catch(NumberFormatException e) {
-                    stack.push(UNKNOWN);
-                }
-            }
-            else if(targetType == Type.REAL) {
-                try{
-                    double v = Double.parseDouble(input);
-                    stack.push(new ValueReal(v));
-                }
-                catch(NumberFormatException e) {
-                    stack.push(UNKNOWN);
-                }
-            }
-            else if(targetType == Type.CHAR) {
-                // only succesful if length of entered string is 1
-                if(input.length() == 1) {
-                    stack.push(new ValueChar(input.charAt(0)));
-                }
-                else {
-                    stack.push(UNKNOWN);
-                }
-            }
-            // this should not happen due to static type check
-            else {
-                throw new TypeException(pc);
-            }
-            pc++;
+        public void execute(VirtualMachine machine)  {
+            machine.readInput(targetType);
+            machine.pc++;
         }
         @Override
+        public void lower(Bytecode b) { b.emit(Bytecode.READ, b.constant(targetType)); }
+        @Override
         public String toString() {
             return "read";
         }
@@ -976,47 +2368,56 @@ public class VirtualMachine {
 
     /* load and store instructions */
 
-    private class InstructionPushInt implements MachineInstruction {
+    private static class InstructionPushInt implements MachineInstruction {
         private int value;
         public InstructionPushInt(int value) {
             this.value = value;
         }
         @Override
-        public void execute() {
-            stack.push(new ValueInt(value));
-            pc++;
+        public void execute(VirtualMachine machine) {
+            machine.stack.pushInt(value);
+            machine.pc++;
         }
         @Override
+        public void lower(Bytecode b) { b.emit(Bytecode.PUSH_INT, value); }
+        @Override
         public String toString() {
             return "pushInt(" + value + ")";
         }
     }
     
-    private class InstructionPushBool implements MachineInstruction {
+    private static class InstructionPushBool implements MachineInstruction {
         private boolean value;
         public InstructionPushBool(boolean value) {
             this.value = value;
         }
         @Override
-        public void execute() {
-            stack.push(new ValueBool(value));
-            pc++;
+        public void execute(VirtualMachine machine) {
+            machine.stack.pushBool(value);
+            machine.pc++;
         }
         @Override
+        public void lower(Bytecode b) { b.emit(Bytecode.PUSH_BOOL, value ? 1 : 0); }
+        @Override
         public String toString() {
             return "pushBool(" + value + ")";
         }
     }
     
-    private class InstructionPushReal implements MachineInstruction {
+    private static class InstructionPushReal implements MachineInstruction {
         private double value;
         public InstructionPushReal(double value) {
             this.value = value;
         }
         @Override
-        public void execute() {
-            stack.push(new ValueReal(value));
-            pc++;
+        public void execute(VirtualMachine machine) {
+            machine.stack.pushReal(value);
+            machine.pc++;
+        }
+        @Override
+        public void lower(Bytecode b) {
+            long bits = Double.doubleToRawLongBits(value);
+            b.emit(Bytecode.PUSH_REAL, (int)(bits >>> 32), (int)bits);
         }
         @Override
         public String toString() {
@@ -1024,83 +2425,95 @@ public class VirtualMachine {
         }
     }
     
-    private class InstructionPushChar implements MachineInstruction {
+    private static class InstructionPushChar implements MachineInstruction {
         private char value;
         public InstructionPushChar(char value) {
             this.value = value;
         }
         @Override
-        public void execute() {
-            stack.push(new ValueChar(value));
-            pc++;
+        public void execute(VirtualMachine machine) {
+            machine.stack.pushChar(value);
+            machine.pc++;
         }
         @Override
+        public void lower(Bytecode b) { b.emit(Bytecode.PUSH_CHAR, value); }
+        @Override
         public String toString() {
             return "pushChar(" + value + ")";
         }
     }
     
-    private class InstructionPushString implements MachineInstruction {
+    private static class InstructionPushString implements MachineInstruction {
         private String value;
         public InstructionPushString(String value) {
             this.value = value;
         }
         @Override
-        public void execute() {
-            stack.push(new ValueString(value));
-            pc++;
+        public void execute(VirtualMachine machine) {
+            machine.stack.pushString(value);
+            machine.pc++;
         }
         @Override
+        public void lower(Bytecode b) { b.emit(Bytecode.PUSH_STRING, b.constant(value)); }
+        @Override
         public String toString() {
             return "pushString(\"" + value + "\")";
         }
     }
 
     // "desapilaInd"
-    private InstructionPop2Store INSTRUCTION_POP2_STORE = new InstructionPop2Store();
-    private class InstructionPop2Store implements MachineInstruction {
-        @Override
-        public void execute() {
-            Value val = stack.pop();
-            int addr = stack.pop().getInt();
-            if(addr >= memory.length) {
-                throw new InvalidAddressException(pc, addr);
+    private static final InstructionPop2Store INSTRUCTION_POP2_STORE = new InstructionPop2Store();
+    private static class InstructionPop2Store implements MachineInstruction {
+        @Override
+        public void execute(VirtualMachine machine) {
+            int addr = machine.getInt(1);
+            if(addr >= machine.memory.size()) {
+                throw machine.new InvalidAddressException(machine.pc, addr);
             }
-            memory[addr] = val;
-            pc++;
+            machine.memory.store(addr, machine.stack);
+            machine.stack.drop(1);
+            machine.pc++;
         }
         @Override
+        public void lower(Bytecode b) { b.emit(Bytecode.POP2_STORE); }
+        @Override
         public String toString() { return "pop2Store"; }
     }
 
     // "apilaInd"
-    private InstructionPopLoadPush INSTRUCTION_POP_LOAD_PUSH = new InstructionPopLoadPush();
-    private class InstructionPopLoadPush implements MachineInstruction {
+    private static final InstructionPopLoadPush INSTRUCTION_POP_LOAD_PUSH = new InstructionPopLoadPush();
+    private static class InstructionPopLoadPush implements MachineInstruction {
         @Override
-        public void execute() {
-            int addr = stack.pop().getInt();
-            if(addr >= memory.length || addr < 0) {
-                throw new InvalidAddressException(pc, addr);
+        public void execute(VirtualMachine machine) {
+            int addr = machine.popInt();
+            if(addr >= machine.memory.size() || addr < 0) {
+                throw machine.new InvalidAddressException(machine.pc, addr);
             }
-            if(memory[addr] == null) {
-                throw new UninitializedMemoryAccessException(pc, addr);
+            if(!machine.memory.isInitialized(addr)) {
+                throw machine.new UninitializedMemoryAccessException(
+                        machine.pc, addr
+                );
             }
-            stack.push(memory[addr]);
-            pc++;
+            machine.memory.load(addr, machine.stack);
+            machine.pc++;
         }
         @Override
+        public void lower(Bytecode b) { b.emit(Bytecode.POP_LOAD_PUSH); }
+        @Override
         public String toString() { return "popLoadPush"; }
     }
     
     // "dup"
-    private InstructionDuplicate INSTRUCTION_DUPLICATE = new InstructionDuplicate();
-    private class InstructionDuplicate implements MachineInstruction {
+    private static final InstructionDuplicate INSTRUCTION_DUPLICATE = new InstructionDuplicate();
+    private static class InstructionDuplicate implements MachineInstruction {
         @Override
-        public void execute() {
-            stack.push(stack.peek());
-            pc++;
+        public void execute(VirtualMachine machine) {
+            machine.stack.duplicate();
+            machine.pc++;
         }
         @Override
+        public void lower(Bytecode b) { b.emit(Bytecode.DUPLICATE); }
+        @Override
         public String toString() {
             return "duplicate";
         }
@@ -1108,63 +2521,69 @@ public class VirtualMachine {
     
     /* memory management instructions */
 
-    private class InstructionAlloc implements MachineInstruction {
+    private static class InstructionAlloc implements MachineInstruction {
         private int size;
         public InstructionAlloc(int size) {
             this.size = size;
         }
         @Override
-        public void execute() {
-            int first = dynamicMemoryManager.alloc(size);
-            stack.push(new ValueInt(first));
-            pc++;
+        public void execute(VirtualMachine machine) {
+            int first = machine.dynamicMemoryManager.alloc(size);
+            machine.stack.pushInt(first);
+            machine.pc++;
         }
         @Override
+        public void lower(Bytecode b) { b.emit(Bytecode.ALLOC, size); }
+        @Override
         public String toString() { return "alloc(" + size + ")"; }
     }
     
-    private class InstructionDealloc implements MachineInstruction {
+    private static class InstructionDealloc implements MachineInstruction {
         private int size;
         public InstructionDealloc(int size) {
             this.size = size;
         }
         @Override
-        public void execute() {
-            int first = stack.pop().getInt();
-            dynamicMemoryManager.free(first, size);
-            pc++;
+        public void execute(VirtualMachine machine) {
+            int first = machine.popInt();
+            machine.dynamicMemoryManager.free(first, size);
+            machine.pc++;
         }
         @Override
+        public void lower(Bytecode b) { b.emit(Bytecode.DEALLOC, size); }
+        @Override
         public String toString() { return "dealloc(" + size + ")"; }
     }
 
-    private class InstructionCopy implements MachineInstruction {
+    private static class InstructionCopy implements MachineInstruction {
         private int size;
         public InstructionCopy(int size) {
             this.size = size;
         }
         @Override
-        public void execute() {
-            int addrFrom = stack.pop().getInt();
-            int addrTo = stack.pop().getInt();
-            if(addrFrom + size > memory.length) {
-                throw new InvalidAddressException(pc, addrFrom + size);
-            }
-            if(addrTo + size > memory.length) {
-                throw new InvalidAddressException(pc, addrTo + size);
+        public void execute(VirtualMachine machine) {
+            int addrFrom = machine.popInt();
+            int addrTo = machine.popInt();
+            if(addrFrom + size > machine.memory.size()) {
+                throw machine.new InvalidAddressException(
+                        machine.pc, addrFrom + size
+                );
             }
-            for(int i = 0; i < size; i++) {
-                memory[addrTo + i] = memory[addrFrom + i];
+            if(addrTo + size > machine.memory.size()) {
+                throw machine.new InvalidAddressException(machine.pc, addrTo + size);
             }
-            pc++;
+            machine.memory.copy(addrFrom, addrTo, size);
+            machine.pc++;
         }
         @Override
+        public void lower(Bytecode b) { b.emit(Bytecode.COPY, size); }
+        @Override
         public String toString() { return "copy(" + size + ")"; }
     }
     
     /* activation stack instructions */
     
-    private class InstructionActivate implements MachineInstruction {
+    private static class InstructionActivate implements MachineInstruction {
         private int level;
         private int size;
         private int returnAddr;
@@ -1174,20 +2593,23 @@ public class VirtualMachine {
             this.returnAddr = returnAddr;
         }
         @Override
-        public void execute() {
-            int base = activationStackManager.createActivationRegister(size);
-            memory[base] = new ValueInt(returnAddr);
-            memory[base + 1] = new ValueInt(activationStackManager.getDisplay(level));
-            stack.push(new ValueInt(base + 2));
-            pc++;
+        public void execute(VirtualMachine machine) {
+            ActivationStackManager manager = machine.activationStackManager;
+            int base = manager.createActivationRegister(size);
+            machine.memory.storeInt(base, returnAddr);
+            machine.memory.storeInt(base + 1, manager.getDisplay(level));
+            machine.stack.pushInt(base + 2);
+            machine.pc++;
         }
         @Override
+        public void lower(Bytecode b) { b.emit(Bytecode.ACTIVATE, level, size, returnAddr); }
+        @Override
         public String toString() {
             return "activate(" + level + ", " + size + ", " + returnAddr + ")";
         }
     }
     
-    private class InstructionDeactivate implements MachineInstruction {
+    private static class InstructionDeactivate implements MachineInstruction {
         private int level;
         private int size;
         public InstructionDeactivate(int level, int size) {
@@ -1195,45 +2617,52 @@ public class VirtualMachine {
             this.size = size;
         }
         @Override
-        public void execute() {
-            int base = activationStackManager.freeActivationRegister(size);
-            activationStackManager.fixDisplay(level, memory[base + 1].getInt());
-            stack.push(memory[base]);
-            pc++;
+        public void execute(VirtualMachine machine) {
+            ActivationStackManager manager = machine.activationStackManager;
+            int base = manager.freeActivationRegister(size);
+            manager.fixDisplay(level, machine.memory.loadInt(base + 1));
+            machine.memory.load(base, machine.stack);
+            machine.pc++;
         }
         @Override
+        public void lower(Bytecode b) { b.emit(Bytecode.DEACTIVATE, level, size); }
+        @Override
         public String toString() {
             return "deactivate(" + level + ", " + size + ")";
         }
     }
     
     // "setd"
-    private class InstructionSetDisplay implements MachineInstruction {
+    private static class InstructionSetDisplay implements MachineInstruction {
         private int level;
         public InstructionSetDisplay(int level) { this.level = level; }
         @Override
-        public void execute() {
-            activationStackManager.fixDisplay(level, stack.pop().getInt());
-            pc++;
+        public void execute(VirtualMachine machine) {
+            machine.activationStackManager.fixDisplay(level, machine.popInt());
+            machine.pc++;
         }
         @Override
+        public void lower(Bytecode b) { b.emit(Bytecode.SET_DISPLAY, level); }
+        @Override
         public String toString() {
             return "setDisplay(" + level + ")";
         }
     }
     
     // "apilad"
-    private class InstructionPushDisplay implements MachineInstruction {
+    private static class InstructionPushDisplay implements MachineInstruction {
         private int level;
         public InstructionPushDisplay(int level) {
             this.level = level;
         }
         @Override
-        public void execute() {
-            stack.push(new ValueInt(activationStackManager.getDisplay(level)));
-            pc++;
+        public void execute(VirtualMachine machine) {
+            machine.stack.pushInt(machine.activationStackManager.getDisplay(level));
+            machine.pc++;
         }
         @Override
+        public void lower(Bytecode b) { b.emit(Bytecode.PUSH_DISPLAY, level); }
+        @Override
         public String toString() {
             return "pushDisplay(" + level + ")";
         }
@@ -1242,125 +2671,524 @@ public class VirtualMachine {
     /* jump instructions */
 
     // "irA"
-    private class InstructionJump implements MachineInstruction {
+    private static class InstructionJump implements MachineInstruction {
         private int pos;
         public InstructionJump(int pos) {
             this.pos = pos;
         }
         @Override
-        public void execute() {
-            pc = pos;
+        public void execute(VirtualMachine machine) {
+            machine.pc = pos;
         }
         @Override
+        public void lower(Bytecode b) { b.emit(Bytecode.JUMP, pos); }
+        @Override
         public String toString() {
             return "jump(" + pos + ")";
         }
     }
 
     // "irF"
-    private class InstructionJumpIfFalse implements MachineInstruction {
+    private static class InstructionJumpIfFalse implements MachineInstruction {
         private int pos;
         public InstructionJumpIfFalse(int pos) {
             this.pos = pos;
         }
         @Override
-        public void execute() {
-            Value value = stack.pop();
-            if(!value.getBool())
-                pc = pos;
+        public void execute(VirtualMachine machine) {
+            if(!machine.popBool())
+                machine.pc = pos;
             else
-                pc++;
+                machine.pc++;
         }
         @Override
+        public void lower(Bytecode b) { b.emit(Bytecode.JUMP_IF_FALSE, pos); }
+        @Override
         public String toString() {
             return "jumpIfFalse(" + pos + ")";
         }
     }
     
-    private class InstructionJumpIfTrue implements MachineInstruction {
+    private static class InstructionJumpIfTrue implements MachineInstruction {
         private int pos;
         public InstructionJumpIfTrue(int pos) {
             this.pos = pos;
         }
         @Override
-        public void execute() {
-            Value value = stack.pop();
-            if(value.getBool())
-                pc = pos;
+        public void execute(VirtualMachine machine) {
+            if(machine.popBool())
+                machine.pc = pos;
             else
-                pc++;
+                machine.pc++;
         }
         @Override
+        public void lower(Bytecode b) { b.emit(Bytecode.JUMP_IF_TRUE, pos); }
+        @Override
         public String toString() {
             return "jumpIfTrue(" + pos + ")";
         }
     }
     
     // "irind"
-    private InstructionPopJump INSTRUCTION_POP_JUMP = new InstructionPopJump();
-    private class InstructionPopJump implements MachineInstruction {
+    private static final InstructionPopJump INSTRUCTION_POP_JUMP = new InstructionPopJump();
+    private static class InstructionPopJump implements MachineInstruction {
         @Override
-        public void execute() {
-            pc = stack.pop().getInt();
+        public void execute(VirtualMachine machine) {
+            machine.pc = machine.popInt();
         }
         @Override
+        public void lower(Bytecode b) { b.emit(Bytecode.POP_JUMP); }
+        @Override
         public String toString() {
             return "popJump";
         }
     }
     
+    /* fused procedure call and return */
+
+    /**
+     * Pops the arguments into a new activation register and jumps to the
+     * procedure. Replaces activate; the stores of the arguments;
+     * setDisplay; jump, and saves the return address and the display on
+     * the frame stack instead of the memory.
+     */
+    private static class InstructionCall implements MachineInstruction {
+        private int pos;
+        private FrameLayout frame;
+        public InstructionCall(int pos, FrameLayout frame) {
+            this.pos = pos;
+            this.frame = frame;
+        }
+        @Override
+        public void execute(VirtualMachine machine) {
+            machine.enter(
+                    frame,
+                    machine.stack.tags,
+                    machine.stack.payloads,
+                    machine.stack.strings,
+                    machine.stack.size,
+                    machine.pc
+            );
+            machine.stack.drop(frame.getParams());
+            machine.pc = pos;
+        }
+        @Override
+        public void lower(Bytecode b) { b.emit(Bytecode.CALL, pos, b.constant(frame)); }
+        @Override
+        public String toString() { return "call(" + pos + ", " + frame + ")"; }
+    }
+
+    // deactivate; popJump
+    private static class InstructionReturn implements MachineInstruction {
+        private int level;
+        private int size;
+        public InstructionReturn(int level, int size) {
+            this.level = level;
+            this.size = size;
+        }
+        @Override
+        public void execute(VirtualMachine machine) {
+            machine.pc = machine.activationStackManager.popFrame(level, size);
+        }
+        @Override
+        public void lower(Bytecode b) { b.emit(Bytecode.RETURN, level, size); }
+        @Override
+        public String toString() { return "ret(" + level + ", " + size + ")"; }
+    }
+
+    /**
+     * Pops the arguments into the parameters of the current activation
+     * register of the procedure and jumps to its start.
+     */
+    private static class InstructionTailCall implements MachineInstruction {
+        private int pos;
+        private FrameLayout frame;
+        public InstructionTailCall(int pos, FrameLayout frame) {
+            this.pos = pos;
+            this.frame = frame;
+        }
+        @Override
+        public void execute(VirtualMachine machine) {
+            machine.reenter(
+                    frame,
+                    machine.stack.tags,
+                    machine.stack.payloads,
+                    machine.stack.strings,
+                    machine.stack.size,
+                    machine.pc
+            );
+            machine.stack.drop(frame.getParams());
+            machine.pc = pos;
+        }
+        @Override
+        public void lower(Bytecode b) {
+            b.emit(Bytecode.TAIL_CALL, pos, b.constant(frame));
+        }
+        @Override
+        public String toString() { return "tailCall(" + pos + ", " + frame + ")"; }
+    }
+
+    /* switches */
+
+    // pops the selector of a switch, an int or a char
+    private int popSwitchKey() {
+        // the payload of a char is its code, as for an int
+        int key = switchKey(stack.tag(0), stack.intAt(0), pc);
+        stack.drop(1);
+        return key;
+    }
+
+    /**
+     * Pops the selector and jumps to the target of its entry in the table
+     * which follows this instruction. The table has count entries for the
+     * keys low, low + 1, ..., low + count - 1. For other keys the switch
+     * jumps to the default target.
+     */
+    private static class InstructionTableSwitch implements MachineInstruction {
+        private int defaultPos;
+        private int low;
+        private int count;
+        public InstructionTableSwitch(int defaultPos, int low, int count) {
+            this.defaultPos = defaultPos;
+            this.low = low;
+            this.count = count;
+        }
+        @Override
+        public void execute(VirtualMachine machine) {
+            // as long, the difference may overflow
+            long k = (long)machine.popSwitchKey() - low;
+            if(k >= 0 && k < count) {
+                int entry = machine.pc + 1 + (int)k;
+                machine.pc = ((InstructionSwitchCase)machine.code.get(entry)).pos;
+            }
+            else {
+                machine.pc = defaultPos;
+            }
+        }
+        @Override
+        public void lower(Bytecode b) {
+            b.emit(Bytecode.TABLE_SWITCH, defaultPos, low, count);
+        }
+        @Override
+        public String toString() {
+            return "tableSwitch(" + defaultPos + ", " + low + ", " + count + ")";
+        }
+    }
+
+    /**
+     * Pops the selector and jumps to the target of its entry in the table
+     * which follows this instruction. The count entries are sorted by their
+     * keys, the entry is found by binary search. If there is none, the switch
+     * jumps to the default target.
+     */
+    private static class InstructionLookupSwitch implements MachineInstruction {
+        private int defaultPos;
+        private int count;
+        public InstructionLookupSwitch(int defaultPos, int count) {
+            this.defaultPos = defaultPos;
+            this.count = count;
+        }
+        @Override
+        public void execute(VirtualMachine machine) {
+            int key = machine.popSwitchKey();
+            int low = machine.pc + 1;
+            int high = machine.pc + count;
+            int target = defaultPos;
+            while(low <= high) {
+                int mid = (low + high) >>> 1;
+                InstructionSwitchCase entry =
+                        (InstructionSwitchCase)machine.code.get(mid);
+                if(entry.key < key) {
+                    low = mid + 1;
+                }
+                else if(entry.key > key) {
+                    high = mid - 1;
+                }
+                else {
+                    target = entry.pos;
+                    break;
+                }
+            }
+            machine.pc = target;
+        }
+        @Override
+        public void lower(Bytecode b) {
+            b.emit(Bytecode.LOOKUP_SWITCH, defaultPos, count);
+        }
+        @Override
+        public String toString() {
+            return "lookupSwitch(" + defaultPos + ", " + count + ")";
+        }
+    }
+
+    /**
+     * An entry of the table of a switch. It is never executed itself.
+     */
+    private static class InstructionSwitchCase implements MachineInstruction {
+        private int pos;
+        private int key;
+        public InstructionSwitchCase(int pos, int key) {
+            this.pos = pos;
+            this.key = key;
+        }
+        @Override
+        public void execute(VirtualMachine machine) {
+            throw new IllegalStateException(
+                    "switch table entry executed at " + machine.pc
+            );
+        }
+        @Override
+        public void lower(Bytecode b) { b.emit(Bytecode.SWITCH_CASE, pos, key); }
+        @Override
+        public String toString() {
+            return "case(" + key + ": " + pos + ")";
+        }
+    }
+
     /* miscellaneous instructions */
     
-    private class InstructionInRange implements MachineInstruction {
+    private static class InstructionInRange implements MachineInstruction {
         private int dim;
         public InstructionInRange(int dim) { this.dim = dim; }
         @Override
-        public void execute() {
-            if(stack.peek().getInt() >= dim || stack.peek().getInt() < 0) {
-                throw new OutOfBoundsException(pc);
+        public void execute(VirtualMachine machine) {
+            if(machine.getInt(0) >= dim || machine.getInt(0) < 0) {
+                throw machine.new OutOfBoundsException(machine.pc);
             }
-            pc++;
+            machine.pc++;
         }
         @Override
+        public void lower(Bytecode b) { b.emit(Bytecode.IN_RANGE, dim); }
+        @Override
         public String toString() { return "inRange(" + dim + ")"; }
     }
     
-    private InstructionStop INSTRUCTION_STOP = new InstructionStop();
-    private class InstructionStop implements MachineInstruction {
+    private static final InstructionStop INSTRUCTION_STOP = new InstructionStop();
+    private static class InstructionStop implements MachineInstruction {
         @Override
-        public void execute() {
-            pc = code.size();
+        public void execute(VirtualMachine machine) {
+            machine.pc = machine.code.size();
         }
         @Override
+        public void lower(Bytecode b) { b.emit(Bytecode.STOP); }
+        @Override
         public String toString() {
             return "stop";
         }
     }
     
-    private InstructionNop INSTRUCTION_NOP = new InstructionNop();
-    private class InstructionNop implements MachineInstruction {
+    private static final InstructionNop INSTRUCTION_NOP = new InstructionNop();
+    private static class InstructionNop implements MachineInstruction {
         @Override
-        public void execute() {
-            pc++;
+        public void execute(VirtualMachine machine) {
+            machine.pc++;
         }
         @Override
+        public void lower(Bytecode b) { b.emit(Bytecode.NOP); }
+        @Override
         public String toString() {
             return "nop";
         }
     }
     
-    private class InstructionDebug implements MachineInstruction {
+    private static class InstructionDebug implements MachineInstruction {
         private String msg;
         public InstructionDebug(String debugMsg) { this.msg = debugMsg; }
         @Override
-        public void execute() {
-            debugMsg = msg;
-            pc++;
+        public void execute(VirtualMachine machine) {
+            machine.debugMsg = msg;
+            machine.pc++;
         }
         @Override
+        public void lower(Bytecode b) { b.emit(Bytecode.DEBUG, b.constant(msg)); }
+        @Override
         public String toString() { return "debug(" + msg + ")"; }
     }
 
+    /* superinstructions */
+
+    // The code generator emits these for the most frequent instruction
+    // sequences. Each one has exactly the semantics of the sequence it
+    // replaces, including UNKNOWN and all runtime checks.
+
+    // pushes the content of a cell, like "apilaInd" on a known address
+    private void loadCell(int addr) {
+        if(addr >= memory.size() || addr < 0) {
+            throw new InvalidAddressException(pc, addr);
+        }
+        if(!memory.isInitialized(addr)) {
+            throw new UninitializedMemoryAccessException(pc, addr);
+        }
+        memory.load(addr, stack);
+    }
+
+    // pops the topmost element into a cell, like "desapilaInd" on a known
+    // address
+    private void storeCell(int addr) {
+        if(addr >= memory.size()) {
+            throw new InvalidAddressException(pc, addr);
+        }
+        memory.store(addr, stack);
+    }
+
+    // pushInt(addr); popLoadPush
+    private static class InstructionLoad implements MachineInstruction {
+        private int addr;
+        public InstructionLoad(int addr) { this.addr = addr; }
+        @Override
+        public void execute(VirtualMachine machine) {
+            machine.loadCell(addr);
+            machine.pc++;
+        }
+        @Override
+        public void lower(Bytecode b) { b.emit(Bytecode.LOAD, addr); }
+        @Override
+        public String toString() { return "load(" + addr + ")"; }
+    }
+
+    // pushInt(addr); <value>; pop2Store
+    private static class InstructionStore implements MachineInstruction {
+        private int addr;
+        public InstructionStore(int addr) { this.addr = addr; }
+        @Override
+        public void execute(VirtualMachine machine) {
+            machine.storeCell(addr);
+            machine.pc++;
+        }
+        @Override
+        public void lower(Bytecode b) { b.emit(Bytecode.STORE, addr); }
+        @Override
+        public String toString() { return "store(" + addr + ")"; }
+    }
+
+    // pushDisplay(level); pushInt(dir); addInt; popLoadPush
+    private static class InstructionLoadLocal implements MachineInstruction {
+        private int level;
+        private int dir;
+        public InstructionLoadLocal(int level, int dir) {
+            this.level = level;
+            this.dir = dir;
+        }
+        @Override
+        public void execute(VirtualMachine machine) {
+            machine.loadCell(machine.activationStackManager.getDisplay(level) + dir);
+            machine.pc++;
+        }
+        @Override
+        public void lower(Bytecode b) { b.emit(Bytecode.LOAD_LOCAL, level, dir); }
+        @Override
+        public String toString() {
+            return "loadLocal(" + level + ", " + dir + ")";
+        }
+    }
+
+    // pushDisplay(level); pushInt(dir); addInt; <value>; pop2Store
+    private static class InstructionStoreLocal implements MachineInstruction {
+        private int level;
+        private int dir;
+        public InstructionStoreLocal(int level, int dir) {
+            this.level = level;
+            this.dir = dir;
+        }
+        @Override
+        public void execute(VirtualMachine machine) {
+            int display = machine.activationStackManager.getDisplay(level);
+            machine.storeCell(display + dir);
+            machine.pc++;
+        }
+        @Override
+        public void lower(Bytecode b) { b.emit(Bytecode.STORE_LOCAL, level, dir); }
+        @Override
+        public String toString() {
+            return "storeLocal(" + level + ", " + dir + ")";
+        }
+    }
+
+    // pushDisplay(level); pushInt(dir); addInt
+    private static class InstructionLocalAddress implements MachineInstruction {
+        private int level;
+        private int dir;
+        public InstructionLocalAddress(int level, int dir) {
+            this.level = level;
+            this.dir = dir;
+        }
+        @Override
+        public void execute(VirtualMachine machine) {
+            int display = machine.activationStackManager.getDisplay(level);
+            machine.stack.pushInt(display + dir);
+            machine.pc++;
+        }
+        @Override
+        public void lower(Bytecode b) { b.emit(Bytecode.LOCAL_ADDRESS, level, dir); }
+        @Override
+        public String toString() {
+            return "localAddress(" + level + ", " + dir + ")";
+        }
+    }
+
+    // pushInt(value); addInt
+    private static class InstructionAddImm implements MachineInstruction {
+        private int value;
+        public InstructionAddImm(int value) { this.value = value; }
+        @Override
+        public void execute(VirtualMachine machine) {
+            if(machine.stack.tag(0) != OperandStack.TAG_UNKNOWN) {
+                machine.stack.pushInt(machine.popInt() + value);
+            }
+            machine.pc++;
+        }
+        @Override
+        public void lower(Bytecode b) { b.emit(Bytecode.ADD_IMM, value); }
+        @Override
+        public String toString() { return "addImm(" + value + ")"; }
+    }
+
+    // duplicate; pushInt(value); addInt
+    private static class InstructionDuplicateAddImm implements MachineInstruction {
+        private int value;
+        public InstructionDuplicateAddImm(int value) { this.value = value; }
+        @Override
+        public void execute(VirtualMachine machine) {
+            if(machine.stack.tag(0) != OperandStack.TAG_UNKNOWN) {
+                machine.stack.pushInt(machine.getInt(0) + value);
+            }
+            else {
+                machine.stack.pushUnknown();
+            }
+            machine.pc++;
+        }
+        @Override
+        public void lower(Bytecode b) { b.emit(Bytecode.DUPLICATE_ADD_IMM, value); }
+        @Override
+        public String toString() { return "duplicateAddImm(" + value + ")"; }
+    }
+
+    // inRange(dim); pushInt(size); multInt; addInt
+    private static class InstructionIndex implements MachineInstruction {
+        private int dim;
+        private int size;
+        public InstructionIndex(int dim, int size) {
+            this.dim = dim;
+            this.size = size;
+        }
+        @Override
+        public void execute(VirtualMachine machine) {
+            int i = machine.getInt(0);
+            if(i >= dim || i < 0) {
+                throw machine.new OutOfBoundsException(machine.pc);
+            }
+            machine.stack.drop(1);
+            if(machine.stack.tag(0) != OperandStack.TAG_UNKNOWN) {
+                machine.stack.pushInt(machine.popInt() + i * size);
+            }
+            machine.pc++;
+        }
+        @Override
+        public void lower(Bytecode b) { b.emit(Bytecode.INDEX, dim, size); }
+        @Override
+        public String toString() { return "index(" + dim + ", " + size + ")"; }
+    }
+
     /* instruction constructors */
 
     // TODO instead of beeing constructors, these methods should add the
@@ -1466,6 +3294,44 @@ public class VirtualMachine {
         return new InstructionJumpIfTrue(pos);
     }
     public MachineInstruction popJump() { return INSTRUCTION_POP_JUMP; }
+
+    /* fused procedure call and return */
+
+    /**
+     * Must be preceded by the arguments and return to the next instruction.
+     */
+    public MachineInstruction call(int pos, FrameLayout frame) {
+        return new InstructionCall(pos, frame);
+    }
+    public MachineInstruction ret(int level, int size) {
+        return new InstructionReturn(level, size);
+    }
+    /**
+     * Must be preceded by the arguments. The procedure must be the one whose
+     * activation register is the current one of its level.
+     */
+    public MachineInstruction tailCall(int pos, FrameLayout frame) {
+        return new InstructionTailCall(pos, frame);
+    }
+
+    /* switches */
+
+    /**
+     * Must be followed by count switchCase() entries for the keys low to
+     * low + count - 1.
+     */
+    public MachineInstruction tableSwitch(int defaultPos, int low, int count) {
+        return new InstructionTableSwitch(defaultPos, low, count);
+    }
+    /**
+     * Must be followed by count switchCase() entries with ascending keys.
+     */
+    public MachineInstruction lookupSwitch(int defaultPos, int count) {
+        return new InstructionLookupSwitch(defaultPos, count);
+    }
+    public MachineInstruction switchCase(int pos, int key) {
+        return new InstructionSwitchCase(pos, key);
+    }
     
     /* miscellaneous instructions */
     
@@ -1475,5 +3341,26 @@ public class VirtualMachine {
     public MachineInstruction stop() { return INSTRUCTION_STOP; } 
     public MachineInstruction nop() { return INSTRUCTION_NOP; } 
     public MachineInstruction debug(String msg) { return new InstructionDebug(msg); }
+
+    /* superinstructions */
+
+    public MachineInstruction load(int addr) { return new InstructionLoad(addr); }
+    public MachineInstruction store(int addr) { return new InstructionStore(addr); }
+    public MachineInstruction loadLocal(int level, int dir) {
+        return new InstructionLoadLocal(level, dir);
+    }
+    public MachineInstruction storeLocal(int level, int dir) {
+        return new InstructionStoreLocal(level, dir);
+    }
+    public MachineInstruction localAddress(int level, int dir) {
+        return new InstructionLocalAddress(level, dir);
+    }
+    public MachineInstruction addImm(int value) { return new InstructionAddImm(value); }
+    public MachineInstruction duplicateAddImm(int value) {
+        return new InstructionDuplicateAddImm(value);
+    }
+    public MachineInstruction index(int dim, int size) {
+        return new InstructionIndex(dim, size);
+    }
     
-}
\ No newline at end of file
+}
\ No newline at end of file